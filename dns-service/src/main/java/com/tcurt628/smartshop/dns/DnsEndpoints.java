@@ -0,0 +1,78 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.UriUtils;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The nodes of a DNS cluster, as one client uses them. Every node has all of the records, so a client sends all of its
+ * requests to one node, until that node fails; it then moves on to the next one. Each client starts on a random node,
+ * so many clients spread their lookups over the whole cluster.
+ */
+public class DnsEndpoints {
+
+   private final List<URI> endpoints;
+   private final AtomicInteger current;
+
+   public DnsEndpoints(List<URI> endpoints) {
+      if (endpoints.isEmpty()) {
+         throw new IllegalArgumentException("endpoints: must have at least one DNS node");
+      }
+      this.endpoints = Collections.unmodifiableList(new ArrayList<>(endpoints));
+      this.current = new AtomicInteger(ThreadLocalRandom.current().nextInt(endpoints.size()));
+   }
+
+   /**
+    * The DNS node at {@code host}:{@code port} (if {@code host} is set), and the nodes of {@code moreNodes}, ie:
+    * {@code http://10.0.0.2:8002}.
+    */
+   public static DnsEndpoints of(String host, int port, String... moreNodes) {
+      List<URI> endpoints = new ArrayList<>();
+      if (host != null) {
+         endpoints.add(UriUtils.buildUri(host, port, null, null));
+      }
+      if (moreNodes != null) {
+         for (String node : moreNodes) {
+            endpoints.add(URI.create(node.trim()));
+         }
+      }
+      return new DnsEndpoints(endpoints);
+   }
+
+   /** The node requests go to */
+   public URI current() {
+      return endpoints.get(current.get());
+   }
+
+   /**
+    * Moves on from {@code endpoint}, the node a request failed on. If another request already moved on from it, this
+    * one doesn't skip a node.
+    *
+    * @return the node requests go to now
+    */
+   public URI failed(URI endpoint) {
+      int index = current.get();
+      if (endpoints.get(index).equals(endpoint)) {
+         current.compareAndSet(index, (index + 1) % endpoints.size());
+      }
+      return current();
+   }
+
+   public int size() {
+      return endpoints.size();
+   }
+
+   public List<URI> getEndpoints() {
+      return endpoints;
+   }
+
+   @Override
+   public String toString() {
+      return endpoints.toString();
+   }
+}
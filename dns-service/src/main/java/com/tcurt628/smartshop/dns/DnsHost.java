@@ -1,20 +1,47 @@
 package com.tcurt628.smartshop.dns;
 
+import com.tcurt628.smartshop.common.host.HostProfile;
+import com.vmware.xenon.common.CommandLineArgumentParser;
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.dns.services.DNSServices;
+import com.vmware.xenon.services.common.NodeGroupService;
+import com.vmware.xenon.services.common.NodeGroupService.NodeGroupState;
+import com.vmware.xenon.services.common.NodeGroupUtils;
 import com.vmware.xenon.services.common.RootNamespaceService;
+import com.vmware.xenon.services.common.ServiceUriPaths;
 import com.vmware.xenon.ui.UiService;
 
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 public class DnsHost extends ServiceHost {
 
+   public static class Arguments {
+      /**
+       * The number of DNS nodes expected at first; the membership quorum of the default node group, which the nodes of a
+       * DNS cluster join with {@code --peerNodes}
+       */
+      public int initialNodes = 1;
+
+      /** How often the DNS records whose {@link DnsLease} lapsed are looked for, and deleted */
+      public long leaseCheckMillis = 1000;
+
+      /** The timeouts, pools and cache settings the host runs with; see {@link HostProfile} */
+      public HostProfile hostProfile = HostProfile.DEV;
+   }
+
+   public static Arguments hostArguments = new Arguments();
+
+   private static final long NODE_GROUP_POLL_MILLIS = 500;
+
+   private final DnsRecordIndex recordIndex = new DnsRecordIndex();
+
    public static void main(String[] args) throws Throwable {
+      CommandLineArgumentParser.parse(hostArguments, args);
       DnsHost h = new DnsHost();
       h.initialize(args);
-      h.toggleDebuggingMode(true);
       h.start();
       Runtime.getRuntime().addShutdownHook(new Thread(() -> {
          h.log(Level.WARNING, "Host stopping ...");
@@ -26,6 +53,7 @@ public class DnsHost extends ServiceHost {
    @Override
    public ServiceHost start() throws Throwable {
       super.start();
+      hostArguments.hostProfile.applyTo(this);
 
       startDefaultCoreServicesSynchronously();
 
@@ -43,8 +71,71 @@ public class DnsHost extends ServiceHost {
 
       DNSServices.startServices(this, null);
 
+      // Hold the records of the hosts that renew them on a heartbeat; see DnsRegistration
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, DnsLeaseService.FACTORY_LINK)),
+            DnsLeaseService.createFactory());
+
+      // Resolve services from memory, kept current by the record changes of the index; every node of a DNS cluster has
+      // its own index, of all of the (replicated) records
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, DnsResolveService.SELF_LINK)),
+            new DnsResolveService(recordIndex));
+
+      // Push the changes of the index to the hosts watching a service
+      DnsWatchService watchService = new DnsWatchService(recordIndex);
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, DnsWatchService.SELF_LINK)),
+            watchService);
+      recordIndex.setChangeListener(watchService::publish);
+      setMembershipQuorum(() -> awaitNodeGroup(() -> {
+         new DnsRecordSubscriber(this, recordIndex)
+               .start(() -> log(Level.INFO, "DNS record index loaded; resolving at %s", DnsResolveService.SELF_LINK));
+         new DnsLeaseReaper(this, TimeUnit.MILLISECONDS.toMicros(hostArguments.leaseCheckMillis)).start();
+      }));
+
       setAuthorizationContext(null);
 
       return this;
    }
+
+   private void setMembershipQuorum(Runnable then) {
+      NodeGroupService.UpdateQuorumRequest quorumRequest = NodeGroupService.UpdateQuorumRequest.create(true);
+      quorumRequest.setMembershipQuorum(hostArguments.initialNodes);
+      sendRequest(Operation.createPatch(UriUtils.buildUri(this, ServiceUriPaths.DEFAULT_NODE_GROUP))
+            .setBody(quorumRequest)
+            .setReferer(getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  log(Level.SEVERE, "Could not set the membership quorum of the DNS nodes: %s", e.getMessage());
+                  return;
+               }
+               then.run();
+            }));
+   }
+
+   /**
+    * Calls {@code then} once the DNS nodes are joined (the quorum of them is, and the group has settled): the index
+    * isn't loaded before, so a node that joins a cluster doesn't answer with only the few records it had on its own. The
+    * records that are synchronized to it afterwards still reach the index, as changes.
+    */
+   private void awaitNodeGroup(Runnable then) {
+      sendRequest(Operation.createGet(UriUtils.buildUri(this, ServiceUriPaths.DEFAULT_NODE_GROUP))
+            .setReferer(getUri())
+            .setCompletion((o, e) -> {
+               if (e == null && NodeGroupUtils.isNodeGroupAvailable(this, o.getBody(NodeGroupState.class))) {
+                  then.run();
+                  return;
+               }
+               if (!isStopping()) {
+                  log(Level.FINE, "Waiting for %d DNS nodes to join", hostArguments.initialNodes);
+                  schedule(() -> awaitNodeGroup(then), NODE_GROUP_POLL_MILLIS, TimeUnit.MILLISECONDS);
+               }
+            }));
+   }
+
+   /** The healthy nodes of every registered service, served by {@link DnsResolveService} */
+   public DnsRecordIndex getRecordIndex() {
+      return recordIndex;
+   }
 }
@@ -0,0 +1,22 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.ServiceDocument;
+
+/**
+ * How long a DNS record stays registered without being renewed; see {@link DnsLeaseService}. The lease of the record
+ * {@code /core/dns/service-records/ProductService-host1} is {@code /core/dns/leases/ProductService-host1}.
+ */
+public class DnsLease extends ServiceDocument {
+
+   /** The DNS record this lease holds, ie: {@code /core/dns/service-records/ProductService-host1} */
+   public String recordLink;
+
+   /** How long the lease lasts after each renewal; a renewal that sets it changes it */
+   public long leaseMicros;
+
+   /**
+    * When the lease lapses, unless it's renewed before; set by the DNS node that owns the lease, from its own clock.
+    * Ignored in requests.
+    */
+   public long expiresAtMicros;
+}
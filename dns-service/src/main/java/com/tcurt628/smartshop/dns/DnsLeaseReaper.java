@@ -0,0 +1,108 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.NodeSelectorService.SelectOwnerResponse;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Deletes the DNS records whose {@link DnsLease} lapsed, and then their lease. Every {@code checkMicros}, the owner of
+ * {@link DnsLeaseService#FACTORY_LINK} in the DNS cluster queries its own index for the lapsed leases (they're
+ * replicated to every node); the other nodes do nothing, so a record is only deleted once.
+ * <p>
+ * A lease lapses by the clock of the node that owns it, and is found lapsed by the clock of the node running this; the
+ * clocks of the DNS nodes have to agree to well within a lease.
+ */
+public class DnsLeaseReaper {
+
+   private final ServiceHost host;
+   private final long checkMicros;
+
+   public DnsLeaseReaper(ServiceHost host, long checkMicros) {
+      this.host = host;
+      this.checkMicros = checkMicros;
+   }
+
+   public void start() {
+      host.schedule(this::check, checkMicros, TimeUnit.MICROSECONDS);
+   }
+
+   private void check() {
+      if (host.isStopping()) {
+         return;
+      }
+      Operation selectOwner = Operation.createPost(null)
+            .setExpiration(Utils.getNowMicrosUtc() + host.getOperationTimeoutMicros())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  host.log(Level.WARNING, "Could not select the owner of %s: %s", DnsLeaseService.FACTORY_LINK,
+                        e.getMessage());
+               } else if (o.getBody(SelectOwnerResponse.class).isLocalHostOwner) {
+                  deleteLapsed();
+               }
+               host.schedule(this::check, checkMicros, TimeUnit.MICROSECONDS);
+            });
+      host.selectOwner(ServiceUriPaths.DEFAULT_NODE_SELECTOR, DnsLeaseService.FACTORY_LINK, selectOwner);
+   }
+
+   private void deleteLapsed() {
+      QueryTask lapsedLeases = QueryTask.Builder.createDirectTask()
+            .addOption(QueryTask.QuerySpecification.QueryOption.EXPAND_CONTENT)
+            .setQuery(QueryTask.Query.Builder.create()
+                  .addKindFieldClause(DnsLease.class)
+                  .addRangeClause("expiresAtMicros",
+                        QueryTask.NumericRange.createLessThanRange(Utils.getNowMicrosUtc()))
+                  .build())
+            .build();
+      Operation query = Operation.createPost(UriUtils.buildUri(host, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS))
+            .setReferer(host.getUri())
+            .setBody(lapsedLeases)
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  host.log(Level.WARNING, "Could not query the lapsed DNS leases: %s", e.getMessage());
+                  return;
+               }
+               ServiceDocumentQueryResult results = o.getBody(QueryTask.class).results;
+               if (results == null || results.documents == null) {
+                  return;
+               }
+               for (Map.Entry<String, Object> lease : results.documents.entrySet()) {
+                  delete(lease.getKey(), Utils.fromJson(lease.getValue(), DnsLease.class));
+               }
+            });
+      host.sendRequest(query);
+   }
+
+   /** Deletes the record first: if that fails, the lease is still there to try again on the next check */
+   private void delete(String leaseLink, DnsLease lease) {
+      Operation deleteRecord = Operation.createDelete(UriUtils.buildUri(host, lease.recordLink))
+            .setReferer(host.getUri())
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+            .setCompletion((o, e) -> {
+               if (e != null && o.getStatusCode() != Operation.STATUS_CODE_NOT_FOUND) {
+                  host.log(Level.WARNING, "Could not delete DNS record %s: %s", lease.recordLink, e.getMessage());
+                  return;
+               }
+               host.log(Level.INFO, "DNS lease of %s lapsed %d ms ago; deleted the record", lease.recordLink,
+                     TimeUnit.MICROSECONDS.toMillis(Utils.getNowMicrosUtc() - lease.expiresAtMicros));
+               host.sendRequest(Operation.createDelete(UriUtils.buildUri(host, leaseLink))
+                     .setReferer(host.getUri())
+                     .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+                     .setCompletion((deleteOp, deleteEx) -> {
+                        if (deleteEx != null && deleteOp.getStatusCode() != Operation.STATUS_CODE_NOT_FOUND) {
+                           host.log(Level.WARNING, "Could not delete DNS lease %s: %s", leaseLink,
+                                 deleteEx.getMessage());
+                        }
+                     }));
+            });
+      host.sendRequest(deleteRecord);
+   }
+}
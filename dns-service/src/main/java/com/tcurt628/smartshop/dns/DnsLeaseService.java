@@ -0,0 +1,111 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.FactoryService;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.StatefulService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The {@link DnsLease} of one DNS record. A host that registers a service with DNS creates the lease of its record
+ * right after, and renews it with a {@code PATCH} (any body) on every heartbeat; see {@link DnsRegistration}. A lease
+ * that isn't renewed for {@code leaseMicros} lapses, and {@link DnsLeaseReaper} deletes it along with its record, so
+ * the hosts routing to the service stop sending requests to a node that died.
+ * <p>
+ * Leases are replicated to, and owned on, the nodes of the DNS cluster like the records are. {@code POST}ing a lease
+ * that exists replaces it (and renews it). A lease that's started again (ie: a DNS node restarts, or synchronizes with
+ * its peers) keeps the expiry it had: a DNS node that was down doesn't extend the leases of hosts that died meanwhile,
+ * and a host whose lease lapsed while DNS was down registers again on its next heartbeat.
+ */
+public class DnsLeaseService extends StatefulService {
+
+   public static final String FACTORY_LINK = ServiceUriPaths.DNS + "/leases";
+
+   /** Create a default factory service that starts instances of this service on POST (a PUT, if it exists) */
+   public static Service createFactory() {
+      Service factory = FactoryService.create(DnsLeaseService.class, DnsLease.class);
+      factory.toggleOption(ServiceOption.IDEMPOTENT_POST, true);
+      return factory;
+   }
+
+   /** The link of the lease of {@code recordLink}, in the same cluster */
+   public static String leaseLinkFor(String recordLink) {
+      return UriUtils.buildUriPath(FACTORY_LINK, UriUtils.getLastPathSegment(recordLink));
+   }
+
+   public DnsLeaseService() {
+      super(DnsLease.class);
+      super.toggleOption(ServiceOption.PERSISTENCE, true);
+      super.toggleOption(ServiceOption.REPLICATION, true);
+      super.toggleOption(ServiceOption.OWNER_SELECTION, true);
+   }
+
+   /** Only a lease that's created is renewed; one that's restarted or synchronized keeps its {@code expiresAtMicros} */
+   @Override
+   public void handleStart(Operation post) {
+      if (!post.hasBody()) {
+         post.fail(new IllegalArgumentException("Must include non-empty body"));
+         return;
+      }
+      DnsLease lease = post.getBody(DnsLease.class);
+      try {
+         validateLease(lease);
+      } catch (Exception e) {
+         post.fail(e);
+         return;
+      }
+      // A replicated create carries the expiry the owner gave it
+      if (post.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_CREATED) && !post.isFromReplication()) {
+         renew(lease);
+      }
+      setState(post, lease);
+      post.complete();
+   }
+
+   @Override
+   public void handlePut(Operation put) {
+      if (!put.hasBody()) {
+         put.fail(new IllegalArgumentException("Must include non-empty body"));
+         return;
+      }
+      DnsLease lease = put.getBody(DnsLease.class);
+      try {
+         validateLease(lease);
+      } catch (Exception e) {
+         put.fail(e);
+         return;
+      }
+      renew(lease);
+      setState(put, lease);
+      put.setBody(lease).complete();
+   }
+
+   /** Renews the lease; a body with {@code leaseMicros} changes how long it lasts from now on */
+   @Override
+   public void handlePatch(Operation patch) {
+      DnsLease currentState = getState(patch);
+      DnsLease body = patch.hasBody() ? patch.getBody(DnsLease.class) : null;
+      if (body != null && body.leaseMicros > 0) {
+         currentState.leaseMicros = body.leaseMicros;
+      }
+      renew(currentState);
+      setState(patch, currentState);
+      patch.setBody(currentState).complete();
+   }
+
+   private static void validateLease(DnsLease lease) {
+      if (StringUtils.isEmpty(lease.recordLink)) {
+         throw new IllegalArgumentException("recordLink: must be provided");
+      }
+      if (lease.leaseMicros <= 0) {
+         throw new IllegalArgumentException("leaseMicros: must be positive");
+      }
+   }
+
+   private static void renew(DnsLease lease) {
+      lease.expiresAtMicros = Utils.getNowMicrosUtc() + lease.leaseMicros;
+   }
+}
@@ -0,0 +1,188 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.dns.services.DNSService.DNSServiceState;
+import com.vmware.xenon.dns.services.DNSService.DNSServiceState.ServiceStatus;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Keeps the DNS records of the host in memory, as a map from {@code serviceLink} to the healthy nodes running it, so
+ * resolving a service costs a map lookup instead of a query of the document index. Record changes are applied one at a
+ * time, and only rebuild the {@link DnsResolution} of the {@code serviceLink} they touch; lookups never lock.
+ * <p>
+ * Changes may be applied out of order (ie: the initial load and the first change notifications race), so the index
+ * remembers when each record was last updated, deleted records included, and ignores older changes. Update times are
+ * used rather than versions since a record that is registered again after being deleted may start over at version 0;
+ * they come from the clock of the DNS node that owns the record, and are replicated as they are.
+ *
+ * @see DnsRecordSubscriber keeps the index current with the record changes of the host's document index
+ */
+public class DnsRecordIndex {
+
+   /** What the index resolves to; read without locking */
+   private final ConcurrentMap<String, DnsResolution> resolutions = new ConcurrentHashMap<>();
+
+   /** The records, by their {@code documentSelfLink} */
+   private final Map<String, DNSServiceState> records = new HashMap<>();
+
+   /** The {@code documentSelfLink}s of the records of each {@code serviceLink} */
+   private final Map<String, Set<String>> recordLinksByServiceLink = new HashMap<>();
+
+   /** When each deleted record was deleted, so a late update can't bring it back */
+   private final Map<String, Long> deletionTimes = new HashMap<>();
+
+   /** Tells the resolutions of this index from the ones of another DNS node, or of this node before it restarted */
+   private final String indexId = UUID.randomUUID().toString();
+
+   private long indexVersion;
+   private volatile boolean loaded;
+   private Consumer<DnsResolutionChange> changeListener;
+
+   /** The healthy nodes of {@code serviceLink}; a resolution without nodes if nobody registered it */
+   public DnsResolution resolve(String serviceLink) {
+      DnsResolution resolution = resolutions.get(serviceLink);
+      if (resolution != null) {
+         return resolution;
+      }
+      DnsResolution unknown = new DnsResolution();
+      unknown.serviceLink = serviceLink;
+      unknown.indexId = indexId;
+      return unknown;
+   }
+
+   /**
+    * Applies a created or updated record.
+    *
+    * @return the new resolution of its {@code serviceLink}, or null if the record didn't change anything (ie: it was
+    * older than the one already indexed)
+    */
+   public synchronized DnsResolution recordChanged(String recordLink, DNSServiceState record) {
+      if (isStale(recordLink, record.documentUpdateTimeMicros)) {
+         return null;
+      }
+      deletionTimes.remove(recordLink);
+      DNSServiceState previous = records.put(recordLink, record);
+      if (previous != null && previous.serviceLink != null && !previous.serviceLink.equals(record.serviceLink)) {
+         unlink(previous.serviceLink, recordLink);
+         reindex(previous.serviceLink);
+      }
+      if (record.serviceLink == null) {
+         return null;
+      }
+      recordLinksByServiceLink.computeIfAbsent(record.serviceLink, serviceLink -> new TreeSet<>()).add(recordLink);
+      return reindex(record.serviceLink);
+   }
+
+   /**
+    * Applies a deleted record.
+    *
+    * @return the new resolution of its {@code serviceLink}, or null if the record wasn't indexed
+    */
+   public synchronized DnsResolution recordDeleted(String recordLink, long documentUpdateTimeMicros) {
+      if (isStale(recordLink, documentUpdateTimeMicros)) {
+         return null;
+      }
+      deletionTimes.put(recordLink, documentUpdateTimeMicros);
+      DNSServiceState previous = records.remove(recordLink);
+      if (previous == null || previous.serviceLink == null) {
+         return null;
+      }
+      unlink(previous.serviceLink, recordLink);
+      return reindex(previous.serviceLink);
+   }
+
+   /**
+    * Called with every change of a resolution, in the order they are made, while the index is locked: it has to be
+    * quick (ie: hand the change off), and it must not call back into the index.
+    */
+   public synchronized void setChangeListener(Consumer<DnsResolutionChange> changeListener) {
+      this.changeListener = changeListener;
+   }
+
+   /** Marks the initial load of the records done; until then, resolutions may be missing nodes */
+   public void loaded() {
+      loaded = true;
+   }
+
+   public boolean isLoaded() {
+      return loaded;
+   }
+
+   /** The number of records indexed */
+   public synchronized int size() {
+      return records.size();
+   }
+
+   /** Every resolution, by {@code serviceLink} */
+   public Map<String, DnsResolution> getResolutions() {
+      return new LinkedHashMap<>(resolutions);
+   }
+
+   private boolean isStale(String recordLink, long documentUpdateTimeMicros) {
+      DNSServiceState current = records.get(recordLink);
+      if (current != null && current.documentUpdateTimeMicros > documentUpdateTimeMicros) {
+         return true;
+      }
+      Long deletionTime = deletionTimes.get(recordLink);
+      return deletionTime != null && deletionTime >= documentUpdateTimeMicros;
+   }
+
+   private void unlink(String serviceLink, String recordLink) {
+      Set<String> recordLinks = recordLinksByServiceLink.get(serviceLink);
+      if (recordLinks == null) {
+         return;
+      }
+      recordLinks.remove(recordLink);
+      if (recordLinks.isEmpty()) {
+         recordLinksByServiceLink.remove(serviceLink);
+      }
+   }
+
+   private DnsResolution reindex(String serviceLink) {
+      DnsResolution resolution = new DnsResolution();
+      resolution.serviceLink = serviceLink;
+      resolution.indexVersion = ++indexVersion;
+      resolution.indexId = indexId;
+
+      Set<URI> healthy = new TreeSet<>();
+      Set<URI> unavailable = new TreeSet<>();
+      for (String recordLink : recordLinksByServiceLink.getOrDefault(serviceLink, Collections.emptySet())) {
+         DNSServiceState record = records.get(recordLink);
+         if (record.nodeReferences == null) {
+            continue;
+         }
+         if (resolution.healthCheckLink == null) {
+            resolution.healthCheckLink = record.healthCheckLink;
+         }
+         // A record that hasn't been health checked yet is trusted
+         if (record.serviceStatus == ServiceStatus.UNAVAILABLE) {
+            unavailable.addAll(record.nodeReferences);
+         } else {
+            healthy.addAll(record.nodeReferences);
+         }
+      }
+      // A node that is also in a healthy record is routed to
+      unavailable.removeAll(healthy);
+      resolution.nodeReferences = new ArrayList<>(healthy);
+      resolution.unavailableNodeReferences = new ArrayList<>(unavailable);
+      resolution.unavailableNodeCount = unavailable.size();
+
+      // A service whose records are all gone keeps its (empty) resolution, so its changes stay one unbroken sequence
+      DnsResolution previous = resolutions.put(serviceLink, resolution);
+      if (changeListener != null) {
+         changeListener.accept(DnsResolutionChange.between(previous, resolution));
+      }
+      return resolution;
+   }
+}
@@ -0,0 +1,164 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.dns.services.DNSService.DNSServiceState;
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Keeps a {@link DnsRecordIndex} current by subscribing to a continuous query for the DNS records of the host's own
+ * document index: registrations, health check status changes and deletions each update the index as they happen. Once
+ * subscribed, the records that already exist are loaded with one query.
+ * <p>
+ * Until the records are loaded, the index answers nothing (see {@link DnsRecordIndex#isLoaded()}); so a failed step is
+ * retried, with an exponential backoff, for as long as the host runs. A subscription that failed is dropped (its query
+ * task deleted) before the next attempt, so there's only ever the one.
+ */
+public class DnsRecordSubscriber {
+
+   /** How long the continuous query task lives before it has to be recreated */
+   private static final long QUERY_TASK_LIFETIME_DAYS = 365;
+
+   private static final long INITIAL_BACKOFF_MILLIS = 100;
+   private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+   private final ServiceHost host;
+   private final DnsRecordIndex index;
+
+   public DnsRecordSubscriber(ServiceHost host, DnsRecordIndex index) {
+      this.host = host;
+      this.index = index;
+   }
+
+   /** Subscribes to record changes, then loads the existing records; {@code onLoaded} runs once both are done */
+   public void start(Runnable onLoaded) {
+      subscribe(onLoaded, 1);
+   }
+
+   private void subscribe(Runnable onLoaded, int attempt) {
+      QueryTask continuousQuery = QueryTask.Builder.create()
+            .addOption(QueryTask.QuerySpecification.QueryOption.CONTINUOUS)
+            .addOption(QueryTask.QuerySpecification.QueryOption.EXPAND_CONTENT)
+            .setQuery(recordQuery())
+            .build();
+      continuousQuery.documentExpirationTimeMicros =
+            Utils.getNowMicrosUtc() + TimeUnit.DAYS.toMicros(QUERY_TASK_LIFETIME_DAYS);
+
+      Operation createQueryTask = Operation.createPost(UriUtils.buildUri(host, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS))
+            .setReferer(host.getUri())
+            .setBody(continuousQuery)
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  retry("create the continuous DNS record query", attempt, ex, () -> subscribe(onLoaded, attempt + 1));
+                  return;
+               }
+
+               URI queryTaskUri = UriUtils.buildUri(host, op.getBody(QueryTask.class).documentSelfLink);
+               URI[] notificationTarget = new URI[1];
+               Operation subscribe = Operation.createPost(queryTaskUri)
+                     .setReferer(host.getUri())
+                     .setCompletion((subscribeOp, subscribeEx) -> {
+                        if (subscribeEx != null) {
+                           delete(notificationTarget[0]);
+                           delete(queryTaskUri);
+                           retry("subscribe to " + queryTaskUri, attempt, subscribeEx,
+                                 () -> subscribe(onLoaded, attempt + 1));
+                           return;
+                        }
+                        host.log(Level.INFO, "Subscribed to DNS record changes: %s", queryTaskUri);
+                        load(onLoaded, 1);
+                     });
+               notificationTarget[0] = host.startSubscriptionService(subscribe, this::handleRecordChange);
+            });
+      host.sendRequest(createQueryTask);
+   }
+
+   private void load(Runnable onLoaded, int attempt) {
+      QueryTask existingRecords = QueryTask.Builder.createDirectTask()
+            .addOption(QueryTask.QuerySpecification.QueryOption.EXPAND_CONTENT)
+            .setQuery(recordQuery())
+            .build();
+      Operation query = Operation.createPost(UriUtils.buildUri(host, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS))
+            .setReferer(host.getUri())
+            .setBody(existingRecords)
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  // Still subscribed: only the load is done again
+                  retry("load the DNS records", attempt, ex, () -> load(onLoaded, attempt + 1));
+                  return;
+               }
+
+               ServiceDocumentQueryResult results = op.getBody(QueryTask.class).results;
+               if (results != null && results.documents != null) {
+                  for (Map.Entry<String, Object> record : results.documents.entrySet()) {
+                     index.recordChanged(record.getKey(), Utils.fromJson(record.getValue(), DNSServiceState.class));
+                  }
+               }
+               index.loaded();
+               host.log(Level.INFO, "Loaded %d DNS records into the index", index.size());
+               onLoaded.run();
+            });
+      host.sendRequest(query);
+   }
+
+   private void retry(String step, int attempt, Throwable e, Runnable again) {
+      if (host.isStopping()) {
+         return;
+      }
+      long backoffMillis = Math.min(INITIAL_BACKOFF_MILLIS << Math.min(attempt - 1, 20), MAX_BACKOFF_MILLIS);
+      host.log(Level.WARNING, "Could not %s (attempt %d); retrying in %d ms: %s",
+            step, attempt, backoffMillis, e.getMessage());
+      host.schedule(again, backoffMillis, TimeUnit.MILLISECONDS);
+   }
+
+   private void delete(URI uri) {
+      if (uri == null) {
+         return;
+      }
+      host.sendRequest(Operation.createDelete(uri)
+            .setReferer(host.getUri())
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  host.log(Level.FINE, "Could not delete %s: %s", uri, ex.getMessage());
+               }
+            }));
+   }
+
+   private void handleRecordChange(Operation notification) {
+      notification.complete();
+      if (notification.getAction() != Service.Action.PATCH || !notification.hasBody()) {
+         return;
+      }
+
+      QueryTask update = notification.getBody(QueryTask.class);
+      if (update.results == null || update.results.documents == null) {
+         return;
+      }
+
+      for (Map.Entry<String, Object> changed : update.results.documents.entrySet()) {
+         DNSServiceState record = Utils.fromJson(changed.getValue(), DNSServiceState.class);
+         if (Service.Action.DELETE.toString().equals(record.documentUpdateAction)) {
+            index.recordDeleted(changed.getKey(), record.documentUpdateTimeMicros);
+         } else {
+            index.recordChanged(changed.getKey(), record);
+         }
+         host.log(Level.FINE, "DNS record %s: %s", record.documentUpdateAction, changed.getKey());
+      }
+   }
+
+   private static QueryTask.Query recordQuery() {
+      return QueryTask.Query.Builder.create()
+            .addKindFieldClause(DNSServiceState.class)
+            .build();
+   }
+}
@@ -0,0 +1,151 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.dns.services.DNSFactoryService;
+import com.vmware.xenon.dns.services.DNSService.DNSServiceState;
+
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+/**
+ * A service of this host, registered with DNS for as long as the host is alive. {@link #register} creates the DNS
+ * record of the service and its {@link DnsLease}; from then on, the lease is renewed on every heartbeat. If the host
+ * dies (or can't reach DNS for a whole lease), the lease lapses and DNS deletes the record, so the service is no longer
+ * routed to this host.
+ * <p>
+ * A heartbeat that finds the lease gone (ie: the host was paused for longer than a lease) registers the service again.
+ * A heartbeat that fails on a DNS node sends the next one to the next node; a lease lasts a few heartbeats, so it
+ * survives a DNS node that fails.
+ */
+public class DnsRegistration {
+
+   /** How often the DNS node probes the health check link of the service */
+   private static final long HEALTH_CHECK_INTERVAL_SECONDS = 1L;
+
+   private final ServiceHost host;
+   private final DnsEndpoints dnsEndpoints;
+   private final String serviceLink;
+   private final String serviceKind;
+   private final String healthCheckLink;
+   private final long leaseMicros;
+   private final long heartbeatMicros;
+
+   private final AtomicBoolean heartbeating = new AtomicBoolean();
+   private volatile String leaseLink;
+
+   /**
+    * @param leaseMicros     How long the service stays registered without a heartbeat
+    * @param heartbeatMicros How often the lease is renewed; less than {@code leaseMicros}, so that a heartbeat or two
+    *                        can be lost
+    */
+   public DnsRegistration(ServiceHost host, DnsEndpoints dnsEndpoints, String serviceLink, String serviceKind,
+         String healthCheckLink, long leaseMicros, long heartbeatMicros) {
+      if (heartbeatMicros <= 0 || heartbeatMicros >= leaseMicros) {
+         throw new IllegalArgumentException("heartbeatMicros: must be positive, and less than leaseMicros");
+      }
+      this.host = host;
+      this.dnsEndpoints = dnsEndpoints;
+      this.serviceLink = serviceLink;
+      this.serviceKind = serviceKind;
+      this.healthCheckLink = healthCheckLink;
+      this.leaseMicros = leaseMicros;
+      this.heartbeatMicros = heartbeatMicros;
+   }
+
+   /**
+    * Creates (or replaces) the DNS record of the service, then its lease, on the current DNS node; and starts the
+    * heartbeats, the first time it succeeds. {@code done} is called with the failure, if any: the next attempt goes to
+    * the next DNS node.
+    */
+   public void register(Operation.CompletionHandler done) {
+      URI dnsEndpoint = dnsEndpoints.current();
+      Operation createRecord = DNSFactoryService.createPost(dnsEndpoint, host, serviceLink, serviceKind, null,
+            healthCheckLink, HEALTH_CHECK_INTERVAL_SECONDS);
+      String requestedLink = createRecord.getBody(DNSServiceState.class).documentSelfLink;
+
+      // A record (or lease) that lapsed before is deleted, but still in the index; it can only be created again over it
+      host.sendRequest(createRecord
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_FORCE_INDEX_UPDATE)
+            .setCompletion((o, e) -> {
+               // Already there is as good as created
+               if (e != null && o.getStatusCode() != Operation.STATUS_CODE_CONFLICT) {
+                  dnsEndpoints.failed(dnsEndpoint);
+                  done.handle(o, e);
+                  return;
+               }
+               String recordLink = e == null ? o.getBody(DNSServiceState.class).documentSelfLink
+                     : UriUtils.buildUriPath(DNSFactoryService.SELF_LINK, UriUtils.getLastPathSegment(requestedLink));
+               createLease(dnsEndpoint, recordLink, done);
+            }));
+   }
+
+   private void createLease(URI dnsEndpoint, String recordLink, Operation.CompletionHandler done) {
+      DnsLease lease = new DnsLease();
+      lease.documentSelfLink = DnsLeaseService.leaseLinkFor(recordLink);
+      lease.recordLink = recordLink;
+      lease.leaseMicros = leaseMicros;
+
+      host.sendRequest(Operation.createPost(dnsUri(dnsEndpoint, DnsLeaseService.FACTORY_LINK))
+            .setReferer(host.getUri())
+            .setBody(lease)
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_FORCE_INDEX_UPDATE)
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  dnsEndpoints.failed(dnsEndpoint);
+                  done.handle(o, e);
+                  return;
+               }
+               leaseLink = lease.documentSelfLink;
+               host.log(Level.INFO, "Registered %s with DNS at %s, for %d ms at a time", recordLink, dnsEndpoint,
+                     TimeUnit.MICROSECONDS.toMillis(leaseMicros));
+               if (heartbeating.compareAndSet(false, true)) {
+                  host.schedule(this::heartbeat, heartbeatMicros, TimeUnit.MICROSECONDS);
+               }
+               done.handle(o, null);
+            }));
+   }
+
+   private void heartbeat() {
+      if (host.isStopping()) {
+         return;
+      }
+      DnsLease renewal = new DnsLease();
+      renewal.leaseMicros = leaseMicros;
+
+      URI dnsEndpoint = dnsEndpoints.current();
+      host.sendRequest(Operation.createPatch(dnsUri(dnsEndpoint, leaseLink))
+            .setReferer(host.getUri())
+            .setBody(renewal)
+            // A lease that lapsed isn't coming back; fail right away, rather than waiting for it to be created
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+            .setCompletion((o, e) -> {
+               if (e == null) {
+                  host.schedule(this::heartbeat, heartbeatMicros, TimeUnit.MICROSECONDS);
+                  return;
+               }
+               if (o.getStatusCode() == Operation.STATUS_CODE_NOT_FOUND) {
+                  host.log(Level.WARNING, "DNS lease %s lapsed; registering %s again", leaseLink, serviceLink);
+                  register((registerOp, registerEx) -> {
+                     if (registerEx != null) {
+                        host.log(Level.WARNING, "Could not register %s with DNS again: %s", serviceLink,
+                              registerEx.getMessage());
+                     }
+                     host.schedule(this::heartbeat, heartbeatMicros, TimeUnit.MICROSECONDS);
+                  });
+                  return;
+               }
+               URI next = dnsEndpoints.failed(dnsEndpoint);
+               host.log(Level.WARNING, "Could not renew DNS lease %s at %s (%s); next heartbeat goes to %s", leaseLink,
+                     dnsEndpoint, e.getMessage(), next);
+               host.schedule(this::heartbeat, heartbeatMicros, TimeUnit.MICROSECONDS);
+            }));
+   }
+
+   private static URI dnsUri(URI dnsEndpoint, String path) {
+      return UriUtils.buildUri(dnsEndpoint.getHost(), dnsEndpoint.getPort(), path, null);
+   }
+}
@@ -0,0 +1,36 @@
+package com.tcurt628.smartshop.dns;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The answer of {@link DnsResolveService}: the healthy nodes registered under one {@code serviceLink}, across all of its
+ * DNS records. A {@code serviceLink} nobody registered resolves to no nodes. Resolutions are immutable; a change to any
+ * of the records replaces the whole resolution.
+ */
+public class DnsResolution {
+
+   public String serviceLink;
+
+   /** The nodes whose record isn't {@code UNAVAILABLE}, sorted */
+   public List<URI> nodeReferences = Collections.emptyList();
+
+   /** The health check link of the records, relative to each node */
+   public String healthCheckLink;
+
+   /** How many registered nodes are left out of {@code nodeReferences} because their health check failed */
+   public int unavailableNodeCount;
+
+   /** The nodes left out of {@code nodeReferences} because their health check failed, sorted */
+   public List<URI> unavailableNodeReferences = Collections.emptyList();
+
+   /** The number of the index change that produced this resolution; a newer resolution has a higher one */
+   public long indexVersion;
+
+   /**
+    * The index that produced this resolution. Each DNS node has its own index, and a new one each time it starts, so the
+    * {@code indexVersion}s of resolutions with different {@code indexId}s can't be compared.
+    */
+   public String indexId;
+}
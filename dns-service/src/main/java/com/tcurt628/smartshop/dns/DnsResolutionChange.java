@@ -0,0 +1,121 @@
+package com.tcurt628.smartshop.dns;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * What changed in the {@link DnsResolution} of one {@code serviceLink}, as pushed to the subscribers of its
+ * {@link DnsWatchService}: the nodes that were added or removed, and the nodes whose health check started failing or
+ * passed again.
+ * <p>
+ * Each change applies to the resolution of {@code previousIndexVersion}, and makes it the one of {@code indexVersion}.
+ * A subscriber whose resolution isn't at {@code previousIndexVersion} missed a change (or got it out of order), and
+ * has to read the whole resolution again.
+ */
+public class DnsResolutionChange {
+
+   public String serviceLink;
+
+   /** The {@link DnsResolution#indexVersion} this change applies to; 0 for a service nobody had registered yet */
+   public long previousIndexVersion;
+
+   /** The {@link DnsResolution#indexVersion} of the resolution after this change */
+   public long indexVersion;
+
+   /** The {@link DnsResolution#indexId} of the index that made this change */
+   public String indexId;
+
+   /** The health check link of the records, relative to each node */
+   public String healthCheckLink;
+
+   /** Nodes that were registered, healthy */
+   public List<URI> addedNodes = Collections.emptyList();
+
+   /** Nodes that are no longer registered at all */
+   public List<URI> removedNodes = Collections.emptyList();
+
+   /** Registered nodes whose health check failed; they are no longer routed to */
+   public List<URI> unavailableNodes = Collections.emptyList();
+
+   /** Registered nodes whose health check passed again; they are routed to again */
+   public List<URI> availableNodes = Collections.emptyList();
+
+   /** The change from {@code previous} (null if the service had no resolution yet) to {@code current} */
+   public static DnsResolutionChange between(DnsResolution previous, DnsResolution current) {
+      Set<URI> wasHealthy = previous != null ? new HashSet<>(previous.nodeReferences) : Collections.emptySet();
+      Set<URI> wasUnavailable =
+            previous != null ? new HashSet<>(previous.unavailableNodeReferences) : Collections.emptySet();
+      Set<URI> healthy = new HashSet<>(current.nodeReferences);
+      Set<URI> unavailable = new HashSet<>(current.unavailableNodeReferences);
+
+      DnsResolutionChange change = new DnsResolutionChange();
+      change.serviceLink = current.serviceLink;
+      change.previousIndexVersion = previous != null ? previous.indexVersion : 0;
+      change.indexVersion = current.indexVersion;
+      change.indexId = current.indexId;
+      change.healthCheckLink = current.healthCheckLink;
+
+      List<URI> added = new ArrayList<>();
+      List<URI> available = new ArrayList<>();
+      for (URI node : current.nodeReferences) {
+         if (wasUnavailable.contains(node)) {
+            available.add(node);
+         } else if (!wasHealthy.contains(node)) {
+            added.add(node);
+         }
+      }
+      List<URI> nowUnavailable = new ArrayList<>();
+      for (URI node : current.unavailableNodeReferences) {
+         if (!wasUnavailable.contains(node)) {
+            nowUnavailable.add(node);
+         }
+      }
+      List<URI> removed = new ArrayList<>();
+      for (URI node : union(wasHealthy, wasUnavailable)) {
+         if (!healthy.contains(node) && !unavailable.contains(node)) {
+            removed.add(node);
+         }
+      }
+
+      change.addedNodes = added;
+      change.availableNodes = available;
+      change.unavailableNodes = nowUnavailable;
+      change.removedNodes = removed;
+      return change;
+   }
+
+   /** The resolution this change makes out of {@code previous}, the one at {@code previousIndexVersion} */
+   public DnsResolution applyTo(DnsResolution previous) {
+      Set<URI> healthy = new TreeSet<>(previous.nodeReferences);
+      healthy.addAll(addedNodes);
+      healthy.addAll(availableNodes);
+      healthy.removeAll(removedNodes);
+      healthy.removeAll(unavailableNodes);
+
+      Set<URI> unavailable = new TreeSet<>(previous.unavailableNodeReferences);
+      unavailable.addAll(unavailableNodes);
+      unavailable.removeAll(removedNodes);
+      unavailable.removeAll(healthy);
+
+      DnsResolution resolution = new DnsResolution();
+      resolution.serviceLink = serviceLink;
+      resolution.nodeReferences = new ArrayList<>(healthy);
+      resolution.healthCheckLink = healthCheckLink;
+      resolution.unavailableNodeReferences = new ArrayList<>(unavailable);
+      resolution.unavailableNodeCount = unavailable.size();
+      resolution.indexVersion = indexVersion;
+      resolution.indexId = indexId;
+      return resolution;
+   }
+
+   private static Set<URI> union(Set<URI> nodes, Set<URI> moreNodes) {
+      Set<URI> union = new TreeSet<>(nodes);
+      union.addAll(moreNodes);
+      return union;
+   }
+}
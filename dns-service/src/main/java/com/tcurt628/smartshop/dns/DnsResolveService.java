@@ -0,0 +1,39 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * Answers {@code GET /core/dns/resolve?serviceLink=/products} from the {@link DnsRecordIndex}, with the
+ * {@link DnsResolution} of the {@code serviceLink}: no document index query, and no OData parsing. Until the index has
+ * loaded the existing records, it answers 503, so a client never caches a resolution that is missing nodes.
+ */
+public class DnsResolveService extends StatelessService {
+
+   public static final String SELF_LINK = ServiceUriPaths.DNS + "/resolve";
+
+   private final DnsRecordIndex index;
+
+   public DnsResolveService(DnsRecordIndex index) {
+      this.index = index;
+   }
+
+   @Override
+   public void handleGet(Operation get) {
+      String serviceLink = UriUtils.parseUriQueryParams(get.getUri()).get("serviceLink");
+      if (StringUtils.isEmpty(serviceLink)) {
+         get.fail(new IllegalArgumentException("serviceLink: must be provided"));
+         return;
+      }
+      if (!index.isLoaded()) {
+         get.setStatusCode(Operation.STATUS_CODE_UNAVAILABLE);
+         get.fail(new IllegalStateException("The DNS record index is still loading"));
+         return;
+      }
+
+      get.setBody(index.resolve(serviceLink)).complete();
+   }
+}
@@ -0,0 +1,243 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.ServiceSubscriptionState.ServiceSubscriber;
+import com.vmware.xenon.common.UriUtils;
+
+import java.net.URI;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * The nodes of the services a host routes to, kept current by the changes DNS pushes (see {@link DnsWatchService}),
+ * rather than by asking DNS again each time a cached answer expires. A node that registers, fails its health check or
+ * is deleted is known here as soon as DNS knows it.
+ * <p>
+ * Each watched service subscribes to its watch, then reads the whole resolution once. Changes are applied in
+ * {@code indexVersion} order; a change that doesn't follow the resolution we have (one was lost, or they crossed) makes
+ * us read the whole resolution again. Every {@code resyncMicros}, each service is subscribed and read again anyway: that
+ * repairs a subscription DNS dropped, ie: because DNS restarted or couldn't reach this host for a while.
+ * <p>
+ * A service is watched on one node of the DNS cluster at a time. If that node fails, the service is watched on the next
+ * one; changes still sent by the node we moved on from are ignored (they're told apart by their {@code indexId}).
+ */
+public class DnsRoutingTable {
+
+   private final ServiceHost host;
+   private final DnsEndpoints dnsEndpoints;
+   private final long resyncMicros;
+
+   /** The watched services, by {@code serviceLink} */
+   private final ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+   private final AtomicBoolean resyncScheduled = new AtomicBoolean();
+
+   /**
+    * @param resyncMicros How often each watched service is subscribed and read again, in case changes were lost; 0 to
+    *                     never do it
+    */
+   public DnsRoutingTable(ServiceHost host, DnsEndpoints dnsEndpoints, long resyncMicros) {
+      this.host = host;
+      this.dnsEndpoints = dnsEndpoints;
+      this.resyncMicros = resyncMicros;
+   }
+
+   /**
+    * Starts watching {@code serviceLink}; does nothing if it's already watched.
+    *
+    * @param onChange called with each new resolution of the service, one at a time and in order. It has to be quick.
+    */
+   public void watch(String serviceLink, Consumer<DnsResolution> onChange) {
+      Route route = new Route(serviceLink, onChange);
+      if (routes.putIfAbsent(serviceLink, route) != null) {
+         return;
+      }
+      subscribe(route, dnsEndpoints.size());
+      if (resyncMicros > 0 && resyncScheduled.compareAndSet(false, true)) {
+         host.schedule(this::resync, resyncMicros, TimeUnit.MICROSECONDS);
+      }
+   }
+
+   /** The current resolution of {@code serviceLink}; null if it isn't watched, or DNS hasn't answered yet */
+   public DnsResolution getResolution(String serviceLink) {
+      Route route = routes.get(serviceLink);
+      return route != null ? route.resolution : null;
+   }
+
+   private void resync() {
+      if (host.isStopping()) {
+         return;
+      }
+      for (Route route : routes.values()) {
+         subscribe(route, dnsEndpoints.size());
+      }
+      host.schedule(this::resync, resyncMicros, TimeUnit.MICROSECONDS);
+   }
+
+   /**
+    * Starts the watch of {@code route} on DNS (a no-op if it's running), subscribes to it, and then reads the whole
+    * resolution. Subscribing again is a no-op for DNS when it still has our subscription. If the DNS node fails, this is
+    * tried on the next node, until every node has been tried once.
+    */
+   private void subscribe(Route route, int attemptsLeft) {
+      URI dnsEndpoint = dnsEndpoints.current();
+      URI startWatchUri = UriUtils.buildUri(dnsEndpoint.getHost(), dnsEndpoint.getPort(), DnsWatchService.SELF_LINK,
+            "serviceLink=" + route.serviceLink);
+      URI watchUri = watchUri(dnsEndpoint, route);
+
+      Operation.CompletionHandler failed = (o, e) -> {
+         host.log(Level.WARNING, "Could not watch %s on DNS at %s: %s", route.serviceLink, dnsEndpoint, e.getMessage());
+         if (attemptsLeft > 1) {
+            dnsEndpoints.failed(dnsEndpoint);
+            subscribe(route, attemptsLeft - 1);
+         }
+      };
+
+      Operation subscribe = Operation.createPost(watchUri)
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  failed.handle(o, e);
+                  return;
+               }
+               host.log(Level.FINE, "Subscribed to DNS changes of %s at %s", route.serviceLink, dnsEndpoint);
+               URI previousEndpoint = route.dnsEndpoint;
+               route.dnsEndpoint = dnsEndpoint;
+               if (previousEndpoint != null && !previousEndpoint.equals(dnsEndpoint)) {
+                  unsubscribe(route, previousEndpoint);
+               }
+               read(route);
+            });
+
+      Operation startWatch = Operation.createPost(startWatchUri)
+            .setReferer(host.getUri())
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  failed.handle(o, e);
+                  return;
+               }
+               if (route.notificationTarget == null) {
+                  route.notificationTarget = host.startSubscriptionService(subscribe,
+                        notification -> handleChange(route, notification));
+               } else {
+                  host.sendRequest(subscribe
+                        .setUri(UriUtils.extendUri(watchUri, ServiceHost.SERVICE_URI_SUFFIX_SUBSCRIPTIONS))
+                        .setBody(subscriber(route)));
+               }
+            });
+      host.sendRequest(startWatch);
+   }
+
+   /** Drops our subscription on the DNS node we moved on from, if it's still up */
+   private void unsubscribe(Route route, URI dnsEndpoint) {
+      Operation unsubscribe = Operation.createDelete(
+            UriUtils.extendUri(watchUri(dnsEndpoint, route), ServiceHost.SERVICE_URI_SUFFIX_SUBSCRIPTIONS))
+            .setReferer(host.getUri())
+            .setBody(subscriber(route))
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  host.log(Level.FINE, "Could not unsubscribe from %s at %s: %s", route.serviceLink, dnsEndpoint,
+                        e.getMessage());
+               }
+            });
+      host.sendRequest(unsubscribe);
+   }
+
+   /** Reads the whole resolution of {@code route}, from the DNS node it's watched on */
+   private void read(Route route) {
+      // Not subscribed yet: the read that follows the subscription will do
+      if (route.dnsEndpoint == null) {
+         return;
+      }
+      URI watchUri = watchUri(route.dnsEndpoint, route);
+      Operation get = Operation.createGet(watchUri)
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  host.log(Level.WARNING, "Could not read %s: %s", watchUri, e.getMessage());
+                  return;
+               }
+               route.resolved(o.getBody(DnsResolution.class));
+            });
+      host.sendRequest(get);
+   }
+
+   private void handleChange(Route route, Operation notification) {
+      notification.complete();
+      if (notification.getAction() != Service.Action.PATCH || !notification.hasBody()) {
+         return;
+      }
+
+      DnsResolutionChange change = notification.getBody(DnsResolutionChange.class);
+      if (!route.changed(change)) {
+         host.log(Level.FINE, "Missed a DNS change of %s before [indexVersion=%d]; reading it again",
+               route.serviceLink, change.indexVersion);
+         read(route);
+      }
+   }
+
+   private static URI watchUri(URI dnsEndpoint, Route route) {
+      return UriUtils.buildUri(dnsEndpoint.getHost(), dnsEndpoint.getPort(), DnsWatchService.watchLink(route.serviceLink),
+            null);
+   }
+
+   private static ServiceSubscriber subscriber(Route route) {
+      ServiceSubscriber subscriber = new ServiceSubscriber();
+      subscriber.reference = route.notificationTarget;
+      return subscriber;
+   }
+
+   /** One watched service, and what we know of it */
+   private static class Route {
+      final String serviceLink;
+      final Consumer<DnsResolution> onChange;
+      volatile DnsResolution resolution;
+      volatile URI notificationTarget;
+      /** The DNS node the service is watched on; null until the first subscription succeeds */
+      volatile URI dnsEndpoint;
+
+      Route(String serviceLink, Consumer<DnsResolution> onChange) {
+         this.serviceLink = serviceLink;
+         this.onChange = onChange;
+      }
+
+      /** Takes {@code resolved} if it's newer than what we have, or from another index (ie: the DNS node we moved to) */
+      synchronized void resolved(DnsResolution resolved) {
+         if (resolution == null || !Objects.equals(resolved.indexId, resolution.indexId)
+               || resolved.indexVersion > resolution.indexVersion) {
+            update(resolved);
+         }
+      }
+
+      /** @return false if {@code change} doesn't follow what we have, so the resolution has to be read again */
+      synchronized boolean changed(DnsResolutionChange change) {
+         if (resolution == null) {
+            return false;
+         }
+         // Sent by a DNS node we moved on from; or by the one we're on, before we read from it
+         if (!Objects.equals(change.indexId, resolution.indexId)) {
+            return true;
+         }
+         if (change.indexVersion <= resolution.indexVersion) {
+            return true;
+         }
+         if (change.previousIndexVersion != resolution.indexVersion) {
+            return false;
+         }
+         update(change.applyTo(resolution));
+         return true;
+      }
+
+      private void update(DnsResolution resolved) {
+         resolution = resolved;
+         onChange.accept(resolved);
+      }
+   }
+}
@@ -0,0 +1,107 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Pushes the changes of the {@link DnsRecordIndex} to the hosts that route to a service, so they don't have to poll DNS.
+ * <p>
+ * {@code POST /core/dns/watches?serviceLink=/products} starts the watch of {@code /products}, at
+ * {@code /core/dns/watches/products} (unless it's already running), and answers with its current {@link DnsResolution}.
+ * Hosts then subscribe to the watch, the way they subscribe to any Xenon service: each change of the resolution is sent
+ * to them as a PATCH with a {@link DnsResolutionChange}. A {@code GET} of the watch answers the current resolution.
+ * <p>
+ * Subscribers that stop answering are dropped by Xenon; a watch lives as long as the host.
+ *
+ * @see DnsRoutingTable keeps the nodes of the services it watches current from these changes
+ */
+public class DnsWatchService extends StatelessService {
+
+   public static final String SELF_LINK = ServiceUriPaths.DNS + "/watches";
+
+   private final DnsRecordIndex index;
+
+   /** The watches started so far, by {@code serviceLink} */
+   private final ConcurrentMap<String, Watch> watches = new ConcurrentHashMap<>();
+
+   public DnsWatchService(DnsRecordIndex index) {
+      this.index = index;
+   }
+
+   /** Where the watch of {@code serviceLink} runs */
+   public static String watchLink(String serviceLink) {
+      return UriUtils.buildUriPath(SELF_LINK, serviceLink);
+   }
+
+   @Override
+   public void handlePost(Operation post) {
+      String serviceLink = UriUtils.parseUriQueryParams(post.getUri()).get("serviceLink");
+      if (StringUtils.isEmpty(serviceLink)) {
+         post.fail(new IllegalArgumentException("serviceLink: must be provided"));
+         return;
+      }
+      if (!index.isLoaded()) {
+         post.setStatusCode(Operation.STATUS_CODE_UNAVAILABLE);
+         post.fail(new IllegalStateException("The DNS record index is still loading"));
+         return;
+      }
+
+      Watch watch = new Watch(serviceLink, index);
+      if (watches.putIfAbsent(serviceLink, watch) != null) {
+         post.setBody(index.resolve(serviceLink)).complete();
+         return;
+      }
+
+      Operation startWatch = Operation.createPost(UriUtils.buildUri(getHost(), watchLink(serviceLink)))
+            .setReferer(getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  watches.remove(serviceLink, watch);
+                  post.fail(e);
+                  return;
+               }
+               logInfo("Watching DNS records of %s", serviceLink);
+               post.setBody(index.resolve(serviceLink)).complete();
+            });
+      getHost().startService(startWatch, watch);
+   }
+
+   /** Pushes {@code change} to the subscribers of its service, if anyone is watching it */
+   public void publish(DnsResolutionChange change) {
+      Watch watch = watches.get(change.serviceLink);
+      if (watch != null) {
+         watch.publish(change);
+      }
+   }
+
+   /** The watch of one {@code serviceLink}; its subscribers are the ones of the Xenon service */
+   private static class Watch extends StatelessService {
+
+      private final String serviceLink;
+      private final DnsRecordIndex index;
+
+      Watch(String serviceLink, DnsRecordIndex index) {
+         this.serviceLink = serviceLink;
+         this.index = index;
+      }
+
+      @Override
+      public void handleGet(Operation get) {
+         get.setBody(index.resolve(serviceLink)).complete();
+      }
+
+      void publish(DnsResolutionChange change) {
+         // Nobody can have subscribed to a watch that is still starting
+         if (getProcessingStage() != ProcessingStage.AVAILABLE) {
+            return;
+         }
+         publish(Operation.createPatch(getUri()).setReferer(getUri()).setBody(change));
+      }
+   }
+}
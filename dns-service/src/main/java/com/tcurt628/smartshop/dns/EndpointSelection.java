@@ -0,0 +1,26 @@
+package com.tcurt628.smartshop.dns;
+
+/** The built-in {@link EndpointSelector} strategies, so they can be chosen with a host argument. */
+public enum EndpointSelection {
+
+   /** Spread requests evenly over the nodes, regardless of how they are doing. */
+   ROUND_ROBIN,
+
+   /** Send each request to the node with the fewest requests in flight. */
+   LEAST_OUTSTANDING,
+
+   /** Send each request to the node with the lowest recent latency, weighted by its requests in flight. */
+   EWMA_LATENCY;
+
+   public EndpointSelector newSelector() {
+      switch (this) {
+      case LEAST_OUTSTANDING:
+         return new LeastOutstandingEndpointSelector();
+      case EWMA_LATENCY:
+         return new EwmaLatencyEndpointSelector();
+      case ROUND_ROBIN:
+      default:
+         return new RoundRobinEndpointSelector();
+      }
+   }
+}
@@ -0,0 +1,28 @@
+package com.tcurt628.smartshop.dns;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Picks which node to send a DNS-routed request to. Implementations are shared by every request a
+ * {@link SmartShopDnsQueries} routes, so they must be thread safe.
+ *
+ * @see EndpointSelection for the built-in strategies
+ */
+public interface EndpointSelector {
+
+   /** Returns one of {@code candidates}, which is never empty. */
+   URI select(List<URI> candidates);
+
+   /** Called right before a request is sent to {@code node}. */
+   default void requestStarted(URI node) {
+   }
+
+   /**
+    * Called when a request sent to {@code node} completes.
+    *
+    * @param failed true if the node itself failed (a timeout or a 5xx), as opposed to a regular response like a 404
+    */
+   default void requestCompleted(URI node, long latencyMicros, boolean failed) {
+   }
+}
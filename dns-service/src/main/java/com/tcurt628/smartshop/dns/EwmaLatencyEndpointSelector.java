@@ -0,0 +1,80 @@
+package com.tcurt628.smartshop.dns;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the candidate with the lowest exponentially weighted moving average (EWMA) latency, multiplied by its
+ * requests in flight plus one, so a fast node that is already busy doesn't get every request. Nodes without a sample
+ * yet score zero, so new nodes are tried right away. A failed request counts as a sample of
+ * {@link #FAILURE_PENALTY_MICROS}, which pushes a misbehaving node to the back until it recovers.
+ */
+public class EwmaLatencyEndpointSelector implements EndpointSelector {
+
+   /** Weight of the newest sample; higher reacts faster, lower smooths more */
+   public static final double DEFAULT_ALPHA = 0.3;
+
+   private static final long FAILURE_PENALTY_MICROS = 1_000_000;
+
+   private final double alpha;
+   private final ConcurrentMap<URI, NodeLatency> latencyByNode = new ConcurrentHashMap<>();
+   private final AtomicInteger tieBreaker = new AtomicInteger();
+
+   public EwmaLatencyEndpointSelector() {
+      this(DEFAULT_ALPHA);
+   }
+
+   public EwmaLatencyEndpointSelector(double alpha) {
+      if (alpha <= 0 || alpha > 1) {
+         throw new IllegalArgumentException("alpha must be in (0, 1]");
+      }
+      this.alpha = alpha;
+   }
+
+   @Override
+   public URI select(List<URI> candidates) {
+      int offset = (tieBreaker.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+      URI best = null;
+      double bestScore = Double.MAX_VALUE;
+      for (int i = 0; i < candidates.size(); i++) {
+         URI candidate = candidates.get((offset + i) % candidates.size());
+         NodeLatency latency = latency(candidate);
+         double score = latency.ewmaMicros * (latency.outstanding.get() + 1);
+         if (score < bestScore) {
+            best = candidate;
+            bestScore = score;
+         }
+      }
+      return best;
+   }
+
+   @Override
+   public void requestStarted(URI node) {
+      latency(node).outstanding.incrementAndGet();
+   }
+
+   @Override
+   public void requestCompleted(URI node, long latencyMicros, boolean failed) {
+      NodeLatency latency = latency(node);
+      latency.outstanding.decrementAndGet();
+      latency.record(failed ? Math.max(latencyMicros, FAILURE_PENALTY_MICROS) : latencyMicros, alpha);
+   }
+
+   private NodeLatency latency(URI node) {
+      return latencyByNode.computeIfAbsent(node, n -> new NodeLatency());
+   }
+
+   private static class NodeLatency {
+      final AtomicInteger outstanding = new AtomicInteger();
+      volatile double ewmaMicros;
+      boolean hasSample;
+
+      synchronized void record(long latencyMicros, double alpha) {
+         ewmaMicros = hasSample ? alpha * latencyMicros + (1 - alpha) * ewmaMicros : latencyMicros;
+         hasSample = true;
+      }
+   }
+}
@@ -0,0 +1,47 @@
+package com.tcurt628.smartshop.dns;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Picks the candidate with the fewest requests in flight. Ties go round-robin, so an idle cluster still spreads its
+ * load instead of sending everything to the first node.
+ */
+public class LeastOutstandingEndpointSelector implements EndpointSelector {
+
+   private final ConcurrentMap<URI, AtomicInteger> outstandingByNode = new ConcurrentHashMap<>();
+   private final AtomicInteger tieBreaker = new AtomicInteger();
+
+   @Override
+   public URI select(List<URI> candidates) {
+      int offset = (tieBreaker.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+      URI best = null;
+      int bestOutstanding = Integer.MAX_VALUE;
+      for (int i = 0; i < candidates.size(); i++) {
+         URI candidate = candidates.get((offset + i) % candidates.size());
+         int outstanding = outstanding(candidate).get();
+         if (outstanding < bestOutstanding) {
+            best = candidate;
+            bestOutstanding = outstanding;
+         }
+      }
+      return best;
+   }
+
+   @Override
+   public void requestStarted(URI node) {
+      outstanding(node).incrementAndGet();
+   }
+
+   @Override
+   public void requestCompleted(URI node, long latencyMicros, boolean failed) {
+      outstanding(node).decrementAndGet();
+   }
+
+   private AtomicInteger outstanding(URI node) {
+      return outstandingByNode.computeIfAbsent(node, n -> new AtomicInteger());
+   }
+}
@@ -0,0 +1,17 @@
+package com.tcurt628.smartshop.dns;
+
+import java.net.URI;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Hands out the candidates in turn. */
+public class RoundRobinEndpointSelector implements EndpointSelector {
+
+   private final AtomicInteger next = new AtomicInteger();
+
+   @Override
+   public URI select(List<URI> candidates) {
+      int index = (next.getAndIncrement() & Integer.MAX_VALUE) % candidates.size();
+      return candidates.get(index);
+   }
+}
@@ -7,32 +7,124 @@ import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.dns.services.DNSService;
 import com.vmware.xenon.services.common.ServiceUriPaths;
-import org.apache.commons.lang3.builder.ToStringBuilder;
 
 import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class SmartShopDnsQueries {
 
-   /** Not crazy about this, but it works for now I guess... */
    private static Logger logger = Logger.getLogger(SmartShopDnsQueries.class.getName());
-   static {
-      logger.setLevel(Level.FINE);
-   }
 
-   private String ip;
-   private int port;
+   public static final long DEFAULT_CACHE_TTL_MICROS = TimeUnit.SECONDS.toMicros(30);
+   public static final long DEFAULT_NEGATIVE_CACHE_TTL_MICROS = TimeUnit.SECONDS.toMicros(5);
+   public static final long DEFAULT_EJECTION_MICROS = TimeUnit.SECONDS.toMicros(30);
+
+   /** How long a DNS node that had no {@link DnsResolveService} is asked with OData queries, before it's asked again */
+   private static final long RESOLVE_SERVICE_REPROBE_MICROS = TimeUnit.MINUTES.toMicros(5);
+
+   /** A cached resolution is refreshed in the background once this fraction of its TTL has passed */
+   private static final double REFRESH_AHEAD_FRACTION = 0.8;
+
+   /** The filters {@link DnsResolveService} can answer instead of an OData query */
+   private static final Pattern SERVICE_LINK_FILTER = Pattern.compile("\\$filter=serviceLink eq '([^']+)'");
+
+   private final DnsEndpoints dnsEndpoints;
+   private final long cacheTtlMicros;
+   private final long negativeCacheTtlMicros;
+
+   /** The key to the map is the DNS query filter; the value is what DNS last told us about it */
+   private final ConcurrentMap<String, Resolution> resolutions = new ConcurrentHashMap<>();
+   private final AtomicLong cacheHits = new AtomicLong();
+   private final AtomicLong cacheMisses = new AtomicLong();
+
+   /**
+    * The DNS nodes that answered {@link DnsResolveService#SELF_LINK} with a 404 (ie: plain xenon-dns hosts, or ones not
+    * upgraded yet). The key to the map is the node; the value is when to try the service on it again.
+    */
+   private final ConcurrentMap<URI, Long> resolveServiceMissingUntilMicros = new ConcurrentHashMap<>();
+
+   private EndpointSelector endpointSelector = EndpointSelection.ROUND_ROBIN.newSelector();
+   private long ejectionMicros = DEFAULT_EJECTION_MICROS;
+
+   /** Nodes that recently failed or timed out, and aren't routed to until their health check passes again */
+   private final ConcurrentMap<URI, Ejection> ejectedNodes = new ConcurrentHashMap<>();
 
    public SmartShopDnsQueries(String ip, int port) {
-      this.ip = ip;
-      this.port = port;
+      this(ip, port, DEFAULT_CACHE_TTL_MICROS, DEFAULT_NEGATIVE_CACHE_TTL_MICROS);
+   }
+
+   public SmartShopDnsQueries(String ip, int port, long cacheTtlMicros, long negativeCacheTtlMicros) {
+      this(DnsEndpoints.of(ip, port), cacheTtlMicros, negativeCacheTtlMicros);
+   }
+
+   /**
+    * @param dnsEndpoints           The nodes of the DNS cluster; a lookup that fails on one is tried on the next
+    * @param cacheTtlMicros         How long the nodes DNS returns for a query filter are used before asking DNS again
+    * @param negativeCacheTtlMicros How long a "no such service" answer from DNS is remembered
+    */
+   public SmartShopDnsQueries(DnsEndpoints dnsEndpoints, long cacheTtlMicros, long negativeCacheTtlMicros) {
+      this.dnsEndpoints = dnsEndpoints;
+      this.cacheTtlMicros = cacheTtlMicros;
+      this.negativeCacheTtlMicros = negativeCacheTtlMicros;
+   }
+
+   /**
+    * Routes the requests of {@code serviceLink} to the nodes {@code routingTable} keeps current with the changes DNS
+    * pushes, instead of caching what DNS answers for a while. Until DNS answers the watch, requests are routed as usual.
+    */
+   public SmartShopDnsQueries watch(DnsRoutingTable routingTable, String serviceLink) {
+      String dnsFilter = serviceLinkFilter(serviceLink);
+      URI dnsEndpoint = dnsEndpoints.current();
+      URI watchUri = UriUtils.buildUri(dnsEndpoint.getHost(), dnsEndpoint.getPort(),
+            DnsWatchService.watchLink(serviceLink), null);
+      routingTable.watch(serviceLink, resolution -> resolutions.put(dnsFilter, toPushedResolution(watchUri, resolution)));
+      return this;
+   }
+
+   /** The DNS query filter of the nodes running {@code serviceLink}, ie: {@code $filter=serviceLink eq '/products'} */
+   public static String serviceLinkFilter(String serviceLink) {
+      return String.format("$filter=serviceLink eq '%s'", serviceLink);
+   }
+
+   /** Chooses how requests are spread over the nodes DNS returns. Defaults to round-robin. */
+   public SmartShopDnsQueries setEndpointSelector(EndpointSelector endpointSelector) {
+      this.endpointSelector = endpointSelector;
+      return this;
+   }
+
+   /**
+    * How long a node that failed (or timed out) is kept out of rotation. Once that passes, its health check link is
+    * probed, and it only gets traffic again after the probe succeeds.
+    */
+   public SmartShopDnsQueries setEjectionMicros(long ejectionMicros) {
+      this.ejectionMicros = ejectionMicros;
+      return this;
    }
 
    /**
     * This methods makes calling an service endpoint (of which, you don't know the host that's running it) pretty
     * straightforward.
     *
+    * <p>What DNS returns for {@code dnsFilter} is cached. A cached answer is refreshed in the background shortly
+    * before it expires, so callers only wait on DNS the first time they use a filter (or after a long idle period).
+    * </p>
+    *
+    * <p>When DNS returns several nodes, the {@link EndpointSelector} picks one per request. Nodes that fail or time out
+    * are ejected for a while (see {@link #setEjectionMicros(long)}).</p>
+    *
     * @param dnsFilter The DNS query filter to use to find the host that's running a particular service. For example, if
     *                  you are trying to call the {@code /products} endpoint, you might pass the following for this
     *                  parameter: {@code "$filter=serviceLink eq '/products'"}
@@ -40,52 +132,354 @@ public class SmartShopDnsQueries {
     *                  port from the DNS result found from using {@code dnsFilter}. Example: {@code "/products/123456"}
     * @param referer   This is the host that should be sending the requests
     * @param handler   This is the handler that will be executed on the client's behalf after successfully finding the
-    *                  full URI to use from DNS
+    *                  full URI to use from DNS. If the DNS lookup itself fails (or finds no nodes), the handler is
+    *                  invoked with the failure instead, so callers can always complete their own operation from it.
     */
    public void queryDns(String dnsFilter, String queryUri, ServiceHost referer, Operation.CompletionHandler handler) {
-      URI dnsLookupUri = UriUtils.buildUri(ip, port, ServiceUriPaths.DNS + "/query", dnsFilter);
+      Resolution cached = resolutions.get(dnsFilter);
+      long now = Utils.getNowMicrosUtc();
+      if (cached != null && now < cached.expirationMicros) {
+         cacheHits.incrementAndGet();
+         if (now >= cached.refreshMicros && cached.refreshing.compareAndSet(false, true)) {
+            resolve(dnsFilter, referer, null);
+         }
+         sendToResolvedNode(cached, queryUri, referer, handler);
+         return;
+      }
+
+      cacheMisses.incrementAndGet();
+      resolve(dnsFilter, referer, resolution -> sendToResolvedNode(resolution, queryUri, referer, handler));
+   }
+
+   /** Drops any cached answer for {@code dnsFilter}, so the next call to {@link #queryDns} asks DNS again. */
+   public void invalidate(String dnsFilter) {
+      resolutions.remove(dnsFilter);
+   }
+
+   public long getCacheHitCount() {
+      return cacheHits.get();
+   }
+
+   public long getCacheMissCount() {
+      return cacheMisses.get();
+   }
+
+   /**
+    * Asks DNS for the nodes running {@code dnsFilter}, and caches the answer. If asking DNS fails outright, nothing is
+    * cached (an earlier answer, if any, keeps being used until it expires).
+    * <p>
+    * A {@code serviceLink eq '...'} filter is answered from the in-memory index of {@link DnsResolveService}; any other
+    * filter (or a DNS host without that service) is an OData query of the DNS records.
+    * <p>
+    * If the DNS node fails (or times out), the lookup is tried on the next node of the cluster, until every node has
+    * been tried once.
+    *
+    * @param onResolved called with the new resolution; {@code null} for background refreshes
+    */
+   private void resolve(String dnsFilter, ServiceHost referer, Consumer<Resolution> onResolved) {
+      resolve(dnsFilter, referer, onResolved, dnsEndpoints.size());
+   }
+
+   private void resolve(String dnsFilter, ServiceHost referer, Consumer<Resolution> onResolved, int attemptsLeft) {
+      URI dnsEndpoint = dnsEndpoints.current();
+      Matcher serviceLinkFilter = SERVICE_LINK_FILTER.matcher(dnsFilter);
+      if (serviceLinkFilter.matches() && hasResolveService(dnsEndpoint)) {
+         resolveFromIndex(dnsEndpoint, dnsFilter, serviceLinkFilter.group(1), referer, onResolved, attemptsLeft);
+         return;
+      }
+
+      URI dnsLookupUri = UriUtils.buildUri(dnsEndpoint.getHost(), dnsEndpoint.getPort(), ServiceUriPaths.DNS + "/query",
+            dnsFilter);
 
       Operation dnsLookupOperation = Operation.createGet(dnsLookupUri)
             .setReferer(referer.getUri())
             .setCompletion(((o, e) -> {
-               if(e != null) {
-                  String message = String.format("DNS Lookup Error for query: %s", o.getUri());
-                  logger.log(Level.SEVERE, message, e);
-                  throw new IllegalStateException(message, e);
+               if (e != null && failOver(dnsEndpoint, o, attemptsLeft)) {
+                  resolve(dnsFilter, referer, onResolved, attemptsLeft - 1);
+                  return;
                }
 
-               ServiceDocumentQueryResult result = o.getBody(ServiceDocumentQueryResult.class);
-               if(result.documentLinks == null || result.documentLinks.size() <= 0) {
-                  String message = String.format("DNS Lookup Query returned no results: %s", o.getUri());
-                  logger.log(Level.WARNING, message);
-                  throw new IllegalStateException(message, e);
+               Resolution resolution = e != null
+                     ? lookupFailed(dnsFilter, o, e)
+                     : cache(dnsFilter, toResolution(dnsLookupUri, o.getBody(ServiceDocumentQueryResult.class)));
+               if (onResolved != null) {
+                  onResolved.accept(resolution);
+               }
+            }));
+
+      referer.sendRequest(dnsLookupOperation);
+   }
+
+   private void resolveFromIndex(URI dnsEndpoint, String dnsFilter, String serviceLink, ServiceHost referer,
+         Consumer<Resolution> onResolved, int attemptsLeft) {
+      URI resolveUri = UriUtils.buildUri(dnsEndpoint.getHost(), dnsEndpoint.getPort(), DnsResolveService.SELF_LINK,
+            "serviceLink=" + serviceLink);
+
+      // Without NO_QUEUING, a DNS host that doesn't have the service would hold the request until it times out
+      Operation resolveOperation = Operation.createGet(resolveUri)
+            .setReferer(referer.getUri())
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+            .setCompletion(((o, e) -> {
+               if (e != null && o.getStatusCode() == Operation.STATUS_CODE_NOT_FOUND) {
+                  logger.log(Level.INFO, String.format("DNS at %s has no %s; using OData queries on it for %d s",
+                        dnsEndpoint, DnsResolveService.SELF_LINK,
+                        TimeUnit.MICROSECONDS.toSeconds(RESOLVE_SERVICE_REPROBE_MICROS)));
+                  resolveServiceMissingUntilMicros.put(dnsEndpoint,
+                        Utils.getNowMicrosUtc() + RESOLVE_SERVICE_REPROBE_MICROS);
+                  resolve(dnsFilter, referer, onResolved, attemptsLeft);
+                  return;
+               }
+               if (e != null && failOver(dnsEndpoint, o, attemptsLeft)) {
+                  resolve(dnsFilter, referer, onResolved, attemptsLeft - 1);
+                  return;
                }
 
-               String documentKey = result.documentLinks.get(0);
-               logger.log(Level.FINE, String.format("DNS service lookup returned %d records. Using: [documentKey=%s]", result.documentCount, documentKey));
-               Object documentValue = result.documents.get(documentKey);
-               DNSService.DNSServiceState serviceState = Utils.fromJson(documentValue, DNSService.DNSServiceState.class);
-               logger.log(Level.FINE, String.format("Retrieved [dnsServiceState=%s]", ToStringBuilder.reflectionToString(serviceState)));
-
-               if(serviceState.nodeReferences.size() > 0) {
-                  URI dnsResponse = UriUtils.extendUri(serviceState.nodeReferences.iterator().next(), queryUri);
-                  logger.log(Level.INFO, String.format("DNS Response for query: %s", dnsResponse));
-
-                  // Add "no queuing" directive because, by default, it will wait on the service for it to be created
-                  // NO_QUEUING says return immediately, even if the service doesn't exist yet (a HTTP 404)
-                  Operation getDirect = Operation.createGet(dnsResponse)
-                        .setReferer(referer.getUri())
-                        .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
-                        .setCompletion(handler);
-                  referer.sendRequest(getDirect);
-               } else {
-                  String message = String.format("DNS Lookup Error: No nodes found for [query=%s]", dnsLookupUri);
-                  logger.log(Level.SEVERE, message);
-                  throw new IllegalStateException(message);
+               Resolution resolution = e != null
+                     ? lookupFailed(dnsFilter, o, e)
+                     : cache(dnsFilter, toResolution(resolveUri, o.getBody(DnsResolution.class)));
+               if (onResolved != null) {
+                  onResolved.accept(resolution);
                }
             }));
 
-      referer.sendRequest(dnsLookupOperation);
+      referer.sendRequest(resolveOperation);
+   }
+
+   private boolean hasResolveService(URI dnsEndpoint) {
+      Long missingUntilMicros = resolveServiceMissingUntilMicros.get(dnsEndpoint);
+      if (missingUntilMicros == null) {
+         return true;
+      }
+      if (Utils.getNowMicrosUtc() < missingUntilMicros) {
+         return false;
+      }
+      // Time to ask again: the node may have been upgraded (or restarted with its index loaded) since
+      resolveServiceMissingUntilMicros.remove(dnsEndpoint, missingUntilMicros);
+      return true;
+   }
+
+   /**
+    * Moves on to the next DNS node if {@code dnsEndpoint} failed (ie: it's down, or its index is still loading), and
+    * there's a node left to try.
+    *
+    * @return whether the lookup should be tried again, on the next node
+    */
+   private boolean failOver(URI dnsEndpoint, Operation o, int attemptsLeft) {
+      if (attemptsLeft <= 1 || !isNodeFailure(o)) {
+         return false;
+      }
+      URI next = dnsEndpoints.failed(dnsEndpoint);
+      logger.log(Level.WARNING, String.format("DNS at %s failed with %d; failing over to %s", dnsEndpoint,
+            o.getStatusCode(), next));
+      return true;
+   }
+
+   private Resolution cache(String dnsFilter, Resolution resolution) {
+      // What DNS pushed is at least as current as what it answered
+      return resolutions.merge(dnsFilter, resolution, (cached, answered) -> cached.pushed ? cached : answered);
+   }
+
+   private Resolution lookupFailed(String dnsFilter, Operation o, Throwable e) {
+      String message = String.format("DNS Lookup Error for query: %s", o.getUri());
+      logger.log(Level.SEVERE, message, e);
+      Resolution previous = resolutions.get(dnsFilter);
+      if (previous != null) {
+         previous.refreshing.set(false);
+      }
+      return Resolution.failed(o.getUri(), new IllegalStateException(message, e));
+   }
+
+   private Resolution toResolution(URI resolveUri, DnsResolution resolution) {
+      if (resolution.nodeReferences == null || resolution.nodeReferences.isEmpty()) {
+         String message = String.format("DNS Lookup Error: No nodes found for [query=%s]", resolveUri);
+         logger.log(Level.WARNING, message);
+         return Resolution.negative(resolveUri, new IllegalStateException(message),
+               Utils.getNowMicrosUtc() + negativeCacheTtlMicros);
+      }
+      return toResolution(resolveUri, resolution.nodeReferences, resolution.healthCheckLink);
+   }
+
+   private Resolution toResolution(URI dnsLookupUri, ServiceDocumentQueryResult result) {
+      long now = Utils.getNowMicrosUtc();
+      if (result.documentLinks == null || result.documentLinks.size() <= 0) {
+         String message = String.format("DNS Lookup Query returned no results: %s", dnsLookupUri);
+         logger.log(Level.WARNING, message);
+         return Resolution.negative(dnsLookupUri, new IllegalStateException(message), now + negativeCacheTtlMicros);
+      }
+
+      String documentKey = result.documentLinks.get(0);
+      if (logger.isLoggable(Level.FINE)) {
+         logger.log(Level.FINE, String.format("DNS service lookup returned %d records. Using: [documentKey=%s]", result.documentCount, documentKey));
+      }
+      Object documentValue = result.documents.get(documentKey);
+      DNSService.DNSServiceState serviceState = Utils.fromJson(documentValue, DNSService.DNSServiceState.class);
+
+      if (serviceState.nodeReferences == null || serviceState.nodeReferences.isEmpty()) {
+         String message = String.format("DNS Lookup Error: No nodes found for [query=%s]", dnsLookupUri);
+         logger.log(Level.SEVERE, message);
+         return Resolution.negative(dnsLookupUri, new IllegalStateException(message), now + negativeCacheTtlMicros);
+      }
+
+      return toResolution(dnsLookupUri, serviceState.nodeReferences, serviceState.healthCheckLink);
+   }
+
+   /** What {@link DnsRoutingTable} was pushed doesn't expire; it's replaced by the next push */
+   private Resolution toPushedResolution(URI watchUri, DnsResolution resolution) {
+      Throwable failure = null;
+      if (resolution.nodeReferences.isEmpty()) {
+         String message = String.format("DNS Lookup Error: No nodes found for [watch=%s]", watchUri);
+         logger.log(Level.WARNING, message);
+         failure = new IllegalStateException(message);
+      }
+      return new Resolution(watchUri, resolution.nodeReferences, resolution.healthCheckLink, failure, Long.MAX_VALUE,
+            Long.MAX_VALUE, true);
+   }
+
+   private Resolution toResolution(URI dnsLookupUri, Collection<URI> nodeReferences, String healthCheckLink) {
+      long now = Utils.getNowMicrosUtc();
+      long refresh = now + (long) (cacheTtlMicros * REFRESH_AHEAD_FRACTION);
+      return new Resolution(dnsLookupUri, new ArrayList<>(nodeReferences), healthCheckLink, null, refresh,
+            now + cacheTtlMicros);
+   }
+
+   private void sendToResolvedNode(Resolution resolution, String queryUri, ServiceHost referer,
+         Operation.CompletionHandler handler) {
+      if (resolution.failure != null) {
+         handler.handle(Operation.createGet(resolution.dnsLookupUri), resolution.failure);
+         return;
+      }
+
+      URI node = endpointSelector.select(availableNodes(resolution, referer));
+      URI dnsResponse = UriUtils.extendUri(node, queryUri);
+      if (logger.isLoggable(Level.FINE)) {
+         logger.log(Level.FINE, String.format("DNS Response for query: %s", dnsResponse));
+      }
+
+      // Add "no queuing" directive because, by default, it will wait on the service for it to be created
+      // NO_QUEUING says return immediately, even if the service doesn't exist yet (a HTTP 404)
+      long startMicros = Utils.getNowMicrosUtc();
+      Operation getDirect = Operation.createGet(dnsResponse)
+            .setReferer(referer.getUri())
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+            .setCompletion((o, e) -> {
+               boolean nodeFailed = e != null && isNodeFailure(o);
+               endpointSelector.requestCompleted(node, Utils.getNowMicrosUtc() - startMicros, nodeFailed);
+               if (nodeFailed) {
+                  eject(node);
+               }
+               handler.handle(o, e);
+            });
+      endpointSelector.requestStarted(node);
+      referer.sendRequest(getDirect);
+   }
+
+   /**
+    * The nodes of {@code resolution} that aren't ejected. Ejected nodes whose ejection has run out get their health
+    * check probed in the background. If every node is ejected, all of them are returned: better to try a node that
+    * might have recovered than to fail the request outright.
+    */
+   private List<URI> availableNodes(Resolution resolution, ServiceHost referer) {
+      if (ejectedNodes.isEmpty()) {
+         return resolution.nodeReferences;
+      }
+
+      long now = Utils.getNowMicrosUtc();
+      List<URI> available = new ArrayList<>(resolution.nodeReferences.size());
+      for (URI node : resolution.nodeReferences) {
+         Ejection ejection = ejectedNodes.get(node);
+         if (ejection == null) {
+            available.add(node);
+         } else if (now >= ejection.untilMicros && ejection.probing.compareAndSet(false, true)) {
+            probe(node, resolution.healthCheckLink, referer);
+         }
+      }
+      return available.isEmpty() ? resolution.nodeReferences : available;
+   }
+
+   /** A node failed if it timed out, couldn't be reached, or answered with a server error. A 404 is a fine answer. */
+   private static boolean isNodeFailure(Operation o) {
+      return o.getStatusCode() == Operation.STATUS_CODE_TIMEOUT || o.getStatusCode() >= Operation.STATUS_CODE_SERVER_FAILURE_THRESHOLD;
+   }
+
+   private void eject(URI node) {
+      if (ejectedNodes.put(node, new Ejection(Utils.getNowMicrosUtc() + ejectionMicros)) == null) {
+         logger.log(Level.WARNING, String.format("Ejected [node=%s] for %d seconds", node,
+               TimeUnit.MICROSECONDS.toSeconds(ejectionMicros)));
+      }
+   }
+
+   /** Re-admits {@code node} if its health check link answers; otherwise keeps it ejected for another round. */
+   private void probe(URI node, String healthCheckLink, ServiceHost referer) {
+      if (healthCheckLink == null) {
+         ejectedNodes.remove(node);
+         return;
+      }
+
+      Operation healthCheck = Operation.createGet(UriUtils.extendUri(node, healthCheckLink))
+            .setReferer(referer.getUri())
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  logger.log(Level.FINE, String.format("Health check failed, [node=%s] stays ejected", node));
+                  ejectedNodes.put(node, new Ejection(Utils.getNowMicrosUtc() + ejectionMicros));
+                  return;
+               }
+               logger.log(Level.INFO, String.format("Health check passed, re-admitted [node=%s]", node));
+               ejectedNodes.remove(node);
+            });
+      referer.sendRequest(healthCheck);
+   }
+
+   /**
+    * What DNS told us about one query filter: either the nodes running the service, or why there aren't any. Answers
+    * are immutable; a refresh replaces the whole {@code Resolution}.
+    */
+   private static class Resolution {
+      final URI dnsLookupUri;
+      final List<URI> nodeReferences;
+      final String healthCheckLink;
+      final Throwable failure;
+      final long refreshMicros;
+      final long expirationMicros;
+      /** Kept current by {@link DnsRoutingTable}, rather than asked for */
+      final boolean pushed;
+      final AtomicBoolean refreshing = new AtomicBoolean();
+
+      Resolution(URI dnsLookupUri, List<URI> nodeReferences, String healthCheckLink, Throwable failure,
+            long refreshMicros, long expirationMicros) {
+         this(dnsLookupUri, nodeReferences, healthCheckLink, failure, refreshMicros, expirationMicros, false);
+      }
+
+      Resolution(URI dnsLookupUri, List<URI> nodeReferences, String healthCheckLink, Throwable failure,
+            long refreshMicros, long expirationMicros, boolean pushed) {
+         this.dnsLookupUri = dnsLookupUri;
+         this.nodeReferences = nodeReferences;
+         this.healthCheckLink = healthCheckLink;
+         this.failure = failure;
+         this.refreshMicros = refreshMicros;
+         this.expirationMicros = expirationMicros;
+         this.pushed = pushed;
+      }
+
+      /** DNS answered, but has no nodes for the query. Remembered, but not refreshed ahead of expiration. */
+      static Resolution negative(URI dnsLookupUri, Throwable failure, long expirationMicros) {
+         return new Resolution(dnsLookupUri, Collections.emptyList(), null, failure, Long.MAX_VALUE, expirationMicros);
+      }
+
+      /** DNS couldn't be asked at all. Never cached. */
+      static Resolution failed(URI dnsLookupUri, Throwable failure) {
+         return new Resolution(dnsLookupUri, Collections.emptyList(), null, failure, 0, 0);
+      }
+   }
+
+   /** A node that is out of rotation until {@code untilMicros}, and then until a health check probe passes. */
+   private static class Ejection {
+      final long untilMicros;
+      final AtomicBoolean probing = new AtomicBoolean();
+
+      Ejection(long untilMicros) {
+         this.untilMicros = untilMicros;
+      }
    }
 
 }
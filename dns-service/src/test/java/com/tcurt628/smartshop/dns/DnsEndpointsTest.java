@@ -0,0 +1,39 @@
+package com.tcurt628.smartshop.dns;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+public class DnsEndpointsTest {
+
+   @Test
+   public void testFailsOverToEveryNodeInTurn() {
+      DnsEndpoints endpoints = DnsEndpoints.of("127.0.0.1", 8002, "http://127.0.0.1:8012", " http://127.0.0.1:8022");
+      assertEquals(Arrays.asList(URI.create("http://127.0.0.1:8002"), URI.create("http://127.0.0.1:8012"),
+            URI.create("http://127.0.0.1:8022")), endpoints.getEndpoints());
+
+      URI first = endpoints.current();
+      URI second = endpoints.failed(first);
+      URI third = endpoints.failed(second);
+      assertNotEquals(first, second);
+      assertNotEquals(second, third);
+      assertNotEquals(first, third);
+      assertEquals(first, endpoints.failed(third));
+   }
+
+   @Test
+   public void testConcurrentFailuresOfTheSameNodeMoveOnOnce() {
+      DnsEndpoints endpoints = DnsEndpoints.of(null, 0, "http://127.0.0.1:8002", "http://127.0.0.1:8012",
+            "http://127.0.0.1:8022");
+      URI failing = endpoints.current();
+      URI next = endpoints.failed(failing);
+
+      // Another request that was sent to the failing node before we moved on
+      assertEquals(next, endpoints.failed(failing));
+      assertEquals(next, endpoints.current());
+   }
+}
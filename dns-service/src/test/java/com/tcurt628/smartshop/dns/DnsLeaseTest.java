@@ -0,0 +1,192 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service.ServiceOption;
+import com.vmware.xenon.common.ServiceConfigUpdateRequest;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.dns.services.DNSFactoryService;
+import com.vmware.xenon.dns.services.DNSService.DNSServiceState;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.EnumSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link DnsRegistration}, {@link DnsLeaseService} and {@link DnsLeaseReaper} on a {@link DnsHost}, which registers a
+ * service of its own.
+ */
+public class DnsLeaseTest {
+
+   private static final String SERVICE_LINK = "/lease-test";
+   private static final String SERVICE_KIND = "LeaseTestService";
+   private static final long LEASE_MICROS = TimeUnit.SECONDS.toMicros(2);
+   private static final long HEARTBEAT_MICROS = TimeUnit.MILLISECONDS.toMicros(200);
+   private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+   @Rule
+   public TemporaryFolder sandbox = new TemporaryFolder();
+
+   private DnsHost host;
+
+   @Before
+   public void setUp() throws Throwable {
+      DnsHost.hostArguments.leaseCheckMillis = 100;
+      host = startHost();
+   }
+
+   @After
+   public void tearDown() {
+      if (host != null) {
+         host.stop();
+      }
+      DnsHost.hostArguments = new DnsHost.Arguments();
+   }
+
+   @Test
+   public void testLapsedLeaseDeletesItsRecord() throws Throwable {
+      String recordLink = send(createRecord()).getBody(DNSServiceState.class).documentSelfLink;
+      DnsLease lease = new DnsLease();
+      lease.documentSelfLink = DnsLeaseService.leaseLinkFor(recordLink);
+      lease.recordLink = recordLink;
+      lease.leaseMicros = TimeUnit.MILLISECONDS.toMicros(500);
+      send(Operation.createPost(UriUtils.buildUri(host, DnsLeaseService.FACTORY_LINK)).setBody(lease));
+
+      // Never renewed
+      waitFor(() -> statusCode(recordLink) == Operation.STATUS_CODE_NOT_FOUND);
+      waitFor(() -> statusCode(lease.documentSelfLink) == Operation.STATUS_CODE_NOT_FOUND);
+   }
+
+   @Test
+   public void testHeartbeatRegistersAgainOnceItsLeaseIsGone() throws Throwable {
+      register();
+      String recordLink = recordLink();
+      String leaseLink = DnsLeaseService.leaseLinkFor(recordLink);
+      assertEquals(Operation.STATUS_CODE_OK, statusCode(leaseLink));
+
+      // As the reaper would, had the host been paused for longer than a lease
+      send(Operation.createDelete(UriUtils.buildUri(host, recordLink)));
+      send(Operation.createDelete(UriUtils.buildUri(host, leaseLink)));
+
+      waitFor(() -> statusCode(recordLink) == Operation.STATUS_CODE_OK
+            && statusCode(leaseLink) == Operation.STATUS_CODE_OK);
+   }
+
+   @Test
+   public void testRecordThatExistsStillGetsALease() throws Throwable {
+      // Without IDEMPOTENT_POST, the record factory answers a POST of a record that exists with a 409
+      ServiceConfigUpdateRequest notIdempotent = ServiceConfigUpdateRequest.create();
+      notIdempotent.removeOptions = EnumSet.of(ServiceOption.IDEMPOTENT_POST);
+      send(Operation.createPatch(UriUtils.buildConfigUri(host, DNSFactoryService.SELF_LINK)).setBody(notIdempotent));
+      send(createRecord());
+      assertEquals(Operation.STATUS_CODE_CONFLICT, statusCodeOf(createRecord()));
+
+      register();
+      DnsLease lease = send(Operation.createGet(UriUtils.buildUri(host, DnsLeaseService.leaseLinkFor(recordLink()))))
+            .getBody(DnsLease.class);
+      assertEquals(recordLink(), lease.recordLink);
+   }
+
+   @Test
+   public void testRestartKeepsTheExpiryOfALease() throws Throwable {
+      String recordLink = send(createRecord()).getBody(DNSServiceState.class).documentSelfLink;
+      DnsLease lease = new DnsLease();
+      lease.documentSelfLink = DnsLeaseService.leaseLinkFor(recordLink);
+      lease.recordLink = recordLink;
+      lease.leaseMicros = TimeUnit.MINUTES.toMicros(10);
+      long expiresAtMicros = send(Operation.createPost(UriUtils.buildUri(host, DnsLeaseService.FACTORY_LINK))
+            .setBody(lease)).getBody(DnsLease.class).expiresAtMicros;
+
+      host.stop();
+      host = startHost();
+      waitFor(() -> statusCode(lease.documentSelfLink) == Operation.STATUS_CODE_OK);
+
+      DnsLease restarted = send(Operation.createGet(UriUtils.buildUri(host, lease.documentSelfLink)))
+            .getBody(DnsLease.class);
+      assertEquals(expiresAtMicros, restarted.expiresAtMicros);
+   }
+
+   private DnsHost startHost() throws Throwable {
+      DnsHost dnsHost = new DnsHost();
+      dnsHost.initialize(new String[] {
+            "--port=0",
+            "--id=dnsHost",
+            "--sandbox=" + sandbox.getRoot().getAbsolutePath()
+      });
+      dnsHost.start();
+      waitFor(() -> dnsHost.checkServiceAvailable(DNSFactoryService.SELF_LINK)
+            && dnsHost.checkServiceAvailable(DnsLeaseService.FACTORY_LINK));
+      return dnsHost;
+   }
+
+   private void register() throws Exception {
+      DnsRegistration registration = new DnsRegistration(host, DnsEndpoints.of("127.0.0.1", host.getPort()),
+            SERVICE_LINK, SERVICE_KIND, null, LEASE_MICROS, HEARTBEAT_MICROS);
+      CompletableFuture<Operation> registered = new CompletableFuture<>();
+      registration.register((o, e) -> {
+         if (e != null) {
+            registered.completeExceptionally(e);
+            return;
+         }
+         registered.complete(o);
+      });
+      registered.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private Operation createRecord() {
+      return DNSFactoryService.createPost(host.getUri(), host, SERVICE_LINK, SERVICE_KIND, null, null, 1L);
+   }
+
+   private String recordLink() {
+      String requestedLink = createRecord().getBody(DNSServiceState.class).documentSelfLink;
+      return UriUtils.buildUriPath(DNSFactoryService.SELF_LINK, UriUtils.getLastPathSegment(requestedLink));
+   }
+
+   private int statusCode(String link) throws Exception {
+      return statusCodeOf(Operation.createGet(UriUtils.buildUri(host, link))
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING));
+   }
+
+   /** The status code {@code op} completed with, failed or not */
+   private int statusCodeOf(Operation op) throws Exception {
+      CompletableFuture<Integer> done = new CompletableFuture<>();
+      host.sendRequest(op
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> done.complete(o.getStatusCode())));
+      return done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private Operation send(Operation op) throws Exception {
+      CompletableFuture<Operation> done = new CompletableFuture<>();
+      host.sendRequest(op
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  done.completeExceptionally(e);
+                  return;
+               }
+               done.complete(o);
+            }));
+      return done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private interface Condition {
+      boolean isMet() throws Throwable;
+   }
+
+   private static void waitFor(Condition condition) throws Throwable {
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+      while (!condition.isMet()) {
+         if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Timed out");
+         }
+         Thread.sleep(100);
+      }
+   }
+}
@@ -0,0 +1,97 @@
+package com.tcurt628.smartshop.dns;
+
+import com.vmware.xenon.dns.services.DNSService.DNSServiceState;
+import com.vmware.xenon.dns.services.DNSService.DNSServiceState.ServiceStatus;
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DnsRecordIndexTest {
+
+   private URI node1 = URI.create("http://127.0.0.1:8000");
+   private URI node2 = URI.create("http://127.0.0.1:8010");
+
+   @Test
+   public void testResolvesHealthyNodesOfAllRecords() {
+      DnsRecordIndex index = new DnsRecordIndex();
+      index.recordChanged("/records/products-1", record("/products", node1, null, 1));
+      index.recordChanged("/records/products-2", record("/products", node2, ServiceStatus.AVAILABLE, 1));
+      index.recordChanged("/records/reviews-1", record("/reviews", node1, null, 1));
+
+      DnsResolution products = index.resolve("/products");
+      assertEquals(Arrays.asList(node1, node2), products.nodeReferences);
+      assertEquals("/products/available", products.healthCheckLink);
+
+      index.recordChanged("/records/products-2", record("/products", node2, ServiceStatus.UNAVAILABLE, 2));
+      products = index.resolve("/products");
+      assertEquals(Collections.singletonList(node1), products.nodeReferences);
+      assertEquals(1, products.unavailableNodeCount);
+      assertEquals(Collections.singletonList(node1), index.resolve("/reviews").nodeReferences);
+   }
+
+   @Test
+   public void testDeletedRecordIsNotBroughtBackByStaleUpdate() {
+      DnsRecordIndex index = new DnsRecordIndex();
+      index.recordChanged("/records/products-1", record("/products", node1, null, 3));
+      index.recordDeleted("/records/products-1", 4);
+      assertTrue(index.resolve("/products").nodeReferences.isEmpty());
+
+      assertNull(index.recordChanged("/records/products-1", record("/products", node1, null, 3)));
+      assertTrue(index.resolve("/products").nodeReferences.isEmpty());
+      assertEquals(0, index.size());
+
+      // Registering again is a newer update, even if the record starts over at version 0
+      index.recordChanged("/records/products-1", record("/products", node1, null, 5));
+      assertEquals(Collections.singletonList(node1), index.resolve("/products").nodeReferences);
+   }
+
+   @Test
+   public void testChangesRebuildTheResolutionOfTheirService() {
+      DnsRecordIndex index = new DnsRecordIndex();
+      List<DnsResolutionChange> changes = new ArrayList<>();
+      index.setChangeListener(changes::add);
+
+      index.recordChanged("/records/products-1", record("/products", node1, null, 1));
+      index.recordChanged("/records/products-2", record("/products", node2, null, 1));
+      index.recordChanged("/records/products-2", record("/products", node2, ServiceStatus.UNAVAILABLE, 2));
+      index.recordChanged("/records/products-2", record("/products", node2, ServiceStatus.AVAILABLE, 3));
+      index.recordDeleted("/records/products-1", 4);
+
+      assertEquals(5, changes.size());
+      assertEquals(Collections.singletonList(node1), changes.get(0).addedNodes);
+      assertEquals(Collections.singletonList(node2), changes.get(2).unavailableNodes);
+      assertEquals(Collections.singletonList(node2), changes.get(3).availableNodes);
+      assertEquals(Collections.singletonList(node1), changes.get(4).removedNodes);
+
+      // Applied one after the other, the changes end where the index is
+      DnsResolution resolution = new DnsResolution();
+      for (DnsResolutionChange change : changes) {
+         assertEquals(resolution.indexVersion, change.previousIndexVersion);
+         resolution = change.applyTo(resolution);
+      }
+      DnsResolution indexed = index.resolve("/products");
+      assertEquals(indexed.indexVersion, resolution.indexVersion);
+      assertEquals(Collections.singletonList(node2), resolution.nodeReferences);
+      assertEquals(indexed.nodeReferences, resolution.nodeReferences);
+      assertTrue(resolution.unavailableNodeReferences.isEmpty());
+   }
+
+   private static DNSServiceState record(String serviceLink, URI node, ServiceStatus status, long updateTimeMicros) {
+      DNSServiceState record = new DNSServiceState();
+      record.serviceLink = serviceLink;
+      record.healthCheckLink = serviceLink + "/available";
+      record.nodeReferences = new HashSet<>(Collections.singletonList(node));
+      record.serviceStatus = status;
+      record.documentUpdateTimeMicros = updateTimeMicros;
+      return record;
+   }
+}
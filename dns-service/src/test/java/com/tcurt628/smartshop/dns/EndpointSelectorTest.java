@@ -0,0 +1,58 @@
+package com.tcurt628.smartshop.dns;
+
+import org.junit.Test;
+
+import java.net.URI;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class EndpointSelectorTest {
+
+   private URI node1 = URI.create("http://127.0.0.1:8000");
+   private URI node2 = URI.create("http://127.0.0.1:8010");
+   private URI node3 = URI.create("http://127.0.0.1:8020");
+   private List<URI> nodes = Arrays.asList(node1, node2, node3);
+
+   @Test
+   public void testRoundRobinSpreadsEvenly() {
+      EndpointSelector selector = EndpointSelection.ROUND_ROBIN.newSelector();
+      Map<URI, Integer> counts = new HashMap<>();
+      for (int i = 0; i < 300; i++) {
+         counts.merge(selector.select(nodes), 1, Integer::sum);
+      }
+      assertEquals(Integer.valueOf(100), counts.get(node1));
+      assertEquals(Integer.valueOf(100), counts.get(node2));
+      assertEquals(Integer.valueOf(100), counts.get(node3));
+   }
+
+   @Test
+   public void testLeastOutstandingAvoidsBusyNodes() {
+      EndpointSelector selector = EndpointSelection.LEAST_OUTSTANDING.newSelector();
+      selector.requestStarted(node1);
+      selector.requestStarted(node2);
+      assertEquals(node3, selector.select(nodes));
+
+      selector.requestStarted(node3);
+      selector.requestStarted(node3);
+      selector.requestCompleted(node1, 10, false);
+      assertEquals(node1, selector.select(nodes));
+   }
+
+   @Test
+   public void testEwmaPrefersFasterNodes() {
+      EndpointSelector selector = EndpointSelection.EWMA_LATENCY.newSelector();
+      for (int i = 0; i < 10; i++) {
+         for (URI node : nodes) {
+            selector.requestStarted(node);
+         }
+         selector.requestCompleted(node1, 5000, false);
+         selector.requestCompleted(node2, 100, false);
+         selector.requestCompleted(node3, 0, true); // failures are penalized
+      }
+      assertEquals(node2, selector.select(nodes));
+   }
+}
@@ -1,14 +1,23 @@
 package com.tcurt628.smartshop.product.model;
 
+import com.esotericsoftware.kryo.DefaultSerializer;
 import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyUsageOption;
 
 /**
  * Created by tcurtis on 3/8/16.
  */
+@DefaultSerializer(ProductSerializer.class)
 public class Product extends ServiceDocument {
+   @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
    public String name;
+
+   @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
    public String description;
-   public double price;
+
+   /** Boxed, so a {@code PATCH} that leaves it out (null) keeps the current price */
+   @UsageOption(option = PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+   public Double price;
 
    @Override
    public String toString() {
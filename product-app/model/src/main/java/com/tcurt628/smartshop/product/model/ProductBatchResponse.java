@@ -0,0 +1,26 @@
+package com.tcurt628.smartshop.product.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The response to a batch of products POSTed to {@code /products/batch}: one {@link ItemResult} per product, in the
+ * order they were sent.
+ */
+public class ProductBatchResponse {
+
+   public int createdCount;
+   public int failedCount;
+   public List<ItemResult> results = new ArrayList<>();
+
+   public static class ItemResult {
+      /** Position of the product in the batch (0-based) */
+      public int index;
+      /** HTTP status code of the product's creation: 200 when created, 400 when it didn't pass validation */
+      public int statusCode;
+      /** The created product, if creation succeeded */
+      public String documentSelfLink;
+      /** Why creation failed, if it did */
+      public String failureMessage;
+   }
+}
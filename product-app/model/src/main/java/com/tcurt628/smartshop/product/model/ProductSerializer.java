@@ -0,0 +1,31 @@
+package com.tcurt628.smartshop.product.model;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.tcurt628.smartshop.common.serialization.CompactDocumentSerializer;
+
+/** The compact binary form of a {@link Product}, once enabled; see {@link CompactDocumentSerializer} */
+public class ProductSerializer extends CompactDocumentSerializer<Product> {
+
+   /** {@code ProductService.FACTORY_LINK} */
+   private static final String FACTORY_LINK = "/products";
+
+   public ProductSerializer(Kryo kryo, Class<Product> type) {
+      super(kryo, type, FACTORY_LINK);
+   }
+
+   @Override
+   protected void writeFields(Output output, Product product) {
+      output.writeString(product.name);
+      output.writeString(product.description);
+      writeNullable(output, product.price);
+   }
+
+   @Override
+   protected void readFields(Input input, Product product) {
+      product.name = input.readString();
+      product.description = input.readString();
+      product.price = readNullableDouble(input);
+   }
+}
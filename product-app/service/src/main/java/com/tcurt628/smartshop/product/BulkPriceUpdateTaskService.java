@@ -0,0 +1,393 @@
+package com.tcurt628.smartshop.product;
+
+import com.tcurt628.smartshop.common.task.AbstractTaskService;
+import com.tcurt628.smartshop.common.task.StepPolicy;
+import com.tcurt628.smartshop.product.model.Product;
+import com.vmware.xenon.common.FactoryService;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationJoin;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.TaskState;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reprices every product matching a query, ie: "10% off everything named Phillips*", without a {@code GET} and a
+ * {@code PUT} per product from outside. Each matching product's price becomes
+ * {@code price * priceMultiplier + priceDelta} (rounded to cents, and never below 0), sent as a price-only
+ * {@code PATCH}.
+ * <ul>
+ *    <li>Products are read a page of {@code batchSize} at a time from the local index, which has the whole catalog
+ *    (products are replicated to every node of the {@code product} node group), and each page is patched with at most
+ *    {@code maxConcurrency} updates in flight. The {@code PATCH}es replicate to the rest of the node group as usual.</li>
+ *    <li>Progress (the next page, and the counts) is saved in the task state every {@code pagesPerCheckpoint}
+ *    pages, so the task is persisted once per few batches rather than once per product (or per page). The pages in
+ *    between run in memory, and a query that fails or a page that takes too long is retried as {@link #STEP_POLICY}
+ *    says.</li>
+ *    <li>Only products not updated since the task started are matched. A product the task already repriced never
+ *    matches again, so when the task is resumed (ie: after a restart, when its saved page is gone), it runs the query
+ *    again and carries on with the products that are left. A product someone else updates in the meantime is left
+ *    alone too. The counts of the pages done after the last checkpoint are lost then, though the products they
+ *    updated stay updated.</li>
+ * </ul>
+ */
+public class BulkPriceUpdateTaskService extends AbstractTaskService<BulkPriceUpdateTaskService.BulkPriceUpdateTaskState> {
+
+   public static final String FACTORY_LINK = "/product-tasks/bulk-price-update";
+
+   static final int DEFAULT_BATCH_SIZE = 100;
+   static final int MAX_BATCH_SIZE = 1000;
+   static final int DEFAULT_PAGES_PER_CHECKPOINT = 10;
+   static final long PAGE_LIFETIME_MINUTES = 10;
+
+   /** A step (a query, or a page) has two minutes, and 3 more tries after its first */
+   static final StepPolicy STEP_POLICY = new StepPolicy(TimeUnit.MINUTES.toMillis(2), 3, 500);
+
+   public enum SubStage {
+      /** Querying the products to update, from the start */
+      QUERYING,
+      /** Updating the products of {@code nextPageLink}, a page at a time */
+      UPDATING
+   }
+
+   public static class BulkPriceUpdateTaskState extends AbstractTaskService.BaseTaskServiceState {
+
+      /**
+       * Which products to update, ie: a term on {@code name}. Combined with a clause on the {@code Product} kind, so it
+       * can be left out to update every product.
+       */
+      public QueryTask.Query query;
+
+      /** What each price is multiplied by; 0.9 takes 10% off. Defaults to 1 */
+      public Double priceMultiplier;
+
+      /** What is added to each price, after {@code priceMultiplier}. Defaults to 0 */
+      public Double priceDelta;
+
+      /** Products read (and updated) per page. Defaults to {@value #DEFAULT_BATCH_SIZE} */
+      public Integer batchSize;
+
+      /** Max updates in flight. Defaults to the host's {@code productBatchConcurrency} */
+      public Integer maxConcurrency;
+
+      /** Pages updated between two saves of the progress. Defaults to {@value #DEFAULT_PAGES_PER_CHECKPOINT} */
+      public Integer pagesPerCheckpoint;
+
+      /** The current substage of the task. See {@link SubStage} */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public SubStage subStage;
+
+      /** When the task started; only products last updated before this are matched */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public Long startTimeMicros;
+
+      /** The page of products to update next. Set while {@link SubStage#UPDATING} */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public String nextPageLink;
+
+      /** Pages updated so far */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public Long pagesUpdated;
+
+      /** Products updated so far */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public Long updatedCount;
+
+      /** Products that could not be updated, ie: because they changed after they were read */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public Long failedCount;
+
+      /** Products updated per second, from the start of the task to the last checkpoint */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public Double productsPerSecond;
+
+      @Override
+      public String toString() {
+         String taskInfoStage = taskInfo != null && taskInfo.stage != null ? taskInfo.stage.toString() : null;
+         return String.format("BulkPriceUpdateTaskState: [taskInfo.stage=%s] [subStage=%s] [pagesUpdated=%s] [updatedCount=%s] [failedCount=%s] [productsPerSecond=%s]",
+               taskInfoStage, subStage, pagesUpdated, updatedCount, failedCount, productsPerSecond);
+      }
+   }
+
+   /** Create a default factory service that starts instances of this service on POST. */
+   public static Service createFactory() {
+      return FactoryService.create(BulkPriceUpdateTaskService.class, BulkPriceUpdateTaskState.class);
+   }
+
+   public BulkPriceUpdateTaskService() {
+      super(BulkPriceUpdateTaskState.class);
+      toggleOption(ServiceOption.PERSISTENCE, true);
+      toggleOption(ServiceOption.INSTRUMENTATION, true);
+   }
+
+   /** Ensure that the input task is valid. */
+   @Override
+   protected BulkPriceUpdateTaskState validateStartPost(Operation taskOperation) {
+      BulkPriceUpdateTaskState task = super.validateStartPost(taskOperation);
+      if (task == null) {
+         return null;
+      }
+
+      String error = null;
+      if (task.subStage != null || task.nextPageLink != null || task.startTimeMicros != null || task.pagesUpdated != null
+            || task.updatedCount != null || task.failedCount != null || task.productsPerSecond != null) {
+         error = "Do not specify subStage, nextPageLink, startTimeMicros or the counts: internal use only";
+      } else if (task.priceMultiplier == null && task.priceDelta == null) {
+         error = "priceMultiplier or priceDelta must be provided";
+      } else if (task.priceMultiplier != null && task.priceMultiplier < 0) {
+         error = "priceMultiplier cannot be negative";
+      } else if (task.batchSize != null && (task.batchSize < 1 || task.batchSize > MAX_BATCH_SIZE)) {
+         error = String.format("batchSize must be between 1 and %d", MAX_BATCH_SIZE);
+      } else if (task.maxConcurrency != null && task.maxConcurrency < 1) {
+         error = "maxConcurrency must be at least 1";
+      } else if (task.pagesPerCheckpoint != null && task.pagesPerCheckpoint < 1) {
+         error = "pagesPerCheckpoint must be at least 1";
+      }
+
+      if (error != null) {
+         taskOperation.fail(new IllegalArgumentException(error));
+         return null;
+      }
+      return task;
+   }
+
+   /** Initialize the task. */
+   @Override
+   protected void initializeState(BulkPriceUpdateTaskState task, Operation taskOperation) {
+      if (task.priceMultiplier == null) {
+         task.priceMultiplier = 1.0;
+      }
+      if (task.priceDelta == null) {
+         task.priceDelta = 0.0;
+      }
+      if (task.batchSize == null) {
+         task.batchSize = DEFAULT_BATCH_SIZE;
+      }
+      if (task.maxConcurrency == null) {
+         task.maxConcurrency = ProductHost.hostArguments.productBatchConcurrency;
+      }
+      if (task.pagesPerCheckpoint == null) {
+         task.pagesPerCheckpoint = DEFAULT_PAGES_PER_CHECKPOINT;
+      }
+      task.subStage = SubStage.QUERYING;
+      task.startTimeMicros = Utils.getNowMicrosUtc();
+      task.pagesUpdated = 0L;
+      task.updatedCount = 0L;
+      task.failedCount = 0L;
+      task.productsPerSecond = 0.0;
+      super.initializeState(task, taskOperation);
+   }
+
+   @Override
+   protected void handleStep(BulkPriceUpdateTaskState task) {
+      switch (task.subStage) {
+      case QUERYING:
+         handleQuerying(task);
+         break;
+      case UPDATING:
+         handleUpdating(task);
+         break;
+      default:
+         logWarning("Unexpected sub stage: %s", task.subStage);
+         break;
+      }
+   }
+
+   /**
+    * Progress is saved with the first page, and then every {@code pagesPerCheckpoint} pages. Querying isn't saved: a
+    * task resumed there would only query again anyway.
+    */
+   @Override
+   protected boolean isCheckpoint(BulkPriceUpdateTaskState task) {
+      return task.subStage == SubStage.UPDATING && task.pagesUpdated % task.pagesPerCheckpoint == 0;
+   }
+
+   @Override
+   protected StepPolicy getStepPolicy(BulkPriceUpdateTaskState task) {
+      return STEP_POLICY;
+   }
+
+   @Override
+   protected String describeStep(BulkPriceUpdateTaskState task) {
+      return task.subStage == SubStage.UPDATING ? "Updating page " + task.nextPageLink : "Querying";
+   }
+
+   /** The page is only kept while {@link SubStage#UPDATING} */
+   @Override
+   protected void updateState(BulkPriceUpdateTaskState currentTask, BulkPriceUpdateTaskState patchBody) {
+      super.updateState(currentTask, patchBody);
+      if (patchBody.subStage != SubStage.UPDATING) {
+         currentTask.nextPageLink = null;
+      }
+   }
+
+   /** Validate that the PATCH we got requests reasonable changes to our state */
+   @Override
+   protected boolean validateTransition(Operation patch, BulkPriceUpdateTaskState currentTask,
+         BulkPriceUpdateTaskState patchBody) {
+      if (!super.validateTransition(patch, currentTask, patchBody)) {
+         return false;
+      }
+
+      if (patchBody.taskInfo.stage == TaskState.TaskStage.STARTED && patchBody.subStage == null) {
+         patch.fail(new IllegalArgumentException("Missing substage"));
+         return false;
+      }
+
+      if (patchBody.subStage == SubStage.UPDATING && patchBody.nextPageLink == null) {
+         patch.fail(new IllegalArgumentException("Cannot update products without a page of them"));
+         return false;
+      }
+
+      return true;
+   }
+
+   /**
+    * <p>Handle SubStage {@link SubStage#QUERYING}.</p>
+    *
+    * <p>
+    * Queries the products still to update, a page of {@code batchSize} at a time. There's nothing left to do if the
+    * query has no first page.
+    * </p>
+    */
+   private void handleQuerying(BulkPriceUpdateTaskState task) {
+      QueryTask.Query.Builder query = QueryTask.Query.Builder.create()
+            .addKindFieldClause(Product.class)
+            .addRangeClause(ServiceDocument.FIELD_NAME_UPDATE_TIME_MICROS,
+                  QueryTask.NumericRange.createLessThanRange(task.startTimeMicros));
+      if (task.query != null) {
+         query.addClause(task.query);
+      }
+      QueryTask queryTask = QueryTask.Builder.createDirectTask()
+            .addOption(QueryTask.QuerySpecification.QueryOption.EXPAND_CONTENT)
+            .setResultLimit(task.batchSize)
+            .setQuery(query.build())
+            .build();
+      // The pages live as long as the query task; once they expire, the task just queries again
+      queryTask.documentExpirationTimeMicros = Utils.getNowMicrosUtc() + TimeUnit.MINUTES.toMicros(PAGE_LIFETIME_MINUTES);
+
+      sendRequest(Operation.createPost(this, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS)
+            .setBody(queryTask)
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  retryStep(task, ex);
+                  return;
+               }
+
+               // A query with a result limit answers with a link to its first page, rather than any results
+               ServiceDocumentQueryResult results = op.getBody(QueryTask.class).results;
+               if (results == null || results.nextPageLink == null) {
+                  advance(task, TaskState.TaskStage.FINISHED, null, null);
+                  return;
+               }
+               advance(task, TaskState.TaskStage.STARTED, SubStage.UPDATING, results.nextPageLink);
+            }));
+   }
+
+   /**
+    * <p>Handle SubStage {@link SubStage#UPDATING}.</p>
+    *
+    * <p>
+    * Updates the products of one page, then moves on to the next page; saving the progress along with its link, if
+    * that's a checkpoint. Pages only live
+    * in the memory of the index; if the page is gone (ie: the task was resumed after a restart), the query starts
+    * over, which only matches the products that are left.
+    * </p>
+    */
+   private void handleUpdating(BulkPriceUpdateTaskState task) {
+      sendRequest(Operation.createGet(this, task.nextPageLink).setCompletion((op, ex) -> {
+         if (ex != null) {
+            logWarning("Could not read page %s (%s); querying again", task.nextPageLink, ex.getMessage());
+            task.nextPageLink = null;
+            advance(task, TaskState.TaskStage.STARTED, SubStage.QUERYING, null);
+            return;
+         }
+
+         ServiceDocumentQueryResult results = op.getBody(QueryTask.class).results;
+         List<Operation> updates = buildUpdates(task, results);
+         String nextPageLink = results != null ? results.nextPageLink : null;
+         if (updates.isEmpty()) {
+            pageDone(task, nextPageLink);
+            return;
+         }
+
+         OperationJoin.create(updates)
+               .setCompletion((ops, failures) -> {
+                  long failed = failures != null ? failures.size() : 0;
+                  if (failed > 0) {
+                     logWarning("%d of %d price updates failed, ie: %s", failed, ops.size(),
+                           failures.values().iterator().next().getMessage());
+                  }
+                  task.updatedCount += ops.size() - failed;
+                  task.failedCount += failed;
+                  pageDone(task, nextPageLink);
+               })
+               .sendWith(this, task.maxConcurrency);
+      }));
+   }
+
+   /**
+    * A price-only {@code PATCH} per product of the page. Each one is conditional on the version that was read, so a
+    * product that changes in the meantime isn't repriced from a stale price.
+    */
+   private List<Operation> buildUpdates(BulkPriceUpdateTaskState task, ServiceDocumentQueryResult results) {
+      List<Operation> updates = new ArrayList<>();
+      if (results == null || results.documents == null) {
+         return updates;
+      }
+
+      for (Object document : results.documents.values()) {
+         Product product = Utils.fromJson(document, Product.class);
+         if (product.price == null) {
+            continue;
+         }
+
+         Product update = new Product();
+         update.price = newPrice(product.price, task.priceMultiplier, task.priceDelta);
+         updates.add(Operation.createPatch(this, product.documentSelfLink)
+               .addRequestHeader(ProductService.IF_MATCH_HEADER, Long.toString(product.documentVersion))
+               .setBody(update));
+      }
+      return updates;
+   }
+
+   static double newPrice(double price, double multiplier, double delta) {
+      double newPrice = Math.round((price * multiplier + delta) * 100) / 100.0;
+      return Math.max(newPrice, 0);
+   }
+
+   /** Counts the page just updated, and moves on to the next page (if any) */
+   private void pageDone(BulkPriceUpdateTaskState task, String nextPageLink) {
+      task.pagesUpdated++;
+      long elapsedMicros = Math.max(Utils.getNowMicrosUtc() - task.startTimeMicros, 1);
+      task.productsPerSecond = task.updatedCount / (elapsedMicros / (double) TimeUnit.SECONDS.toMicros(1));
+      logFine("Page done: [updated=%d] [failed=%d] [productsPerSecond=%.1f]",
+            task.updatedCount, task.failedCount, task.productsPerSecond);
+
+      if (nextPageLink == null) {
+         advance(task, TaskState.TaskStage.FINISHED, null, null);
+         return;
+      }
+      advance(task, TaskState.TaskStage.STARTED, SubStage.UPDATING, nextPageLink);
+   }
+
+   /** Advance to another step in the task workflow: the specified stage and substage. */
+   private void advance(BulkPriceUpdateTaskState task, TaskState.TaskStage stage, SubStage subStage,
+         String nextPageLink) {
+      if (task.taskInfo == null) {
+         task.taskInfo = new TaskState();
+      }
+      task.taskInfo.stage = stage;
+      task.subStage = subStage;
+      task.nextPageLink = nextPageLink;
+      advance(task);
+   }
+}
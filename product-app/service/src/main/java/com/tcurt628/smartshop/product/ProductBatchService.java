@@ -0,0 +1,136 @@
+package com.tcurt628.smartshop.product;
+
+import com.tcurt628.smartshop.product.model.Product;
+import com.tcurt628.smartshop.product.model.ProductBatchResponse;
+import com.tcurt628.smartshop.product.model.ProductBatchResponse.ItemResult;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationJoin;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.Utils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Creates many products with one request. The body is either a JSON array of {@link Product}s, or an NDJSON stream
+ * (one {@code Product} per line, with the {@value #MEDIA_TYPE_APPLICATION_NDJSON} content type). Each product is
+ * validated with the same rules as {@link ProductService}, and the valid ones are POSTed to the {@code /products}
+ * factory with at most {@code productBatchConcurrency} creations in flight. The response is a
+ * {@link ProductBatchResponse} with a result per product, so one bad product doesn't fail the whole batch.
+ */
+public class ProductBatchService extends StatelessService {
+
+   public static final String SELF_LINK = ProductService.FACTORY_LINK + "/batch";
+   public static final String MEDIA_TYPE_APPLICATION_NDJSON = "application/x-ndjson";
+
+   @Override
+   public void handlePost(Operation post) {
+      if (!post.hasBody()) {
+         post.fail(new IllegalArgumentException("Must include non-empty body"));
+         return;
+      }
+
+      List<Product> products;
+      try {
+         products = parseProducts(post);
+      } catch (Exception e) {
+         logWarning("Could not parse product batch: %s", e.getMessage());
+         post.fail(new IllegalArgumentException("Body must be a JSON array or NDJSON stream of products", e));
+         return;
+      }
+      if (products.isEmpty()) {
+         post.fail(new IllegalArgumentException("Batch must contain at least one product"));
+         return;
+      }
+
+      ProductBatchResponse response = new ProductBatchResponse();
+      Map<Long, ItemResult> resultsByOperationId = new HashMap<>();
+      List<Operation> creates = new ArrayList<>(products.size());
+      for (int index = 0; index < products.size(); index++) {
+         ItemResult result = new ItemResult();
+         result.index = index;
+         response.results.add(result);
+
+         Product product = products.get(index);
+         try {
+            if (product == null) {
+               throw new IllegalArgumentException("Unparseable product");
+            }
+            ProductService.validateProduct(product);
+         } catch (IllegalArgumentException e) {
+            result.statusCode = Operation.STATUS_CODE_BAD_REQUEST;
+            result.failureMessage = e.getMessage();
+            response.failedCount++;
+            continue;
+         }
+
+         Operation create = Operation.createPost(this, ProductService.FACTORY_LINK).setBody(product);
+         resultsByOperationId.put(create.getId(), result);
+         creates.add(create);
+      }
+
+      // The response is always JSON, even when the request was NDJSON
+      post.setContentType(Operation.MEDIA_TYPE_APPLICATION_JSON);
+      if (creates.isEmpty()) {
+         post.setBody(response).complete();
+         return;
+      }
+
+      logInfo("Creating %d products (%d invalid) with [concurrency=%d]", creates.size(), response.failedCount,
+            ProductHost.hostArguments.productBatchConcurrency);
+      OperationJoin.create(creates)
+            .setCompletion((ops, failures) -> {
+               for (Operation create : ops.values()) {
+                  ItemResult result = resultsByOperationId.get(create.getId());
+                  result.statusCode = create.getStatusCode();
+                  Throwable failure = failures != null ? failures.get(create.getId()) : null;
+                  if (failure != null) {
+                     result.failureMessage = failure.getMessage();
+                     response.failedCount++;
+                  } else {
+                     result.documentSelfLink = create.getBody(Product.class).documentSelfLink;
+                     response.createdCount++;
+                  }
+               }
+               logInfo("Batch done: [created=%d] [failed=%d]", response.createdCount, response.failedCount);
+               post.setBody(response).complete();
+            })
+            .sendWith(this, ProductHost.hostArguments.productBatchConcurrency);
+   }
+
+   /**
+    * Parses the body into products. With NDJSON, a line that can't be parsed becomes a {@code null} entry so it gets
+    * its own failed result; a JSON array is all-or-nothing.
+    */
+   private List<Product> parseProducts(Operation post) {
+      Object body = post.getBodyRaw();
+      String text = body instanceof byte[] ? new String((byte[]) body, StandardCharsets.UTF_8)
+            : body instanceof String ? (String) body : null;
+
+      if (text == null) {
+         // Sent from within this process, so the body is still an object
+         return Arrays.asList(post.getBody(Product[].class));
+      }
+
+      if (text.trim().startsWith("[")) {
+         return Arrays.asList(Utils.fromJson(text, Product[].class));
+      }
+
+      List<Product> products = new ArrayList<>();
+      for (String line : text.split("\n")) {
+         if (line.trim().isEmpty()) {
+            continue;
+         }
+         try {
+            products.add(Utils.fromJson(line, Product.class));
+         } catch (Exception e) {
+            products.add(null);
+         }
+      }
+      return products;
+   }
+}
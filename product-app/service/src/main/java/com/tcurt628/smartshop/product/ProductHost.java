@@ -1,35 +1,32 @@
 package com.tcurt628.smartshop.product;
 
+import com.tcurt628.smartshop.common.bootstrap.ClusterBootstrap;
+import com.tcurt628.smartshop.common.bootstrap.Readiness;
+import com.tcurt628.smartshop.common.bootstrap.ReadinessService;
+import com.tcurt628.smartshop.common.host.HostProfile;
+import com.tcurt628.smartshop.common.logging.LoggingMode;
+import com.tcurt628.smartshop.common.logging.SmartShopLogging;
+import com.tcurt628.smartshop.common.metrics.MetricsHost;
+import com.tcurt628.smartshop.common.metrics.MetricsRegistry;
+import com.tcurt628.smartshop.common.metrics.MetricsService;
+import com.tcurt628.smartshop.common.serialization.CompactDocumentSerializer;
+import com.tcurt628.smartshop.dns.DnsEndpoints;
+import com.tcurt628.smartshop.dns.DnsRegistration;
+import com.tcurt628.smartshop.product.model.Product;
 import com.vmware.xenon.common.CommandLineArgumentParser;
-import com.vmware.xenon.common.NodeSelectorService;
-import com.vmware.xenon.common.NodeSelectorState;
 import com.vmware.xenon.common.Operation;
-import com.vmware.xenon.common.OperationJoin;
-import com.vmware.xenon.common.OperationSequence;
-import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.UriUtils;
-import com.vmware.xenon.dns.services.DNSFactoryService;
-import com.vmware.xenon.services.common.ConsistentHashingNodeSelectorService;
-import com.vmware.xenon.services.common.NodeGroupFactoryService;
-import com.vmware.xenon.services.common.NodeGroupService;
 import com.vmware.xenon.services.common.RootNamespaceService;
 import com.vmware.xenon.services.common.ServiceUriPaths;
 
-import java.net.URI;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 /**
  * Our entry point, spawning a host that run/showcase examples we can play with.
  */
-public class ProductHost extends ServiceHost {
+public class ProductHost extends ServiceHost implements MetricsHost {
 
    private static final String PRODUCT_NODE_GROUP_NAME = "product";
    private static final String PRODUCT_NODE_SELECTOR_NAME = "product";
@@ -37,25 +34,59 @@ public class ProductHost extends ServiceHost {
    public static final String PRODUCT_NODE_GROUP_URI = ServiceUriPaths.NODE_GROUP_FACTORY + "/" + PRODUCT_NODE_GROUP_NAME;
    public static final String PRODUCT_NODE_SELECTOR_URI = ServiceUriPaths.NODE_SELECTOR_PREFIX + "/" + PRODUCT_NODE_SELECTOR_NAME;
 
-   /** The key to the map is the node selector URI; and the value is the node group URI */
-   private static Map<String, String> NODE_GROUP_TO_SELECTORS_MAP = new HashMap<>();
-   static {
-      NODE_GROUP_TO_SELECTORS_MAP.put(PRODUCT_NODE_SELECTOR_URI, PRODUCT_NODE_GROUP_URI);
-   }
-
    public static class Arguments {
       public String dnshost;
       public int dnsport;
+
+      /**
+       * The other nodes of the DNS cluster, as {@code http://host:port}; a registration that fails on one node is retried
+       * on the next
+       */
+      public String[] dnsNodes;
+
+      /**
+       * How long this host stays registered with DNS without a heartbeat; once a host dies, it's routed to for no longer
+       * than this
+       */
+      public int dnsLeaseSeconds = 10;
+
+      /** How often this host renews its DNS registration; less than {@code dnsLeaseSeconds} */
+      public int dnsHeartbeatSeconds = 3;
+
       public int initialNodes = 1;
+
+      /** Max number of product creations a single {@code /products/batch} request keeps in flight */
+      public int productBatchConcurrency = 64;
+
+      /** The timeouts, pools, cache and logging settings the host runs with; see {@link HostProfile} */
+      public HostProfile hostProfile = HostProfile.DEV;
+
+      /**
+       * {@code DEBUG} logs every request at {@code FINE}; {@code PRODUCTION} only logs {@code INFO} and up, off-thread.
+       * Defaults to the one of {@code hostProfile}.
+       */
+      public LoggingMode loggingMode;
+
+      /** Max lines a second each service class may log below {@code SEVERE}, in {@code PRODUCTION} logging mode */
+      public int logRecordsPerSecond = 100;
+
+      /**
+       * Persists products in a compact binary form, rather than Xenon's. The ones persisted in either form are still
+       * read, so a host can be switched back and forth; the JSON at the REST API is the same either way. It's set for
+       * the JVM, not the host: every product host started in one JVM (ie: the nodes of a test) uses the last one's.
+       */
+      public boolean compactDocuments = false;
    }
 
    public static Arguments hostArguments = new Arguments();
 
+   private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+   private ClusterBootstrap bootstrap;
+
    public static void main(String[] args) throws Throwable {
       CommandLineArgumentParser.parse(hostArguments, args);
       ProductHost h = new ProductHost();
       h.initialize(args);
-      h.toggleDebuggingMode(true);
       h.start();
       Runtime.getRuntime().addShutdownHook(new Thread(() -> {
          h.log(Level.WARNING, "Host stopping ...");
@@ -67,7 +98,14 @@ public class ProductHost extends ServiceHost {
    /** Start services: a host can run multiple services. */
    @Override
    public ServiceHost start() throws Throwable {
+      bootstrap = new ClusterBootstrap(this, hostArguments.initialNodes)
+            .addNodeSelector(PRODUCT_NODE_SELECTOR_URI, PRODUCT_NODE_GROUP_URI);
+      // Before the index is started, so that no document is persisted in the other form first
+      CompactDocumentSerializer.setEnabled(Product.class, hostArguments.compactDocuments);
       super.start();
+      hostArguments.hostProfile.applyTo(this);
+      SmartShopLogging.configure(this, hostArguments.hostProfile.resolveLoggingMode(hostArguments.loggingMode),
+            hostArguments.logRecordsPerSecond);
 
       // Start core services (logging, gossiping)-- must be done once
       startDefaultCoreServicesSynchronously();
@@ -80,111 +118,58 @@ public class ProductHost extends ServiceHost {
 
       this.log(Level.FINE, "Default core services started!");
 
-      // Create custom node groups and selectors
-      createNodeGroupsAndSelectors(NODE_GROUP_TO_SELECTORS_MAP);
+      // Serve the latency metrics our services record, at /metrics
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, MetricsService.SELF_LINK)),
+            new MetricsService(metricsRegistry));
 
-      // start our service
+      // Serve how far the start up got, at /readiness
       super.startService(
-            Operation.createPost(UriUtils.buildFactoryUri(this, ProductService.class)),
-            ProductService.createFactory());
+            Operation.createPost(UriUtils.buildUri(this, ReadinessService.SELF_LINK)),
+            new ReadinessService(bootstrap));
 
-      // Regiser our service with DNS
-      registerWithDNS();
+      // Create custom node groups and selectors; our services replicate through the selector, so they start after it
+      bootstrap.start(this::startProductServices);
       return this;
    }
 
+   private void startProductServices() {
+      // start our service
+      super.startService(
+            Operation.createPost(UriUtils.buildFactoryUri(this, ProductService.class)),
+            ProductService.createFactory());
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, ProductBatchService.class)),
+            new ProductBatchService());
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, BulkPriceUpdateTaskService.FACTORY_LINK)),
+            BulkPriceUpdateTaskService.createFactory());
 
-   private void registerWithDNS() {
-      URI dnsHost = UriUtils.buildUri(hostArguments.dnshost, hostArguments.dnsport, null, null);
-
-      Operation.CompletionHandler completionHandler = (o, e) -> {
-         assert (e == null);
-         this.log(Level.INFO, "Successfully registered with DNS at " + dnsHost);
-      };
-
-      this.sendRequest(DNSFactoryService.createPost(dnsHost
-            ,this,
-            ProductService.FACTORY_LINK,
-            ProductService.class.getSimpleName(),
-            null,
-            ProductService.FACTORY_LINK + "/available",
-            1L).setCompletion(completionHandler));
+      // Regiser our service with DNS, once it can be called
+      bootstrap.awaitAvailable("product services", this::registerWithDNS,
+            ProductService.FACTORY_LINK, ProductBatchService.SELF_LINK, BulkPriceUpdateTaskService.FACTORY_LINK);
    }
 
-   //
-   // TODO Extract all code below here to the base ServiceHost class.
-   //
-   private void createNodeGroupsAndSelectors(Map<String, String> nodeSelectorToNodeGroupMap) throws Throwable {
-      if (nodeSelectorToNodeGroupMap == null || nodeSelectorToNodeGroupMap.size() == 0) {
-         throw new IllegalArgumentException("Must provide a map with at least one node group to node selector entry");
-      }
-
-      Set<String> nodeGroupUris = new HashSet<>(nodeSelectorToNodeGroupMap.values());
-      log(Level.INFO, "Creating node groups: %s", nodeGroupUris);
-
-      Collection<Operation> createNodeGroups = new ArrayList<>(nodeGroupUris.size());
-      Collection<Operation> patchQuorums = new ArrayList<>(nodeGroupUris.size());
-      List<Operation> createNodeSelectors = new ArrayList<>(nodeSelectorToNodeGroupMap.size());
-      List<Service> createNodeSelectorServices = new ArrayList<>(nodeSelectorToNodeGroupMap.size());
-      for (String nodeGroupSelector : nodeSelectorToNodeGroupMap.keySet()) {
-         String nodeGroup = nodeSelectorToNodeGroupMap.get(nodeGroupSelector);
-         Operation postNewNodeGroup = createNewNodeGroupOperation(nodeGroup);
-         createNodeGroups.add(postNewNodeGroup);
-
-         Operation patchUpdateQuorum = createQuorumRequestOperation(nodeGroup);
-         patchQuorums.add(patchUpdateQuorum);
-
-         NodeSelectorService nodeSelectorService = new ConsistentHashingNodeSelectorService();
-         NodeSelectorState nodeSelectorState = new NodeSelectorState();
-         nodeSelectorState.nodeGroupLink = nodeGroup;
-
-         Operation postNodeSelector = Operation.createPost(
-               UriUtils.buildUri(this, nodeGroupSelector))
-               .setReferer(UriUtils.buildUri(this, ""));
-         postNodeSelector.setBody(nodeSelectorState);
-         createNodeSelectors.add(postNodeSelector);
-         createNodeSelectorServices.add(nodeSelectorService);
-      }
-
-      OperationJoin nodeGroupOperations = OperationJoin.create(createNodeGroups);
-      OperationJoin quorumOperations = OperationJoin.create(patchQuorums);
-
-      OperationSequence.create(nodeGroupOperations, quorumOperations)
-            .setCompletion( (ops,failures) -> {
-               if (failures != null && !failures.isEmpty()) {
-                  log(Level.SEVERE, "Error when creating node groups/selectors: %s. [ops.values=%s] [failures.values=%s]",
-                        nodeGroupUris, ops.values(), failures.values());
-                  throw new IllegalStateException("Error when creating node groups/selectors", failures.values().iterator().next());
-               }
-
-               log(Level.INFO, "Successfully created node-groups: %s", nodeGroupUris);
-               log(Level.FINE, "Completed %d operations: %s", ops.size(), ops.values());
-               for (int ndx=0; ndx < createNodeSelectors.size(); ndx++) {
-                  Operation nodeSelectorPost = createNodeSelectors.get(ndx);
-                  Service nodeSelectorService = createNodeSelectorServices.get(ndx);
-                  startService(nodeSelectorPost, nodeSelectorService);
-                  log(Level.FINE, "Started [nodeSelector=%s]", nodeSelectorPost.getUri());
-               }
-            })
-            .sendWith(this);
-      this.log(Level.FINE, "Sent requests to create node groups: %s", nodeGroupUris);
+   /** How far the start up of this host got; served at {@link ReadinessService#SELF_LINK} */
+   public Readiness getReadiness() {
+      return bootstrap.getReadiness();
    }
 
-   private Operation createNewNodeGroupOperation(String nodeGroup) {
-      Operation postNewNodeGroup = NodeGroupFactoryService
-            .createNodeGroupPostOp(this, nodeGroup)
-            .setReferer(getUri());
-      return postNewNodeGroup;
+   /** Where {@link ProductService} records its latencies; served at {@link MetricsService#SELF_LINK} */
+   @Override
+   public MetricsRegistry getMetricsRegistry() {
+      return metricsRegistry;
    }
 
-   private Operation createQuorumRequestOperation(String nodeGroup) {
-      NodeGroupService.UpdateQuorumRequest quorumRequest = NodeGroupService.UpdateQuorumRequest.create(true);
-      quorumRequest.setMembershipQuorum(hostArguments.initialNodes);
-      URI nodeGroupUri = UriUtils.buildUri(this, nodeGroup);
-      Operation patchUpdateQuorum = Operation.createPatch(nodeGroupUri)
-            .setBody(quorumRequest)
-            .setReferer(getUri());
-      return patchUpdateQuorum;
+   private void registerWithDNS() {
+      DnsEndpoints dnsEndpoints = DnsEndpoints.of(hostArguments.dnshost, hostArguments.dnsport, hostArguments.dnsNodes);
+      DnsRegistration registration = new DnsRegistration(this, dnsEndpoints,
+            ProductService.FACTORY_LINK,
+            ProductService.class.getSimpleName(),
+            ProductService.FACTORY_LINK + "/available",
+            TimeUnit.SECONDS.toMicros(hostArguments.dnsLeaseSeconds),
+            TimeUnit.SECONDS.toMicros(hostArguments.dnsHeartbeatSeconds));
+      bootstrap.runWithRetry("registration with DNS at " + dnsEndpoints, registration::register,
+            bootstrap::serving);
    }
-
 }
@@ -1,24 +1,30 @@
 package com.tcurt628.smartshop.product;
 
+import com.tcurt628.smartshop.common.metrics.MeteredStatefulService;
+import com.tcurt628.smartshop.common.metrics.OperationStage;
 import com.tcurt628.smartshop.product.model.Product;
 import com.vmware.xenon.common.FactoryService;
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Service;
-import com.vmware.xenon.common.StatefulService;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.Utils;
 import org.apache.commons.lang3.StringUtils;
 
-import java.util.logging.Level;
-import java.util.logging.Logger;
-
-public class ProductService extends StatefulService {
+public class ProductService extends MeteredStatefulService {
 
    public static final String FACTORY_LINK = "/products";
 
-   /** Not crazy about this, but it works for now I guess... */
-   private static Logger logger = Logger.getLogger(ProductService.class.getName());
-   static {
-      logger.setLevel(Level.FINE);
-   }
+   /**
+    * Makes a {@code PUT} or {@code PATCH} conditional: it's only applied if the product is still at the
+    * {@code documentVersion} this header holds, and fails with {@code 409} otherwise. Every update of a product is
+    * handled by its owner node (whichever node it's sent to), one at a time, so of two updates that expect the same
+    * version only one is applied, cluster wide.
+    */
+   public static final String IF_MATCH_HEADER = "if-match";
+
+   /** Which {@code Product} fields a {@code PATCH} merges; built once, rather than for every request */
+   private static final ServiceDocumentDescription PRODUCT_DESCRIPTION =
+         ServiceDocumentDescription.Builder.create().buildDescription(Product.class);
 
    /** Create a default factory service that starts instances of this service on POST. */
    public static Service createFactory() {
@@ -26,9 +32,11 @@ public class ProductService extends StatefulService {
    }
 
    public ProductService() {
-      super(Product.class);
+      super(Product.class, FACTORY_LINK);
       super.toggleOption(ServiceOption.PERSISTENCE, true);
       super.toggleOption(ServiceOption.REPLICATION, true);
+      // Updates are forwarded to the owner and applied there in order, so the if-match check holds across nodes
+      super.toggleOption(ServiceOption.OWNER_SELECTION, true);
       super.setPeerNodeSelectorPath(ProductHost.PRODUCT_NODE_SELECTOR_URI);
    }
 
@@ -49,30 +57,110 @@ public class ProductService extends StatefulService {
          throw new IllegalArgumentException("Must include non-empty body");
       }
 
+      long parseStart = System.nanoTime();
       Product state = post.getBody(Product.class);
+      getMetrics().record(post.getAction(), OperationStage.PARSE, parseStart);
+
       logFine("Validating product: %s", state);
+      long validationStart = System.nanoTime();
+      validateProduct(state);
+      getMetrics().record(post.getAction(), OperationStage.VALIDATION, validationStart);
+      logFine("Product valid: %s", state);
+   }
+
+   /** The rules every {@code Product} has to pass, however it is created. Throws if {@code state} is invalid. */
+   static void validateProduct(Product state) {
       if (StringUtils.isEmpty(state.name)) {
          throw new IllegalArgumentException("Name cannot be empty");
       }
 
+      if (state.price == null) {
+         throw new IllegalArgumentException("Price must be provided");
+      }
+
       if (state.price < 0) {
          throw new IllegalArgumentException("Price cannot be negative");
       }
-
-      logInfo("Product valid: %s", state);
    }
 
    @Override
    public void handlePut(Operation put) {
       Product currentState = getState(put);
+      if (!checkVersion(put, currentState)) {
+         return;
+      }
       validateState(put);
 
       // replace current state, with the body of the request, in one step
-      setState(put, currentState);
-
       Product body = put.getBody(Product.class);
+      setState(put, body);
       put.setBody(body);
-      put.complete();
+      completeUpdate(put);
       logFine("handlePut() completed successfully. [put=%s]", put);
    }
+
+   /**
+    * Merges the fields the body sets (non-null) into the current state, so an update only needs to send what changed;
+    * a price change can be just {@code {"price": 9.99}}.
+    */
+   @Override
+   public void handlePatch(Operation patch) {
+      Product currentState = getState(patch);
+      if (!checkVersion(patch, currentState)) {
+         return;
+      }
+      if (!patch.hasBody()) {
+         patch.fail(new IllegalArgumentException("Must include non-empty body"));
+         return;
+      }
+
+      long parseStart = System.nanoTime();
+      Product body = patch.getBody(Product.class);
+      getMetrics().record(Action.PATCH, OperationStage.PARSE, parseStart);
+
+      // merge into a copy, so a PATCH that fails validation leaves the current state untouched
+      long validationStart = System.nanoTime();
+      Product newState = Utils.clone(currentState);
+      Utils.mergeWithState(PRODUCT_DESCRIPTION, newState, body);
+      try {
+         validateProduct(newState);
+      } catch (Exception e) {
+         logWarning("Error during PATCH. [patch=%s] [error=%s]", patch, e);
+         patch.fail(e);
+         return;
+      }
+      getMetrics().record(Action.PATCH, OperationStage.VALIDATION, validationStart);
+
+      setState(patch, newState);
+      patch.setBody(newState);
+      completeUpdate(patch);
+      logFine("handlePatch() completed successfully. [patch=%s]", patch);
+   }
+
+   /**
+    * Fails {@code update} with {@code 409} if it has an {@link #IF_MATCH_HEADER} other than the current
+    * {@code documentVersion}. Replicated updates aren't checked: the owner handled the original one, and checked it.
+    */
+   private boolean checkVersion(Operation update, Product currentState) {
+      String expectedVersion = update.getRequestHeader(IF_MATCH_HEADER);
+      if (expectedVersion == null || update.isFromReplication()) {
+         return true;
+      }
+
+      long version;
+      try {
+         version = Long.parseLong(expectedVersion.trim());
+      } catch (NumberFormatException e) {
+         update.fail(new IllegalArgumentException(IF_MATCH_HEADER + " must be a documentVersion: " + expectedVersion));
+         return false;
+      }
+
+      if (version != currentState.documentVersion) {
+         update.setStatusCode(Operation.STATUS_CODE_CONFLICT);
+         update.fail(new IllegalStateException(String.format("%s is at version %d, not %d",
+               getSelfLink(), currentState.documentVersion, version)));
+         return false;
+      }
+      return true;
+   }
 }
@@ -0,0 +1,178 @@
+package com.tcurt628.smartshop.product;
+
+import com.tcurt628.smartshop.product.model.Product;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.UriUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** {@code PUT} and {@code PATCH} of a product on a {@link ProductHost}, with and without an {@code if-match} header */
+public class ProductServiceUpdateTest {
+
+   private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+   @Rule
+   public TemporaryFolder sandbox = new TemporaryFolder();
+
+   private ProductHost host;
+   private String productLink;
+
+   @Before
+   public void setUp() throws Throwable {
+      // No DNS to register with: the host retries in the background, and serves products meanwhile
+      ProductHost.hostArguments.dnshost = "127.0.0.1";
+      ProductHost.hostArguments.dnsport = 1;
+      host = new ProductHost();
+      host.initialize(new String[] {
+            "--port=0",
+            "--sandbox=" + sandbox.getRoot().getAbsolutePath()
+      });
+      host.start();
+      waitFor(() -> host.checkServiceAvailable(ProductService.FACTORY_LINK));
+
+      productLink = send(Operation.createPost(UriUtils.buildUri(host, ProductService.FACTORY_LINK))
+            .setBody(product("Widget", "A widget", 19.99))).getBody(Product.class).documentSelfLink;
+   }
+
+   @After
+   public void tearDown() {
+      if (host != null) {
+         host.stop();
+      }
+      ProductHost.hostArguments = new ProductHost.Arguments();
+   }
+
+   @Test
+   public void testPatchMergesTheFieldsItSets() throws Exception {
+      Product price = new Product();
+      price.price = 9.99;
+      send(Operation.createPatch(UriUtils.buildUri(host, productLink)).setBody(price));
+
+      Product patched = get();
+      assertEquals("Widget", patched.name);
+      assertEquals("A widget", patched.description);
+      assertEquals(9.99, patched.price, 0);
+   }
+
+   @Test
+   public void testPatchThatLeavesAnInvalidProductFails() throws Exception {
+      Product negative = new Product();
+      negative.price = -1.0;
+      assertEquals(Operation.STATUS_CODE_BAD_REQUEST,
+            statusCodeOf(Operation.createPatch(UriUtils.buildUri(host, productLink)).setBody(negative)));
+
+      Product unchanged = get();
+      assertEquals(19.99, unchanged.price, 0);
+      assertEquals(0, unchanged.documentVersion);
+   }
+
+   @Test
+   public void testPutStoresTheBody() throws Exception {
+      send(Operation.createPut(UriUtils.buildUri(host, productLink)).setBody(product("Gadget", null, 5.0)));
+
+      Product replaced = get();
+      assertEquals("Gadget", replaced.name);
+      assertNull(replaced.description);
+      assertEquals(5.0, replaced.price, 0);
+   }
+
+   @Test
+   public void testIfMatchOfTheCurrentVersionIsApplied() throws Exception {
+      Product price = new Product();
+      price.price = 9.99;
+      send(Operation.createPatch(UriUtils.buildUri(host, productLink))
+            .addRequestHeader(ProductService.IF_MATCH_HEADER, Long.toString(get().documentVersion))
+            .setBody(price));
+      assertEquals(9.99, get().price, 0);
+   }
+
+   @Test
+   public void testIfMatchOfAnotherVersionConflicts() throws Exception {
+      long version = get().documentVersion;
+      Product price = new Product();
+      price.price = 9.99;
+      send(Operation.createPatch(UriUtils.buildUri(host, productLink)).setBody(price));
+
+      // Both a PATCH and a PUT that expect the version before that one
+      Product stale = new Product();
+      stale.price = 1.0;
+      assertEquals(Operation.STATUS_CODE_CONFLICT,
+            statusCodeOf(Operation.createPatch(UriUtils.buildUri(host, productLink))
+                  .addRequestHeader(ProductService.IF_MATCH_HEADER, Long.toString(version))
+                  .setBody(stale)));
+      assertEquals(Operation.STATUS_CODE_CONFLICT,
+            statusCodeOf(Operation.createPut(UriUtils.buildUri(host, productLink))
+                  .addRequestHeader(ProductService.IF_MATCH_HEADER, Long.toString(version))
+                  .setBody(product("Widget", null, 1.0))));
+      assertEquals(9.99, get().price, 0);
+   }
+
+   @Test
+   public void testIfMatchThatIsNoVersionFails() throws Exception {
+      Product price = new Product();
+      price.price = 1.0;
+      assertEquals(Operation.STATUS_CODE_BAD_REQUEST,
+            statusCodeOf(Operation.createPatch(UriUtils.buildUri(host, productLink))
+                  .addRequestHeader(ProductService.IF_MATCH_HEADER, "latest")
+                  .setBody(price)));
+      assertEquals(19.99, get().price, 0);
+   }
+
+   private static Product product(String name, String description, double price) {
+      Product product = new Product();
+      product.name = name;
+      product.description = description;
+      product.price = price;
+      return product;
+   }
+
+   private Product get() throws Exception {
+      return send(Operation.createGet(UriUtils.buildUri(host, productLink))).getBody(Product.class);
+   }
+
+   /** The status code {@code op} completed with, failed or not */
+   private int statusCodeOf(Operation op) throws Exception {
+      CompletableFuture<Integer> done = new CompletableFuture<>();
+      host.sendRequest(op
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> done.complete(o.getStatusCode())));
+      return done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private Operation send(Operation op) throws Exception {
+      CompletableFuture<Operation> done = new CompletableFuture<>();
+      host.sendRequest(op
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  done.completeExceptionally(e);
+                  return;
+               }
+               done.complete(o);
+            }));
+      return done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private interface Condition {
+      boolean isMet() throws Throwable;
+   }
+
+   private static void waitFor(Condition condition) throws Throwable {
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+      while (!condition.isMet()) {
+         if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Timed out");
+         }
+         Thread.sleep(100);
+      }
+   }
+}
@@ -0,0 +1,89 @@
+package com.tcurt628.smartshop.product.model;
+
+import com.tcurt628.smartshop.common.serialization.CompactDocumentSerializer;
+import com.vmware.xenon.common.Utils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ProductSerializerTest {
+
+   @After
+   public void tearDown() {
+      CompactDocumentSerializer.setEnabled(Product.class, false);
+   }
+
+   /** A field that {@link ProductSerializer} doesn't write would be lost on every save, in the compact form */
+   @Test
+   public void testSerializerWritesEveryField() {
+      assertEquals("A field of Product changed: write (and read) it in ProductSerializer, then set it in newProduct()",
+            new TreeSet<>(Arrays.asList("name", "description", "price")), declaredFields(Product.class));
+   }
+
+   @Test
+   public void testRoundTripWithEveryFieldSet() {
+      for (boolean compact : new boolean[] { false, true }) {
+         CompactDocumentSerializer.setEnabled(Product.class, compact);
+         assertEquals(Utils.toJson(newProduct()), Utils.toJson(roundTrip(newProduct())));
+      }
+   }
+
+   @Test
+   public void testRoundTripWithNoFieldSet() {
+      CompactDocumentSerializer.setEnabled(Product.class, true);
+      assertEquals(Utils.toJson(new Product()), Utils.toJson(roundTrip(new Product())));
+   }
+
+   @Test
+   public void testCompactFormIsSmaller() {
+      int xenonSize = toBytes(newProduct()).length;
+      CompactDocumentSerializer.setEnabled(Product.class, true);
+      int compactSize = toBytes(newProduct()).length;
+      assertTrue("compact: " + compactSize + " bytes, Xenon: " + xenonSize, compactSize < xenonSize);
+   }
+
+   private static Product newProduct() {
+      Product product = new Product();
+      product.documentKind = Utils.buildKind(Product.class);
+      product.documentSelfLink = "/products/ffebe3b1-31f0-4046-aea4-e8919bc87ce3";
+      product.documentVersion = 12;
+      product.documentEpoch = 3L;
+      product.documentUpdateTimeMicros = 1476800000000000L;
+      product.documentUpdateAction = "PATCH";
+      product.documentExpirationTimeMicros = 1476900000000000L;
+      product.documentOwner = "productHost1";
+      product.documentSourceLink = "/products/source";
+      product.documentAuthPrincipalLink = "/core/authz/users/admin";
+      product.documentTransactionId = "tx-1";
+      product.name = "Widget";
+      product.description = "A widget, for the tests";
+      product.price = 19.99;
+      return product;
+   }
+
+   private static Product roundTrip(Product product) {
+      byte[] bytes = toBytes(product);
+      return (Product) Utils.fromDocumentBytes(bytes, 0, bytes.length);
+   }
+
+   private static byte[] toBytes(Product product) {
+      byte[] buffer = new byte[4096];
+      return Arrays.copyOf(buffer, Utils.toBytes(product, buffer, 0));
+   }
+
+   private static Set<String> declaredFields(Class<?> type) {
+      return Arrays.stream(type.getDeclaredFields())
+            .filter(field -> !Modifier.isStatic(field.getModifiers()))
+            .map(Field::getName)
+            .collect(Collectors.toCollection(TreeSet::new));
+   }
+}
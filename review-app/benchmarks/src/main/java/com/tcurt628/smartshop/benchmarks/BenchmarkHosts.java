@@ -0,0 +1,198 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.common.bootstrap.Readiness;
+import com.tcurt628.smartshop.common.host.HostProfile;
+import com.tcurt628.smartshop.product.ProductHost;
+import com.tcurt628.smartshop.product.ProductService;
+import com.tcurt628.smartshop.product.model.Product;
+import com.tcurt628.smartshop.review.ReviewHost;
+import com.tcurt628.smartshop.review.ReviewService;
+import com.tcurt628.smartshop.review.model.Review;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.Handler;
+import java.util.logging.Logger;
+
+/**
+ * The hosts a benchmark runs against, all in this JVM: a {@link StubDnsHost}, a {@link ProductHost} that registers
+ * with it, and (optionally) a {@link ReviewHost} that finds the product host through it and joins its {@code product}
+ * node group, just like the real deployment. Requests are sent over HTTP (see {@link #send}) from a separate client
+ * host, so serialization and the network stack are part of every measurement.
+ */
+public class BenchmarkHosts {
+
+   private static final long STARTUP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+   private static final long REQUEST_TIMEOUT_SECONDS = 60;
+
+   private final Path sandbox;
+   private final ServiceHost client;
+   private final StubDnsHost dnsHost;
+   private final ProductHost productHost;
+   private ReviewHost reviewHost;
+
+   /** Starts the hosts with the {@link HostProfile#PERF} profile */
+   public static BenchmarkHosts start(boolean withReviewHost) throws Throwable {
+      return start(withReviewHost, HostProfile.PERF);
+   }
+
+   /**
+    * Starts the hosts with {@code profile}. The rest of {@code ProductHost.hostArguments} and
+    * {@code ReviewHost.hostArguments} should be set up before this is called; only their DNS address is overwritten
+    * here.
+    */
+   public static BenchmarkHosts start(boolean withReviewHost, HostProfile profile) throws Throwable {
+      ProductHost.hostArguments.hostProfile = profile;
+      ReviewHost.hostArguments.hostProfile = profile;
+      return new BenchmarkHosts(withReviewHost);
+   }
+
+   /**
+    * Stops logging to the console, leaving the hosts' log file. Call it before starting the hosts of a benchmark that
+    * logs a lot (ie: in {@code DEBUG} mode), so that its output stays readable.
+    */
+   public static void logToFileOnly() {
+      Logger rootLogger = Logger.getLogger("");
+      for (Handler handler : rootLogger.getHandlers()) {
+         if (handler instanceof ConsoleHandler) {
+            rootLogger.removeHandler(handler);
+         }
+      }
+   }
+
+   private BenchmarkHosts(boolean withReviewHost) throws Throwable {
+      sandbox = Files.createTempDirectory("smartshop-benchmarks");
+
+      client = new ServiceHost() {
+      };
+      client.initialize(hostArgs("client"));
+      client.start();
+
+      dnsHost = new StubDnsHost();
+      dnsHost.initialize(hostArgs("dnsHost"));
+      dnsHost.start();
+
+      ProductHost.hostArguments.dnshost = dnsHost.getUri().getHost();
+      ProductHost.hostArguments.dnsport = dnsHost.getPort();
+      productHost = new ProductHost();
+      productHost.initialize(hostArgs("productHost"));
+      productHost.start();
+      waitFor("product host to be serving", () -> productHost.getReadiness().status == Readiness.Status.SERVING);
+
+      if (withReviewHost) {
+         ReviewHost.hostArguments.dnshost = dnsHost.getUri().getHost();
+         ReviewHost.hostArguments.dnsport = dnsHost.getPort();
+         reviewHost = new ReviewHost();
+         reviewHost.initialize(hostArgs("reviewHost"));
+         reviewHost.start();
+         waitForReviewHostToJoinProducts();
+      }
+   }
+
+   /** The command line of a host with id {@code id}, on a free port, with its own sandbox */
+   String[] hostArgs(String id) {
+      return new String[] {
+            "--port=0",
+            "--id=" + id,
+            "--sandbox=" + sandbox.resolve(id)
+      };
+   }
+
+   /**
+    * The review host joins the {@code product} node group from a task, after DNS has told it where the product host
+    * is. It's ready once a review for a freshly created product can be validated.
+    */
+   private void waitForReviewHostToJoinProducts() throws Throwable {
+      Product product = new Product();
+      product.name = "warmup";
+      product.price = 1.0;
+      String productLink = send(Operation.createPost(UriUtils.buildUri(productHost, ProductService.FACTORY_LINK))
+            .setBody(product)).getBody(Product.class).documentSelfLink;
+
+      Review review = new Review();
+      review.productLink = productLink;
+      review.content = "warmup";
+      review.stars = 5;
+      waitFor("review host to join the product node group", () -> {
+         try {
+            send(Operation.createPost(UriUtils.buildUri(reviewHost, ReviewService.FACTORY_LINK)).setBody(review));
+            return true;
+         } catch (Exception e) {
+            return false;
+         }
+      });
+   }
+
+   private interface Condition {
+      boolean isMet() throws Throwable;
+   }
+
+   private static void waitFor(String what, Condition condition) throws Throwable {
+      long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT_MILLIS;
+      while (!condition.isMet()) {
+         if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Timed out waiting for " + what);
+         }
+         Thread.sleep(250);
+      }
+   }
+
+   /** Sends {@code op} over HTTP from the client host, and waits for it to complete. Failures are thrown. */
+   public Operation send(Operation op) throws Exception {
+      CompletableFuture<Operation> done = new CompletableFuture<>();
+      op.forceRemote()
+            .setReferer(client.getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  done.completeExceptionally(e);
+                  return;
+               }
+               done.complete(o);
+            });
+      client.sendRequest(op);
+      return done.get(REQUEST_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+   }
+
+   public ServiceHost getClient() {
+      return client;
+   }
+
+   public StubDnsHost getDnsHost() {
+      return dnsHost;
+   }
+
+   public ProductHost getProductHost() {
+      return productHost;
+   }
+
+   public ReviewHost getReviewHost() {
+      return reviewHost;
+   }
+
+   public void stop() {
+      client.stop();
+      if (reviewHost != null) {
+         reviewHost.stop();
+      }
+      productHost.stop();
+      dnsHost.stop();
+      deleteRecursively(sandbox.toFile());
+   }
+
+   private static void deleteRecursively(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            deleteRecursively(child);
+         }
+      }
+      file.delete();
+   }
+}
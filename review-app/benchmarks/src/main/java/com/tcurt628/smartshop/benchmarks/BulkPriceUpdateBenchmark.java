@@ -0,0 +1,140 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.product.BulkPriceUpdateTaskService;
+import com.tcurt628.smartshop.product.BulkPriceUpdateTaskService.BulkPriceUpdateTaskState;
+import com.tcurt628.smartshop.product.ProductBatchService;
+import com.tcurt628.smartshop.product.ProductHost;
+import com.tcurt628.smartshop.product.model.Product;
+import com.tcurt628.smartshop.product.model.ProductBatchResponse;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationJoin;
+import com.vmware.xenon.common.TaskState;
+import com.vmware.xenon.common.UriUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to take 1% off the price of all {@code productCount} products: with one
+ * {@link BulkPriceUpdateTaskService} task, or with a {@code GET} and a {@code PUT} per product sent by the client (with
+ * as many requests in flight as the task allows itself, so both sides get the same concurrency).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class BulkPriceUpdateBenchmark {
+
+   private static final double PRICE_MULTIPLIER = 0.99;
+
+   @Param({"10000"})
+   public int productCount;
+
+   @Param({"task", "client"})
+   public String reprice;
+
+   private BenchmarkHosts hosts;
+   private List<String> productLinks;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      hosts = BenchmarkHosts.start(false);
+      productLinks = new ArrayList<>(productCount);
+      for (int from = 0; from < productCount; from += ProductBatchBenchmark.BATCH_SIZE) {
+         Product[] batch = new Product[Math.min(ProductBatchBenchmark.BATCH_SIZE, productCount - from)];
+         for (int i = 0; i < batch.length; i++) {
+            batch[i] = ProductServiceBenchmark.newProduct();
+         }
+         ProductBatchResponse response = hosts.send(Operation.createPost(
+               UriUtils.buildUri(hosts.getProductHost(), ProductBatchService.SELF_LINK)).setBody(batch))
+               .getBody(ProductBatchResponse.class);
+         for (ProductBatchResponse.ItemResult result : response.results) {
+            productLinks.add(result.documentSelfLink);
+         }
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      hosts.stop();
+   }
+
+   @Benchmark
+   public long repriceProducts() throws Exception {
+      return "task".equals(reprice) ? repriceWithTask() : repriceFromClient();
+   }
+
+   private long repriceWithTask() throws Exception {
+      BulkPriceUpdateTaskState task = new BulkPriceUpdateTaskState();
+      task.priceMultiplier = PRICE_MULTIPLIER;
+      String taskLink = hosts.send(Operation.createPost(
+            UriUtils.buildUri(hosts.getProductHost(), BulkPriceUpdateTaskService.FACTORY_LINK)).setBody(task))
+            .getBody(BulkPriceUpdateTaskState.class).documentSelfLink;
+
+      while (true) {
+         task = hosts.send(Operation.createGet(UriUtils.buildUri(hosts.getProductHost(), taskLink)))
+               .getBody(BulkPriceUpdateTaskState.class);
+         if (task.taskInfo.stage == TaskState.TaskStage.FINISHED) {
+            return task.updatedCount;
+         }
+         if (task.taskInfo.stage != TaskState.TaskStage.STARTED) {
+            throw new IllegalStateException("Bulk price update failed: " + task.failureMessage);
+         }
+         Thread.sleep(20);
+      }
+   }
+
+   private long repriceFromClient() throws Exception {
+      List<Operation> gets = new ArrayList<>(productLinks.size());
+      for (String link : productLinks) {
+         gets.add(clientOperation(Operation.createGet(productUri(link))));
+      }
+      List<Operation> puts = new ArrayList<>(productLinks.size());
+      for (Operation get : sendAll(gets)) {
+         Product product = get.getBody(Product.class);
+         product.price = Math.round(product.price * PRICE_MULTIPLIER * 100) / 100.0;
+         puts.add(clientOperation(Operation.createPut(productUri(product.documentSelfLink)).setBody(product)));
+      }
+      return sendAll(puts).size();
+   }
+
+   private URI productUri(String link) {
+      return UriUtils.buildUri(hosts.getProductHost(), link);
+   }
+
+   private Operation clientOperation(Operation op) {
+      return op.setReferer(hosts.getClient().getUri()).forceRemote();
+   }
+
+   private List<Operation> sendAll(List<Operation> ops) throws Exception {
+      CompletableFuture<List<Operation>> done = new CompletableFuture<>();
+      OperationJoin.create(ops)
+            .setCompletion((completed, failures) -> {
+               if (failures != null) {
+                  done.completeExceptionally(failures.values().iterator().next());
+                  return;
+               }
+               done.complete(new ArrayList<>(completed.values()));
+            })
+            .sendWith(hosts.getClient(), ProductHost.hostArguments.productBatchConcurrency);
+      return done.get(30, TimeUnit.MINUTES);
+   }
+}
@@ -0,0 +1,91 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.common.bootstrap.Readiness;
+import com.tcurt628.smartshop.product.ProductHost;
+import com.tcurt628.smartshop.review.ReviewHost;
+import com.vmware.xenon.common.ServiceHost;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * The time from starting a {@link ProductHost} or {@link ReviewHost} until its {@code /readiness} says it's serving:
+ * its node groups and selectors are up, its services are available and registered with DNS. Every invocation starts
+ * (and then stops) a new host, with an empty sandbox, next to the hosts of {@link BenchmarkHosts}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ColdStartBenchmark {
+
+   private static final long POLL_MICROS = 500;
+
+   @Param({"product", "review"})
+   public String host;
+
+   private BenchmarkHosts hosts;
+   private ServiceHost started;
+   private int starts;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      hosts = BenchmarkHosts.start(false);
+      ReviewHost.hostArguments.dnshost = hosts.getDnsHost().getUri().getHost();
+      ReviewHost.hostArguments.dnsport = hosts.getDnsHost().getPort();
+   }
+
+   @TearDown(Level.Invocation)
+   public void stopHost() {
+      if (started != null) {
+         started.stop();
+         started = null;
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      hosts.stop();
+   }
+
+   @Benchmark
+   public long startUntilServing() throws Throwable {
+      String id = host + "Host-" + starts++;
+      Supplier<Readiness> readiness;
+      if ("product".equals(host)) {
+         ProductHost productHost = new ProductHost();
+         started = productHost;
+         readiness = productHost::getReadiness;
+      } else {
+         ReviewHost reviewHost = new ReviewHost();
+         started = reviewHost;
+         readiness = reviewHost::getReadiness;
+      }
+      started.initialize(hosts.hostArgs(id));
+      started.start();
+
+      Readiness current;
+      while ((current = readiness.get()).status == Readiness.Status.STARTING) {
+         TimeUnit.MICROSECONDS.sleep(POLL_MICROS);
+      }
+      if (current.status == Readiness.Status.FAILED) {
+         throw new IllegalStateException("Host failed to start: " + current.failure);
+      }
+      return current.coldStartMillis;
+   }
+}
@@ -0,0 +1,70 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.dns.SmartShopDnsQueries;
+import com.tcurt628.smartshop.product.ProductService;
+import com.vmware.xenon.common.Operation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and throughput of a DNS-routed call: {@link SmartShopDnsQueries} resolving {@code /products} and then
+ * GETting the product host's health link. With {@code dnsCacheTtlSeconds} of 0, every call asks DNS first.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(8)
+@Fork(1)
+public class DnsLookupBenchmark {
+
+   private static final String PRODUCTS_FILTER = String.format("$filter=serviceLink eq '%s'", ProductService.FACTORY_LINK);
+   private static final String PRODUCTS_HEALTH_LINK = ProductService.FACTORY_LINK + "/available";
+
+   @Param({"0", "30"})
+   public int dnsCacheTtlSeconds;
+
+   private BenchmarkHosts hosts;
+   private SmartShopDnsQueries dnsQueries;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      hosts = BenchmarkHosts.start(false);
+      dnsQueries = new SmartShopDnsQueries(hosts.getDnsHost().getUri().getHost(), hosts.getDnsHost().getPort(),
+            TimeUnit.SECONDS.toMicros(dnsCacheTtlSeconds), TimeUnit.SECONDS.toMicros(dnsCacheTtlSeconds));
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      hosts.stop();
+   }
+
+   @Benchmark
+   public Operation queryDns() throws Exception {
+      CompletableFuture<Operation> done = new CompletableFuture<>();
+      dnsQueries.queryDns(PRODUCTS_FILTER, PRODUCTS_HEALTH_LINK, hosts.getClient(), (o, e) -> {
+         if (e != null) {
+            done.completeExceptionally(e);
+            return;
+         }
+         done.complete(o);
+      });
+      return done.get(60, TimeUnit.SECONDS);
+   }
+}
@@ -0,0 +1,173 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.common.host.HostProfile;
+import com.tcurt628.smartshop.dns.DnsHost;
+import com.tcurt628.smartshop.dns.DnsResolution;
+import com.tcurt628.smartshop.dns.DnsResolveService;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.dns.services.DNSFactoryService;
+import com.vmware.xenon.dns.services.DNSService.DNSServiceState;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and throughput of resolving a service on a real {@link DnsHost}, with 1000 clients at once: the OData query
+ * of the DNS records ({@code /core/dns/query}, a document index query per lookup) against the in-memory index of
+ * {@link DnsResolveService}. The host has {@value #SERVICES} services registered, by {@value #NODES_PER_SERVICE} nodes
+ * each; every lookup is for a random one of them.
+ * <p>
+ * The client gets a connection per benchmark thread, so all 1000 lookups really are in flight at once. A lookup that
+ * fails (ie: times out once DNS falls behind) is counted rather than ending the run; the counts are printed at the end.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(DnsResolveBenchmark.CLIENTS)
+@Fork(1)
+public class DnsResolveBenchmark {
+
+   static final int CLIENTS = 1000;
+   static final int SERVICES = 100;
+   static final int NODES_PER_SERVICE = 3;
+
+   private static final long TIMEOUT_SECONDS = 60;
+
+   private Path sandbox;
+   private ServiceHost client;
+   private DnsHost dnsHost;
+   private final AtomicLong odataQueryFailures = new AtomicLong();
+   private final AtomicLong resolveFailures = new AtomicLong();
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      sandbox = Files.createTempDirectory("smartshop-dns-benchmark");
+      client = new ServiceHost() {
+      };
+      client.initialize(new String[] { "--port=0", "--id=client", "--sandbox=" + sandbox.resolve("client") });
+      client.start();
+      client.getClient().setConnectionLimitPerHost(CLIENTS);
+
+      DnsHost.hostArguments.hostProfile = HostProfile.PERF;
+      dnsHost = new DnsHost();
+      dnsHost.initialize(new String[] { "--port=0", "--id=dnsHost", "--sandbox=" + sandbox.resolve("dnsHost") });
+      dnsHost.start();
+
+      for (int service = 0; service < SERVICES; service++) {
+         for (int node = 0; node < NODES_PER_SERVICE; node++) {
+            DNSServiceState record = new DNSServiceState();
+            record.documentSelfLink = String.format("service-%d-node-%d", service, node);
+            record.serviceLink = serviceLink(service);
+            record.serviceName = "BenchmarkService";
+            record.healthCheckLink = record.serviceLink + "/available";
+            record.nodeReferences = new HashSet<>(Collections.singletonList(
+                  URI.create(String.format("http://10.0.%d.%d:8000", service, node))));
+            send(Operation.createPost(UriUtils.buildUri(dnsHost, DNSFactoryService.SELF_LINK)).setBody(record));
+         }
+      }
+
+      // The index is updated by notifications, so it may lag the POSTs a little
+      long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS);
+      while (dnsHost.getRecordIndex().size() < SERVICES * NODES_PER_SERVICE) {
+         if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Timed out waiting for the DNS record index");
+         }
+         Thread.sleep(100);
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      System.out.printf("%nFailed lookups: [odataQuery=%d] [resolve=%d]%n", odataQueryFailures.get(), resolveFailures.get());
+      client.stop();
+      dnsHost.stop();
+      deleteRecursively(sandbox.toFile());
+   }
+
+   @Benchmark
+   public ServiceDocumentQueryResult odataQuery() throws Exception {
+      String filter = String.format("$filter=serviceLink eq '%s'", randomServiceLink());
+      Operation op = sendCountingFailures(
+            Operation.createGet(UriUtils.buildUri(dnsHost, ServiceUriPaths.DNS + "/query", filter)), odataQueryFailures);
+      return op != null ? op.getBody(ServiceDocumentQueryResult.class) : null;
+   }
+
+   @Benchmark
+   public DnsResolution resolve() throws Exception {
+      String query = "serviceLink=" + randomServiceLink();
+      Operation op = sendCountingFailures(
+            Operation.createGet(UriUtils.buildUri(dnsHost, DnsResolveService.SELF_LINK, query)), resolveFailures);
+      return op != null ? op.getBody(DnsResolution.class) : null;
+   }
+
+   private static String randomServiceLink() {
+      return serviceLink(ThreadLocalRandom.current().nextInt(SERVICES));
+   }
+
+   private static String serviceLink(int service) {
+      return "/services/" + service;
+   }
+
+   private Operation sendCountingFailures(Operation op, AtomicLong failures) throws InterruptedException {
+      try {
+         return send(op);
+      } catch (ExecutionException | TimeoutException e) {
+         failures.incrementAndGet();
+         return null;
+      }
+   }
+
+   private Operation send(Operation op) throws InterruptedException, ExecutionException, TimeoutException {
+      CompletableFuture<Operation> done = new CompletableFuture<>();
+      op.forceRemote()
+            .setReferer(client.getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  done.completeExceptionally(e);
+                  return;
+               }
+               done.complete(o);
+            });
+      client.sendRequest(op);
+      return done.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+   }
+
+   private static void deleteRecursively(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            deleteRecursively(child);
+         }
+      }
+      file.delete();
+   }
+}
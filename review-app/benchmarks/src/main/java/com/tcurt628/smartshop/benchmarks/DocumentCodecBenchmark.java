@@ -0,0 +1,121 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.common.serialization.CompactDocumentSerializer;
+import com.tcurt628.smartshop.product.model.Product;
+import com.tcurt628.smartshop.review.model.Review;
+import com.vmware.xenon.common.Service.Action;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encoding and decoding one product or review, as stored: as the JSON of the REST API (and of replication), as Xenon
+ * persists it, and as it's persisted with {@code --compactDocuments} (see {@link CompactDocumentSerializer}). The
+ * size of the document in each form is printed before the run.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(1)
+@Fork(1)
+public class DocumentCodecBenchmark {
+
+   public enum Codec {
+      JSON, XENON_KRYO, COMPACT_KRYO
+   }
+
+   public enum Document {
+      PRODUCT, REVIEW
+   }
+
+   @Param({"JSON", "XENON_KRYO", "COMPACT_KRYO"})
+   public Codec codec;
+
+   @Param({"PRODUCT", "REVIEW"})
+   public Document document;
+
+   private ServiceDocument state;
+   private Class<? extends ServiceDocument> type;
+   private final byte[] buffer = new byte[64 * 1024];
+   private String json;
+   private int length;
+
+   @Setup(Level.Trial)
+   public void setUp() {
+      state = document == Document.PRODUCT ? newProduct() : newReview();
+      type = state.getClass();
+      CompactDocumentSerializer.setEnabled(type, codec == Codec.COMPACT_KRYO);
+      json = Utils.toJson(state);
+      length = Utils.toBytes(state, buffer, 0);
+      int size = codec == Codec.JSON ? json.getBytes(StandardCharsets.UTF_8).length : length;
+      System.out.printf("%n%s as %s: %d bytes%n", document, codec, size);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      CompactDocumentSerializer.setEnabled(type, false);
+   }
+
+   @Benchmark
+   public Object encode() {
+      if (codec == Codec.JSON) {
+         return Utils.toJson(state).getBytes(StandardCharsets.UTF_8);
+      }
+      return Utils.toBytes(state, buffer, 0);
+   }
+
+   @Benchmark
+   public Object decode() {
+      if (codec == Codec.JSON) {
+         return Utils.fromJson(json, type);
+      }
+      return Utils.fromDocumentBytes(buffer, 0, length);
+   }
+
+   private static Product newProduct() {
+      Product product = ProductServiceBenchmark.newProduct();
+      setStoredFields(product, "/products/");
+      return product;
+   }
+
+   private static Review newReview() {
+      Review review = new Review();
+      review.productLink = "/products/" + UUID.randomUUID();
+      review.author = "Benchmark author";
+      review.content = "A review created by the benchmarks";
+      review.stars = 4;
+      setStoredFields(review, "/reviews/");
+      return review;
+   }
+
+   /** The fields the index has on every version of a document */
+   private static void setStoredFields(ServiceDocument state, String factoryLinkPrefix) {
+      state.documentSelfLink = factoryLinkPrefix + UUID.randomUUID();
+      state.documentKind = Utils.buildKind(state.getClass());
+      state.documentVersion = 3;
+      state.documentEpoch = 0L;
+      state.documentUpdateTimeMicros = Utils.getNowMicrosUtc();
+      state.documentUpdateAction = Action.PATCH.name();
+      state.documentOwner = UUID.randomUUID().toString();
+      state.documentAuthPrincipalLink = "/core/authz/system-user";
+   }
+}
@@ -0,0 +1,96 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.common.host.HostProfile;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code POST /reviews} (as in {@link ReviewServiceBenchmark}, without the product existence cache, so every review
+ * goes through both product lookups) from 32 clients, with the hosts' executors at each size. Nothing blocks a host
+ * thread while a review's product is looked up, so the throughput shouldn't depend on how many threads there are.
+ * <p>
+ * Xenon sizes its executors from the number of cores the JVM sees ({@code Utils.DEFAULT_THREAD_COUNT}, at least 4),
+ * once per JVM; so each size needs a fork of its own, run with {@code -XX:ActiveProcessorCount}. {@link #main} runs one
+ * fork per size (4, 8 and 16 threads, unless others are given) and prints the throughput of each; see the
+ * {@code jmhExecutorSize} gradle task. Run on its own (ie: by the {@code jmh} task), it measures the machine's size.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(32)
+@Fork(1)
+public class ExecutorSizeBenchmark {
+
+   private static final String[] DEFAULT_THREAD_COUNTS = {"4", "8", "16"};
+
+   private final ReviewServiceBenchmark reviews = new ReviewServiceBenchmark();
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      System.out.printf("%nHost executors: %d threads%n", Utils.DEFAULT_THREAD_COUNT);
+      BenchmarkHosts.logToFileOnly();
+      reviews.productCacheTtlSeconds = 0;
+      reviews.setUp(HostProfile.PERF);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      reviews.tearDown();
+   }
+
+   @Benchmark
+   public Operation createReview() throws Exception {
+      return reviews.createReview();
+   }
+
+   /**
+    * Runs the benchmark once per executor size in {@code args}, and writes the results of each to
+    * {@code build/reports/jmh/executor-size-<threads>.json}.
+    */
+   public static void main(String[] args) throws Exception {
+      String[] threadCounts = args.length > 0 ? args : DEFAULT_THREAD_COUNTS;
+      new File("build/reports/jmh").mkdirs();
+
+      Map<String, Double> throughputByThreads = new LinkedHashMap<>();
+      for (String threads : threadCounts) {
+         Options options = new OptionsBuilder()
+               .include(ExecutorSizeBenchmark.class.getSimpleName())
+               .jvmArgsAppend("-XX:ActiveProcessorCount=" + threads)
+               .resultFormat(ResultFormatType.JSON)
+               .result("build/reports/jmh/executor-size-" + threads + ".json")
+               .build();
+         for (RunResult result : new Runner(options).run()) {
+            throughputByThreads.put(threads, result.getPrimaryResult().getScore());
+         }
+      }
+
+      System.out.printf("%nPOST /reviews by executor size:%n");
+      throughputByThreads.forEach((threads, score) ->
+            System.out.printf("  %3s threads: %10.3f ops/ms%n", threads, score));
+   }
+}
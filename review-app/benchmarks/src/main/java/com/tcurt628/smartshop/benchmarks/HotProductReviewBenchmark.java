@@ -0,0 +1,67 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.common.host.HostProfile;
+import com.tcurt628.smartshop.common.metrics.ServiceMetrics;
+import com.tcurt628.smartshop.review.ReviewService;
+import com.vmware.xenon.common.Operation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code POST /reviews} from many clients at once (as in {@link ReviewServiceBenchmark}, without the product existence
+ * cache), all reviewing one product that went viral, or spread over 100. Reviews of the same product validated at the
+ * same time share their product lookups; how many lookups were started, and how many were shared instead, is printed
+ * once the trial is done.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(32)
+@Fork(1)
+public class HotProductReviewBenchmark {
+
+   @Param({"1", "100"})
+   public int products;
+
+   private final ReviewServiceBenchmark reviews = new ReviewServiceBenchmark();
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      BenchmarkHosts.logToFileOnly();
+      reviews.productCacheTtlSeconds = 0;
+      reviews.existingProducts = products;
+      reviews.setUp(HostProfile.PERF);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      ServiceMetrics metrics = reviews.getHosts().getReviewHost().getMetricsRegistry()
+            .getServiceMetrics(ReviewService.FACTORY_LINK);
+      long started = metrics.getEventCount(ReviewService.PRODUCT_LOOKUP_STARTED_EVENT);
+      long coalesced = metrics.getEventCount(ReviewService.PRODUCT_LOOKUP_COALESCED_EVENT);
+      System.out.printf("%nProduct lookups: %d started, %d coalesced (%.1f%% of reviews looked up)%n",
+            started, coalesced, 100.0 * started / Math.max(started + coalesced, 1));
+      reviews.tearDown();
+   }
+
+   @Benchmark
+   public Operation createReview() throws Exception {
+      return reviews.createReview();
+   }
+}
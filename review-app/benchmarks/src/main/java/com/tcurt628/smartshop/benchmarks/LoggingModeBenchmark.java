@@ -0,0 +1,70 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.common.logging.LoggingMode;
+import com.tcurt628.smartshop.product.ProductHost;
+import com.tcurt628.smartshop.review.ReviewHost;
+import com.vmware.xenon.common.Operation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code POST /reviews} (as in {@link ReviewServiceBenchmark}, without the product existence cache) with the hosts in
+ * each {@link LoggingMode}. Logs go to the hosts' log file only, the console is left out. Run it with {@code -prof gc}
+ * to also compare the bytes allocated per request ({@code gc.alloc.rate.norm}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(8)
+@Fork(1)
+public class LoggingModeBenchmark {
+
+   @Param({"DEBUG", "PRODUCTION"})
+   public LoggingMode loggingMode;
+
+   private final ReviewServiceBenchmark reviews = new ReviewServiceBenchmark();
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      // Before the hosts start, since PRODUCTION mode moves the handlers behind an AsyncLogHandler
+      BenchmarkHosts.logToFileOnly();
+
+      ProductHost.hostArguments.loggingMode = loggingMode;
+      ReviewHost.hostArguments.loggingMode = loggingMode;
+      reviews.productCacheTtlSeconds = 0;
+      reviews.setUp();
+      if (loggingMode == LoggingMode.DEBUG) {
+         // As the DEV profile does; the PERF profile of BenchmarkHosts set the handlers to INFO
+         reviews.getHosts().getProductHost().setLoggingLevel(java.util.logging.Level.FINE);
+         reviews.getHosts().getReviewHost().setLoggingLevel(java.util.logging.Level.FINE);
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      reviews.tearDown();
+      ProductHost.hostArguments.loggingMode = null;
+      ReviewHost.hostArguments.loggingMode = null;
+   }
+
+   @Benchmark
+   public Operation createReview() throws Exception {
+      return reviews.createReview();
+   }
+}
@@ -0,0 +1,110 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.product.ProductBatchService;
+import com.tcurt628.smartshop.product.ProductHost;
+import com.tcurt628.smartshop.product.ProductService;
+import com.tcurt628.smartshop.product.model.Product;
+import com.tcurt628.smartshop.product.model.ProductBatchResponse;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationJoin;
+import com.vmware.xenon.common.UriUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long it takes to import {@code productCount} products: with {@code /products/batch} requests of
+ * {@value #BATCH_SIZE} products each, or with one {@code POST /products} per product (with as many requests in flight
+ * as the batch service allows itself, so both sides get the same concurrency).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(1)
+public class ProductBatchBenchmark {
+
+   static final int BATCH_SIZE = 1000;
+
+   @Param({"10000", "100000"})
+   public int productCount;
+
+   @Param({"batch", "single"})
+   public String ingest;
+
+   private BenchmarkHosts hosts;
+   private Product[] products;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      hosts = BenchmarkHosts.start(false);
+   }
+
+   @Setup(Level.Iteration)
+   public void createProducts() {
+      products = new Product[productCount];
+      for (int i = 0; i < productCount; i++) {
+         products[i] = ProductServiceBenchmark.newProduct();
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      hosts.stop();
+   }
+
+   @Benchmark
+   public int importProducts() throws Exception {
+      return "batch".equals(ingest) ? importWithBatches() : importWithSinglePosts();
+   }
+
+   private int importWithBatches() throws Exception {
+      int created = 0;
+      for (int from = 0; from < products.length; from += BATCH_SIZE) {
+         Product[] batch = Arrays.copyOfRange(products, from, Math.min(from + BATCH_SIZE, products.length));
+         Operation post = Operation.createPost(UriUtils.buildUri(hosts.getProductHost(), ProductBatchService.SELF_LINK))
+               .setBody(batch);
+         created += hosts.send(post).getBody(ProductBatchResponse.class).createdCount;
+      }
+      return created;
+   }
+
+   private int importWithSinglePosts() throws Exception {
+      List<Operation> posts = new ArrayList<>(products.length);
+      for (Product product : products) {
+         posts.add(Operation.createPost(UriUtils.buildUri(hosts.getProductHost(), ProductService.FACTORY_LINK))
+               .setBody(product)
+               .setReferer(hosts.getClient().getUri())
+               .forceRemote());
+      }
+
+      CompletableFuture<Integer> done = new CompletableFuture<>();
+      OperationJoin.create(posts)
+            .setCompletion((ops, failures) -> {
+               if (failures != null) {
+                  done.completeExceptionally(failures.values().iterator().next());
+                  return;
+               }
+               done.complete(ops.size());
+            })
+            .sendWith(hosts.getClient(), ProductHost.hostArguments.productBatchConcurrency);
+      return done.get(30, TimeUnit.MINUTES);
+   }
+}
@@ -0,0 +1,126 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.product.ProductService;
+import com.tcurt628.smartshop.product.model.Product;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A price change sent as a full {@code PUT} against the same change sent as a {@code PATCH} of just the price, with
+ * and without the {@code if-match} version check.
+ * <p>
+ * The request sizes are printed once the hosts are up. Replication isn't any smaller: a replicated update carries the
+ * whole resulting state, whichever action made it, so what a {@code PATCH} saves is the bytes sent to the product
+ * host and the parsing of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(8)
+@Fork(1)
+public class ProductPatchBenchmark {
+
+   /** Products the updates are spread over */
+   private static final int EXISTING_PRODUCTS = 1000;
+
+   private BenchmarkHosts hosts;
+   private List<Product> products;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      hosts = BenchmarkHosts.start(false);
+      products = new ArrayList<>(EXISTING_PRODUCTS);
+      for (int i = 0; i < EXISTING_PRODUCTS; i++) {
+         products.add(hosts.send(Operation.createPost(UriUtils.buildUri(hosts.getProductHost(), ProductService.FACTORY_LINK))
+               .setBody(ProductServiceBenchmark.newProduct())).getBody(Product.class));
+      }
+
+      Product product = products.get(0);
+      System.out.printf("%nPUT body: %d bytes, PATCH body: %d bytes, replicated state: %d bytes%n",
+            jsonBytes(priceChangePut(product)), jsonBytes(priceChangePatch()), jsonBytes(product));
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      hosts.stop();
+   }
+
+   @Benchmark
+   public Operation putPrice() throws Exception {
+      Product product = randomProduct();
+      return hosts.send(Operation.createPut(UriUtils.buildUri(hosts.getProductHost(), product.documentSelfLink))
+            .setBody(priceChangePut(product)));
+   }
+
+   @Benchmark
+   public Operation patchPrice() throws Exception {
+      Product product = randomProduct();
+      return hosts.send(Operation.createPatch(UriUtils.buildUri(hosts.getProductHost(), product.documentSelfLink))
+            .setBody(priceChangePatch()));
+   }
+
+   /** Reads the version, then patches the price only if nothing else changed it in between */
+   @Benchmark
+   public Operation conditionalPatchPrice() throws Exception {
+      Product product = randomProduct();
+      URI productUri = UriUtils.buildUri(hosts.getProductHost(), product.documentSelfLink);
+      Product current = hosts.send(Operation.createGet(productUri)).getBody(Product.class);
+      try {
+         return hosts.send(Operation.createPatch(productUri)
+               .addRequestHeader(ProductService.IF_MATCH_HEADER, Long.toString(current.documentVersion))
+               .setBody(priceChangePatch()));
+      } catch (Exception e) {
+         // another thread updated the product since our GET; that's a conflict the pipeline would retry, not an error
+         return null;
+      }
+   }
+
+   private Product randomProduct() {
+      return products.get(ThreadLocalRandom.current().nextInt(products.size()));
+   }
+
+   private static Product priceChangePut(Product product) {
+      Product body = new Product();
+      body.name = product.name;
+      body.description = product.description;
+      body.price = newPrice();
+      return body;
+   }
+
+   private static Product priceChangePatch() {
+      Product body = new Product();
+      body.price = newPrice();
+      return body;
+   }
+
+   private static double newPrice() {
+      return 1 + ThreadLocalRandom.current().nextInt(10000) / 100.0;
+   }
+
+   private static int jsonBytes(Object body) {
+      return Utils.toJson(body).getBytes(StandardCharsets.UTF_8).length;
+   }
+}
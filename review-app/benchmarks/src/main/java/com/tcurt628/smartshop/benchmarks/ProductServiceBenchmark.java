@@ -0,0 +1,86 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.product.ProductService;
+import com.tcurt628.smartshop.product.model.Product;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.UriUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and throughput of the {@code /products} CRUD calls against a single {@code ProductHost}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(8)
+@Fork(1)
+public class ProductServiceBenchmark {
+
+   /** Products that GETs and PUTs are spread over */
+   private static final int EXISTING_PRODUCTS = 1000;
+
+   private BenchmarkHosts hosts;
+   private List<String> productLinks;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      hosts = BenchmarkHosts.start(false);
+      productLinks = new ArrayList<>(EXISTING_PRODUCTS);
+      for (int i = 0; i < EXISTING_PRODUCTS; i++) {
+         productLinks.add(postProduct().getBody(Product.class).documentSelfLink);
+      }
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      hosts.stop();
+   }
+
+   @Benchmark
+   public Operation postProduct() throws Exception {
+      return hosts.send(Operation.createPost(UriUtils.buildUri(hosts.getProductHost(), ProductService.FACTORY_LINK))
+            .setBody(newProduct()));
+   }
+
+   @Benchmark
+   public Operation getProduct() throws Exception {
+      return hosts.send(Operation.createGet(UriUtils.buildUri(hosts.getProductHost(), randomProductLink())));
+   }
+
+   @Benchmark
+   public Operation putProduct() throws Exception {
+      return hosts.send(Operation.createPut(UriUtils.buildUri(hosts.getProductHost(), randomProductLink()))
+            .setBody(newProduct()));
+   }
+
+   private String randomProductLink() {
+      return productLinks.get(ThreadLocalRandom.current().nextInt(productLinks.size()));
+   }
+
+   static Product newProduct() {
+      Product product = new Product();
+      product.name = "Benchmark product " + ThreadLocalRandom.current().nextInt();
+      product.description = "A product created by the benchmarks";
+      product.price = 1 + ThreadLocalRandom.current().nextInt(10000) / 100.0;
+      return product;
+   }
+}
@@ -0,0 +1,61 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.common.host.HostProfile;
+import com.tcurt628.smartshop.review.ProductValidation;
+import com.tcurt628.smartshop.review.ReviewHost;
+import com.vmware.xenon.common.Operation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@code POST /reviews} (as in {@link ReviewServiceBenchmark}, without the product existence cache, so every review's
+ * product is checked) with each {@link ProductValidation} strategy. With {@code ASYNC}, the check still happens, but
+ * after the review is created.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(8)
+@Fork(1)
+public class ProductValidationBenchmark {
+
+   @Param({"BOTH", "NODE_SELECTOR", "DNS", "RACE", "ASYNC"})
+   public ProductValidation productValidation;
+
+   private final ReviewServiceBenchmark reviews = new ReviewServiceBenchmark();
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      BenchmarkHosts.logToFileOnly();
+      ReviewHost.hostArguments.productValidation = productValidation;
+      reviews.productCacheTtlSeconds = 0;
+      reviews.setUp(HostProfile.PERF);
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      reviews.tearDown();
+      ReviewHost.hostArguments.productValidation = ProductValidation.BOTH;
+   }
+
+   @Benchmark
+   public Operation createReview() throws Exception {
+      return reviews.createReview();
+   }
+}
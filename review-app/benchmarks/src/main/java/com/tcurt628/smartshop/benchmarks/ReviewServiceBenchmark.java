@@ -0,0 +1,91 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.common.host.HostProfile;
+import com.tcurt628.smartshop.product.ProductService;
+import com.tcurt628.smartshop.product.model.Product;
+import com.tcurt628.smartshop.review.ReviewHost;
+import com.tcurt628.smartshop.review.ReviewService;
+import com.tcurt628.smartshop.review.model.Review;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.UriUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency and throughput of {@code POST /reviews}, including the validation of its {@code productLink} against the
+ * product host (through the {@code product} node selector and through DNS). With {@code productCacheTtlSeconds} of 0,
+ * the product existence cache never hits, so every review pays for both remote lookups.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 10)
+@Threads(8)
+@Fork(1)
+public class ReviewServiceBenchmark {
+
+   /** Products the reviews are spread over */
+   int existingProducts = 100;
+
+   @Param({"0", "300"})
+   public int productCacheTtlSeconds;
+
+   private BenchmarkHosts hosts;
+   private List<String> productLinks;
+
+   @Setup(Level.Trial)
+   public void setUp() throws Throwable {
+      setUp(HostProfile.PERF);
+   }
+
+   void setUp(HostProfile profile) throws Throwable {
+      ReviewHost.hostArguments.productCacheTtlSeconds = productCacheTtlSeconds;
+      hosts = BenchmarkHosts.start(true, profile);
+
+      productLinks = new ArrayList<>(existingProducts);
+      for (int i = 0; i < existingProducts; i++) {
+         Operation post = Operation.createPost(UriUtils.buildUri(hosts.getProductHost(), ProductService.FACTORY_LINK))
+               .setBody(ProductServiceBenchmark.newProduct());
+         productLinks.add(hosts.send(post).getBody(Product.class).documentSelfLink);
+      }
+   }
+
+   BenchmarkHosts getHosts() {
+      return hosts;
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      hosts.stop();
+   }
+
+   @Benchmark
+   public Operation createReview() throws Exception {
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      Review review = new Review();
+      review.productLink = productLinks.get(random.nextInt(productLinks.size()));
+      review.author = "benchmark";
+      review.content = "A review created by the benchmarks";
+      review.stars = ReviewService.MIN_STAR + random.nextInt(ReviewService.MAX_STAR);
+      return hosts.send(Operation.createPost(UriUtils.buildUri(hosts.getReviewHost(), ReviewService.FACTORY_LINK))
+            .setBody(review));
+   }
+}
@@ -0,0 +1,106 @@
+package com.tcurt628.smartshop.benchmarks;
+
+import com.tcurt628.smartshop.dns.DnsLease;
+import com.tcurt628.smartshop.dns.DnsLeaseService;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.dns.services.DNSFactoryService;
+import com.vmware.xenon.dns.services.DNSService.DNSServiceState;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A stand-in for {@code dns-service}, just good enough for the benchmarks: it takes the registrations that
+ * {@code ProductHost} and {@code ReviewHost} POST on startup, and answers {@code serviceLink eq '...'} queries from
+ * them. Keeping it in memory means DNS itself doesn't skew the numbers of what we're measuring.
+ * <p>
+ * The hosts also create and renew the {@link DnsLease} of their registrations; those are kept, but never lapse.
+ */
+public class StubDnsHost extends ServiceHost {
+
+   private static final Pattern SERVICE_LINK_FILTER = Pattern.compile("serviceLink eq '([^']*)'");
+
+   /** The key to the map is the registered serviceLink; the value is its record, with every node that registered it */
+   private final ConcurrentMap<String, DNSServiceState> records = new ConcurrentHashMap<>();
+
+   @Override
+   public ServiceHost start() throws Throwable {
+      super.start();
+      startDefaultCoreServicesSynchronously();
+
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, DNSFactoryService.SELF_LINK)),
+            new RegistrationService());
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, ServiceUriPaths.DNS + "/query")),
+            new QueryService());
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, DnsLeaseService.FACTORY_LINK)),
+            DnsLeaseService.createFactory());
+      return this;
+   }
+
+   private class RegistrationService extends StatelessService {
+      @Override
+      public void handlePost(Operation post) {
+         DNSServiceState registration = post.getBody(DNSServiceState.class);
+         if (registration.serviceLink == null) {
+            post.fail(new IllegalArgumentException("serviceLink: must be provided"));
+            return;
+         }
+
+         URI node = registration.nodeReferences != null && !registration.nodeReferences.isEmpty()
+               ? registration.nodeReferences.iterator().next()
+               : UriUtils.buildUri(post.getReferer().getScheme(), post.getReferer().getHost(), post.getReferer().getPort(), null, null);
+         records.compute(registration.serviceLink, (serviceLink, record) -> {
+            DNSServiceState updated = record != null ? record : registration;
+            updated.documentSelfLink = UriUtils.buildUriPath(DNSFactoryService.SELF_LINK, UriUtils.getLastPathSegment(serviceLink));
+            updated.nodeReferences = updated.nodeReferences != null ? new HashSet<>(updated.nodeReferences) : new HashSet<>();
+            updated.nodeReferences.add(node);
+            return updated;
+         });
+         post.setBody(records.get(registration.serviceLink)).complete();
+      }
+   }
+
+   private class QueryService extends StatelessService {
+      @Override
+      public void handleGet(Operation get) {
+         String filter = UriUtils.parseUriQueryParams(get.getUri()).get("$filter");
+         Matcher matcher = filter != null ? SERVICE_LINK_FILTER.matcher(filter) : null;
+         if (matcher == null || !matcher.find()) {
+            get.fail(new IllegalArgumentException("$filter: only \"serviceLink eq '<link>'\" is supported"));
+            return;
+         }
+
+         ServiceDocumentQueryResult result = new ServiceDocumentQueryResult();
+         result.documentLinks = new ArrayList<>();
+         result.documents = new ConcurrentHashMap<>();
+         DNSServiceState record = records.get(matcher.group(1));
+         if (record != null) {
+            result.documentLinks.add(record.documentSelfLink);
+            result.documents.put(record.documentSelfLink, record);
+         }
+         result.documentCount = (long) result.documentLinks.size();
+         get.setBody(result).complete();
+      }
+   }
+
+   /** The nodes registered under {@code serviceLink}, so the benchmarks can wait for their hosts to register */
+   public Set<URI> getNodes(String serviceLink) {
+      DNSServiceState record = records.get(serviceLink);
+      return record != null ? record.nodeReferences : Collections.emptySet();
+   }
+}
@@ -0,0 +1,34 @@
+package com.tcurt628.smartshop.review.model;
+
+/**
+ * What the orphaned review reconciler of {@code /reviews/orphans} is doing, and what its last pass found. The counts are
+ * those of the current pass while one is running.
+ */
+public class OrphanReconcilerStatus {
+
+   /** Whether this host runs the passes; only the owner of {@code /reviews/orphans} in the review node group does */
+   public boolean owner;
+   public boolean running;
+   /** {@code MARK} or {@code DELETE} */
+   public String action;
+   public int reviewsPerSecond;
+   public long lastStartTimeMicros;
+   public long lastEndTimeMicros;
+   /** Why the last pass stopped early, if it did */
+   public String lastFailureMessage;
+
+   public long reviewsChecked;
+   /** How many distinct products had to be looked up remotely (products already cached need none) */
+   public long productsLookedUp;
+   /** How many remote product queries those lookups took */
+   public long productQueryCount;
+   /** How many reviews pointed at a product that doesn't exist */
+   public long orphansFound;
+   /**
+    * How many of those were marked or deleted by the pass (the others already were marked). With {@code DELETE}, a review
+    * is only deleted once its product was missing on the pass before too; until then it's marked.
+    */
+   public long orphansHandled;
+   /** How many reviews marked {@code orphaned} turned out to have a product after all, and were unmarked */
+   public long reviewsRestored;
+}
@@ -0,0 +1,23 @@
+package com.tcurt628.smartshop.review.model;
+
+import com.vmware.xenon.common.ServiceDocument;
+
+import java.util.Arrays;
+
+/**
+ * The rating summary of a single product, kept up to date as its reviews are created, changed and deleted.
+ */
+public class ProductRating extends ServiceDocument {
+   public String productLink;
+   public long reviewCount;
+   public long starSum;
+   public double averageStars;
+   /** Number of reviews per star value: {@code starHistogram[0]} counts the 1 star reviews, and so on */
+   public long[] starHistogram;
+
+   @Override
+   public String toString() {
+      return String.format("ProductRating: [productLink=%s] [reviewCount=%d] [averageStars=%f] [starHistogram=%s]",
+            productLink, reviewCount, averageStars, Arrays.toString(starHistogram));
+   }
+}
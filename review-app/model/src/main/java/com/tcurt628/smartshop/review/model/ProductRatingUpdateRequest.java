@@ -0,0 +1,12 @@
+package com.tcurt628.smartshop.review.model;
+
+/**
+ * A PATCH to a {@link ProductRating}: either a delta (a review with {@code addedStars} was created, one with
+ * {@code removedStars} was deleted, or both when a review's stars changed), or a request to {@code rebuild} the whole
+ * summary from the reviews in the index.
+ */
+public class ProductRatingUpdateRequest {
+   public Integer addedStars;
+   public Integer removedStars;
+   public boolean rebuild;
+}
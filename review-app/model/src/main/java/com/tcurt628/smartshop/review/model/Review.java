@@ -1,16 +1,21 @@
 package com.tcurt628.smartshop.review.model;
 
+import com.esotericsoftware.kryo.DefaultSerializer;
 import com.vmware.xenon.common.ServiceDocument;
 
 /**
  * Created by tcurtis on 3/8/16.
  */
+@DefaultSerializer(ReviewSerializer.class)
 public class Review extends ServiceDocument {
    public String productLink;
    public String author;
    public String content;
    public Integer stars;
 
+   /** Set by the review host once it finds that {@code productLink} doesn't exist; null otherwise */
+   public Boolean orphaned;
+
    @Override
    public String toString() {
       return String.format("Review: [productLink=%s] [author=%s] [content=%s] [stars=%d]",
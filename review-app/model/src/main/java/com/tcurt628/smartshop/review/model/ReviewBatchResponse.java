@@ -0,0 +1,30 @@
+package com.tcurt628.smartshop.review.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The response to a batch of reviews POSTed to {@code /reviews/batch}: one {@link ItemResult} per review, in the order
+ * they were sent.
+ */
+public class ReviewBatchResponse {
+
+   public int createdCount;
+   public int failedCount;
+   /** How many distinct products the batch referenced */
+   public int distinctProductCount;
+   /** How many remote product queries it took to validate them (products already cached need none) */
+   public int productLookupCount;
+   public List<ItemResult> results = new ArrayList<>();
+
+   public static class ItemResult {
+      /** Position of the review in the batch (0-based) */
+      public int index;
+      /** HTTP status code of the review's creation: 200 when created, 400 when invalid or its product doesn't exist */
+      public int statusCode;
+      /** The created review, if creation succeeded */
+      public String documentSelfLink;
+      /** Why creation failed, if it did */
+      public String failureMessage;
+   }
+}
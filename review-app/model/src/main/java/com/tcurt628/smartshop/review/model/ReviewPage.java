@@ -0,0 +1,16 @@
+package com.tcurt628.smartshop.review.model;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of the reviews of a product, as returned by {@code /reviews/by-product}.
+ */
+public class ReviewPage {
+   public String productLink;
+   /** The {@link Review}s of this page in sort order; only the requested fields when {@code fields} was given */
+   public List<Object> documents = new ArrayList<>();
+   public int documentCount;
+   /** GET this (on the same host) for the next page; null on the last page */
+   public String nextPageLink;
+}
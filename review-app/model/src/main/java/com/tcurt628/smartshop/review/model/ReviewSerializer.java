@@ -0,0 +1,38 @@
+package com.tcurt628.smartshop.review.model;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.tcurt628.smartshop.common.serialization.CompactDocumentSerializer;
+
+/** The compact binary form of a {@link Review}, once enabled; see {@link CompactDocumentSerializer} */
+public class ReviewSerializer extends CompactDocumentSerializer<Review> {
+
+   /** {@code ReviewService.FACTORY_LINK} */
+   private static final String FACTORY_LINK = "/reviews";
+
+   /** {@code ReviewService.PRODUCT_FACTORY_LINK}; every {@code productLink} is under it */
+   private static final String PRODUCT_FACTORY_LINK = "/products";
+
+   public ReviewSerializer(Kryo kryo, Class<Review> type) {
+      super(kryo, type, FACTORY_LINK);
+   }
+
+   @Override
+   protected void writeFields(Output output, Review review) {
+      writeLink(output, PRODUCT_FACTORY_LINK, review.productLink);
+      output.writeString(review.author);
+      output.writeString(review.content);
+      writeNullable(output, review.stars);
+      writeNullable(output, review.orphaned);
+   }
+
+   @Override
+   protected void readFields(Input input, Review review) {
+      review.productLink = readLink(input, PRODUCT_FACTORY_LINK);
+      review.author = input.readString();
+      review.content = input.readString();
+      review.stars = readNullableInteger(input);
+      review.orphaned = readNullableBoolean(input);
+   }
+}
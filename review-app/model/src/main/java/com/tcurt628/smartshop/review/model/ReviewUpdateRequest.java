@@ -6,4 +6,7 @@ package com.tcurt628.smartshop.review.model;
 public class ReviewUpdateRequest {
    public String content;
    public Integer stars;
+
+   /** Marks the review as orphaned (its product doesn't exist); sent on its own, it leaves content and stars alone */
+   public Boolean orphaned;
 }
@@ -1,5 +1,7 @@
 package com.tcurt628.smartshop.review;
 
+import com.tcurt628.smartshop.common.task.AbstractTaskService;
+import com.tcurt628.smartshop.common.task.StepPolicy;
 import com.tcurt628.smartshop.dns.SmartShopDnsQueries;
 import com.vmware.xenon.common.FactoryService;
 import com.vmware.xenon.common.Operation;
@@ -9,18 +11,25 @@ import com.vmware.xenon.common.TaskState;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.services.common.NodeGroupService;
 import com.vmware.xenon.services.common.NodeState;
-import org.apache.commons.lang3.StringUtils;
 
 import java.net.URI;
 import java.util.EnumSet;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
 import static com.tcurt628.smartshop.review.ReviewHost.PRODUCT_NODE_GROUP_URI;
 import static com.tcurt628.smartshop.review.ReviewService.PRODUCT_FACTORY_LINK;
 
 /**
- * This task is responsible for joining the {@code product} node group as an {@code OBSERVER}.
+ * This task is responsible for joining the {@code product} node group as an {@code OBSERVER}, and for staying joined:
+ * <ul>
+ *    <li>Failing to find a product host (ie: the review host started before any product host), or to join it, is
+ *    retried with an exponential backoff (and jitter, so review hosts started together don't retry in lockstep).</li>
+ *    <li>Once joined, the task stays {@link SubStage#JOINED}, and its periodic maintenance checks that the node group
+ *    still has a product host that isn't unavailable. If it doesn't (ie: the product tier was replaced), the task starts over,
+ *    and joins whichever product host DNS knows of now.</li>
+ * </ul>
+ * The join has to happen on the review host that needs it, so the task is local to the host that created it.
  * This class was heavily influenced by the <a href="https://github.com/vmware/xenon/wiki/Task-Service-Tutorial">
  * Task Service Tutorial</a> on the <a href="https://github.com/vmware/xenon/wiki">Xenon wiki
  * page.</a>
@@ -30,18 +39,16 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
    public static final String FACTORY_LINK = "/review-tasks/join-product-node-group";
    private static final Integer DEFAULT_QUORUM_IF_UNKNOWN = 1;
 
-   private static SmartShopDnsQueries dnsQueries = null;
-   private static Integer quorum = null;
+   private static final long INITIAL_RETRY_DELAY_MILLIS = 500;
+   private static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
 
-   /** Not crazy about this, but it works for now I guess... */
-   private static Logger logger = Logger.getLogger(JoinProductNodeGroupTaskService.class.getName());
-   static {
-      logger.setLevel(Level.FINE);
-   }
+   private static Integer quorum = null;
 
    public enum SubStage {
       FINDING_PRODUCT_PEER_NODE,
-      JOINING_AS_OBSERVER
+      JOINING_AS_OBSERVER,
+      /** Joined; checked again on every periodic maintenance, and started over from the first substage if need be */
+      JOINED
    }
 
    public static class JoinProductNodeGroupTaskServiceState extends AbstractTaskService.BaseTaskServiceState {
@@ -54,13 +61,21 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
       @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
       public URI productHostUriToJoin;
 
+      /** The number of failed attempts since the last successful join; reset to 0 once joined */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public Integer failedAttempts;
+
+      /** Why the last attempt failed */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public String lastFailureMessage;
+
       @Override
       public String toString() {
          String taskInfoStage = taskInfo != null && taskInfo.stage != null ? taskInfo.stage.toString() : null;
          String subStageString = subStage != null ? subStage.toString() : null;
          String hostUri = productHostUriToJoin != null ? productHostUriToJoin.toString() : null;
-         return String.format("JoinProductNodeGroupTaskServiceState: [taskInfo.stage=%s] [subStage=%s] [productHostUriToJoin=%s]",
-               taskInfoStage, subStageString, hostUri);
+         return String.format("JoinProductNodeGroupTaskServiceState: [taskInfo.stage=%s] [subStage=%s] [productHostUriToJoin=%s] [failedAttempts=%s]",
+               taskInfoStage, subStageString, hostUri, failedAttempts);
       }
    }
 
@@ -71,15 +86,12 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
 
    public JoinProductNodeGroupTaskService() {
       super(JoinProductNodeGroupTaskServiceState.class);
-      toggleOption(ServiceOption.PERSISTENCE, true);
-      toggleOption(ServiceOption.REPLICATION, true);
       toggleOption(ServiceOption.INSTRUMENTATION, true);
-      toggleOption(ServiceOption.OWNER_SELECTION, true);
-      super.setPeerNodeSelectorPath(ReviewHost.REVIEW_NODE_SELECTOR_URI);
+      toggleOption(ServiceOption.PERIODIC_MAINTENANCE, true);
+      setMaintenanceIntervalMicros(TimeUnit.SECONDS.toMicros(ReviewHost.hostArguments.productJoinReconcileSeconds));
 
-      if (dnsQueries == null || quorum == null) {
+      if (quorum == null) {
          ReviewHost reviewHost = (ReviewHost) getHost();
-         dnsQueries = new SmartShopDnsQueries(reviewHost.hostArguments.dnshost, reviewHost.hostArguments.dnsport);
          quorum = reviewHost.hostArguments.initialNodes;
       }
 
@@ -106,39 +118,14 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
    protected void initializeState(JoinProductNodeGroupTaskServiceState task, Operation taskOperation) {
       super.initializeState(task, taskOperation);
       task.subStage = SubStage.FINDING_PRODUCT_PEER_NODE;
-   }
-
-   /** All work happens through a {@code PATCH}, which is handled here. */
-   @Override
-   public void handlePatch(Operation patch) {
-      JoinProductNodeGroupTaskServiceState currentTask = getState(patch);
-      JoinProductNodeGroupTaskServiceState patchBody = getBody(patch);
-      logFine("handlePatch():\n[currentTask=%s]\n[patchBody=%s]",
-            currentTask != null ? currentTask: "", patchBody != null ? patchBody : "");
+      task.failedAttempts = 0;
 
-      if (!validateTransition(patch, currentTask, patchBody)) {
-         return;
-      }
-      updateState(currentTask, patchBody);
-      patch.complete();
-
-      switch (patchBody.taskInfo.stage) {
-      case STARTED:
-         handleSubstage(patchBody);
-         break;
-      case FINISHED:
-         logInfo("Task finished successfully");
-         break;
-      case FAILED:
-         logWarning("Task failed: %s", StringUtils.defaultString(patchBody.failureMessage, "No reason given"));
-         break;
-      default:
-         logWarning("Unexpected stage: %s", patchBody.taskInfo.stage);
-         break;
-      }
+      // Keeps the host joined for as long as it runs, so it never expires
+      task.documentExpirationTimeMicros = 0;
    }
 
-   private void handleSubstage(JoinProductNodeGroupTaskServiceState task) {
+   @Override
+   protected void handleStep(JoinProductNodeGroupTaskServiceState task) {
       switch (task.subStage) {
       case FINDING_PRODUCT_PEER_NODE:
          handleFindProductPeerNode(task);
@@ -146,12 +133,35 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
       case JOINING_AS_OBSERVER:
          handleJoinPeerAsObserver(task);
          break;
+      case JOINED:
+         logFine("Joined the product node group through %s", task.productHostUriToJoin);
+         break;
       default:
          logWarning("Unexpected sub stage: %s", task.subStage);
          break;
       }
    }
 
+   /**
+    * Only looking for a product host again (a retry, or a rejoin) and being joined are saved, so they show in the task
+    * state; joining runs straight on from finding a host.
+    */
+   @Override
+   protected boolean isCheckpoint(JoinProductNodeGroupTaskServiceState task) {
+      return task.subStage != SubStage.JOINING_AS_OBSERVER;
+   }
+
+   /** Failures are retried by {@link #retryLater}, which never gives up; and DNS and the join have timeouts of their own */
+   @Override
+   protected StepPolicy getStepPolicy(JoinProductNodeGroupTaskServiceState task) {
+      return StepPolicy.NONE;
+   }
+
+   @Override
+   protected String describeStep(JoinProductNodeGroupTaskServiceState task) {
+      return String.valueOf(task.subStage);
+   }
+
    /** Validate that the PATCH we got requests reasonable changes to our state */
    @Override
    protected boolean validateTransition(Operation patch, JoinProductNodeGroupTaskServiceState currentTask,
@@ -164,7 +174,9 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
       }
 
       if (currentTask.taskInfo != null && currentTask.taskInfo.stage != null) {
-         if (currentTask.taskInfo.stage == TaskState.TaskStage.STARTED && patchBody.taskInfo.stage == TaskState.TaskStage.STARTED) {
+         // Starting over (to retry, or to rejoin) is the only way back
+         if (currentTask.taskInfo.stage == TaskState.TaskStage.STARTED && patchBody.taskInfo.stage == TaskState.TaskStage.STARTED
+               && patchBody.subStage != SubStage.FINDING_PRODUCT_PEER_NODE) {
             if (currentTask.subStage.ordinal() > patchBody.subStage.ordinal()) {
                patch.fail(new IllegalArgumentException("Task substage cannot move backwards"));
                return false;
@@ -172,8 +184,8 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
          }
       }
 
-      if (patchBody.subStage != null && patchBody.subStage == SubStage.JOINING_AS_OBSERVER &&
-            patchBody.productHostUriToJoin == null) {
+      if (patchBody.subStage != null && patchBody.subStage.ordinal() >= SubStage.JOINING_AS_OBSERVER.ordinal() &&
+            patchBody.productHostUriToJoin == null && currentTask.productHostUriToJoin == null) {
          patch.fail(new IllegalArgumentException("Cannot JOIN because the host URI to join has not been set"));
          return false;
       }
@@ -185,7 +197,7 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
     * <p>Handle SubStage {@link SubStage#FINDING_PRODUCT_PEER_NODE}.</p>
     *
     * <p>
-    * TODO - flush out details
+    * Asks DNS for a host running {@code /products}. If there's none yet, this substage is retried later.
     * </p>
     */
    private void handleFindProductPeerNode(JoinProductNodeGroupTaskServiceState task) {
@@ -194,8 +206,7 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
       Operation.CompletionHandler handler = (op, ex) -> {
          if (ex != null) {
             String message = String.format("[URI=%s] does not exist when using GET provided by DNS lookup", PRODUCT_FACTORY_LINK);
-            logInfo(message);
-            sendSelfFailurePatch(task, message); // could add sleep/retry logic here...
+            retryLater(task, message);
             return;
          }
 
@@ -205,9 +216,10 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
          task.productHostUriToJoin = uri;
          logInfo("Found host that owns the product node group that we should join: %s. Patching back to task to update subStage...",
                task.productHostUriToJoin);
-         sendSelfPatch(task, TaskState.TaskStage.STARTED, SubStage.JOINING_AS_OBSERVER);
+         advance(task, TaskState.TaskStage.STARTED, SubStage.JOINING_AS_OBSERVER);
       };
 
+      SmartShopDnsQueries dnsQueries = ((ReviewHost) getHost()).getDnsQueries();
       dnsQueries.queryDns(productServiceDNSLookupQuery, PRODUCT_FACTORY_LINK, getHost(), handler);
    }
 
@@ -215,7 +227,8 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
     * <p>Handle SubStage {@link SubStage#JOINING_AS_OBSERVER}.</p>
     *
     * <p>
-    * TODO - flush out details
+    * Joins the {@code product} node group of the host found, as an {@code OBSERVER}, and subscribes to its product
+    * changes. If the join fails, the task starts over (DNS may know of a better host by then).
     * </p>
     */
    private void handleJoinPeerAsObserver(JoinProductNodeGroupTaskServiceState task) {
@@ -230,36 +243,103 @@ public class JoinProductNodeGroupTaskService extends AbstractTaskService<JoinPro
                if (failure != null) {
                   String message = String.format("Error when trying to join node group. [op=%s] [ex=%s]",
                         completedOp, failure.getMessage());
-                  logSevere(failure);
-                  sendSelfFailurePatch(task, message);
+                  retryLater(task, message);
                   return;
                }
 
                logInfo("Successfully joined [%s] as OBSERVER", memberGroupUri);
-               sendSelfPatch(task, TaskState.TaskStage.FINISHED, null);
+               // Replaces the subscription of an earlier join, if any
+               ((ReviewHost) getHost()).getProductChangeSubscriber().subscribe(task.productHostUriToJoin);
+               task.failedAttempts = 0;
+               advance(task, TaskState.TaskStage.STARTED, SubStage.JOINED);
             });
 
       getHost().sendRequest(postToJoinNodeGroupAsObserver);
    }
 
+   /**
+    * Starts the task over, after a delay that doubles with every failed attempt (up to {@link #MAX_RETRY_DELAY_MILLIS}).
+    * Only the upper half of the delay is fixed; the lower half is random, so that hosts retrying together spread out.
+    */
+   private void retryLater(JoinProductNodeGroupTaskServiceState task, String failureMessage) {
+      int failedAttempts = (task.failedAttempts != null ? task.failedAttempts : 0) + 1;
+      long delayMillis = retryDelayMillis(failedAttempts);
+      logWarning("%s. Retrying in %d ms (attempt %d)", failureMessage, delayMillis, failedAttempts + 1);
+      if (getHost().isStopping()) {
+         return;
+      }
+
+      task.failedAttempts = failedAttempts;
+      task.lastFailureMessage = failureMessage;
+      getHost().schedule(() -> advance(task, TaskState.TaskStage.STARTED, SubStage.FINDING_PRODUCT_PEER_NODE),
+            delayMillis, TimeUnit.MILLISECONDS);
+   }
+
+   static long retryDelayMillis(int failedAttempts) {
+      long maxDelayMillis = INITIAL_RETRY_DELAY_MILLIS << Math.min(failedAttempts - 1, 16);
+      maxDelayMillis = Math.min(maxDelayMillis, MAX_RETRY_DELAY_MILLIS);
+      return maxDelayMillis / 2 + ThreadLocalRandom.current().nextLong(maxDelayMillis / 2 + 1);
+   }
+
+   /**
+    * Once joined, checks that the {@code product} node group still has a product host that isn't known to be
+    * unavailable. If it has none left, the task starts over, to join whichever product host DNS knows of now.
+    */
+   @Override
+   public void handlePeriodicMaintenance(Operation maintenance) {
+      maintenance.complete();
+
+      sendRequest(Operation.createGet(getUri()).setCompletion((getTask, taskFailure) -> {
+         if (taskFailure != null) {
+            logWarning("Could not get task state for reconciliation: %s", taskFailure.getMessage());
+            return;
+         }
+         JoinProductNodeGroupTaskServiceState task = getTask.getBody(JoinProductNodeGroupTaskServiceState.class);
+         if (task.taskInfo == null || task.taskInfo.stage != TaskState.TaskStage.STARTED || task.subStage != SubStage.JOINED) {
+            return;
+         }
+
+         sendRequest(Operation.createGet(this, PRODUCT_NODE_GROUP_URI).setCompletion((getGroup, groupFailure) -> {
+            if (groupFailure != null) {
+               logWarning("Could not get the product node group for reconciliation: %s", groupFailure.getMessage());
+               return;
+            }
+            NodeGroupService.NodeGroupState group = getGroup.getBody(NodeGroupService.NodeGroupState.class);
+            if (hasAvailableProductPeer(group, getHost().getId())) {
+               return;
+            }
 
-   /** Send ourselves a PATCH that will indicate failure */
-   private void sendSelfFailurePatch(JoinProductNodeGroupTaskServiceState task, String failureMessage) {
-      task.failureMessage = failureMessage;
-      sendSelfPatch(task, TaskState.TaskStage.FAILED, null);
+            logWarning("No product host left in the product node group (last joined through %s); joining again",
+                  task.productHostUriToJoin);
+            task.subStage = SubStage.FINDING_PRODUCT_PEER_NODE;
+            sendSelfPatch(task);
+         }));
+      }));
    }
 
    /**
-    * Send ourselves a PATCH that will advance to another step in the task workflow to the
-    * specified stage and substage.
+    * Whether {@code group} has a product host, other than {@code selfId}, that isn't known to be gone. The other review
+    * hosts are in the group too, as observers, and don't count. Peers that only just joined can still be {@code UNKNOWN}
+    * or {@code SYNCHRONIZING}; only those known to be gone are left out.
     */
-   private void sendSelfPatch(JoinProductNodeGroupTaskServiceState task, TaskState.TaskStage stage, SubStage subStage) {
+   static boolean hasAvailableProductPeer(NodeGroupService.NodeGroupState group, String selfId) {
+      for (NodeState node : group.nodes.values()) {
+         boolean observer = node.options != null && node.options.contains(NodeState.NodeOption.OBSERVER);
+         if (!node.id.equals(selfId) && !observer && !NodeState.isUnAvailable(node)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /** Advance to another step in the task workflow: the specified stage and substage. */
+   private void advance(JoinProductNodeGroupTaskServiceState task, TaskState.TaskStage stage, SubStage subStage) {
       if (task.taskInfo == null) {
          task.taskInfo = new TaskState();
       }
       task.taskInfo.stage = stage;
       task.subStage = subStage;
-      sendSelfPatch(task);
+      advance(task);
    }
 
 }
@@ -0,0 +1,397 @@
+package com.tcurt628.smartshop.review;
+
+import com.tcurt628.smartshop.review.model.OrphanReconcilerStatus;
+import com.tcurt628.smartshop.review.model.Review;
+import com.tcurt628.smartshop.review.model.ReviewUpdateRequest;
+import com.vmware.xenon.common.NodeSelectorService.SelectOwnerResponse;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationJoin;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+/**
+ * Finds the reviews whose product doesn't exist (anymore), in the background. Every {@code --orphanReconcileSeconds},
+ * the owner of this service in the {@code review} node group walks all reviews sorted by {@code productLink}, a page at
+ * a time; looks up the products of each page that aren't cached with a {@link ProductExistenceQuery}; and, as
+ * {@code --orphanAction} says, marks the orphans {@code orphaned} or deletes them. Marked reviews whose product turns
+ * out to exist are unmarked. Pages are read no faster than {@code --orphanReconcileReviewsPerSecond}, so a pass never
+ * competes with foreground traffic however many reviews there are.
+ * <p>
+ * {@code GET} returns an {@link OrphanReconcilerStatus}; {@code POST} (with any body) starts a pass right away, unless
+ * one is running.
+ */
+public class OrphanedReviewReconciler extends StatelessService {
+
+   public static final String SELF_LINK = ReviewService.FACTORY_LINK + "/orphans";
+
+   /** What happens to a review whose product doesn't exist */
+   public enum OrphanAction {
+      /** PATCH it with {@code {"orphaned": true}}; it can still be read, and is unmarked if its product shows up */
+      MARK,
+      /**
+       * DELETE it, once its product was missing on two passes in a row that looked it up; it's only marked on the
+       * first. A product peer that hasn't finished synchronizing finds nothing either, and a review deleted for it would
+       * be gone for good.
+       */
+      DELETE
+   }
+
+   static final int PAGE_SIZE = 100;
+
+   /** Max number of review updates (or deletes) of a page in flight */
+   static final int WRITE_CONCURRENCY = 4;
+
+   /** The query pages of a pass expire with its query task; it lives at least this long, or twice the expected pass */
+   static final long MIN_QUERY_LIFETIME_MINUTES = 10;
+
+   private final AtomicBoolean running = new AtomicBoolean();
+   private volatile OrphanReconcilerStatus status = newStatus();
+
+   /**
+    * The products found missing by the last pass that looked them up, in {@link OrphanAction#DELETE} mode; kept by the
+    * owner only. See {@link #missingForNextPass}.
+    */
+   private volatile Set<String> missingInLastPass = Collections.emptySet();
+
+   public OrphanedReviewReconciler() {
+      int reconcileSeconds = ReviewHost.hostArguments.orphanReconcileSeconds;
+      if (reconcileSeconds > 0) {
+         toggleOption(ServiceOption.PERIODIC_MAINTENANCE, true);
+         setMaintenanceIntervalMicros(TimeUnit.SECONDS.toMicros(reconcileSeconds));
+      }
+   }
+
+   @Override
+   public void handleGet(Operation get) {
+      get.setBody(status).complete();
+   }
+
+   @Override
+   public void handlePost(Operation post) {
+      reconcile(post);
+   }
+
+   @Override
+   public void handlePeriodicMaintenance(Operation maintenance) {
+      maintenance.complete();
+      reconcile(null);
+   }
+
+   /**
+    * Starts a pass if this host owns {@link #SELF_LINK} and none is running. {@code post} (if any) is forwarded to the
+    * owner, or completed with the status of the pass.
+    */
+   private void reconcile(Operation post) {
+      Operation selectOwner = Operation.createPost(null)
+            .setExpiration(Utils.getNowMicrosUtc() + getHost().getOperationTimeoutMicros())
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  logWarning("Could not select the owner of %s: %s", SELF_LINK, ex.getMessage());
+                  if (post != null) {
+                     post.fail(ex);
+                  }
+                  return;
+               }
+
+               SelectOwnerResponse owner = op.getBody(SelectOwnerResponse.class);
+               status.owner = owner.isLocalHostOwner;
+               if (!owner.isLocalHostOwner) {
+                  if (post != null) {
+                     forwardToOwner(post, owner);
+                  }
+                  return;
+               }
+
+               if (running.compareAndSet(false, true)) {
+                  new Pass().start();
+               } else {
+                  logFine("A reconcile pass is already running");
+               }
+               if (post != null) {
+                  post.setBody(status).complete();
+               }
+            });
+      getHost().selectOwner(ReviewHost.REVIEW_NODE_SELECTOR_URI, SELF_LINK, selectOwner);
+   }
+
+   private void forwardToOwner(Operation post, SelectOwnerResponse owner) {
+      Operation forward = Operation.createPost(SelectOwnerResponse.buildUriToOwner(owner, SELF_LINK, null))
+            .setBody(post.hasBody() ? post.getBodyRaw() : new OrphanReconcilerStatus())
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  post.fail(ex);
+                  return;
+               }
+               post.setBody(op.getBody(OrphanReconcilerStatus.class)).complete();
+            });
+      sendRequest(forward);
+   }
+
+   private static OrphanReconcilerStatus newStatus() {
+      OrphanReconcilerStatus status = new OrphanReconcilerStatus();
+      status.action = ReviewHost.hostArguments.orphanAction.name();
+      status.reviewsPerSecond = ReviewHost.hostArguments.orphanReconcileReviewsPerSecond;
+      return status;
+   }
+
+   /**
+    * The products whose reviews the next pass deletes if it finds them missing too, once a pass is over: those the pass
+    * found missing, and those the pass before found missing that it found out nothing about. That is, those it couldn't
+    * look up, and if it {@code stoppedEarly}, those after {@code lastProductLink} (all of them, if it's null) that it
+    * never got to. Their count isn't set back by a pass that didn't see them, and a product the pass saw exist (or that
+    * has no reviews left) is dropped.
+    */
+   static Set<String> missingForNextPass(Set<String> missingInLastPass, Set<String> missingInPass,
+         Set<String> unknownInPass, boolean stoppedEarly, String lastProductLink) {
+      Set<String> missing = new HashSet<>(missingInPass);
+      for (String productLink : missingInLastPass) {
+         boolean notReached = stoppedEarly && (lastProductLink == null || productLink.compareTo(lastProductLink) > 0);
+         if (notReached || unknownInPass.contains(productLink)) {
+            missing.add(productLink);
+         }
+      }
+      return missing;
+   }
+
+   /**
+    * One walk over all reviews. Its pages are handled one after the other, so its counters are only ever updated by
+    * one thread at a time.
+    */
+   private class Pass {
+      private final OrphanReconcilerStatus passStatus = newStatus();
+      private final OrphanAction action = ReviewHost.hostArguments.orphanAction;
+      private final int reviewsPerSecond = ReviewHost.hostArguments.orphanReconcileReviewsPerSecond;
+      private final ProductExistenceCache productCache = ((ReviewHost) getHost()).getProductCache();
+
+      /**
+       * The missing products of the last page; the reviews of a product are next to each other, so a product whose
+       * reviews span two pages is only looked up once.
+       */
+      private Set<String> lastMissing = Collections.emptySet();
+
+      /** The products this pass found missing; the next pass deletes their reviews if they're still missing then */
+      private final Set<String> missingInPass = new HashSet<>();
+
+      /** The products this pass couldn't look up, so it found out nothing about */
+      private final Set<String> unknownInPass = new HashSet<>();
+
+      /** The product of the last review this pass handled; reviews are sorted by product, so it got to all before it */
+      private String lastProductLink;
+
+      void start() {
+         passStatus.owner = true;
+         passStatus.running = true;
+         passStatus.lastStartTimeMicros = Utils.getNowMicrosUtc();
+         status = passStatus;
+         logInfo("Starting orphaned review reconcile pass: [action=%s] [reviewsPerSecond=%d]", action, reviewsPerSecond);
+
+         countReviews(this::queryReviews);
+      }
+
+      /** The number of reviews only sizes the lifetime of the query, so the pass goes on without it if it fails */
+      private void countReviews(Consumer<Long> onCounted) {
+         QueryTask count = QueryTask.Builder.createDirectTask()
+               .addOption(QueryTask.QuerySpecification.QueryOption.COUNT)
+               .setQuery(QueryTask.Query.Builder.create().addKindFieldClause(Review.class).build())
+               .build();
+         sendRequest(Operation.createPost(OrphanedReviewReconciler.this, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS)
+               .setBody(count)
+               .setCompletion((op, ex) -> {
+                  if (ex != null) {
+                     logWarning("Could not count the reviews: %s", ex.getMessage());
+                     onCounted.accept(0L);
+                     return;
+                  }
+                  ServiceDocumentQueryResult results = op.getBody(QueryTask.class).results;
+                  onCounted.accept(results != null && results.documentCount != null ? results.documentCount : 0L);
+               }));
+      }
+
+      private void queryReviews(long reviewCount) {
+         long lifetimeMicros = TimeUnit.MINUTES.toMicros(MIN_QUERY_LIFETIME_MINUTES);
+         if (reviewsPerSecond > 0) {
+            lifetimeMicros = Math.max(lifetimeMicros, TimeUnit.SECONDS.toMicros(2 * reviewCount / reviewsPerSecond));
+         }
+
+         QueryTask query = QueryTask.Builder.createDirectTask()
+               .addOption(QueryTask.QuerySpecification.QueryOption.EXPAND_CONTENT)
+               .orderAscending("productLink", ServiceDocumentDescription.TypeName.STRING)
+               .setResultLimit(PAGE_SIZE)
+               .setQuery(QueryTask.Query.Builder.create().addKindFieldClause(Review.class).build())
+               .build();
+         // The pages live as long as the query task
+         query.documentExpirationTimeMicros = Utils.getNowMicrosUtc() + lifetimeMicros;
+
+         sendRequest(Operation.createPost(OrphanedReviewReconciler.this, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS)
+               .setBody(query)
+               .setCompletion((op, ex) -> {
+                  if (ex != null) {
+                     finish(ex);
+                     return;
+                  }
+                  // A query with a result limit answers with a link to its first page, rather than any results
+                  ServiceDocumentQueryResult results = op.getBody(QueryTask.class).results;
+                  if (results == null || results.nextPageLink == null) {
+                     finish(null);
+                     return;
+                  }
+                  readPage(results.nextPageLink);
+               }));
+      }
+
+      private void readPage(String pageLink) {
+         long pageStart = System.nanoTime();
+         sendRequest(Operation.createGet(OrphanedReviewReconciler.this, pageLink)
+               .setCompletion((op, ex) -> {
+                  if (ex != null) {
+                     finish(ex);
+                     return;
+                  }
+
+                  ServiceDocumentQueryResult results = op.getBody(QueryTask.class).results;
+                  List<Review> reviews = new ArrayList<>();
+                  if (results != null && results.documentLinks != null && results.documents != null) {
+                     // documentLinks is in sort order; documents isn't
+                     for (String link : results.documentLinks) {
+                        Object document = results.documents.get(link);
+                        if (document != null) {
+                           reviews.add(Utils.fromJson(document, Review.class));
+                        }
+                     }
+                  }
+
+                  reconcilePage(reviews, () -> {
+                     if (results == null || results.nextPageLink == null) {
+                        finish(null);
+                        return;
+                     }
+                     long delayMillis = pageDelayMillis(reviews.size(), System.nanoTime() - pageStart);
+                     getHost().schedule(() -> readPage(results.nextPageLink), delayMillis, TimeUnit.MILLISECONDS);
+                  });
+               }));
+      }
+
+      /** How long to wait before the next page, so the reviews read since the last one stay within the rate limit */
+      private long pageDelayMillis(int reviewsRead, long elapsedNanos) {
+         if (reviewsPerSecond <= 0) {
+            return 0;
+         }
+         long budgetMillis = TimeUnit.SECONDS.toMillis(reviewsRead) / reviewsPerSecond;
+         return Math.max(0, budgetMillis - TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+      }
+
+      private void reconcilePage(List<Review> reviews, Runnable onDone) {
+         Set<String> productLinks = reviews.stream()
+               .map(review -> review.productLink)
+               .collect(Collectors.toCollection(LinkedHashSet::new));
+         List<String> unknownProductLinks = productLinks.stream()
+               .filter(productLink -> !productCache.exists(productLink) && !lastMissing.contains(productLink))
+               .collect(Collectors.toList());
+
+         ProductExistenceQuery.lookup(OrphanedReviewReconciler.this, unknownProductLinks, lookup -> {
+            passStatus.productsLookedUp += unknownProductLinks.size();
+            passStatus.productQueryCount += lookup.queryCount;
+
+            Set<String> missing = new HashSet<>(lookup.missing);
+            productLinks.stream().filter(lastMissing::contains).forEach(missing::add);
+            lastMissing = missing;
+            if (action == OrphanAction.DELETE) {
+               missingInPass.addAll(missing);
+               productLinks.stream()
+                     .filter(productLink -> !missing.contains(productLink) && lookup.failures.containsKey(productLink))
+                     .forEach(unknownInPass::add);
+            }
+            if (!reviews.isEmpty()) {
+               lastProductLink = reviews.get(reviews.size() - 1).productLink;
+            }
+
+            List<Operation> orphanWrites = new ArrayList<>();
+            List<Operation> restoreWrites = new ArrayList<>();
+            for (Review review : reviews) {
+               passStatus.reviewsChecked++;
+               boolean marked = Boolean.TRUE.equals(review.orphaned);
+               if (missing.contains(review.productLink)) {
+                  passStatus.orphansFound++;
+                  if (action == OrphanAction.DELETE && missingInLastPass.contains(review.productLink)) {
+                     orphanWrites.add(Operation.createDelete(UriUtils.buildUri(getHost(), review.documentSelfLink)));
+                  } else if (!marked) {
+                     orphanWrites.add(markOrphaned(review, true));
+                  }
+               } else if (marked && !lookup.failures.containsKey(review.productLink)) {
+                  // A product that couldn't be looked up isn't known to exist, so its reviews stay marked for now
+                  restoreWrites.add(markOrphaned(review, false));
+               }
+            }
+
+            logFine("Reconciled a page of %d reviews over %d products: [missing=%d] [orphanWrites=%d] [restoreWrites=%d]",
+                  reviews.size(), productLinks.size(), missing.size(), orphanWrites.size(), restoreWrites.size());
+            sendWrites(orphanWrites, restoreWrites, onDone);
+         });
+      }
+
+      private Operation markOrphaned(Review review, boolean orphaned) {
+         ReviewUpdateRequest update = new ReviewUpdateRequest();
+         update.orphaned = orphaned;
+         return Operation.createPatch(UriUtils.buildUri(getHost(), review.documentSelfLink)).setBody(update);
+      }
+
+      private void sendWrites(List<Operation> orphanWrites, List<Operation> restoreWrites, Runnable onDone) {
+         if (orphanWrites.isEmpty() && restoreWrites.isEmpty()) {
+            onDone.run();
+            return;
+         }
+
+         Set<Long> restoreIds = restoreWrites.stream().map(Operation::getId).collect(Collectors.toSet());
+         List<Operation> writes = new ArrayList<>(orphanWrites);
+         writes.addAll(restoreWrites);
+         OperationJoin.create(writes)
+               .setCompletion((ops, failures) -> {
+                  for (Operation write : ops.values()) {
+                     Throwable failure = failures != null ? failures.get(write.getId()) : null;
+                     if (failure != null) {
+                        logWarning("Could not reconcile %s: %s", write.getUri().getPath(), failure.getMessage());
+                     } else if (restoreIds.contains(write.getId())) {
+                        passStatus.reviewsRestored++;
+                     } else {
+                        passStatus.orphansHandled++;
+                     }
+                  }
+                  onDone.run();
+               })
+               .sendWith(OrphanedReviewReconciler.this, WRITE_CONCURRENCY);
+      }
+
+      private void finish(Throwable failure) {
+         missingInLastPass = missingForNextPass(missingInLastPass, missingInPass, unknownInPass,
+               failure != null, lastProductLink);
+         passStatus.running = false;
+         passStatus.lastEndTimeMicros = Utils.getNowMicrosUtc();
+         if (failure != null) {
+            passStatus.lastFailureMessage = failure.getMessage();
+            logWarning("Orphaned review reconcile pass stopped after %d reviews: %s",
+                  passStatus.reviewsChecked, failure.getMessage());
+         } else {
+            logInfo("Orphaned review reconcile pass done: [reviewsChecked=%d] [productsLookedUp=%d] [orphansFound=%d] [orphansHandled=%d] [reviewsRestored=%d]",
+                  passStatus.reviewsChecked, passStatus.productsLookedUp, passStatus.orphansFound,
+                  passStatus.orphansHandled, passStatus.reviewsRestored);
+         }
+         running.set(false);
+      }
+   }
+}
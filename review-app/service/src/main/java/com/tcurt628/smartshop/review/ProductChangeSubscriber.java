@@ -0,0 +1,157 @@
+package com.tcurt628.smartshop.review;
+
+import com.tcurt628.smartshop.product.model.Product;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+
+import java.net.URI;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Keeps a {@link ProductExistenceCache} current by subscribing to a continuous query for {@link Product} documents on a
+ * host in the {@code product} node group. Products are replicated to every peer of that group, so one peer sees every
+ * create and delete.
+ * <p>
+ * A review host has one subscriber, subscribed to one product host at a time: subscribing again (ie: when the host
+ * rejoins the node group) first deletes the query task of the previous subscription, and stops its notification target.
+ */
+public class ProductChangeSubscriber {
+
+   /** How long the continuous query task lives on the product host before it has to be recreated */
+   private static final long QUERY_TASK_LIFETIME_DAYS = 365;
+
+   private final ServiceHost host;
+   private final ProductExistenceCache productCache;
+
+   /** Counts the calls to {@link #subscribe}; a subscription that completes after a later call is undone */
+   private int generation;
+   private URI productHostUri;
+   private URI queryTaskUri;
+   private URI notificationTarget;
+
+   public ProductChangeSubscriber(ServiceHost host, ProductExistenceCache productCache) {
+      this.host = host;
+      this.productCache = productCache;
+   }
+
+   /**
+    * Creates a continuous query task for products on {@code productHostUri}, and subscribes to it, in place of the
+    * previous subscription (if any). Each PATCH sent to that task carries the product that changed; we add
+    * created/updated products to the cache and drop deleted ones. If the product host changed, the cache is cleared:
+    * the deletes that happened before the new subscription would never be seen.
+    */
+   public synchronized void subscribe(URI productHostUri) {
+      unsubscribe();
+      if (this.productHostUri != null && !this.productHostUri.equals(productHostUri)) {
+         host.log(Level.INFO, "Product host changed from %s to %s; clearing the product cache", this.productHostUri,
+               productHostUri);
+         productCache.clear();
+      }
+      this.productHostUri = productHostUri;
+      int subscription = ++generation;
+
+      QueryTask.Query productQuery = QueryTask.Query.Builder.create()
+            .addKindFieldClause(Product.class)
+            .build();
+      QueryTask continuousQuery = QueryTask.Builder.create()
+            .addOption(QueryTask.QuerySpecification.QueryOption.CONTINUOUS)
+            .addOption(QueryTask.QuerySpecification.QueryOption.EXPAND_CONTENT)
+            .setQuery(productQuery)
+            .build();
+      continuousQuery.documentExpirationTimeMicros =
+            Utils.getNowMicrosUtc() + TimeUnit.DAYS.toMicros(QUERY_TASK_LIFETIME_DAYS);
+
+      Operation createQueryTask = Operation.createPost(UriUtils.buildUri(productHostUri, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS))
+            .setReferer(host.getUri())
+            .setBody(continuousQuery)
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  host.log(Level.WARNING, "Could not create continuous product query on %s: %s", productHostUri, ex.getMessage());
+                  return;
+               }
+
+               QueryTask createdTask = op.getBody(QueryTask.class);
+               URI createdTaskUri = UriUtils.buildUri(productHostUri, createdTask.documentSelfLink);
+               startSubscription(subscription, createdTaskUri);
+            });
+      host.sendRequest(createQueryTask);
+   }
+
+   private synchronized void startSubscription(int subscription, URI createdTaskUri) {
+      if (subscription != generation) {
+         deleteQueryTask(createdTaskUri);
+         return;
+      }
+      queryTaskUri = createdTaskUri;
+      Operation subscribe = Operation.createPost(createdTaskUri)
+            .setReferer(host.getUri())
+            .setCompletion((subscribeOp, subscribeEx) -> {
+               if (subscribeEx != null) {
+                  host.log(Level.WARNING, "Could not subscribe to %s: %s", createdTaskUri, subscribeEx.getMessage());
+                  return;
+               }
+               host.log(Level.INFO, "Subscribed to product changes: %s", createdTaskUri);
+            });
+      notificationTarget = host.startSubscriptionService(subscribe, this::handleProductChange);
+   }
+
+   /** Deletes the query task of the current subscription, and stops its notification target; both are best effort */
+   private void unsubscribe() {
+      if (notificationTarget != null) {
+         host.sendRequest(Operation.createDelete(notificationTarget)
+               .setReferer(host.getUri())
+               .setCompletion((op, ex) -> {
+                  if (ex != null) {
+                     host.log(Level.WARNING, "Could not stop %s: %s", op.getUri(), ex.getMessage());
+                  }
+               }));
+         notificationTarget = null;
+      }
+      if (queryTaskUri != null) {
+         deleteQueryTask(queryTaskUri);
+         queryTaskUri = null;
+      }
+   }
+
+   /** The product host may be gone, which is why we're subscribing again; then the task goes when it expires */
+   private void deleteQueryTask(URI taskUri) {
+      host.sendRequest(Operation.createDelete(taskUri)
+            .setReferer(host.getUri())
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  host.log(Level.FINE, "Could not delete continuous product query %s: %s", taskUri, ex.getMessage());
+                  return;
+               }
+               host.log(Level.INFO, "Deleted continuous product query %s", taskUri);
+            }));
+   }
+
+   private void handleProductChange(Operation notification) {
+      notification.complete();
+      if (notification.getAction() != Service.Action.PATCH || !notification.hasBody()) {
+         return;
+      }
+
+      QueryTask update = notification.getBody(QueryTask.class);
+      if (update.results == null || update.results.documents == null) {
+         return;
+      }
+
+      for (Map.Entry<String, Object> changed : update.results.documents.entrySet()) {
+         Product product = Utils.fromJson(changed.getValue(), Product.class);
+         if (Service.Action.DELETE.toString().equals(product.documentUpdateAction)) {
+            productCache.productDeleted(changed.getKey());
+            host.log(Level.FINE, "Product deleted, evicted from cache: %s", changed.getKey());
+         } else {
+            productCache.productExists(changed.getKey());
+         }
+      }
+   }
+}
@@ -0,0 +1,85 @@
+package com.tcurt628.smartshop.review;
+
+import com.vmware.xenon.common.Utils;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers which {@code productLink}s are known to exist, so that validating a review for a popular product doesn't
+ * need any remote calls. Entries expire after a TTL, and once the cache is full the least recently used entry is
+ * evicted. Only existence is cached: a product we have never seen is always looked up remotely.
+ *
+ * @see ProductChangeSubscriber keeps the cache current with product creates/deletes from the {@code product} node group
+ */
+public class ProductExistenceCache {
+
+   private final int maxEntries;
+   private final long ttlMicros;
+
+   /** Maps a productLink to the time (in micros) its entry expires. Access-ordered, so the eldest entry is the LRU one */
+   private final LinkedHashMap<String, Long> expirationByProductLink;
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+
+   public ProductExistenceCache(int maxEntries, long ttlMicros) {
+      if (maxEntries <= 0) {
+         throw new IllegalArgumentException("maxEntries must be positive");
+      }
+      this.maxEntries = maxEntries;
+      this.ttlMicros = ttlMicros;
+      this.expirationByProductLink = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+            return size() > ProductExistenceCache.this.maxEntries;
+         }
+      };
+   }
+
+   /** Returns true if {@code productLink} is known to exist, and its entry hasn't expired yet. */
+   public synchronized boolean exists(String productLink) {
+      Long expiration = expirationByProductLink.get(productLink);
+      if (expiration == null) {
+         misses.incrementAndGet();
+         return false;
+      }
+
+      if (expiration < Utils.getNowMicrosUtc()) {
+         expirationByProductLink.remove(productLink);
+         misses.incrementAndGet();
+         return false;
+      }
+
+      hits.incrementAndGet();
+      return true;
+   }
+
+   /** Records that {@code productLink} exists (or refreshes its TTL if it's already cached). */
+   public synchronized void productExists(String productLink) {
+      expirationByProductLink.put(productLink, Utils.getNowMicrosUtc() + ttlMicros);
+   }
+
+   /** Forgets {@code productLink}, so the next review for it is validated remotely again. */
+   public synchronized void productDeleted(String productLink) {
+      expirationByProductLink.remove(productLink);
+   }
+
+   /** Forgets every product, ie: once the product host the cache was kept current by changed */
+   public synchronized void clear() {
+      expirationByProductLink.clear();
+   }
+
+   public synchronized int size() {
+      return expirationByProductLink.size();
+   }
+
+   public long getHitCount() {
+      return hits.get();
+   }
+
+   public long getMissCount() {
+      return misses.get();
+   }
+}
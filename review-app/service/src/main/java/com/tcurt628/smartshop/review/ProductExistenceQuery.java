@@ -0,0 +1,117 @@
+package com.tcurt628.smartshop.review;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
+
+/**
+ * Looks up many products with few requests: the {@code productLink}s are resolved with OData {@code $filter} queries
+ * ({@code (documentSelfLink eq 'a') or ...}) through the {@code product} node selector, rather than with a lookup per
+ * product. The products found are added to the {@link ProductExistenceCache}.
+ *
+ * @see ReviewBatchService
+ * @see OrphanedReviewReconciler
+ */
+final class ProductExistenceQuery {
+
+   /**
+    * The {@code productLink}s are sent in the query string, and netty rejects request lines over 4k; so many products
+    * are resolved in a few queries of at most this many products each.
+    */
+   static final int MAX_PRODUCT_LINKS_PER_QUERY = 25;
+
+   /** What a lookup found out */
+   static final class Result {
+      /** The {@code productLink}s that don't exist (as opposed to those that couldn't be looked up) */
+      final Set<String> missing = ConcurrentHashMap.newKeySet();
+
+      /** Why each {@code productLink} that doesn't exist, or couldn't be looked up, failed */
+      final Map<String, String> failures = new ConcurrentHashMap<>();
+
+      /** The number of queries sent */
+      int queryCount;
+   }
+
+   private ProductExistenceQuery() {
+   }
+
+   /**
+    * Queries the {@code product} node group for {@code productLinks} on behalf of {@code service}, and hands
+    * {@code onDone} what it found out.
+    */
+   static void lookup(Service service, List<String> productLinks, Consumer<Result> onDone) {
+      Result result = new Result();
+      List<String> queryable = new ArrayList<>(productLinks.size());
+      for (String productLink : productLinks) {
+         // OData has no way to escape a quote inside the filter, and no product link contains one anyway
+         if (productLink.contains("'")) {
+            result.missing.add(productLink);
+            result.failures.put(productLink, String.format("[productLink=%s] is not a valid product link", productLink));
+         } else {
+            queryable.add(productLink);
+         }
+      }
+      if (queryable.isEmpty()) {
+         onDone.accept(result);
+         return;
+      }
+
+      List<List<String>> chunks = new ArrayList<>();
+      for (int from = 0; from < queryable.size(); from += MAX_PRODUCT_LINKS_PER_QUERY) {
+         chunks.add(queryable.subList(from, Math.min(from + MAX_PRODUCT_LINKS_PER_QUERY, queryable.size())));
+      }
+      result.queryCount = chunks.size();
+
+      ProductExistenceCache productCache = ((ReviewHost) service.getHost()).getProductCache();
+      AtomicInteger remaining = new AtomicInteger(chunks.size());
+      for (List<String> chunk : chunks) {
+         Operation getViaNodeSelector = Operation.createGet(service, ReviewService.PRODUCT_FACTORY_LINK + "?expand&$filter=" + buildFilter(chunk))
+               .setReferer(service.getUri())
+               .setCompletion((op, ex) -> {
+                  if (ex != null) {
+                     service.getHost().log(Level.SEVERE, "Error looking up products via node selector: [products=%d] [exception=%s]",
+                           chunk.size(), ex.getMessage());
+                     chunk.forEach(productLink -> result.failures.put(productLink,
+                           String.format("[productLink=%s] could not be looked up: %s", productLink, ex.getMessage())));
+                  } else {
+                     ServiceDocumentQueryResult queryResult = op.getBody(ServiceDocumentQueryResult.class);
+                     Map<String, Object> found = queryResult == null || queryResult.documents == null
+                           ? Collections.emptyMap() : queryResult.documents;
+                     for (String productLink : chunk) {
+                        if (found.containsKey(productLink)) {
+                           productCache.productExists(productLink);
+                        } else {
+                           result.missing.add(productLink);
+                           result.failures.put(productLink,
+                                 String.format("[productLink=%s] does not exist via node-selector", productLink));
+                        }
+                     }
+                  }
+
+                  if (remaining.decrementAndGet() == 0) {
+                     onDone.accept(result);
+                  }
+               });
+         service.getHost().log(Level.FINE, "Forwarding odata GET query for %d products: %s", chunk.size(), getViaNodeSelector.getUri());
+         service.getHost().forwardRequest(ReviewHost.PRODUCT_NODE_SELECTOR_URI, getViaNodeSelector);
+      }
+   }
+
+   /** Builds {@code (documentSelfLink eq 'a') or (documentSelfLink eq 'b') ...} */
+   static String buildFilter(List<String> productLinks) {
+      return productLinks.stream()
+            .map(productLink -> String.format("(documentSelfLink eq '%s')", productLink))
+            .collect(Collectors.joining(" or "));
+   }
+}
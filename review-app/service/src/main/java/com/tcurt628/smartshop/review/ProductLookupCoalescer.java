@@ -0,0 +1,79 @@
+package com.tcurt628.smartshop.review;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Consumer;
+
+/**
+ * Single-flight for the remote {@code productLink} lookups of review validation. While a product is being looked up,
+ * validations of the same product wait for that lookup instead of starting their own, and all complete from its result.
+ * A product that goes viral then costs the product tier one lookup at a time, not one per review: its load is bounded
+ * by the number of distinct products being reviewed.
+ * <p>
+ * Only lookups in flight are shared; a lookup that is done is forgotten straight away (remembering products that exist
+ * is the {@link ProductExistenceCache}'s job).
+ */
+public class ProductLookupCoalescer {
+
+   private final ConcurrentMap<String, Lookup> inFlight = new ConcurrentHashMap<>();
+
+   /**
+    * Hands {@code onDone} the result of looking up {@code productLink}: null if it exists, or why it doesn't (or couldn't
+    * be looked up). If no lookup of {@code productLink} is in flight, {@code lookup} is started, and must hand its result
+    * to the consumer it is given exactly once. Otherwise, {@code onDone} waits for the lookup in flight.
+    *
+    * @return true if {@code onDone} joined a lookup already in flight, false if it started one
+    */
+   public boolean lookup(String productLink, Consumer<Consumer<Throwable>> lookup, Consumer<Throwable> onDone) {
+      while (true) {
+         Lookup started = new Lookup(onDone);
+         Lookup existing = inFlight.putIfAbsent(productLink, started);
+         if (existing == null) {
+            lookup.accept(result -> {
+               inFlight.remove(productLink, started);
+               started.done(result);
+            });
+            return false;
+         }
+         if (existing.join(onDone)) {
+            return true;
+         }
+         // It finished in the meantime, and is being removed; start over
+      }
+   }
+
+   /** The number of products being looked up right now */
+   public int size() {
+      return inFlight.size();
+   }
+
+   /** A lookup in flight, and the validations waiting for its result */
+   private static final class Lookup {
+      private List<Consumer<Throwable>> waiters = new ArrayList<>(1);
+
+      Lookup(Consumer<Throwable> first) {
+         waiters.add(first);
+      }
+
+      synchronized boolean join(Consumer<Throwable> waiter) {
+         if (waiters == null) {
+            return false;
+         }
+         waiters.add(waiter);
+         return true;
+      }
+
+      void done(Throwable result) {
+         List<Consumer<Throwable>> done;
+         synchronized (this) {
+            done = waiters;
+            waiters = null;
+         }
+         for (Consumer<Throwable> waiter : done) {
+            waiter.accept(result);
+         }
+      }
+   }
+}
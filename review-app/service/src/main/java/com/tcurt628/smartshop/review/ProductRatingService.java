@@ -0,0 +1,234 @@
+package com.tcurt628.smartshop.review;
+
+import com.tcurt628.smartshop.review.model.ProductRating;
+import com.tcurt628.smartshop.review.model.ProductRatingUpdateRequest;
+import com.tcurt628.smartshop.review.model.Review;
+import com.vmware.xenon.common.FactoryService;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationJoin;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption;
+import com.vmware.xenon.common.StatefulService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+
+import static com.tcurt628.smartshop.review.ReviewService.MAX_STAR;
+import static com.tcurt628.smartshop.review.ReviewService.MIN_STAR;
+
+/**
+ * The {@link ProductRating} of one product, at {@code /product-ratings/<productId>}. Rather than aggregating every
+ * {@link Review} of a product on each read, {@link ReviewService} sends this service a delta whenever a review is
+ * created, has its stars changed, or is deleted; so reading a rating is a single GET, however many reviews it has.
+ *
+ * The service is owner-selected on the {@code review} node group, so all deltas of a product are applied one at a time
+ * by the same node, and then replicated. A PATCH with {@code rebuild} recomputes the summary from the reviews in the
+ * index, for when deltas got lost (ie: a review host crashed between creating a review and sending its delta).
+ */
+public class ProductRatingService extends StatefulService {
+
+   public static final String FACTORY_LINK = "/product-ratings";
+
+   /** Create a default factory service that starts instances of this service on POST. */
+   public static Service createFactory() {
+      return FactoryService.create(ProductRatingService.class, ProductRating.class);
+   }
+
+   /** The link of the rating of {@code productLink}: {@code /products/123} is rated at {@code /product-ratings/123} */
+   public static String ratingLinkFor(String productLink) {
+      return UriUtils.buildUriPath(FACTORY_LINK, UriUtils.getLastPathSegment(productLink));
+   }
+
+   /**
+    * Sends {@code update} to the rating of {@code productLink}, creating the rating first if this is the product's
+    * first review. Failures are only logged: the rating can always be recovered with a rebuild.
+    */
+   public static void sendUpdate(Service sender, String productLink, ProductRatingUpdateRequest update) {
+      String ratingLink = ratingLinkFor(productLink);
+      Operation patch = Operation.createPatch(UriUtils.buildUri(sender.getHost(), ratingLink))
+            .setBody(update)
+            .setReferer(sender.getUri())
+            // Fail right away if the rating doesn't exist yet, instead of waiting for it to be created
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+            .setCompletion((op, ex) -> {
+               if (ex == null) {
+                  return;
+               }
+               if (op.getStatusCode() != Operation.STATUS_CODE_NOT_FOUND) {
+                  sender.getHost().log(Level.WARNING, "Could not update %s: %s", ratingLink, ex.getMessage());
+                  return;
+               }
+               createAndUpdate(sender, productLink, update);
+            });
+      sender.sendRequest(patch);
+   }
+
+   private static void createAndUpdate(Service sender, String productLink, ProductRatingUpdateRequest update) {
+      ProductRating emptyRating = new ProductRating();
+      emptyRating.documentSelfLink = ratingLinkFor(productLink);
+      emptyRating.productLink = productLink;
+
+      Operation create = Operation.createPost(UriUtils.buildUri(sender.getHost(), FACTORY_LINK))
+            .setBody(emptyRating)
+            .setReferer(sender.getUri())
+            .setCompletion((op, ex) -> {
+               // A conflict means a concurrent review of the same product created the rating first, which is fine
+               if (ex != null && op.getStatusCode() != Operation.STATUS_CODE_CONFLICT) {
+                  sender.getHost().log(Level.WARNING, "Could not create %s: %s", emptyRating.documentSelfLink, ex.getMessage());
+                  return;
+               }
+               sender.sendRequest(Operation.createPatch(UriUtils.buildUri(sender.getHost(), emptyRating.documentSelfLink))
+                     .setBody(update)
+                     .setReferer(sender.getUri())
+                     .setCompletion((patchOp, patchEx) -> {
+                        if (patchEx != null) {
+                           sender.getHost().log(Level.WARNING, "Could not update %s: %s",
+                                 emptyRating.documentSelfLink, patchEx.getMessage());
+                        }
+                     }));
+            });
+      sender.sendRequest(create);
+   }
+
+   public ProductRatingService() {
+      super(ProductRating.class);
+      super.toggleOption(ServiceOption.PERSISTENCE, true);
+      super.toggleOption(ServiceOption.REPLICATION, true);
+      super.toggleOption(ServiceOption.OWNER_SELECTION, true);
+      super.setPeerNodeSelectorPath(ReviewHost.REVIEW_NODE_SELECTOR_URI);
+   }
+
+   /**
+    * Indexes {@code productLink} for sorting, as {@link ReviewService} does. Document kinds share the fields of the
+    * index, and the {@link OrphanedReviewReconciler}'s sort on {@code productLink} fails over any index segment where
+    * the field can't be sorted on, such as one with only ratings.
+    */
+   @Override
+   public ServiceDocument getDocumentTemplate() {
+      ServiceDocument template = super.getDocumentTemplate();
+      template.documentDescription.propertyDescriptions.get("productLink").indexingOptions
+            .add(PropertyIndexingOption.SORT);
+      return template;
+   }
+
+   @Override
+   public void handleStart(Operation post) {
+      ProductRating state = post.hasBody() ? post.getBody(ProductRating.class) : new ProductRating();
+      if (state.productLink == null) {
+         state.productLink = UriUtils.buildUriPath(ReviewService.PRODUCT_FACTORY_LINK,
+               UriUtils.getLastPathSegment(getSelfLink()));
+      }
+      if (state.starHistogram == null || state.starHistogram.length != MAX_STAR) {
+         state.starHistogram = new long[MAX_STAR];
+      }
+      summarize(state);
+      setState(post, state);
+      post.complete();
+   }
+
+   @Override
+   public void handlePut(Operation put) {
+      throw new UnsupportedOperationException(
+            "PUT not supported; Please use PATCH (with ProductRatingUpdateRequest) instead");
+   }
+
+   @Override
+   public void handlePatch(Operation patch) {
+      ProductRating currentState = getState(patch);
+      ProductRatingUpdateRequest update = patch.getBody(ProductRatingUpdateRequest.class);
+
+      if (update.rebuild) {
+         rebuild(patch, currentState);
+         return;
+      }
+
+      try {
+         validateStars(update.removedStars);
+         validateStars(update.addedStars);
+      } catch (Exception e) {
+         logWarning("Error during PATCH. [patch=%s] [error=%s]", patch, e);
+         patch.fail(e);
+         return;
+      }
+
+      if (update.removedStars != null && currentState.starHistogram[update.removedStars - 1] > 0) {
+         currentState.starHistogram[update.removedStars - 1]--;
+      }
+      if (update.addedStars != null) {
+         currentState.starHistogram[update.addedStars - 1]++;
+      }
+      summarize(currentState);
+      logFine("Rating updated: [addedStars=%s] [removedStars=%s] %s", update.addedStars, update.removedStars, currentState);
+
+      setState(patch, currentState);
+      patch.setBody(currentState);
+      patch.complete();
+   }
+
+   private static void validateStars(Integer stars) {
+      if (stars != null && (stars < MIN_STAR || stars > MAX_STAR)) {
+         throw new IllegalArgumentException(
+               String.format("stars: must be between %d and %d", MIN_STAR, MAX_STAR));
+      }
+   }
+
+   /**
+    * Recounts the reviews of this product, with one COUNT query per star value against the local index (reviews are
+    * replicated to every node of the {@code review} node group). Deltas that arrive meanwhile wait for the rebuild to
+    * finish, since updates to this service are applied one at a time.
+    */
+   private void rebuild(Operation patch, ProductRating currentState) {
+      List<Operation> counts = new ArrayList<>(MAX_STAR);
+      for (long stars = MIN_STAR; stars <= MAX_STAR; stars++) {
+         QueryTask countQuery = QueryTask.Builder.createDirectTask()
+               .addOption(QueryTask.QuerySpecification.QueryOption.COUNT)
+               .setQuery(QueryTask.Query.Builder.create()
+                     .addKindFieldClause(Review.class)
+                     .addFieldClause("productLink", currentState.productLink)
+                     .addRangeClause("stars", QueryTask.NumericRange.createLongRange(stars, stars, true, true))
+                     .build())
+               .build();
+         counts.add(Operation.createPost(this, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS).setBody(countQuery));
+      }
+
+      logInfo("Rebuilding rating of %s from the index", currentState.productLink);
+      OperationJoin.create(counts)
+            .setCompletion((ops, failures) -> {
+               if (failures != null) {
+                  Throwable failure = failures.values().iterator().next();
+                  logWarning("Could not rebuild rating of %s: %s", currentState.productLink, failure.getMessage());
+                  patch.fail(failure);
+                  return;
+               }
+
+               for (int i = 0; i < counts.size(); i++) {
+                  QueryTask result = ops.get(counts.get(i).getId()).getBody(QueryTask.class);
+                  Long count = result.results != null ? result.results.documentCount : null;
+                  currentState.starHistogram[i] = count != null ? count : 0;
+               }
+               summarize(currentState);
+               logInfo("Rating rebuilt: %s", currentState);
+
+               setState(patch, currentState);
+               patch.setBody(currentState);
+               patch.complete();
+            })
+            .sendWith(this);
+   }
+
+   /** Derives the count, sum and average from the histogram, so they can never drift apart from it */
+   private static void summarize(ProductRating state) {
+      state.reviewCount = 0;
+      state.starSum = 0;
+      for (int i = 0; i < state.starHistogram.length; i++) {
+         state.reviewCount += state.starHistogram[i];
+         state.starSum += state.starHistogram[i] * (i + 1);
+      }
+      state.averageStars = state.reviewCount == 0 ? 0 : (double) state.starSum / state.reviewCount;
+   }
+}
@@ -0,0 +1,34 @@
+package com.tcurt628.smartshop.review;
+
+/**
+ * How {@link ReviewService} checks that the {@code productLink} of a new review exists, when the product isn't in the
+ * {@link ProductExistenceCache}. Chosen with the {@code productValidation} host argument.
+ */
+public enum ProductValidation {
+
+   /** Look the product up through the {@code product} node selector and through DNS, and wait for both. */
+   BOTH,
+
+   /** Only look it up through the {@code product} node selector (the host has to be joined to the node group). */
+   NODE_SELECTOR,
+
+   /** Only look it up through DNS. */
+   DNS,
+
+   /** Look it up both ways, and take whichever finds it first. A product that doesn't exist fails once both say so. */
+   RACE,
+
+   /**
+    * Create the review without waiting for a lookup, and look the product up (through the node selector) afterwards. A
+    * review whose product doesn't exist is then marked {@code orphaned}, rather than rejected.
+    */
+   ASYNC;
+
+   boolean usesNodeSelector() {
+      return this != DNS;
+   }
+
+   boolean usesDns() {
+      return this == BOTH || this == DNS || this == RACE;
+   }
+}
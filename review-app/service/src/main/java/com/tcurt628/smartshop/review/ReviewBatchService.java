@@ -0,0 +1,139 @@
+package com.tcurt628.smartshop.review;
+
+import com.tcurt628.smartshop.review.model.Review;
+import com.tcurt628.smartshop.review.model.ReviewBatchResponse;
+import com.tcurt628.smartshop.review.model.ReviewBatchResponse.ItemResult;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.OperationJoin;
+import com.vmware.xenon.common.StatelessService;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Creates many reviews with one request. The body is a JSON array of {@link Review}s. Most batches point at a small set
+ * of products, so instead of looking up the {@code productLink} of every review (which costs two remote calls per
+ * review), the distinct {@code productLink}s of the batch are resolved in bulk with a {@link ProductExistenceQuery}.
+ * The products found are added to the {@link ProductExistenceCache}, so the reviews POSTed to the {@code /reviews}
+ * factory afterwards pass validation without any further lookups.
+ */
+public class ReviewBatchService extends StatelessService {
+
+   public static final String SELF_LINK = ReviewService.FACTORY_LINK + "/batch";
+
+   @Override
+   public void handlePost(Operation post) {
+      if (!post.hasBody()) {
+         post.fail(new IllegalArgumentException("Must include non-empty body"));
+         return;
+      }
+
+      List<Review> reviews;
+      try {
+         reviews = Arrays.asList(post.getBody(Review[].class));
+      } catch (Exception e) {
+         logWarning("Could not parse review batch: %s", e.getMessage());
+         post.fail(new IllegalArgumentException("Body must be a JSON array of reviews", e));
+         return;
+      }
+      if (reviews.isEmpty()) {
+         post.fail(new IllegalArgumentException("Batch must contain at least one review"));
+         return;
+      }
+
+      ReviewBatchResponse response = new ReviewBatchResponse();
+      Map<Integer, Review> validReviews = new LinkedHashMap<>();
+      for (int index = 0; index < reviews.size(); index++) {
+         ItemResult result = new ItemResult();
+         result.index = index;
+         response.results.add(result);
+
+         Review review = reviews.get(index);
+         try {
+            if (review == null) {
+               throw new IllegalArgumentException("Review cannot be null");
+            }
+            ReviewService.validateReview(review);
+         } catch (IllegalArgumentException e) {
+            fail(response, result, Operation.STATUS_CODE_BAD_REQUEST, e.getMessage());
+            continue;
+         }
+         validReviews.put(index, review);
+      }
+
+      Set<String> productLinks = validReviews.values().stream()
+            .map(review -> review.productLink)
+            .collect(Collectors.toCollection(LinkedHashSet::new));
+      response.distinctProductCount = productLinks.size();
+
+      ProductExistenceCache productCache = ((ReviewHost) getHost()).getProductCache();
+      List<String> unknownProductLinks = productLinks.stream()
+            .filter(productLink -> !productCache.exists(productLink))
+            .collect(Collectors.toList());
+
+      logInfo("Validating %d reviews over %d products (%d not cached)",
+            validReviews.size(), productLinks.size(), unknownProductLinks.size());
+      ProductExistenceQuery.lookup(this, unknownProductLinks, lookup -> {
+         response.productLookupCount = lookup.queryCount;
+         List<Integer> toCreate = new ArrayList<>();
+         for (Map.Entry<Integer, Review> valid : validReviews.entrySet()) {
+            ItemResult result = response.results.get(valid.getKey());
+            String lookupFailure = lookup.failures.get(valid.getValue().productLink);
+            if (lookupFailure != null) {
+               fail(response, result, Operation.STATUS_CODE_BAD_REQUEST, lookupFailure);
+               continue;
+            }
+            toCreate.add(valid.getKey());
+         }
+         createReviews(post, reviews, toCreate, response);
+      });
+   }
+
+   private void createReviews(Operation post, List<Review> reviews, List<Integer> indexes, ReviewBatchResponse response) {
+      if (indexes.isEmpty()) {
+         post.setBody(response).complete();
+         return;
+      }
+
+      Map<Long, ItemResult> resultsByOperationId = new HashMap<>();
+      List<Operation> creates = new ArrayList<>(indexes.size());
+      for (Integer index : indexes) {
+         Operation create = Operation.createPost(this, ReviewService.FACTORY_LINK).setBody(reviews.get(index));
+         resultsByOperationId.put(create.getId(), response.results.get(index));
+         creates.add(create);
+      }
+
+      logInfo("Creating %d reviews with [concurrency=%d]", creates.size(), ReviewHost.hostArguments.reviewBatchConcurrency);
+      OperationJoin.create(creates)
+            .setCompletion((ops, failures) -> {
+               for (Operation create : ops.values()) {
+                  ItemResult result = resultsByOperationId.get(create.getId());
+                  Throwable failure = failures != null ? failures.get(create.getId()) : null;
+                  if (failure != null) {
+                     fail(response, result, create.getStatusCode(), failure.getMessage());
+                  } else {
+                     result.statusCode = create.getStatusCode();
+                     result.documentSelfLink = create.getBody(Review.class).documentSelfLink;
+                     response.createdCount++;
+                  }
+               }
+               logInfo("Batch done: [created=%d] [failed=%d] [productLookups=%d]",
+                     response.createdCount, response.failedCount, response.productLookupCount);
+               post.setBody(response).complete();
+            })
+            .sendWith(this, ReviewHost.hostArguments.reviewBatchConcurrency);
+   }
+
+   private static void fail(ReviewBatchResponse response, ItemResult result, int statusCode, String message) {
+      result.statusCode = statusCode;
+      result.failureMessage = message;
+      response.failedCount++;
+   }
+}
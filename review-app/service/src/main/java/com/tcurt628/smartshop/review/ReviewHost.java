@@ -1,29 +1,29 @@
 package com.tcurt628.smartshop.review;
 
+import com.tcurt628.smartshop.common.bootstrap.ClusterBootstrap;
+import com.tcurt628.smartshop.common.bootstrap.Readiness;
+import com.tcurt628.smartshop.common.bootstrap.ReadinessService;
+import com.tcurt628.smartshop.common.host.HostProfile;
+import com.tcurt628.smartshop.common.logging.LoggingMode;
+import com.tcurt628.smartshop.common.logging.SmartShopLogging;
+import com.tcurt628.smartshop.common.metrics.MetricsHost;
+import com.tcurt628.smartshop.common.metrics.MetricsRegistry;
+import com.tcurt628.smartshop.common.metrics.MetricsService;
+import com.tcurt628.smartshop.common.serialization.CompactDocumentSerializer;
+import com.tcurt628.smartshop.dns.DnsEndpoints;
+import com.tcurt628.smartshop.dns.DnsRegistration;
+import com.tcurt628.smartshop.dns.DnsRoutingTable;
+import com.tcurt628.smartshop.dns.EndpointSelection;
+import com.tcurt628.smartshop.dns.SmartShopDnsQueries;
+import com.tcurt628.smartshop.review.model.Review;
 import com.vmware.xenon.common.CommandLineArgumentParser;
-import com.vmware.xenon.common.NodeSelectorService;
-import com.vmware.xenon.common.NodeSelectorState;
 import com.vmware.xenon.common.Operation;
-import com.vmware.xenon.common.OperationJoin;
-import com.vmware.xenon.common.OperationSequence;
-import com.vmware.xenon.common.Service;
 import com.vmware.xenon.common.ServiceHost;
 import com.vmware.xenon.common.UriUtils;
-import com.vmware.xenon.dns.services.DNSFactoryService;
-import com.vmware.xenon.services.common.ConsistentHashingNodeSelectorService;
-import com.vmware.xenon.services.common.NodeGroupFactoryService;
-import com.vmware.xenon.services.common.NodeGroupService;
 import com.vmware.xenon.services.common.RootNamespaceService;
 import com.vmware.xenon.services.common.ServiceUriPaths;
 
-import java.net.URI;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 
 import static com.tcurt628.smartshop.review.JoinProductNodeGroupTaskService.JoinProductNodeGroupTaskServiceState;
@@ -31,7 +31,7 @@ import static com.tcurt628.smartshop.review.JoinProductNodeGroupTaskService.Join
 /**
  * Our entry point, spawning a host that run/showcase examples we can play with.
  */
-public class ReviewHost extends ServiceHost {
+public class ReviewHost extends ServiceHost implements MetricsHost {
 
    public static final String PRODUCT_NODE_GROUP_URI = ServiceUriPaths.NODE_GROUP_FACTORY + "/product";
    public static final String PRODUCT_NODE_SELECTOR_URI = ServiceUriPaths.NODE_SELECTOR_PREFIX + "/product";
@@ -39,26 +39,107 @@ public class ReviewHost extends ServiceHost {
    public static final String REVIEW_NODE_GROUP_URI = ServiceUriPaths.NODE_GROUP_FACTORY + "/review";
    public static final String REVIEW_NODE_SELECTOR_URI = ServiceUriPaths.NODE_SELECTOR_PREFIX + "/review";
 
-   /** The key to the map is the node selector URI; and the value is the node group URI */
-   private static Map<String, String> NODE_GROUP_TO_SELECTORS_MAP = new HashMap<>();
-   static {
-      NODE_GROUP_TO_SELECTORS_MAP.put(PRODUCT_NODE_SELECTOR_URI, PRODUCT_NODE_GROUP_URI);
-      NODE_GROUP_TO_SELECTORS_MAP.put(REVIEW_NODE_SELECTOR_URI, REVIEW_NODE_GROUP_URI);
-   }
-
    public static class Arguments {
       public String dnshost;
       public int dnsport;
+
+      /**
+       * The other nodes of the DNS cluster, as {@code http://host:port}; DNS requests that fail on one node are tried on
+       * the next
+       */
+      public String[] dnsNodes;
+
+      /**
+       * How long this host stays registered with DNS without a heartbeat; once a host dies, it's routed to for no longer
+       * than this
+       */
+      public int dnsLeaseSeconds = 10;
+
+      /** How often this host renews its DNS registration; less than {@code dnsLeaseSeconds} */
+      public int dnsHeartbeatSeconds = 3;
+
       public int initialNodes = 1;
+
+      /** Max number of products the review host remembers as existing; the least recently used are evicted first */
+      public int productCacheSize = 10000;
+
+      /** How long a remembered product is trusted before it has to be looked up remotely again */
+      public int productCacheTtlSeconds = 300;
+
+      /** How long the nodes DNS returns for a service are used before asking DNS again */
+      public int dnsCacheTtlSeconds = 30;
+
+      /** How long a "no such service" answer from DNS is remembered */
+      public int dnsNegativeCacheTtlSeconds = 5;
+
+      /** How DNS-routed requests are spread over the nodes running a service */
+      public EndpointSelection dnsEndpointSelection = EndpointSelection.ROUND_ROBIN;
+
+      /** How long a node that failed or timed out is kept out of rotation before its health check is probed */
+      public int dnsEjectionSeconds = 30;
+
+      /**
+       * Whether the product nodes are kept current by the changes DNS pushes, rather than cached for
+       * {@code dnsCacheTtlSeconds}
+       */
+      public boolean dnsWatch = true;
+
+      /** How often the product nodes DNS pushes are read again in full, in case a change was lost */
+      public int dnsWatchResyncSeconds = 60;
+
+      /** How a new review's {@code productLink} is checked, when the product isn't cached; see {@link ProductValidation} */
+      public ProductValidation productValidation = ProductValidation.BOTH;
+
+      /** Max number of reviews of a {@code /reviews/batch} request that are being created at once */
+      public int reviewBatchConcurrency = 64;
+
+      /** How often the reviews are walked for orphans (reviews whose product doesn't exist); 0 turns it off */
+      public int orphanReconcileSeconds = 3600;
+
+      /** Max number of reviews a second the orphan walk reads, so it never competes with foreground traffic; 0 for no limit */
+      public int orphanReconcileReviewsPerSecond = 200;
+
+      /** Whether orphaned reviews are marked {@code orphaned} or deleted */
+      public OrphanedReviewReconciler.OrphanAction orphanAction = OrphanedReviewReconciler.OrphanAction.MARK;
+
+      /** How often the host checks it's still joined to an available product host, and rejoins one if it isn't */
+      public int productJoinReconcileSeconds = 30;
+
+      /** The timeouts, pools, cache and logging settings the host runs with; see {@link HostProfile} */
+      public HostProfile hostProfile = HostProfile.DEV;
+
+      /**
+       * {@code DEBUG} logs every request at {@code FINE}; {@code PRODUCTION} only logs {@code INFO} and up, off-thread.
+       * Defaults to the one of {@code hostProfile}.
+       */
+      public LoggingMode loggingMode;
+
+      /** Max lines a second each service class may log below {@code SEVERE}, in {@code PRODUCTION} logging mode */
+      public int logRecordsPerSecond = 100;
+
+      /**
+       * Persists reviews in a compact binary form, rather than Xenon's. The ones persisted in either form are still
+       * read, so a host can be switched back and forth; the JSON at the REST API is the same either way. It's set for
+       * the JVM, not the host: every review host started in one JVM (ie: the nodes of a test) uses the last one's.
+       */
+      public boolean compactDocuments = false;
    }
 
    public static Arguments hostArguments = new Arguments();
 
+   private final MetricsRegistry metricsRegistry = new MetricsRegistry();
+   private ClusterBootstrap bootstrap;
+
+   private ProductExistenceCache productCache;
+   private ProductChangeSubscriber productChangeSubscriber;
+   private final ProductLookupCoalescer lookupCoalescer = new ProductLookupCoalescer();
+   private DnsEndpoints dnsEndpoints;
+   private SmartShopDnsQueries dnsQueries;
+
    public static void main(String[] args) throws Throwable {
       CommandLineArgumentParser.parse(hostArguments, args);
       ReviewHost h = new ReviewHost();
       h.initialize(args);
-      h.toggleDebuggingMode(true);
       h.start();
       Runtime.getRuntime().addShutdownHook(new Thread(() -> {
          h.log(Level.WARNING, "Host stopping ...");
@@ -70,7 +151,15 @@ public class ReviewHost extends ServiceHost {
    /** Start services: a host can run multiple services. */
    @Override
    public ServiceHost start() throws Throwable {
+      bootstrap = new ClusterBootstrap(this, hostArguments.initialNodes)
+            .addNodeSelector(PRODUCT_NODE_SELECTOR_URI, PRODUCT_NODE_GROUP_URI)
+            .addNodeSelector(REVIEW_NODE_SELECTOR_URI, REVIEW_NODE_GROUP_URI);
+      // Before the index is started, so that no document is persisted in the other form first
+      CompactDocumentSerializer.setEnabled(Review.class, hostArguments.compactDocuments);
       super.start();
+      hostArguments.hostProfile.applyTo(this);
+      SmartShopLogging.configure(this, hostArguments.hostProfile.resolveLoggingMode(hostArguments.loggingMode),
+            hostArguments.logRecordsPerSecond);
 
       // Start core services (logging, gossiping)-- must be done once
       startDefaultCoreServicesSynchronously();
@@ -83,27 +172,78 @@ public class ReviewHost extends ServiceHost {
 
       this.log(Level.FINE, "Default core services started!");
 
+      // Serve the latency metrics our services record, at /metrics
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, MetricsService.SELF_LINK)),
+            new MetricsService(metricsRegistry));
+
+      // Serve how far the start up got, at /readiness
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, ReadinessService.SELF_LINK)),
+            new ReadinessService(bootstrap));
+
+      productCache = new ProductExistenceCache(hostArguments.productCacheSize,
+            TimeUnit.SECONDS.toMicros(hostArguments.productCacheTtlSeconds));
+      productChangeSubscriber = new ProductChangeSubscriber(this, productCache);
+      dnsEndpoints = DnsEndpoints.of(hostArguments.dnshost, hostArguments.dnsport, hostArguments.dnsNodes);
+      dnsQueries = new SmartShopDnsQueries(dnsEndpoints,
+            TimeUnit.SECONDS.toMicros(hostArguments.dnsCacheTtlSeconds),
+            TimeUnit.SECONDS.toMicros(hostArguments.dnsNegativeCacheTtlSeconds))
+            .setEndpointSelector(hostArguments.dnsEndpointSelection.newSelector())
+            .setEjectionMicros(TimeUnit.SECONDS.toMicros(hostArguments.dnsEjectionSeconds));
+
+      // Create custom node groups and selectors; our services replicate through (or are owned on) the review selector,
+      // so they start after it
+      bootstrap.start(this::startReviewServices);
+      return this;
+   }
+
+   private void startReviewServices() {
       // start our task service factory
-      URI joinProductFactoryUri = UriUtils.buildFactoryUri(this, JoinProductNodeGroupTaskService.class);
-      log(Level.INFO, "joinProductFactoryUri = %s", joinProductFactoryUri);
       super.startService(
-            Operation.createPost(joinProductFactoryUri),
+            Operation.createPost(UriUtils.buildFactoryUri(this, JoinProductNodeGroupTaskService.class)),
             JoinProductNodeGroupTaskService.createFactory());
 
-      // Create custom node groups and selectors
-      createNodeGroupsAndSelectors(NODE_GROUP_TO_SELECTORS_MAP);
-
       // start our service
       super.startService(
             Operation.createPost(UriUtils.buildFactoryUri(this, ReviewService.class)),
             ReviewService.createFactory());
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, ReviewBatchService.class)),
+            new ReviewBatchService());
+      super.startService(
+            Operation.createPost(UriUtils.buildFactoryUri(this, ProductRatingService.class)),
+            ProductRatingService.createFactory());
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, ReviewsByProductService.class)),
+            new ReviewsByProductService());
+      super.startService(
+            Operation.createPost(UriUtils.buildUri(this, OrphanedReviewReconciler.class)),
+            new OrphanedReviewReconciler());
+
+      // Regiser our service with DNS, and join the product node group, once they can be called
+      bootstrap.awaitAvailable("review services", () -> {
+         registerWithDNS();
+         watchProductsInDNS();
+         createJoinTask();
+      }, JoinProductNodeGroupTaskService.FACTORY_LINK, ReviewService.FACTORY_LINK, ReviewBatchService.SELF_LINK,
+            ProductRatingService.FACTORY_LINK, ReviewsByProductService.SELF_LINK, OrphanedReviewReconciler.SELF_LINK);
+   }
 
-      // Regiser our service with DNS
-      registerWithDNS();
+   /** Has DNS push the changes of the product nodes, so they're routed to without asking DNS */
+   private void watchProductsInDNS() {
+      if (!hostArguments.dnsWatch) {
+         return;
+      }
+      DnsRoutingTable routingTable = new DnsRoutingTable(this, dnsEndpoints,
+            TimeUnit.SECONDS.toMicros(hostArguments.dnsWatchResyncSeconds));
+      dnsQueries.watch(routingTable, ReviewService.PRODUCT_FACTORY_LINK);
+   }
 
-      // Kick off a task service instance...
+   /** Kicks off a task that finds a product host through DNS, and joins its product node group */
+   private void createJoinTask() {
       JoinProductNodeGroupTaskServiceState joinTaskState = new JoinProductNodeGroupTaskServiceState();
-      Operation createJoinTask = Operation.createPost(joinProductFactoryUri)
+      Operation createJoinTask = Operation.createPost(UriUtils.buildUri(this, JoinProductNodeGroupTaskService.FACTORY_LINK))
             .setBody(joinTaskState)
             .setReferer(getUri())
             .setCompletion((op, err) -> {
@@ -114,103 +254,47 @@ public class ReviewHost extends ServiceHost {
                log(Level.INFO, "Successfully created task");
             });
       sendRequest(createJoinTask);
-
-      return this;
    }
 
-   private void registerWithDNS() {
-      URI dnsHost = UriUtils.buildUri(hostArguments.dnshost, hostArguments.dnsport, null, null);
-
-      Operation.CompletionHandler completionHandler = (o, e) -> {
-         assert (e == null);
-         this.log(Level.INFO, "Successfully registered with DNS at " + dnsHost);
-      };
-
-      Operation postToDns = DNSFactoryService.createPost(dnsHost,
-            this,
-            ReviewService.FACTORY_LINK,
-            ReviewService.class.getSimpleName(),
-            null,
-            ReviewService.FACTORY_LINK + "/available",
-            1L)
-            .setCompletion(completionHandler);
-      this.sendRequest(postToDns);
+   /** Products known to exist, used by {@link ReviewService} to skip remote product lookups */
+   public ProductExistenceCache getProductCache() {
+      return productCache;
    }
 
-   //
-   // TODO Extract all code below here to the base ServiceHost class.
-   //
-   private void createNodeGroupsAndSelectors(Map<String, String> nodeSelectorToNodeGroupMap) throws Throwable {
-      if (nodeSelectorToNodeGroupMap == null || nodeSelectorToNodeGroupMap.size() == 0) {
-         throw new IllegalArgumentException("Must provide a map with at least one node group to node selector entry");
-      }
-
-      Set<String> nodeGroupUris = new HashSet<>(nodeSelectorToNodeGroupMap.values());
-      log(Level.INFO, "Creating node groups: %s", nodeGroupUris);
-
-      Collection<Operation> createNodeGroups = new ArrayList<>(nodeGroupUris.size());
-      Collection<Operation> patchQuorums = new ArrayList<>(nodeGroupUris.size());
-      List<Operation> createNodeSelectors = new ArrayList<>(nodeSelectorToNodeGroupMap.size());
-      List<Service> createNodeSelectorServices = new ArrayList<>(nodeSelectorToNodeGroupMap.size());
-      for (String nodeGroupSelector : nodeSelectorToNodeGroupMap.keySet()) {
-         String nodeGroup = nodeSelectorToNodeGroupMap.get(nodeGroupSelector);
-         Operation postNewNodeGroup = createNewNodeGroupOperation(nodeGroup);
-         createNodeGroups.add(postNewNodeGroup);
-
-         Operation patchUpdateQuorum = createQuorumRequestOperation(nodeGroup);
-         patchQuorums.add(patchUpdateQuorum);
-
-         NodeSelectorService nodeSelectorService = new ConsistentHashingNodeSelectorService();
-         NodeSelectorState nodeSelectorState = new NodeSelectorState();
-         nodeSelectorState.nodeGroupLink = nodeGroup;
-
-         Operation postNodeSelector = Operation.createPost(
-               UriUtils.buildUri(this, nodeGroupSelector))
-               .setReferer(UriUtils.buildUri(this, ""));
-         postNodeSelector.setBody(nodeSelectorState);
-         createNodeSelectors.add(postNodeSelector);
-         createNodeSelectorServices.add(nodeSelectorService);
-      }
-
-      OperationJoin nodeGroupOperations = OperationJoin.create(createNodeGroups);
-      OperationJoin quorumOperations = OperationJoin.create(patchQuorums);
+   /** Keeps {@link #getProductCache()} current, once the host joined the {@code product} node group */
+   public ProductChangeSubscriber getProductChangeSubscriber() {
+      return productChangeSubscriber;
+   }
 
-      OperationSequence.create(nodeGroupOperations, quorumOperations)
-            .setCompletion( (ops,failures) -> {
-               if (failures != null && !failures.isEmpty()) {
-                  log(Level.SEVERE, "Error when creating node groups/selectors: %s. [ops.values=%s] [failures.values=%s]",
-                        nodeGroupUris, ops.values(), failures.values());
-                  throw new IllegalStateException("Error when creating node groups/selectors", failures.values().iterator().next());
-               }
+   /** The remote product lookups in flight, shared by the reviews of the same product {@link ReviewService} validates */
+   public ProductLookupCoalescer getLookupCoalescer() {
+      return lookupCoalescer;
+   }
 
-               log(Level.INFO, "Successfully created node-groups: %s", nodeGroupUris);
-               log(Level.FINE, "Completed %d operations: %s", ops.size(), ops.values());
-               for (int ndx=0; ndx < createNodeSelectors.size(); ndx++) {
-                  Operation nodeSelectorPost = createNodeSelectors.get(ndx);
-                  Service nodeSelectorService = createNodeSelectorServices.get(ndx);
-                  startService(nodeSelectorPost, nodeSelectorService);
-                  log(Level.FINE, "Started [nodeSelector=%s]", nodeSelectorPost.getUri());
-               }
-            })
-            .sendWith(this);
-      this.log(Level.FINE, "Sent requests to create node groups: %s", nodeGroupUris);
+   /** DNS client shared by every service on this host, so they all share its resolution cache */
+   public SmartShopDnsQueries getDnsQueries() {
+      return dnsQueries;
    }
 
-   private Operation createNewNodeGroupOperation(String nodeGroup) {
-      Operation postNewNodeGroup = NodeGroupFactoryService
-            .createNodeGroupPostOp(this, nodeGroup)
-            .setReferer(getUri());
-      return postNewNodeGroup;
+   /** How far the start up of this host got; served at {@link ReadinessService#SELF_LINK} */
+   public Readiness getReadiness() {
+      return bootstrap.getReadiness();
    }
 
-   private Operation createQuorumRequestOperation(String nodeGroup) {
-      NodeGroupService.UpdateQuorumRequest quorumRequest = NodeGroupService.UpdateQuorumRequest.create(true);
-      quorumRequest.setMembershipQuorum(hostArguments.initialNodes);
-      URI nodeGroupUri = UriUtils.buildUri(this, nodeGroup);
-      Operation patchUpdateQuorum = Operation.createPatch(nodeGroupUri)
-            .setBody(quorumRequest)
-            .setReferer(getUri());
-      return patchUpdateQuorum;
+   /** Where {@link ReviewService} records its latencies; served at {@link MetricsService#SELF_LINK} */
+   @Override
+   public MetricsRegistry getMetricsRegistry() {
+      return metricsRegistry;
    }
 
+   private void registerWithDNS() {
+      DnsRegistration registration = new DnsRegistration(this, dnsEndpoints,
+            ReviewService.FACTORY_LINK,
+            ReviewService.class.getSimpleName(),
+            ReviewService.FACTORY_LINK + "/available",
+            TimeUnit.SECONDS.toMicros(hostArguments.dnsLeaseSeconds),
+            TimeUnit.SECONDS.toMicros(hostArguments.dnsHeartbeatSeconds));
+      bootstrap.runWithRetry("registration with DNS at " + dnsEndpoints, registration::register,
+            bootstrap::serving);
+   }
 }
@@ -1,14 +1,18 @@
 package com.tcurt628.smartshop.review;
 
+import com.tcurt628.smartshop.common.metrics.MeteredStatefulService;
+import com.tcurt628.smartshop.common.metrics.OperationStage;
 import com.tcurt628.smartshop.dns.SmartShopDnsQueries;
 import com.tcurt628.smartshop.product.model.Product;
+import com.tcurt628.smartshop.review.model.ProductRatingUpdateRequest;
 import com.tcurt628.smartshop.review.model.Review;
 import com.tcurt628.smartshop.review.model.ReviewUpdateRequest;
 import com.vmware.xenon.common.FactoryService;
 import com.vmware.xenon.common.Operation;
 import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription.PropertyIndexingOption;
 import com.vmware.xenon.common.ServiceDocumentQueryResult;
-import com.vmware.xenon.common.StatefulService;
 import com.vmware.xenon.common.UriUtils;
 import com.vmware.xenon.common.Utils;
 import com.vmware.xenon.dns.services.DNSService;
@@ -19,13 +23,12 @@ import org.apache.commons.lang3.builder.ToStringBuilder;
 import java.net.URI;
 import java.util.Collections;
 import java.util.Map;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.logging.Level;
-import java.util.logging.Logger;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
-public class ReviewService extends StatefulService {
+public class ReviewService extends MeteredStatefulService {
 
    public static final Integer MIN_STAR = 1;
    public static final Integer MAX_STAR = 5;
@@ -33,13 +36,12 @@ public class ReviewService extends StatefulService {
    public static final String FACTORY_LINK = "/reviews";
    public static final String PRODUCT_FACTORY_LINK = "/products";
 
-   private static SmartShopDnsQueries dnsQueries = null;
+   /** Counted for every remote product lookup a review starts, and every one it shares instead */
+   public static final String PRODUCT_LOOKUP_STARTED_EVENT = "product_lookup_started";
+   public static final String PRODUCT_LOOKUP_COALESCED_EVENT = "product_lookup_coalesced";
 
-   /** Not crazy about this, but it works for now I guess... */
-   private static Logger logger = Logger.getLogger(ReviewService.class.getName());
-   static {
-      logger.setLevel(Level.FINE);
-   }
+   /** Counted for every review marked orphaned, after it was created with {@link ProductValidation#ASYNC} */
+   public static final String REVIEW_ORPHANED_EVENT = "review_orphaned";
 
    /** Create a default factory service that starts instances of this service on POST. */
    public static Service createFactory() {
@@ -47,19 +49,34 @@ public class ReviewService extends StatefulService {
    }
 
    public ReviewService() {
-      super(Review.class);
+      super(Review.class, FACTORY_LINK);
       super.toggleOption(ServiceOption.PERSISTENCE, true);
       super.toggleOption(ServiceOption.REPLICATION, true);
       super.setPeerNodeSelectorPath(ReviewHost.REVIEW_NODE_SELECTOR_URI);
+   }
 
-      if (dnsQueries == null) {
-         ReviewHost host = (ReviewHost) getHost();
-         dnsQueries = new SmartShopDnsQueries(host.hostArguments.dnshost, host.hostArguments.dnsport);
-      }
+   /**
+    * Indexes {@code productLink} for sorting too, so the {@link OrphanedReviewReconciler} can walk the reviews grouped by
+    * product.
+    */
+   @Override
+   public ServiceDocument getDocumentTemplate() {
+      ServiceDocument template = super.getDocumentTemplate();
+      template.documentDescription.propertyDescriptions.get("productLink").indexingOptions
+            .add(PropertyIndexingOption.SORT);
+      return template;
    }
 
+   /**
+    * Xenon also starts a review with its persisted state when the host restarts, or the node group synchronizes; only
+    * the {@code POST} that creates it (with {@code xn-created}) is validated and counted in its product's rating.
+    */
    @Override
    public void handleStart(Operation post) {
+      if (!post.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_CREATED)) {
+         post.complete();
+         return;
+      }
       try {
          // validateInitialState handles marking 'post' as complete or fail
          validateInitialState(post);
@@ -75,129 +92,321 @@ public class ReviewService extends StatefulService {
             "PUT not supported; Please use PATCH (with ReviewUpdateRequest) instead");
    }
 
-   private void validateStars(Integer stars) {
+   private static void validateStars(Integer stars) {
       if (stars == null || stars < MIN_STAR || stars > MAX_STAR) {
          throw new IllegalArgumentException(
                String.format("stars: must be provided and be between %d and %d", MIN_STAR, MAX_STAR));
       }
    }
 
-   private void validateContent(String content) {
+   private static void validateContent(String content) {
       if (StringUtils.isEmpty(content)) {
          throw new IllegalArgumentException("content: cannot be empty");
       }
    }
 
-   /** Validates initial state of a {@code Review}. Marks {@code post} as complete if successful. */
-   private void validateInitialState(Operation post) throws InterruptedException {
+   /**
+    * The local checks of a new {@code Review}, shared with {@link ReviewBatchService}. Whether its {@code productLink}
+    * exists is checked separately, since that needs remote lookups.
+    */
+   static void validateReview(Review state) {
+      validateStars(state.stars);
+      validateContent(state.content);
+
+      // Ensure that the product exists
+      if (StringUtils.isEmpty(state.productLink)) {
+         throw new IllegalArgumentException("productLink cannot be empty");
+      }
+   }
+
+   /**
+    * Validates initial state of a {@code Review}. The local checks throw right away; the {@code productLink} checks are
+    * remote, so {@code post} is completed (or failed) from their callbacks, once they have reported back as the
+    * host's {@link ProductValidation} says. Reviews of the same product that are validated at the same time share
+    * those checks (see {@link ProductLookupCoalescer}).
+    */
+   private void validateInitialState(Operation post) {
       if (!post.hasBody()) {
          throw new IllegalArgumentException("Must include non-empty body");
       }
 
+      long parseStart = System.nanoTime();
       Review state = post.getBody(Review.class);
-      logInfo("Validating review: %s", state);
+      getMetrics().record(Action.POST, OperationStage.PARSE, parseStart);
+      logFine("Validating review: %s", state);
+
+      long validationStart = System.nanoTime();
+      validateReview(state);
+      getMetrics().record(Action.POST, OperationStage.VALIDATION, validationStart);
+
+      // Products we've recently seen (or heard about from the product node group) need no remote lookups at all
+      if (getProductCache().exists(state.productLink)) {
+         logFine("[productLink=%s] found in product cache; skipping remote lookups", state.productLink);
+         post.complete();
+         whenCreated(post, () -> updateRating(post, state.productLink, state.stars, null));
+         logFine("Review created successfully! [review=%s]", state);
+         return;
+      }
 
-      validateStars(state.stars);
-      validateContent(state.content);
+      ProductValidation validation = ReviewHost.hostArguments.productValidation;
+      if (validation == ProductValidation.ASYNC) {
+         post.complete();
+         whenCreated(post, () -> {
+            updateRating(post, state.productLink, state.stars, null);
+            verifyProduct(post, state.productLink);
+         });
+         logFine("Review created successfully! [review=%s]", state);
+         return;
+      }
 
-      // Ensure that the product exists
-      if (StringUtils.isEmpty(state.productLink)) {
-         throw new IllegalArgumentException("productLink cannot be empty");
+      boolean coalesced = getLookupCoalescer().lookup(state.productLink,
+            done -> lookupProduct(state.productLink, validation, done),
+            failure -> {
+               if (failure != null) {
+                  post.fail(failure);
+                  return;
+               }
+               post.complete();
+               whenCreated(post, () -> updateRating(post, state.productLink, state.stars, null));
+               logFine("Review created successfully! [review=%s]", state);
+            });
+      getMetrics().countEvent(coalesced ? PRODUCT_LOOKUP_COALESCED_EVENT : PRODUCT_LOOKUP_STARTED_EVENT);
+   }
+
+   /**
+    * Runs {@code action} once the review {@code post} creates is committed: its state indexed, and the service
+    * available. Completing {@code post} in {@link #handleStart} only lets the create go on; it can still fail after
+    * that, and then nothing is run.
+    */
+   private void whenCreated(Operation post, Runnable action) {
+      if (post.isFromReplication()) {
+         return;
       }
+      getHost().registerForServiceAvailability((op, ex) -> {
+         if (ex == null) {
+            action.run();
+         }
+      }, getSelfLink());
+   }
+
+   /**
+    * Checks the product of a review that was created without waiting for it ({@link ProductValidation#ASYNC}), and
+    * marks the review orphaned if the product doesn't exist. A product that couldn't be looked up is left for later.
+    */
+   private void verifyProduct(Operation post, String productLink) {
+      if (post.isFromReplication()) {
+         return;
+      }
+
+      boolean coalesced = getLookupCoalescer().lookup(productLink,
+            done -> lookupProduct(productLink, ProductValidation.ASYNC, done),
+            failure -> {
+               if (failure == null) {
+                  return;
+               }
+               // The node selector lookup fails with an IllegalArgumentException when it found no such product
+               if (!(failure instanceof IllegalArgumentException)) {
+                  logWarning("Could not verify [productLink=%s]: %s", productLink, failure.getMessage());
+                  return;
+               }
+               markOrphaned(productLink);
+            });
+      getMetrics().countEvent(coalesced ? PRODUCT_LOOKUP_COALESCED_EVENT : PRODUCT_LOOKUP_STARTED_EVENT);
+   }
 
+   private void markOrphaned(String productLink) {
+      logWarning("[productLink=%s] does not exist; marking the review as orphaned", productLink);
+      getMetrics().countEvent(REVIEW_ORPHANED_EVENT);
+      ReviewUpdateRequest orphaned = new ReviewUpdateRequest();
+      orphaned.orphaned = true;
+      sendRequest(Operation.createPatch(getUri())
+            .setBody(orphaned)
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  logWarning("Could not mark the review as orphaned: %s", ex.getMessage());
+               }
+            }));
+   }
+
+   /**
+    * Looks {@code productLink} up remotely, the ways {@code validation} says, and hands {@code done} the result: null
+    * if it exists, or why it doesn't (or couldn't be looked up).
+    */
+   private void lookupProduct(String productLink, ProductValidation validation, Consumer<Throwable> done) {
       // For example purposes, we will show two different ways for querying the product service to
       // ensure the 'productLink' exists: 1. using node selector and 2. using DNS
-      // We will use a CountDownLatch to ensure both ways validate properly before "completing"
-      CountDownLatch latch = new CountDownLatch(2);
-      Throwable[] failure = new Throwable[1];
+      // The lookups run in parallel, and report back to 'pending'. Nothing blocks here, so the host thread goes
+      // straight back to the pool while the lookups are in flight.
+      int lookups = (validation.usesNodeSelector() ? 1 : 0) + (validation.usesDns() ? 1 : 0);
+      PendingLookups pending = new PendingLookups(done, productLink, lookups, validation == ProductValidation.RACE);
+      if (validation.usesNodeSelector()) {
+         lookupViaNodeSelector(productLink, pending);
+      }
+      if (validation.usesDns()) {
+         lookupViaDns(productLink, pending);
+      }
+   }
 
+   private void lookupViaNodeSelector(String productLink, PendingLookups pending) {
       // 1st Way - is to query the node selector via a forwarding + odata query (odata is used so
       //           the GET doesn't block.
-      String target = PRODUCT_FACTORY_LINK + String.format("?expand&$filter=(documentSelfLink eq '%s')", state.productLink);
+      String target = PRODUCT_FACTORY_LINK + String.format("?expand&$filter=(documentSelfLink eq '%s')", productLink);
+      long nodeSelectorStart = System.nanoTime();
       Operation getViaNodeSelector = Operation.createGet(this, target)
             .setReferer(this.getUri())
             .setCompletion(
                   (op, ex) -> {
-                     try {
-                        if (ex != null) {
-                           logSevere("Error during node selector logic: [productLink=%s] [exception=%s]. Is this host joined to the product node group as an OBSERVER?"
-                                 , state.productLink, ex);
-                           failure[0] = ex;
-                           return;
-                        }
-
-                        logFine("Successfully processed operation: %s", op);
-                        ServiceDocumentQueryResult result = op.getBody(ServiceDocumentQueryResult.class);
-                        Long count = result != null ? result.documentCount : 0;
-
-                        Map<String, Object> matchedDocuments =
-                              result == null || result.documents == null ? Collections.emptyMap() : result.documents;
-                        Object productMatch = matchedDocuments.get(state.productLink);
-                        logFine("Forwarding OData query returned %d results. Matching document: %s",
-                              count, productMatch);
-                        if (productMatch == null) {
-                           String message = String.format("[productLink=%s] does not exist via node-selector", state.productLink);
-                           logWarning(message);
-                           failure[0] = new IllegalArgumentException(message);
-                           return;
-                        }
-
-                        Product product = Utils.fromJson(productMatch, Product.class);
-                        logInfo("Product found using node selector! %s", product);
-                     } finally { // Remember to countdown latch, regardless of error/success
-                        latch.countDown();
+                     getMetrics().record(Action.POST, OperationStage.NODE_SELECTOR_LOOKUP, nodeSelectorStart);
+                     if (ex != null) {
+                        logSevere("Error during node selector logic: [productLink=%s] [exception=%s]. Is this host joined to the product node group as an OBSERVER?"
+                              , productLink, ex);
+                        pending.lookupDone(ex);
+                        return;
                      }
+
+                     logFine("Successfully processed operation: %s", op);
+                     ServiceDocumentQueryResult result = op.getBody(ServiceDocumentQueryResult.class);
+                     Long count = result != null ? result.documentCount : 0;
+
+                     Map<String, Object> matchedDocuments =
+                           result == null || result.documents == null ? Collections.emptyMap() : result.documents;
+                     Object productMatch = matchedDocuments.get(productLink);
+                     logFine("Forwarding OData query returned %d results. Matching document: %s",
+                           count, productMatch);
+                     if (productMatch == null) {
+                        String message = String.format("[productLink=%s] does not exist via node-selector", productLink);
+                        logWarning(message);
+                        pending.lookupDone(new IllegalArgumentException(message));
+                        return;
+                     }
+
+                     Product product = Utils.fromJson(productMatch, Product.class);
+                     logFine("Product found using node selector! %s", product);
+                     pending.lookupDone(null);
                   }
             );
-      logInfo("Forwarding odata GET query for: %s", getViaNodeSelector.getUri());
+      logFine("Forwarding odata GET query for: %s", getViaNodeSelector.getUri());
       this.getHost().forwardRequest(ReviewHost.PRODUCT_NODE_SELECTOR_URI, getViaNodeSelector);
+   }
 
+   private void lookupViaDns(String productLink, PendingLookups pending) {
       // 2nd Way - is to query the DNS, get the host where product is running and issue a GET on that directly
       String productServiceDNSLookupQuery = String.format("$filter=serviceLink eq '%s'", PRODUCT_FACTORY_LINK);
+      long dnsStart = System.nanoTime();
       Operation.CompletionHandler productLookupHandler = (op, ex) -> {
-         try {
-            if (ex != null) {
-               String message = String.format("[productLink=%s] does not exist when using GET provided by DNS lookup", state.productLink);
-               logInfo(message);
-               failure[0] = new IllegalArgumentException(message);
-               return;
-            }
-
-            Product product = op.getBody(Product.class);
-            logInfo("Product found using DNS! %s", product);
-         } finally { // Remember to countdown latch, regardless of error/success
-            latch.countDown();
+         getMetrics().record(Action.POST, OperationStage.DNS_LOOKUP, dnsStart);
+         if (ex != null) {
+            String message = String.format("[productLink=%s] does not exist when using GET provided by DNS lookup", productLink);
+            logFine(message);
+            pending.lookupDone(new IllegalArgumentException(message));
+            return;
          }
+
+         Product product = op.getBody(Product.class);
+         logFine("Product found using DNS! %s", product);
+         pending.lookupDone(null);
       };
 
-      dnsQueries.queryDns(productServiceDNSLookupQuery, state.productLink, getHost(), productLookupHandler);
+      getDnsQueries().queryDns(productServiceDNSLookupQuery, productLink, getHost(), productLookupHandler);
+   }
+
+   /**
+    * Joins the asynchronous lookups of one {@code productLink}, and reports their result exactly once. Normally every
+    * lookup has to find the product: the first failure wins, and the result is reported by whichever lookup reports
+    * back last. With {@code firstFoundWins}, the first lookup that finds the product reports right away, and a failure
+    * is only reported once every lookup failed. A product that was found is remembered in the
+    * {@link ProductExistenceCache}.
+    */
+   private class PendingLookups {
+      private final Consumer<Throwable> done;
+      private final String productLink;
+      private final boolean firstFoundWins;
+      private final AtomicInteger remaining;
+      private final AtomicReference<Throwable> failure = new AtomicReference<>();
+      private final AtomicBoolean reported = new AtomicBoolean();
+
+      PendingLookups(Consumer<Throwable> done, String productLink, int lookups, boolean firstFoundWins) {
+         this.done = done;
+         this.productLink = productLink;
+         this.firstFoundWins = firstFoundWins;
+         this.remaining = new AtomicInteger(lookups);
+      }
+
+      void lookupDone(Throwable e) {
+         if (e != null) {
+            failure.compareAndSet(null, e);
+         }
+         boolean found = firstFoundWins && e == null;
+         if (remaining.decrementAndGet() != 0 && !found) {
+            return;
+         }
+         if (!reported.compareAndSet(false, true)) {
+            return;
+         }
 
-      // Wait on latch to ensure both methods of communicating with ProductService was successful
-      if (!latch.await(getHost().getState().operationTimeoutMicros, TimeUnit.MICROSECONDS)) {
-         failure[0] = new TimeoutException();
+         Throwable result = found ? null : failure.get();
+         if (result == null) {
+            getProductCache().productExists(productLink);
+         }
+         done.accept(result);
       }
+   }
 
-      if (failure[0] != null) {
-         post.fail(failure[0]);
+   /**
+    * Sends the change in stars to the product's {@link ProductRatingService}. Replicated requests are skipped: the node
+    * that handled the original request already sent it.
+    */
+   private void updateRating(Operation op, String productLink, Integer addedStars, Integer removedStars) {
+      if (op.isFromReplication()) {
          return;
       }
 
-      post.complete();
-      logInfo("Review created successfully! [review=%s]", post.getBody(Review.class));
+      ProductRatingUpdateRequest update = new ProductRatingUpdateRequest();
+      update.addedStars = addedStars;
+      update.removedStars = removedStars;
+      ProductRatingService.sendUpdate(this, productLink, update);
+   }
+
+   private ProductExistenceCache getProductCache() {
+      return ((ReviewHost) getHost()).getProductCache();
+   }
+
+   private ProductLookupCoalescer getLookupCoalescer() {
+      return ((ReviewHost) getHost()).getLookupCoalescer();
+   }
+
+   private SmartShopDnsQueries getDnsQueries() {
+      return ((ReviewHost) getHost()).getDnsQueries();
    }
 
    @Override
    public void handlePatch(Operation patch) {
-      logInfo("handlePatch(). [patch=%s]", patch);
+      logFine("handlePatch(). [patch=%s]", patch);
       Review currentState = getState(patch);
+      long parseStart = System.nanoTime();
       ReviewUpdateRequest updateRequest = patch.getBody(ReviewUpdateRequest.class);
+      getMetrics().record(Action.PATCH, OperationStage.PARSE, parseStart);
 
+      if (updateRequest.orphaned != null && updateRequest.stars == null && updateRequest.content == null) {
+         currentState.orphaned = updateRequest.orphaned;
+         setState(patch, currentState);
+         patch.setBody(currentState);
+         completeUpdate(patch);
+         return;
+      }
+
+      Integer previousStars = currentState.stars;
       try {
+         long validationStart = System.nanoTime();
          validateStars(updateRequest.stars);
          validateContent(updateRequest.content);
+         getMetrics().record(Action.PATCH, OperationStage.VALIDATION, validationStart);
 
          currentState.stars = updateRequest.stars;
          currentState.content = updateRequest.content;
+         if (updateRequest.orphaned != null) {
+            currentState.orphaned = updateRequest.orphaned;
+         }
       } catch (Exception e) {
          logWarning("Error during PATCH. [patch=%s] [error=%s]", patch, e);
          patch.fail(e);
@@ -206,6 +415,19 @@ public class ReviewService extends StatefulService {
 
       setState(patch, currentState);
       patch.setBody(currentState);
-      patch.complete();
+      completeUpdate(patch);
+
+      if (!currentState.stars.equals(previousStars)) {
+         updateRating(patch, currentState.productLink, currentState.stars, previousStars);
+      }
+   }
+
+   @Override
+   public void handleDelete(Operation delete) {
+      Review currentState = getState(delete);
+      completeUpdate(delete);
+      if (currentState != null) {
+         updateRating(delete, currentState.productLink, null, currentState.stars);
+      }
    }
 }
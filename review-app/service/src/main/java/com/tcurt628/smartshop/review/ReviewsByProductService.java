@@ -0,0 +1,265 @@
+package com.tcurt628.smartshop.review;
+
+import com.tcurt628.smartshop.review.model.Review;
+import com.tcurt628.smartshop.review.model.ReviewPage;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.services.common.QueryTask;
+import com.vmware.xenon.services.common.ServiceUriPaths;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Lists the reviews of one product a page at a time, so a product with hundreds of thousands of reviews never has all
+ * of them in one response (or in memory). Query parameters of the first page:
+ * <ul>
+ *    <li>{@code productLink} - required</li>
+ *    <li>{@code limit} - reviews per page; {@value #DEFAULT_LIMIT} by default, at most {@value #MAX_LIMIT}</li>
+ *    <li>{@code sort} - {@code updated} (default) or {@code stars}; and {@code order} - {@code desc} (default) or
+ *    {@code asc}</li>
+ *    <li>{@code fields} - comma separated {@link Review} fields to return (ie: {@code stars,author}); all by default</li>
+ * </ul>
+ * Every page carries a {@code nextPageLink} back to this service, until the last one. It holds an opaque {@code page}
+ * cursor to the index's own query page (which Xenon routes to the host that ran the query), and has to be followed
+ * within {@value #PAGE_LIFETIME_MINUTES} minutes.
+ */
+public class ReviewsByProductService extends StatelessService {
+
+   public static final String SELF_LINK = ReviewService.FACTORY_LINK + "/by-product";
+
+   static final int DEFAULT_LIMIT = 50;
+   static final int MAX_LIMIT = 1000;
+   static final long PAGE_LIFETIME_MINUTES = 10;
+
+   private static final String QUERY_PAGE_PREFIX = UriUtils.buildUriPath(ServiceUriPaths.CORE, "query-page");
+   private static final String FORWARDING_PREFIX = UriUtils.buildUriPath(ServiceUriPaths.DEFAULT_NODE_SELECTOR,
+         ServiceUriPaths.SERVICE_URI_SUFFIX_FORWARDING);
+   private static final Set<String> PROJECTABLE_FIELDS = new LinkedHashSet<>(Arrays.asList(
+         "productLink", "author", "content", "stars", ServiceDocument.FIELD_NAME_UPDATE_TIME_MICROS));
+
+   @Override
+   public void handleGet(Operation get) {
+      Map<String, String> params = UriUtils.parseUriQueryParams(get.getUri());
+      Set<String> fields;
+      try {
+         fields = parseFields(params.get("fields"));
+      } catch (IllegalArgumentException e) {
+         get.fail(e);
+         return;
+      }
+
+      if (params.get("page") != null) {
+         String pageLink = decodePageCursor(params.get("page"));
+         if (pageLink == null) {
+            get.fail(new IllegalArgumentException("page: must come from a nextPageLink returned by " + SELF_LINK));
+            return;
+         }
+         getPage(get, params.get("productLink"), pageLink, fields);
+         return;
+      }
+
+      QueryTask query;
+      try {
+         query = buildQuery(params);
+      } catch (IllegalArgumentException e) {
+         get.fail(e);
+         return;
+      }
+
+      String productLink = params.get("productLink");
+      Operation post = Operation.createPost(this, ServiceUriPaths.CORE_LOCAL_QUERY_TASKS)
+            .setBody(query)
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  logWarning("Error querying reviews of [productLink=%s]: %s", productLink, ex.getMessage());
+                  get.fail(ex);
+                  return;
+               }
+
+               // A query with a result limit answers with a link to its first page, rather than any results
+               ServiceDocumentQueryResult results = op.getBody(QueryTask.class).results;
+               if (results != null && results.nextPageLink != null
+                     && (results.documentLinks == null || results.documentLinks.isEmpty())) {
+                  getPage(get, productLink, results.nextPageLink, fields);
+                  return;
+               }
+               completeWithPage(get, productLink, results, fields);
+            });
+      sendRequest(post);
+   }
+
+   private QueryTask buildQuery(Map<String, String> params) {
+      String productLink = params.get("productLink");
+      if (StringUtils.isEmpty(productLink)) {
+         throw new IllegalArgumentException("productLink: must be provided");
+      }
+
+      int limit = DEFAULT_LIMIT;
+      if (params.get("limit") != null) {
+         try {
+            limit = Integer.parseInt(params.get("limit"));
+         } catch (NumberFormatException e) {
+            limit = -1;
+         }
+         if (limit < 1 || limit > MAX_LIMIT) {
+            throw new IllegalArgumentException(String.format("limit: must be between 1 and %d", MAX_LIMIT));
+         }
+      }
+
+      String sortField;
+      String sort = params.getOrDefault("sort", "updated");
+      if ("updated".equals(sort)) {
+         sortField = ServiceDocument.FIELD_NAME_UPDATE_TIME_MICROS;
+      } else if ("stars".equals(sort)) {
+         sortField = "stars";
+      } else {
+         throw new IllegalArgumentException("sort: must be 'updated' or 'stars'");
+      }
+
+      QueryTask.Query reviewsOfProduct = QueryTask.Query.Builder.create()
+            .addKindFieldClause(Review.class)
+            .addFieldClause("productLink", productLink)
+            .build();
+      QueryTask.Builder builder = QueryTask.Builder.createDirectTask()
+            .addOption(QueryTask.QuerySpecification.QueryOption.EXPAND_CONTENT)
+            .setResultLimit(limit)
+            .setQuery(reviewsOfProduct);
+
+      String order = params.getOrDefault("order", "desc");
+      if ("desc".equals(order)) {
+         builder.orderDescending(sortField, ServiceDocumentDescription.TypeName.LONG);
+      } else if ("asc".equals(order)) {
+         builder.orderAscending(sortField, ServiceDocumentDescription.TypeName.LONG);
+      } else {
+         throw new IllegalArgumentException("order: must be 'asc' or 'desc'");
+      }
+
+      QueryTask query = builder.build();
+      // The pages live as long as the query task
+      query.documentExpirationTimeMicros = Utils.getNowMicrosUtc() + TimeUnit.MINUTES.toMicros(PAGE_LIFETIME_MINUTES);
+      return query;
+   }
+
+   private Set<String> parseFields(String fields) {
+      if (StringUtils.isEmpty(fields)) {
+         return Collections.emptySet();
+      }
+
+      Set<String> parsed = new LinkedHashSet<>(Arrays.asList(StringUtils.split(fields, ',')));
+      for (String field : parsed) {
+         if (!PROJECTABLE_FIELDS.contains(field)) {
+            throw new IllegalArgumentException(String.format("fields: '%s' is not one of %s", field, PROJECTABLE_FIELDS));
+         }
+      }
+      return parsed;
+   }
+
+   private void getPage(Operation get, String productLink, String pageLink, Set<String> fields) {
+      Operation getPage = Operation.createGet(this, pageLink)
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  logWarning("Error reading review page %s: %s", pageLink, ex.getMessage());
+                  get.fail(ex);
+                  return;
+               }
+               completeWithPage(get, productLink, op.getBody(QueryTask.class).results, fields);
+            });
+      sendRequest(getPage);
+   }
+
+   private void completeWithPage(Operation get, String productLink, ServiceDocumentQueryResult results, Set<String> fields) {
+      ReviewPage page = new ReviewPage();
+      page.productLink = productLink;
+
+      if (results != null && results.documentLinks != null && results.documents != null) {
+         // documentLinks is in sort order; documents isn't
+         for (String link : results.documentLinks) {
+            Object document = results.documents.get(link);
+            if (document != null) {
+               page.documents.add(fields.isEmpty() ? document : project(link, document, fields));
+            }
+         }
+      }
+      page.documentCount = page.documents.size();
+
+      if (results != null && results.nextPageLink != null) {
+         StringBuilder next = new StringBuilder(SELF_LINK).append("?page=").append(encodePageCursor(results.nextPageLink));
+         if (productLink != null) {
+            next.append("&productLink=").append(productLink);
+         }
+         if (!fields.isEmpty()) {
+            next.append("&fields=").append(String.join(",", fields));
+         }
+         page.nextPageLink = next.toString();
+      }
+
+      logFine("Returning %d reviews of [productLink=%s] [hasNextPage=%b]",
+            page.documentCount, productLink, page.nextPageLink != null);
+      get.setBody(page).complete();
+   }
+
+   /**
+    * The index's page link has a query string of its own (ie: when it is forwarded to the host that ran the query), so
+    * it is passed around base64 encoded rather than nested in our query string.
+    */
+   static String encodePageCursor(String pageLink) {
+      return Base64.getUrlEncoder().withoutPadding().encodeToString(pageLink.getBytes(StandardCharsets.UTF_8));
+   }
+
+   /** Returns the index page link in {@code cursor}, or null if it isn't one */
+   static String decodePageCursor(String cursor) {
+      String pageLink;
+      try {
+         pageLink = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+      } catch (IllegalArgumentException e) {
+         return null;
+      }
+
+      // Only ever follow query pages, whether local or forwarded to the peer holding them
+      boolean isLocalPage = pageLink.startsWith(QUERY_PAGE_PREFIX + UriUtils.URI_PATH_CHAR);
+      boolean isForwardedPage = pageLink.startsWith(FORWARDING_PREFIX)
+            && pageLink.contains("path=" + QUERY_PAGE_PREFIX + UriUtils.URI_PATH_CHAR);
+      return isLocalPage || isForwardedPage ? pageLink : null;
+   }
+
+   private static Map<String, Object> project(String link, Object document, Set<String> fields) {
+      Review review = Utils.fromJson(document, Review.class);
+      Map<String, Object> projected = new LinkedHashMap<>();
+      projected.put(ServiceDocument.FIELD_NAME_SELF_LINK, link);
+      for (String field : fields) {
+         switch (field) {
+         case "productLink":
+            projected.put(field, review.productLink);
+            break;
+         case "author":
+            projected.put(field, review.author);
+            break;
+         case "content":
+            projected.put(field, review.content);
+            break;
+         case "stars":
+            projected.put(field, review.stars);
+            break;
+         default:
+            projected.put(field, review.documentUpdateTimeMicros);
+            break;
+         }
+      }
+      return projected;
+   }
+}
@@ -0,0 +1,63 @@
+package com.tcurt628.smartshop.review;
+
+import com.vmware.xenon.services.common.NodeGroupService.NodeGroupState;
+import com.vmware.xenon.services.common.NodeState;
+import com.vmware.xenon.services.common.NodeState.NodeOption;
+import com.vmware.xenon.services.common.NodeState.NodeStatus;
+import org.junit.Test;
+
+import java.util.EnumSet;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/** The check the task's maintenance makes of the {@code product} node group, to decide whether to join it again */
+public class JoinProductNodeGroupTaskServiceTest {
+
+   private static final String SELF_ID = "reviewHost1";
+
+   @Test
+   public void testObserversAndAnUnavailablePeerAreNoProductPeer() {
+      NodeGroupState group = new NodeGroupState();
+      add(group, node(SELF_ID, NodeStatus.AVAILABLE, NodeOption.OBSERVER));
+      add(group, node("reviewHost2", NodeStatus.AVAILABLE, NodeOption.OBSERVER));
+      add(group, node("reviewHost3", NodeStatus.AVAILABLE, NodeOption.OBSERVER));
+      add(group, node("productHost1", NodeStatus.UNAVAILABLE, NodeOption.PEER));
+
+      assertFalse(JoinProductNodeGroupTaskService.hasAvailableProductPeer(group, SELF_ID));
+   }
+
+   @Test
+   public void testAvailableOrJoiningPeerIsAProductPeer() {
+      for (NodeStatus status : new NodeStatus[] { NodeStatus.AVAILABLE, NodeStatus.SYNCHRONIZING,
+            NodeStatus.UNKNOWN }) {
+         NodeGroupState group = new NodeGroupState();
+         add(group, node(SELF_ID, NodeStatus.AVAILABLE, NodeOption.OBSERVER));
+         add(group, node("reviewHost2", NodeStatus.AVAILABLE, NodeOption.OBSERVER));
+         add(group, node("productHost1", NodeStatus.UNAVAILABLE, NodeOption.PEER));
+         add(group, node("productHost2", status, NodeOption.PEER));
+
+         assertTrue(status.name(), JoinProductNodeGroupTaskService.hasAvailableProductPeer(group, SELF_ID));
+      }
+   }
+
+   @Test
+   public void testSelfAloneIsNoProductPeer() {
+      NodeGroupState group = new NodeGroupState();
+      add(group, node(SELF_ID, NodeStatus.AVAILABLE, NodeOption.PEER));
+
+      assertFalse(JoinProductNodeGroupTaskService.hasAvailableProductPeer(group, SELF_ID));
+   }
+
+   private static NodeState node(String id, NodeStatus status, NodeOption option) {
+      NodeState node = new NodeState();
+      node.id = id;
+      node.status = status;
+      node.options = EnumSet.of(option);
+      return node;
+   }
+
+   private static void add(NodeGroupState group, NodeState node) {
+      group.nodes.put(node.id, node);
+   }
+}
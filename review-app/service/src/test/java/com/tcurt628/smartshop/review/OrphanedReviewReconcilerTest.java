@@ -0,0 +1,261 @@
+package com.tcurt628.smartshop.review;
+
+import com.tcurt628.smartshop.review.model.OrphanReconcilerStatus;
+import com.tcurt628.smartshop.review.model.Review;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentQueryResult;
+import com.vmware.xenon.common.StatelessService;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.common.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Passes of the {@link OrphanedReviewReconciler} of a {@link ReviewHost}, in {@code DELETE} mode, over the review of a
+ * product that comes and goes.
+ */
+public class OrphanedReviewReconcilerTest {
+
+   private static final String PRODUCT_LINK = ReviewService.PRODUCT_FACTORY_LINK + "/reconciler-test";
+   private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+   /**
+    * Answers the product lookups of the host. They go through its {@code product} node selector, and with no product
+    * host to join, the host is the only node of its {@code product} node group.
+    */
+   public static class ProductLookupService extends StatelessService {
+
+      static final Set<String> PRODUCTS = ConcurrentHashMap.newKeySet();
+      static volatile boolean failing;
+
+      private static final Pattern PRODUCT_LINK_TERM = Pattern.compile("documentSelfLink eq '([^']*)'");
+
+      @Override
+      public void handleGet(Operation get) {
+         if (failing) {
+            get.fail(new IllegalStateException("Products can't be looked up"));
+            return;
+         }
+
+         // As a remote factory answers an expanded query, with each document in JSON
+         ServiceDocumentQueryResult result = new ServiceDocumentQueryResult();
+         result.documentLinks = new ArrayList<>();
+         result.documents = new HashMap<>();
+         String filter = UriUtils.parseUriQueryParams(get.getUri()).get(UriUtils.URI_PARAM_ODATA_FILTER);
+         Matcher term = PRODUCT_LINK_TERM.matcher(filter != null ? filter : "");
+         while (term.find()) {
+            if (PRODUCTS.contains(term.group(1))) {
+               ServiceDocument product = new ServiceDocument();
+               product.documentSelfLink = term.group(1);
+               result.documentLinks.add(product.documentSelfLink);
+               result.documents.put(product.documentSelfLink, Utils.toJson(product));
+            }
+         }
+         result.documentCount = (long) result.documentLinks.size();
+         get.setBody(result).complete();
+      }
+   }
+
+   @Rule
+   public TemporaryFolder sandbox = new TemporaryFolder();
+
+   private ReviewHost host;
+   private String reviewLink;
+
+   @Before
+   public void setUp() throws Throwable {
+      // No DNS; reviews are created right away, and passes only run when asked for
+      ReviewHost.hostArguments.productValidation = ProductValidation.ASYNC;
+      ReviewHost.hostArguments.dnshost = "127.0.0.1";
+      ReviewHost.hostArguments.dnsport = 1;
+      ReviewHost.hostArguments.dnsWatch = false;
+      ReviewHost.hostArguments.orphanReconcileSeconds = 0;
+      ReviewHost.hostArguments.orphanReconcileReviewsPerSecond = 0;
+      ReviewHost.hostArguments.orphanAction = OrphanedReviewReconciler.OrphanAction.DELETE;
+      ProductLookupService.PRODUCTS.clear();
+      ProductLookupService.PRODUCTS.add(PRODUCT_LINK);
+      ProductLookupService.failing = false;
+
+      host = new ReviewHost();
+      host.initialize(new String[] {
+            "--port=0",
+            "--sandbox=" + sandbox.getRoot().getAbsolutePath()
+      });
+      host.start();
+      host.startService(Operation.createPost(UriUtils.buildUri(host, ReviewService.PRODUCT_FACTORY_LINK)),
+            new ProductLookupService());
+      waitFor(() -> host.checkServiceAvailable(ReviewService.FACTORY_LINK)
+            && host.checkServiceAvailable(OrphanedReviewReconciler.SELF_LINK)
+            && host.checkServiceAvailable(ReviewService.PRODUCT_FACTORY_LINK));
+
+      Review review = new Review();
+      review.productLink = PRODUCT_LINK;
+      review.content = "Reconciled";
+      review.stars = 4;
+      reviewLink = send(Operation.createPost(UriUtils.buildUri(host, ReviewService.FACTORY_LINK))
+            .setBody(review)).getBody(Review.class).documentSelfLink;
+      // Once the review's product was checked, as it was created
+      waitFor(() -> host.getProductCache().exists(PRODUCT_LINK));
+   }
+
+   @After
+   public void tearDown() {
+      if (host != null) {
+         host.stop();
+      }
+      ReviewHost.hostArguments = new ReviewHost.Arguments();
+   }
+
+   @Test
+   public void testFirstPassMarksTheOrphans() throws Throwable {
+      ProductLookupService.PRODUCTS.clear();
+      OrphanReconcilerStatus status = runPass();
+
+      assertEquals(1, status.orphansFound);
+      assertEquals(1, status.orphansHandled);
+      assertTrue(isOrphaned());
+   }
+
+   @Test
+   public void testSecondPassInARowDeletesTheOrphans() throws Throwable {
+      ProductLookupService.PRODUCTS.clear();
+      runPass();
+      OrphanReconcilerStatus status = runPass();
+
+      assertEquals(1, status.orphansHandled);
+      assertEquals(Operation.STATUS_CODE_NOT_FOUND, statusCode(reviewLink));
+   }
+
+   @Test
+   public void testProductThatShowsUpAgainStartsTheCountOver() throws Throwable {
+      ProductLookupService.PRODUCTS.clear();
+      runPass();
+      ProductLookupService.PRODUCTS.add(PRODUCT_LINK);
+      OrphanReconcilerStatus status = runPass();
+
+      assertEquals(1, status.reviewsRestored);
+      assertFalse(isOrphaned());
+
+      // Missing on one pass again: only marked
+      ProductLookupService.PRODUCTS.clear();
+      runPass();
+      assertTrue(isOrphaned());
+   }
+
+   @Test
+   public void testProductThatCannotBeLookedUpKeepsItsCount() throws Throwable {
+      ProductLookupService.PRODUCTS.clear();
+      runPass();
+
+      // Neither unmarked nor deleted, as its product isn't known to exist or not
+      ProductLookupService.failing = true;
+      OrphanReconcilerStatus status = runPass();
+      assertEquals(0, status.orphansFound);
+      assertEquals(0, status.reviewsRestored);
+      assertTrue(isOrphaned());
+
+      // Still missing on the next pass that looks it up, which makes two
+      ProductLookupService.failing = false;
+      runPass();
+      assertEquals(Operation.STATUS_CODE_NOT_FOUND, statusCode(reviewLink));
+   }
+
+   @Test
+   public void testPassThatStoppedEarlyKeepsTheCountOfWhatItDidNotReach() {
+      Set<String> missingInLastPass = new HashSet<>(Arrays.asList("/products/a", "/products/c", "/products/e"));
+      Set<String> missingInPass = Collections.singleton("/products/b");
+
+      // Got to /products/c (which it saw exist), but not to /products/e
+      assertEquals(new HashSet<>(Arrays.asList("/products/b", "/products/e")),
+            OrphanedReviewReconciler.missingForNextPass(missingInLastPass, missingInPass, Collections.emptySet(),
+                  true, "/products/c"));
+      // Got to nothing at all
+      assertEquals(new HashSet<>(Arrays.asList("/products/a", "/products/b", "/products/c", "/products/e")),
+            OrphanedReviewReconciler.missingForNextPass(missingInLastPass, missingInPass, Collections.emptySet(),
+                  true, null));
+      // Got to every product, but couldn't look /products/a up
+      assertEquals(new HashSet<>(Arrays.asList("/products/a", "/products/b")),
+            OrphanedReviewReconciler.missingForNextPass(missingInLastPass, missingInPass,
+                  Collections.singleton("/products/a"), false, "/products/e"));
+   }
+
+   /** Runs a pass over products that aren't cached, as they would be once the product node group said they changed */
+   private OrphanReconcilerStatus runPass() throws Throwable {
+      host.getProductCache().clear();
+      send(Operation.createPost(UriUtils.buildUri(host, OrphanedReviewReconciler.SELF_LINK))
+            .setBody(new OrphanReconcilerStatus()));
+      waitFor(() -> !getStatus().running);
+      OrphanReconcilerStatus status = getStatus();
+      assertNull(status.lastFailureMessage);
+      return status;
+   }
+
+   private OrphanReconcilerStatus getStatus() throws Exception {
+      return send(Operation.createGet(UriUtils.buildUri(host, OrphanedReviewReconciler.SELF_LINK)))
+            .getBody(OrphanReconcilerStatus.class);
+   }
+
+   private boolean isOrphaned() throws Exception {
+      Review review = send(Operation.createGet(UriUtils.buildUri(host, reviewLink))).getBody(Review.class);
+      return Boolean.TRUE.equals(review.orphaned);
+   }
+
+   /** The status code a {@code GET} of {@code link} completed with, failed or not */
+   private int statusCode(String link) throws Exception {
+      CompletableFuture<Integer> done = new CompletableFuture<>();
+      host.sendRequest(Operation.createGet(UriUtils.buildUri(host, link))
+            .addPragmaDirective(Operation.PRAGMA_DIRECTIVE_NO_QUEUING)
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> done.complete(o.getStatusCode())));
+      return done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private Operation send(Operation op) throws Exception {
+      CompletableFuture<Operation> done = new CompletableFuture<>();
+      host.sendRequest(op
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  done.completeExceptionally(e);
+                  return;
+               }
+               done.complete(o);
+            }));
+      return done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private interface Condition {
+      boolean isMet() throws Throwable;
+   }
+
+   private static void waitFor(Condition condition) throws Throwable {
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+      while (!condition.isMet()) {
+         if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Timed out");
+         }
+         Thread.sleep(100);
+      }
+   }
+}
@@ -0,0 +1,59 @@
+package com.tcurt628.smartshop.review;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ProductExistenceCacheTest {
+
+   @Test
+   public void testExistsAndDelete() {
+      ProductExistenceCache cache = new ProductExistenceCache(10, TimeUnit.MINUTES.toMicros(1));
+      assertFalse(cache.exists("/products/1"));
+
+      cache.productExists("/products/1");
+      assertTrue(cache.exists("/products/1"));
+
+      cache.productDeleted("/products/1");
+      assertFalse(cache.exists("/products/1"));
+      assertEquals(1, cache.getHitCount());
+      assertEquals(2, cache.getMissCount());
+   }
+
+   @Test
+   public void testLeastRecentlyUsedIsEvicted() {
+      ProductExistenceCache cache = new ProductExistenceCache(2, TimeUnit.MINUTES.toMicros(1));
+      cache.productExists("/products/1");
+      cache.productExists("/products/2");
+      assertTrue(cache.exists("/products/1")); // '2' is now the least recently used
+
+      cache.productExists("/products/3");
+      assertEquals(2, cache.size());
+      assertTrue(cache.exists("/products/1"));
+      assertFalse(cache.exists("/products/2"));
+      assertTrue(cache.exists("/products/3"));
+   }
+
+   @Test
+   public void testExpiredEntryIsMiss() {
+      ProductExistenceCache cache = new ProductExistenceCache(10, -1);
+      cache.productExists("/products/1");
+      assertFalse(cache.exists("/products/1"));
+      assertEquals(0, cache.size());
+   }
+
+   @Test
+   public void testClear() {
+      ProductExistenceCache cache = new ProductExistenceCache(10, TimeUnit.MINUTES.toMicros(1));
+      cache.productExists("/products/1");
+      cache.productExists("/products/2");
+
+      cache.clear();
+      assertEquals(0, cache.size());
+      assertFalse(cache.exists("/products/1"));
+   }
+}
@@ -0,0 +1,50 @@
+package com.tcurt628.smartshop.review;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProductLookupCoalescerTest {
+
+   @Test
+   public void testConcurrentLookupsOfSameProductAreShared() {
+      ProductLookupCoalescer coalescer = new ProductLookupCoalescer();
+      List<Consumer<Throwable>> started = new ArrayList<>();
+      List<Throwable> results = new ArrayList<>();
+
+      assertFalse(coalescer.lookup("/products/1", started::add, results::add));
+      assertTrue(coalescer.lookup("/products/1", started::add, results::add));
+      assertFalse(coalescer.lookup("/products/2", started::add, results::add));
+      assertEquals(2, started.size());
+      assertEquals(2, coalescer.size());
+
+      Throwable notFound = new IllegalArgumentException("does not exist");
+      started.get(0).accept(notFound);
+      assertEquals(2, results.size());
+      assertSame(notFound, results.get(0));
+      assertSame(notFound, results.get(1));
+
+      started.get(1).accept(null);
+      assertEquals(3, results.size());
+      assertNull(results.get(2));
+      assertEquals(0, coalescer.size());
+   }
+
+   @Test
+   public void testDoneLookupIsNotShared() {
+      ProductLookupCoalescer coalescer = new ProductLookupCoalescer();
+      List<Throwable> results = new ArrayList<>();
+
+      assertFalse(coalescer.lookup("/products/1", done -> done.accept(null), results::add));
+      assertFalse(coalescer.lookup("/products/1", done -> done.accept(null), results::add));
+      assertEquals(2, results.size());
+   }
+}
@@ -0,0 +1,132 @@
+package com.tcurt628.smartshop.review;
+
+import com.tcurt628.smartshop.review.model.ProductRating;
+import com.tcurt628.smartshop.review.model.Review;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.UriUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * A {@link ReviewHost} restarted over the index it persisted: Xenon starts every review again, which must not count
+ * them in their product's rating again.
+ */
+public class ReviewServiceRestartTest {
+
+   private static final String PRODUCT_LINK = ReviewService.PRODUCT_FACTORY_LINK + "/restart-test";
+   private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(60);
+
+   @Rule
+   public TemporaryFolder sandbox = new TemporaryFolder();
+
+   private ReviewHost host;
+
+   @Before
+   public void setUp() {
+      // No product host or DNS to validate against: reviews are created right away, and their products checked later
+      ReviewHost.hostArguments.productValidation = ProductValidation.ASYNC;
+      ReviewHost.hostArguments.dnshost = "127.0.0.1";
+      ReviewHost.hostArguments.dnsport = 1;
+      ReviewHost.hostArguments.dnsWatch = false;
+   }
+
+   @After
+   public void tearDown() {
+      if (host != null) {
+         host.stop();
+      }
+      ReviewHost.hostArguments = new ReviewHost.Arguments();
+   }
+
+   @Test
+   public void testRestartDoesNotCountReviewsAgain() throws Throwable {
+      host = startHost();
+      List<String> reviewLinks = new ArrayList<>();
+      for (int stars = 1; stars <= 3; stars++) {
+         Review review = new Review();
+         review.productLink = PRODUCT_LINK;
+         review.content = "Review " + stars;
+         review.stars = stars;
+         reviewLinks.add(send(Operation.createPost(UriUtils.buildUri(host, ReviewService.FACTORY_LINK))
+               .setBody(review)).getBody(Review.class).documentSelfLink);
+      }
+      ProductRating before = waitForRating(3);
+
+      host.stop();
+      host = startHost();
+      waitFor(() -> reviewLinks.stream().allMatch(host::checkServiceAvailable));
+      // Give a restarted review the time to send a (wrong) rating update
+      Thread.sleep(TimeUnit.SECONDS.toMillis(2));
+
+      ProductRating after = getRating();
+      assertEquals(before.reviewCount, after.reviewCount);
+      assertEquals(before.starSum, after.starSum);
+   }
+
+   private ReviewHost startHost() throws Throwable {
+      ReviewHost reviewHost = new ReviewHost();
+      reviewHost.initialize(new String[] {
+            "--port=0",
+            "--id=reviewHost",
+            "--sandbox=" + sandbox.getRoot().getAbsolutePath()
+      });
+      reviewHost.start();
+      waitFor(() -> reviewHost.checkServiceAvailable(ReviewService.FACTORY_LINK)
+            && reviewHost.checkServiceAvailable(ProductRatingService.FACTORY_LINK));
+      return reviewHost;
+   }
+
+   private ProductRating waitForRating(long reviewCount) throws Throwable {
+      waitFor(() -> {
+         try {
+            return getRating().reviewCount == reviewCount;
+         } catch (Exception e) {
+            return false;
+         }
+      });
+      return getRating();
+   }
+
+   private ProductRating getRating() throws Exception {
+      String ratingLink = ProductRatingService.ratingLinkFor(PRODUCT_LINK);
+      return send(Operation.createGet(UriUtils.buildUri(host, ratingLink))).getBody(ProductRating.class);
+   }
+
+   private Operation send(Operation op) throws Exception {
+      CompletableFuture<Operation> done = new CompletableFuture<>();
+      host.sendRequest(op
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  done.completeExceptionally(e);
+                  return;
+               }
+               done.complete(o);
+            }));
+      return done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private interface Condition {
+      boolean isMet() throws Throwable;
+   }
+
+   private static void waitFor(Condition condition) throws Throwable {
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+      while (!condition.isMet()) {
+         if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Timed out");
+         }
+         Thread.sleep(100);
+      }
+   }
+}
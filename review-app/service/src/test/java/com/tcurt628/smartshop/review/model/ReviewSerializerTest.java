@@ -0,0 +1,101 @@
+package com.tcurt628.smartshop.review.model;
+
+import com.tcurt628.smartshop.common.serialization.CompactDocumentSerializer;
+import com.vmware.xenon.common.Utils;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ReviewSerializerTest {
+
+   @After
+   public void tearDown() {
+      CompactDocumentSerializer.setEnabled(Review.class, false);
+   }
+
+   /** A field that {@link ReviewSerializer} doesn't write would be lost on every save, in the compact form */
+   @Test
+   public void testSerializerWritesEveryField() {
+      assertEquals("A field of Review changed: write (and read) it in ReviewSerializer, then set it in newReview()",
+            new TreeSet<>(Arrays.asList("productLink", "author", "content", "stars", "orphaned")),
+            declaredFields(Review.class));
+   }
+
+   @Test
+   public void testRoundTripWithEveryFieldSet() {
+      for (boolean compact : new boolean[] { false, true }) {
+         CompactDocumentSerializer.setEnabled(Review.class, compact);
+         assertEquals(Utils.toJson(newReview()), Utils.toJson(roundTrip(newReview())));
+      }
+   }
+
+   @Test
+   public void testRoundTripWithNoFieldSet() {
+      CompactDocumentSerializer.setEnabled(Review.class, true);
+      assertEquals(Utils.toJson(new Review()), Utils.toJson(roundTrip(new Review())));
+   }
+
+   @Test
+   public void testProductLinkOutsideTheProductFactory() {
+      CompactDocumentSerializer.setEnabled(Review.class, true);
+      Review review = newReview();
+      review.productLink = "/elsewhere/ffebe3b1";
+      review.orphaned = false;
+      assertEquals(Utils.toJson(review), Utils.toJson(roundTrip(review)));
+   }
+
+   @Test
+   public void testCompactFormIsSmaller() {
+      int xenonSize = toBytes(newReview()).length;
+      CompactDocumentSerializer.setEnabled(Review.class, true);
+      int compactSize = toBytes(newReview()).length;
+      assertTrue("compact: " + compactSize + " bytes, Xenon: " + xenonSize, compactSize < xenonSize);
+   }
+
+   private static Review newReview() {
+      Review review = new Review();
+      review.documentKind = Utils.buildKind(Review.class);
+      review.documentSelfLink = "/reviews/4d1c7a52-8e2b-4f7e-9a61-0c3b2e8d5f19";
+      review.documentVersion = 4;
+      review.documentEpoch = 2L;
+      review.documentUpdateTimeMicros = 1476800000000000L;
+      review.documentUpdateAction = "PATCH";
+      review.documentExpirationTimeMicros = 1476900000000000L;
+      review.documentOwner = "reviewHost1";
+      review.documentSourceLink = "/reviews/source";
+      review.documentAuthPrincipalLink = "/core/authz/users/admin";
+      review.documentTransactionId = "tx-1";
+      review.productLink = "/products/ffebe3b1-31f0-4046-aea4-e8919bc87ce3";
+      review.author = "someone";
+      review.content = "Does what it says";
+      review.stars = 4;
+      review.orphaned = true;
+      return review;
+   }
+
+   private static Review roundTrip(Review review) {
+      byte[] bytes = toBytes(review);
+      return (Review) Utils.fromDocumentBytes(bytes, 0, bytes.length);
+   }
+
+   private static byte[] toBytes(Review review) {
+      byte[] buffer = new byte[4096];
+      return Arrays.copyOf(buffer, Utils.toBytes(review, buffer, 0));
+   }
+
+   private static Set<String> declaredFields(Class<?> type) {
+      return Arrays.stream(type.getDeclaredFields())
+            .filter(field -> !Modifier.isStatic(field.getModifiers()))
+            .map(Field::getName)
+            .collect(Collectors.toCollection(TreeSet::new));
+   }
+}
@@ -0,0 +1,230 @@
+package com.tcurt628.smartshop.common.bootstrap;
+
+import com.vmware.xenon.common.NodeSelectorState;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.UriUtils;
+import com.vmware.xenon.services.common.ConsistentHashingNodeSelectorService;
+import com.vmware.xenon.services.common.NodeGroupFactoryService;
+import com.vmware.xenon.services.common.NodeGroupService;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+
+/**
+ * Brings a host from started to serving, and keeps track of how far it got (see {@link #getReadiness()}):
+ * <ol>
+ *    <li>{@link #start} creates the node groups, sets their membership quorum, and starts the node selectors on them.
+ *    Every node group goes through these steps on its own, so they're all set up in parallel.</li>
+ *    <li>Once every selector is up, the host starts the services that need them; {@link #awaitAvailable} waits for them
+ *    to be available.</li>
+ *    <li>The host then registers them (ie: with DNS), with {@link #sendWithRetry} or {@link #runWithRetry}, and reports
+ *    it's {@link #serving()}.</li>
+ * </ol>
+ * A failed step is retried, with an exponential backoff. If it still fails after the last attempt, the host is
+ * reported as {@link Readiness.Status#FAILED}, and nothing after that step is done.
+ */
+public class ClusterBootstrap {
+
+   public static final int DEFAULT_MAX_ATTEMPTS = 10;
+   public static final long DEFAULT_INITIAL_BACKOFF_MILLIS = 100;
+
+   private static final long MAX_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+   private final ServiceHost host;
+   private final int membershipQuorum;
+
+   /** Created before the host is started, so that the cold start time includes starting the host itself */
+   private final long startNanos = System.nanoTime();
+
+   /** The key to the map is the node group path; and the value is the paths of the node selectors on it */
+   private final Map<String, List<String>> nodeSelectorsByNodeGroup = new LinkedHashMap<>();
+
+   private final Set<String> pendingSteps = new ConcurrentSkipListSet<>();
+   private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+   private long initialBackoffMillis = DEFAULT_INITIAL_BACKOFF_MILLIS;
+
+   private volatile Readiness.Status status = Readiness.Status.STARTING;
+   private volatile Long coldStartMillis;
+   private volatile String failure;
+
+   /** @param membershipQuorum the membership quorum of every node group (ie: the number of nodes expected at first) */
+   public ClusterBootstrap(ServiceHost host, int membershipQuorum) {
+      this.host = host;
+      this.membershipQuorum = membershipQuorum;
+   }
+
+   /** Adds a node selector to start, and the node group it selects from (created once, however many use it) */
+   public ClusterBootstrap addNodeSelector(String nodeSelectorPath, String nodeGroupPath) {
+      nodeSelectorsByNodeGroup.computeIfAbsent(nodeGroupPath, k -> new ArrayList<>()).add(nodeSelectorPath);
+      return this;
+   }
+
+   /** How many times a step is attempted, and how long to wait before its first retry (doubled on every retry) */
+   public ClusterBootstrap setRetries(int maxAttempts, long initialBackoffMillis) {
+      this.maxAttempts = maxAttempts;
+      this.initialBackoffMillis = initialBackoffMillis;
+      return this;
+   }
+
+   /**
+    * Creates the node groups and starts the node selectors that were added, then calls {@code onNodeSelectorsStarted}
+    * (on a host thread) once all of them are.
+    */
+   public void start(Runnable onNodeSelectorsStarted) {
+      if (nodeSelectorsByNodeGroup.isEmpty()) {
+         throw new IllegalStateException("Must add at least one node selector before starting");
+      }
+
+      host.log(Level.INFO, "Creating node groups: %s", nodeSelectorsByNodeGroup.keySet());
+      AtomicInteger remaining = new AtomicInteger(nodeSelectorsByNodeGroup.size());
+      Runnable nodeGroupDone = () -> {
+         if (remaining.decrementAndGet() == 0) {
+            host.log(Level.INFO, "Node groups and selectors started after %d ms", elapsedMillis());
+            onNodeSelectorsStarted.run();
+         }
+      };
+      for (Map.Entry<String, List<String>> entry : nodeSelectorsByNodeGroup.entrySet()) {
+         startNodeGroup(entry.getKey(), entry.getValue(), nodeGroupDone);
+      }
+   }
+
+   private void startNodeGroup(String nodeGroup, List<String> nodeSelectors, Runnable onDone) {
+      attempt("node group " + nodeGroup,
+            handler -> host.sendRequest(NodeGroupFactoryService.createNodeGroupPostOp(host, nodeGroup)
+                  .setReferer(host.getUri())
+                  .setCompletion(handler)),
+            () -> attempt("quorum of " + nodeGroup,
+                  handler -> host.sendRequest(createQuorumRequestOperation(nodeGroup).setCompletion(handler)),
+                  () -> startNodeSelectors(nodeGroup, nodeSelectors, onDone)));
+   }
+
+   private Operation createQuorumRequestOperation(String nodeGroup) {
+      NodeGroupService.UpdateQuorumRequest quorumRequest = NodeGroupService.UpdateQuorumRequest.create(true);
+      quorumRequest.setMembershipQuorum(membershipQuorum);
+      return Operation.createPatch(UriUtils.buildUri(host, nodeGroup))
+            .setBody(quorumRequest)
+            .setReferer(host.getUri());
+   }
+
+   private void startNodeSelectors(String nodeGroup, List<String> nodeSelectors, Runnable onDone) {
+      AtomicInteger remaining = new AtomicInteger(nodeSelectors.size());
+      for (String nodeSelector : nodeSelectors) {
+         attempt("node selector " + nodeSelector,
+               handler -> {
+                  NodeSelectorState nodeSelectorState = new NodeSelectorState();
+                  nodeSelectorState.nodeGroupLink = nodeGroup;
+                  Operation postNodeSelector = Operation.createPost(UriUtils.buildUri(host, nodeSelector))
+                        .setBody(nodeSelectorState)
+                        .setReferer(host.getUri())
+                        .setCompletion(handler);
+                  host.startService(postNodeSelector, new ConsistentHashingNodeSelectorService());
+               },
+               () -> {
+                  host.log(Level.FINE, "Started [nodeSelector=%s]", nodeSelector);
+                  if (remaining.decrementAndGet() == 0) {
+                     onDone.run();
+                  }
+               });
+      }
+   }
+
+   /** Calls {@code then} once all of {@code servicePaths} are available */
+   public void awaitAvailable(String step, Runnable then, String... servicePaths) {
+      pendingSteps.add(step);
+      AtomicInteger remaining = new AtomicInteger(servicePaths.length);
+      host.registerForServiceAvailability((o, e) -> {
+         if (e != null) {
+            fail(step, e);
+            return;
+         }
+         if (remaining.decrementAndGet() == 0) {
+            pendingSteps.remove(step);
+            then.run();
+         }
+      }, servicePaths);
+   }
+
+   /** Sends the request {@code request} creates (again, for every retry), and calls {@code then} once it succeeds */
+   public void sendWithRetry(String step, Supplier<Operation> request, Runnable then) {
+      attempt(step, handler -> host.sendRequest(request.get().setCompletion(handler)), then);
+   }
+
+   /**
+    * Like {@link #sendWithRetry}, for a step that takes more than one request: {@code action} runs the step (again, for
+    * every retry), and calls the handler it's given once the step is done or failed.
+    */
+   public void runWithRetry(String step, Consumer<Operation.CompletionHandler> action, Runnable then) {
+      attempt(step, action, then);
+   }
+
+   /** Reports the host as serving; call it once the host's services are available and registered */
+   public void serving() {
+      if (status != Readiness.Status.STARTING) {
+         return;
+      }
+      coldStartMillis = elapsedMillis();
+      status = Readiness.Status.SERVING;
+      host.log(Level.INFO, "Serving, %d ms after the host was started", coldStartMillis);
+   }
+
+   public Readiness getReadiness() {
+      Readiness readiness = new Readiness();
+      readiness.status = status;
+      readiness.coldStartMillis = coldStartMillis;
+      readiness.pendingSteps = new ArrayList<>(pendingSteps);
+      readiness.failure = failure;
+      return readiness;
+   }
+
+   private void attempt(String step, Consumer<Operation.CompletionHandler> action, Runnable onDone) {
+      pendingSteps.add(step);
+      attempt(step, action, onDone, 1);
+   }
+
+   private void attempt(String step, Consumer<Operation.CompletionHandler> action, Runnable onDone, int attempt) {
+      action.accept((o, e) -> {
+         // Already there (ie: an earlier attempt succeeded, but its response was lost) is as good as created
+         if (e == null || e instanceof ServiceHost.ServiceAlreadyStartedException
+               || o.getStatusCode() == Operation.STATUS_CODE_CONFLICT) {
+            pendingSteps.remove(step);
+            onDone.run();
+            return;
+         }
+         if (attempt >= maxAttempts) {
+            fail(step, e);
+            return;
+         }
+         if (host.isStopping()) {
+            return;
+         }
+
+         long backoffMillis = Math.min(initialBackoffMillis << (attempt - 1), MAX_BACKOFF_MILLIS);
+         host.log(Level.WARNING, "Failed: %s (attempt %d of %d); retrying in %d ms. [exception=%s]",
+               step, attempt, maxAttempts, backoffMillis, e.getMessage());
+         host.schedule(() -> attempt(step, action, onDone, attempt + 1), backoffMillis, TimeUnit.MILLISECONDS);
+      });
+   }
+
+   private void fail(String step, Throwable e) {
+      if (status != Readiness.Status.STARTING) {
+         return;
+      }
+      failure = step + ": " + e.getMessage();
+      status = Readiness.Status.FAILED;
+      host.log(Level.SEVERE, "Failed to start up, after %d ms. [step=%s] [exception=%s]", elapsedMillis(), step, e);
+   }
+
+   private long elapsedMillis() {
+      return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+   }
+}
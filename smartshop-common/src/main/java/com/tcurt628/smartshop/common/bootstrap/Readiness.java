@@ -0,0 +1,29 @@
+package com.tcurt628.smartshop.common.bootstrap;
+
+import java.util.List;
+
+/**
+ * How far a host got in starting up; the body of {@code GET /readiness} (see {@link ReadinessService}).
+ */
+public class Readiness {
+
+   public enum Status {
+      /** Still creating its node groups and selectors, starting its services or registering them */
+      STARTING,
+      /** Its services are available, and registered wherever they need to be */
+      SERVING,
+      /** A start up step failed, even after being retried; see {@link #failure} */
+      FAILED
+   }
+
+   public Status status;
+
+   /** The time from the start of the host until it was serving; only set once it is */
+   public Long coldStartMillis;
+
+   /** The start up steps in progress, ie: {@code "node group /core/node-groups/product"} */
+   public List<String> pendingSteps;
+
+   /** The step that failed, and why */
+   public String failure;
+}
@@ -0,0 +1,29 @@
+package com.tcurt628.smartshop.common.bootstrap;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.StatelessService;
+
+/**
+ * Serves the {@link Readiness} of a host on {@code GET /readiness}: {@code 200} once it is serving, {@code 503} before
+ * that (or if it failed to start), so that load balancers and orchestrators only send it traffic once it's ready.
+ */
+public class ReadinessService extends StatelessService {
+
+   public static final String SELF_LINK = "/readiness";
+
+   private final ClusterBootstrap bootstrap;
+
+   public ReadinessService(ClusterBootstrap bootstrap) {
+      this.bootstrap = bootstrap;
+   }
+
+   @Override
+   public void handleGet(Operation get) {
+      Readiness readiness = bootstrap.getReadiness();
+      if (readiness.status != Readiness.Status.SERVING) {
+         get.setStatusCode(Operation.STATUS_CODE_UNAVAILABLE);
+      }
+      get.setBody(readiness);
+      get.complete();
+   }
+}
@@ -0,0 +1,97 @@
+package com.tcurt628.smartshop.common.host;
+
+import com.tcurt628.smartshop.common.logging.LoggingMode;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.ServiceHost.ServiceHostState;
+import com.vmware.xenon.common.http.netty.NettyHttpServiceClient;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The settings a smartshop host runs with, picked together with {@code --hostProfile}, so that a node is sized the same
+ * way wherever it runs. Applied by the host with {@link #applyTo}, once it's started.
+ * <p>
+ * Xenon sizes its own executors from the number of cores, so the pool a profile sets is the HTTP connection pool of
+ * the host's client (per remote host).
+ */
+public enum HostProfile {
+   /**
+    * Xenon's debugging mode (10 minute operation timeouts, so a breakpoint doesn't fail everything), with FINE logs;
+    * everything else is Xenon's default, as the hosts ran before there were profiles. Xenon keeps a service's state
+    * cached for as long as its default operation timeout.
+    */
+   DEV(true, LoggingMode.DEBUG, ServiceHostState.DEFAULT_MAINTENANCE_INTERVAL_MICROS, TimeUnit.MINUTES.toMicros(10),
+         NettyHttpServiceClient.DEFAULT_CONNECTIONS_PER_HOST, ServiceHostState.DEFAULT_OPERATION_TIMEOUT_MICROS),
+
+   /**
+    * For load tests: no debugging mode, less frequent maintenance (so it doesn't show up in the measurements), a large
+    * connection pool, and service states kept cached for long, so a test measures the requests rather than the host.
+    */
+   PERF(false, LoggingMode.PRODUCTION, TimeUnit.SECONDS.toMicros(5), TimeUnit.SECONDS.toMicros(30), 256,
+         TimeUnit.MINUTES.toMicros(10)),
+
+   /**
+    * For production: no debugging mode, Xenon's default maintenance interval (node group health and synchronization
+    * rely on it), short enough operation timeouts for callers to fail over, and Xenon's default connection pool.
+    */
+   PROD(false, LoggingMode.PRODUCTION, ServiceHostState.DEFAULT_MAINTENANCE_INTERVAL_MICROS,
+         TimeUnit.SECONDS.toMicros(30), NettyHttpServiceClient.DEFAULT_CONNECTIONS_PER_HOST,
+         TimeUnit.MINUTES.toMicros(5));
+
+   private final boolean debuggingMode;
+   private final LoggingMode loggingMode;
+   private final long maintenanceIntervalMicros;
+   private final long operationTimeoutMicros;
+   private final int connectionLimitPerHost;
+   private final long serviceCacheClearDelayMicros;
+
+   HostProfile(boolean debuggingMode, LoggingMode loggingMode, long maintenanceIntervalMicros,
+         long operationTimeoutMicros, int connectionLimitPerHost, long serviceCacheClearDelayMicros) {
+      this.debuggingMode = debuggingMode;
+      this.loggingMode = loggingMode;
+      this.maintenanceIntervalMicros = maintenanceIntervalMicros;
+      this.operationTimeoutMicros = operationTimeoutMicros;
+      this.connectionLimitPerHost = connectionLimitPerHost;
+      this.serviceCacheClearDelayMicros = serviceCacheClearDelayMicros;
+   }
+
+   public boolean isDebuggingMode() {
+      return debuggingMode;
+   }
+
+   public LoggingMode getLoggingMode() {
+      return loggingMode;
+   }
+
+   public long getMaintenanceIntervalMicros() {
+      return maintenanceIntervalMicros;
+   }
+
+   public long getOperationTimeoutMicros() {
+      return operationTimeoutMicros;
+   }
+
+   public int getConnectionLimitPerHost() {
+      return connectionLimitPerHost;
+   }
+
+   /** How long the cached state of a service is kept after its last update, before it's read from the index again */
+   public long getServiceCacheClearDelayMicros() {
+      return serviceCacheClearDelayMicros;
+   }
+
+   /** {@code loggingMode} if it was set explicitly (ie: with {@code --loggingMode}), else the one of this profile */
+   public LoggingMode resolveLoggingMode(LoggingMode loggingMode) {
+      return loggingMode != null ? loggingMode : this.loggingMode;
+   }
+
+   /** Applies this profile to {@code host}, which has to be started already (its client is created on start) */
+   public void applyTo(ServiceHost host) {
+      // Goes first, since it resets the operation timeout too
+      host.toggleDebuggingMode(debuggingMode);
+      host.setOperationTimeOutMicros(operationTimeoutMicros);
+      host.setMaintenanceIntervalMicros(maintenanceIntervalMicros);
+      host.setServiceCacheClearDelayMicros(serviceCacheClearDelayMicros);
+      host.getClient().setConnectionLimitPerHost(connectionLimitPerHost);
+   }
+}
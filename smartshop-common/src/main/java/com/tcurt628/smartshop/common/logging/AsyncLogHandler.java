@@ -0,0 +1,98 @@
+package com.tcurt628.smartshop.common.logging;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Hands log records to another {@link Handler} from a background thread. The records are queued without blocking: if
+ * the queue is full (the delegate can't keep up), they're dropped, and how many were is logged once there's room again.
+ */
+public class AsyncLogHandler extends Handler {
+
+   public static final int DEFAULT_CAPACITY = 10000;
+
+   private static final long CLOSE_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+
+   private final Handler delegate;
+   private final BlockingQueue<LogRecord> queue;
+   private final AtomicLong dropped = new AtomicLong();
+   private final Thread writer;
+
+   public AsyncLogHandler(Handler delegate, int capacity) {
+      this.delegate = delegate;
+      this.queue = new ArrayBlockingQueue<>(capacity);
+      super.setLevel(delegate.getLevel());
+      writer = new Thread(this::writeRecords, "smartshop-async-log");
+      writer.setDaemon(true);
+      writer.start();
+   }
+
+   public Handler getDelegate() {
+      return delegate;
+   }
+
+   @Override
+   public void publish(LogRecord record) {
+      if (!isLoggable(record)) {
+         return;
+      }
+      // The caller is only worked out when it's asked for, which has to happen on the thread that logged
+      record.getSourceMethodName();
+      if (!queue.offer(record)) {
+         dropped.incrementAndGet();
+      }
+   }
+
+   private void writeRecords() {
+      try {
+         while (true) {
+            writeRecord(queue.take());
+         }
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void writeRecord(LogRecord record) {
+      long droppedCount = dropped.getAndSet(0);
+      if (droppedCount > 0) {
+         delegate.publish(new LogRecord(Level.WARNING,
+               String.format("Dropped %d log records, the log queue was full", droppedCount)));
+      }
+      delegate.publish(record);
+   }
+
+   /** Writes out the records queued so far */
+   @Override
+   public synchronized void flush() {
+      LogRecord record;
+      while ((record = queue.poll()) != null) {
+         writeRecord(record);
+      }
+      delegate.flush();
+   }
+
+   @Override
+   public void close() {
+      writer.interrupt();
+      try {
+         writer.join(CLOSE_TIMEOUT_MILLIS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      flush();
+      delegate.close();
+   }
+
+   /** The level applies to the delegate too, so that changing it (ie: with {@code setLoggingLevel}) still works */
+   @Override
+   public synchronized void setLevel(Level newLevel) {
+      super.setLevel(newLevel);
+      delegate.setLevel(newLevel);
+   }
+}
@@ -0,0 +1,37 @@
+package com.tcurt628.smartshop.common.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets at most a given number of log records through per second, and counts the ones it refuses. It's approximate
+ * around the turn of a second, which is fine for keeping logs readable under load.
+ */
+public final class LogRateLimiter {
+
+   private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+   private final AtomicLong currentSecond = new AtomicLong(System.nanoTime() / NANOS_PER_SECOND);
+   private final AtomicInteger usedThisSecond = new AtomicInteger();
+   private final AtomicLong suppressed = new AtomicLong();
+
+   /** Whether one more record may be logged this second, with at most {@code maxPerSecond} allowed */
+   public boolean tryAcquire(int maxPerSecond) {
+      long second = System.nanoTime() / NANOS_PER_SECOND;
+      long current = currentSecond.get();
+      if (second != current && currentSecond.compareAndSet(current, second)) {
+         usedThisSecond.set(0);
+      }
+      if (usedThisSecond.incrementAndGet() <= maxPerSecond) {
+         return true;
+      }
+      suppressed.incrementAndGet();
+      return false;
+   }
+
+   /** How many records were refused since the last call */
+   public long drainSuppressed() {
+      return suppressed.getAndSet(0);
+   }
+}
@@ -0,0 +1,15 @@
+package com.tcurt628.smartshop.common.logging;
+
+/**
+ * How a host logs; see {@link SmartShopLogging#configure}.
+ */
+public enum LoggingMode {
+   /** Everything down to {@code FINE} (ie: a few lines per request), written synchronously. */
+   DEBUG,
+
+   /**
+    * {@code INFO} and above only, written by a background thread so request threads never wait on log I/O. Each
+    * service class may also only log so many lines a second; the rest are counted and dropped.
+    */
+   PRODUCTION
+}
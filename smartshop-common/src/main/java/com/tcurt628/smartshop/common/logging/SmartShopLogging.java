@@ -0,0 +1,103 @@
+package com.tcurt628.smartshop.common.logging;
+
+import com.vmware.xenon.common.ServiceHost;
+
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sets how the smartshop classes log (see {@link LoggingMode}), and decides whether a service's log line is worth
+ * formatting at all: {@link #shouldLog} is cheap enough to call on every request, before any message is built.
+ */
+public final class SmartShopLogging {
+
+   /** The parent logger of every smartshop class */
+   public static final String ROOT_LOGGER_NAME = "com.tcurt628.smartshop";
+
+   /** Held on to, since the LogManager only keeps loggers weakly (and would forget the level set on this one) */
+   private static final Logger ROOT_LOGGER = Logger.getLogger(ROOT_LOGGER_NAME);
+
+   private static final ClassValue<Logger> LOGGERS = new ClassValue<Logger>() {
+      @Override
+      protected Logger computeValue(Class<?> type) {
+         return Logger.getLogger(type.getName());
+      }
+   };
+
+   private static final ClassValue<LogRateLimiter> RATE_LIMITERS = new ClassValue<LogRateLimiter>() {
+      @Override
+      protected LogRateLimiter computeValue(Class<?> type) {
+         return new LogRateLimiter();
+      }
+   };
+
+   /** Max lines a second per class, below {@code SEVERE}; 0 for no limit */
+   private static volatile int maxRecordsPerSecond;
+
+   private SmartShopLogging() {
+   }
+
+   /**
+    * Applies {@code mode} to every smartshop logger, and to the handlers of the root logger. Call it once {@code host}
+    * is initialized, since that's when Xenon adds its log file handler.
+    *
+    * @param recordsPerSecond how many lines each class may log a second in {@link LoggingMode#PRODUCTION} mode
+    */
+   public static synchronized void configure(ServiceHost host, LoggingMode mode, int recordsPerSecond) {
+      switch (mode) {
+      case DEBUG:
+         ROOT_LOGGER.setLevel(Level.FINE);
+         maxRecordsPerSecond = 0;
+         break;
+      case PRODUCTION:
+         ROOT_LOGGER.setLevel(Level.INFO);
+         maxRecordsPerSecond = recordsPerSecond;
+         Logger rootLogger = Logger.getLogger("");
+         for (Handler handler : rootLogger.getHandlers()) {
+            if (handler instanceof AsyncLogHandler) {
+               continue;
+            }
+            rootLogger.removeHandler(handler);
+            rootLogger.addHandler(new AsyncLogHandler(handler, AsyncLogHandler.DEFAULT_CAPACITY));
+         }
+         host.setLoggingLevel(Level.INFO);
+         break;
+      default:
+         throw new IllegalArgumentException("Unknown logging mode: " + mode);
+      }
+   }
+
+   /** The logger of {@code type}, held on to for as long as the class is */
+   public static Logger getLogger(Class<?> type) {
+      return LOGGERS.get(type);
+   }
+
+   /**
+    * Whether a line at {@code level} from {@code type} should be logged: its logger has to allow the level, and (except
+    * for {@code SEVERE}) the class can't have used up its lines for this second. When lines were dropped, a line
+    * saying how many is logged first.
+    */
+   public static boolean shouldLog(Class<?> type, Level level) {
+      Logger logger = LOGGERS.get(type);
+      if (!logger.isLoggable(level)) {
+         return false;
+      }
+
+      int maxPerSecond = maxRecordsPerSecond;
+      if (maxPerSecond <= 0 || level.intValue() >= Level.SEVERE.intValue()) {
+         return true;
+      }
+
+      LogRateLimiter limiter = RATE_LIMITERS.get(type);
+      if (!limiter.tryAcquire(maxPerSecond)) {
+         return false;
+      }
+      long suppressed = limiter.drainSuppressed();
+      if (suppressed > 0) {
+         logger.log(level, String.format("Suppressed %d log lines of %s, over %d a second", suppressed,
+               type.getSimpleName(), maxPerSecond));
+      }
+      return true;
+   }
+}
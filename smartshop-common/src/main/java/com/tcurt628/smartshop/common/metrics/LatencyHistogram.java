@@ -0,0 +1,107 @@
+package com.tcurt628.smartshop.common.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A fixed-size, HDR-style histogram of latencies in microseconds. Values are counted in log-linear buckets: every
+ * power of two is split into {@value #SUB_BUCKET_COUNT} equal buckets, so a percentile is never off by more than about
+ * 3%, from 1 microsecond up to {@link #MAX_VALUE} (about 19 hours).
+ * <p>
+ * {@link #record} only increments counters in arrays allocated up front, so it's safe to call on every request from
+ * any number of threads. Reading the percentiles back goes through a {@link Snapshot}.
+ */
+public final class LatencyHistogram {
+
+   private static final int SUB_BUCKET_BITS = 5;
+   private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+
+   /** Larger values are recorded as this */
+   public static final long MAX_VALUE = (1L << 36) - 1;
+
+   static final int BUCKET_COUNT = bucketIndex(MAX_VALUE) + 1;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+   private final LongAdder sum = new LongAdder();
+
+   /** Counts one sample of {@code micros}; negative values are recorded as 0 */
+   public void record(long micros) {
+      long value = Math.min(Math.max(micros, 0), MAX_VALUE);
+      counts.incrementAndGet(bucketIndex(value));
+      sum.add(value);
+   }
+
+   public Snapshot snapshot() {
+      long[] copy = new long[BUCKET_COUNT];
+      for (int i = 0; i < BUCKET_COUNT; i++) {
+         copy[i] = counts.get(i);
+      }
+      return new Snapshot(copy, sum.sum());
+   }
+
+   static int bucketIndex(long value) {
+      if (value < SUB_BUCKET_COUNT) {
+         return (int) value;
+      }
+      int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+      return ((shift + 1) << SUB_BUCKET_BITS) + (int) ((value >>> shift) - SUB_BUCKET_COUNT);
+   }
+
+   /** The largest value that is counted in bucket {@code index} */
+   static long highestValueIn(int index) {
+      if (index < SUB_BUCKET_COUNT) {
+         return index;
+      }
+      int shift = (index >>> SUB_BUCKET_BITS) - 1;
+      long subBucket = (index & (SUB_BUCKET_COUNT - 1)) + SUB_BUCKET_COUNT;
+      return ((subBucket + 1) << shift) - 1;
+   }
+
+   /**
+    * The counts of a {@link LatencyHistogram} at one point in time. Samples recorded while the snapshot was taken may
+    * or may not be part of it.
+    */
+   public static final class Snapshot {
+      private final long[] counts;
+      private final long count;
+      private final long sum;
+
+      private Snapshot(long[] counts, long sum) {
+         long total = 0;
+         for (long bucketCount : counts) {
+            total += bucketCount;
+         }
+         this.counts = counts;
+         this.count = total;
+         this.sum = sum;
+      }
+
+      public long getCount() {
+         return count;
+      }
+
+      /** The sum of every recorded value, in microseconds */
+      public long getSum() {
+         return sum;
+      }
+
+      /**
+       * The value (in microseconds) that {@code percentile} percent of the samples are at or below; 0 if nothing was
+       * recorded.
+       */
+      public long getValueAtPercentile(double percentile) {
+         if (count == 0) {
+            return 0;
+         }
+         long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+         long seen = 0;
+         for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+               return highestValueIn(i);
+            }
+         }
+         return MAX_VALUE;
+      }
+   }
+}
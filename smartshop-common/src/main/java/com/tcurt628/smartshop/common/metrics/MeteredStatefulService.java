@@ -0,0 +1,162 @@
+package com.tcurt628.smartshop.common.metrics;
+
+import com.tcurt628.smartshop.common.logging.SmartShopLogging;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.StatefulService;
+import com.vmware.xenon.common.Utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * A {@code StatefulService} that records the latency of the requests it handles in its host's {@link ServiceMetrics}:
+ * <ul>
+ *    <li>The {@link OperationStage#TOTAL} time of every request, and whether it failed. The start of an instance (ie:
+ *    creating it with a POST to its factory) is recorded as a POST.</li>
+ *    <li>The {@link OperationStage#PERSIST} time of creates, and of updates completed with {@link #completeUpdate}.</li>
+ *    <li>Whatever stages the subclass times itself, with {@link #getMetrics()}.</li>
+ * </ul>
+ * Its log lines also go through {@link SmartShopLogging#shouldLog}, so a line that won't be logged costs nothing to
+ * skip, and a busy service can't flood the log.
+ */
+public abstract class MeteredStatefulService extends StatefulService {
+
+   /** Where services record when their host isn't a {@link MetricsHost} (ie: in tests) */
+   private static final MetricsRegistry UNSERVED_REGISTRY = new MetricsRegistry();
+
+   private final String metricsName;
+   private ServiceMetrics metrics;
+
+   /** The start stages of an instance run one after the other, so they can be timed with plain fields */
+   private long startNanos;
+   private long indexingStartNanos;
+
+   /**
+    * The update being handled. A {@code StatefulService} handles one update at a time, from the moment it's dequeued
+    * until its handler completes, which is all the time this is needed for.
+    */
+   private UpdateTimer activeUpdate;
+
+   /** @param metricsName the name the metrics of every instance are recorded under (ie: the factory link) */
+   protected MeteredStatefulService(Class<? extends ServiceDocument> stateType, String metricsName) {
+      super(stateType);
+      this.metricsName = metricsName;
+   }
+
+   protected ServiceMetrics getMetrics() {
+      if (metrics == null) {
+         MetricsRegistry registry = getHost() instanceof MetricsHost
+               ? ((MetricsHost) getHost()).getMetricsRegistry()
+               : UNSERVED_REGISTRY;
+         metrics = registry.getServiceMetrics(metricsName);
+      }
+      return metrics;
+   }
+
+   @Override
+   public void handleRequest(Operation request, OperationProcessingStage opProcessingStage) {
+      // Every request starts out LOADING_STATE; the later stages are only re-entered for requests timed already
+      if (opProcessingStage == OperationProcessingStage.LOADING_STATE) {
+         startTiming(request);
+      }
+      super.handleRequest(request, opProcessingStage);
+   }
+
+   private void startTiming(Operation request) {
+      if (ServiceHost.isServiceStop(request) || request.getAction() == Action.OPTIONS) {
+         return;
+      }
+      if (request.getAction() == Action.GET) {
+         getMetrics().timeRequest(request);
+         return;
+      }
+
+      UpdateTimer timer = new UpdateTimer(getMetrics());
+      activeUpdate = timer;
+      request.nestCompletion(timer);
+   }
+
+   /**
+    * Completes {@code update} from its handler. Everything after this (replicating and indexing the new state) is
+    * recorded as its {@link OperationStage#PERSIST} time.
+    */
+   protected void completeUpdate(Operation update) {
+      UpdateTimer timer = activeUpdate;
+      if (timer != null) {
+         timer.handledNanos = System.nanoTime();
+         activeUpdate = null;
+      }
+      update.complete();
+   }
+
+   /** Like {@code StatefulService.log}, except that nothing is looked up or formatted for lines that aren't logged */
+   @Override
+   protected void log(Level level, String fmt, Object... args) {
+      if (!SmartShopLogging.shouldLog(getClass(), level)) {
+         return;
+      }
+      String uri = getHost() != null && getUri() != null ? getUri().toString() : getClass().getSimpleName();
+      // Frame 3 is whoever called logInfo/logFine/etc, as in StatefulService
+      Utils.log(SmartShopLogging.getLogger(getClass()), 3, uri, level, fmt, args);
+   }
+
+   @Override
+   public void setProcessingStage(ProcessingStage stage) {
+      super.setProcessingStage(stage);
+      switch (stage) {
+      case INITIALIZING:
+         startNanos = System.nanoTime();
+         break;
+      case INDEXING_INITIAL_STATE:
+         indexingStartNanos = System.nanoTime();
+         break;
+      case AVAILABLE:
+         if (startNanos != 0) {
+            getMetrics().record(Action.POST, OperationStage.TOTAL, startNanos);
+         }
+         if (indexingStartNanos != 0) {
+            getMetrics().record(Action.POST, OperationStage.PERSIST, indexingStartNanos);
+         }
+         startNanos = 0;
+         indexingStartNanos = 0;
+         break;
+      case STOPPED:
+         // Stopped before it ever became available: its start failed
+         if (startNanos != 0) {
+            getMetrics().recordFailure(Action.POST);
+            startNanos = 0;
+         }
+         break;
+      default:
+         break;
+      }
+   }
+
+   /** The completion of a timed update; it's allocated instead of a lambda, and holds when its handler completed */
+   private static final class UpdateTimer implements Operation.CompletionHandler {
+      private final ServiceMetrics metrics;
+      private final long startNanos = System.nanoTime();
+      private volatile long handledNanos;
+
+      UpdateTimer(ServiceMetrics metrics) {
+         this.metrics = metrics;
+      }
+
+      @Override
+      public void handle(Operation op, Throwable e) {
+         long now = System.nanoTime();
+         metrics.recordMicros(op.getAction(), OperationStage.TOTAL, TimeUnit.NANOSECONDS.toMicros(now - startNanos));
+         if (e != null) {
+            metrics.recordFailure(op.getAction());
+            op.fail(e);
+            return;
+         }
+         if (handledNanos != 0) {
+            metrics.recordMicros(op.getAction(), OperationStage.PERSIST, TimeUnit.NANOSECONDS.toMicros(now - handledNanos));
+         }
+         op.complete();
+      }
+   }
+}
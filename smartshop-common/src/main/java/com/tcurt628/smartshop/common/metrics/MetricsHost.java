@@ -0,0 +1,10 @@
+package com.tcurt628.smartshop.common.metrics;
+
+/**
+ * A host that keeps metrics for its services. {@link MeteredStatefulService}s record into its registry; on any other
+ * host they record into one that is never served.
+ */
+public interface MetricsHost {
+
+   MetricsRegistry getMetricsRegistry();
+}
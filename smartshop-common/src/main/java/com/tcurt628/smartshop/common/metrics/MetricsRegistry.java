@@ -0,0 +1,53 @@
+package com.tcurt628.smartshop.common.metrics;
+
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The {@link ServiceMetrics} of every service on a host, keyed by the service's name (ie: its factory link). A host
+ * keeps one of these, and exposes it through a {@link MetricsService}.
+ */
+public class MetricsRegistry {
+
+   static final String LATENCY_METRIC = "smartshop_request_latency_microseconds";
+   static final String FAILURES_METRIC = "smartshop_request_failures_total";
+   static final String EVENTS_METRIC = "smartshop_events_total";
+
+   private final ConcurrentMap<String, ServiceMetrics> services = new ConcurrentSkipListMap<>();
+
+   /** The metrics of {@code service}, created the first time they're asked for */
+   public ServiceMetrics getServiceMetrics(String service) {
+      ServiceMetrics metrics = services.get(service);
+      if (metrics == null) {
+         services.putIfAbsent(service, new ServiceMetrics(service));
+         metrics = services.get(service);
+      }
+      return metrics;
+   }
+
+   /**
+    * Every service's metrics, in the Prometheus text exposition format (version 0.0.4). Request counts (and so
+    * throughput) come from the {@code _count} of the {@code total} stage.
+    */
+   public String toPrometheusText() {
+      StringBuilder out = new StringBuilder();
+      out.append("# HELP ").append(LATENCY_METRIC).append(" Latency of requests, per service, action and stage\n");
+      out.append("# TYPE ").append(LATENCY_METRIC).append(" summary\n");
+      for (ServiceMetrics metrics : services.values()) {
+         metrics.appendLatencies(out, LATENCY_METRIC);
+      }
+
+      out.append("# HELP ").append(FAILURES_METRIC).append(" Failed requests, per service and action\n");
+      out.append("# TYPE ").append(FAILURES_METRIC).append(" counter\n");
+      for (ServiceMetrics metrics : services.values()) {
+         metrics.appendFailures(out, FAILURES_METRIC);
+      }
+
+      out.append("# HELP ").append(EVENTS_METRIC).append(" Events counted by services, per service and event\n");
+      out.append("# TYPE ").append(EVENTS_METRIC).append(" counter\n");
+      for (ServiceMetrics metrics : services.values()) {
+         metrics.appendEvents(out, EVENTS_METRIC);
+      }
+      return out.toString();
+   }
+}
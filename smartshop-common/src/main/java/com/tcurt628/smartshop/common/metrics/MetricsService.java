@@ -0,0 +1,27 @@
+package com.tcurt628.smartshop.common.metrics;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.StatelessService;
+
+/**
+ * Serves a host's {@link MetricsRegistry} on {@code GET /metrics}, as plain text that Prometheus (or anything that
+ * reads its format) can scrape.
+ */
+public class MetricsService extends StatelessService {
+
+   public static final String SELF_LINK = "/metrics";
+   public static final String MEDIA_TYPE_PROMETHEUS_TEXT = "text/plain; version=0.0.4; charset=utf-8";
+
+   private final MetricsRegistry registry;
+
+   public MetricsService(MetricsRegistry registry) {
+      this.registry = registry;
+   }
+
+   @Override
+   public void handleGet(Operation get) {
+      get.setContentType(MEDIA_TYPE_PROMETHEUS_TEXT);
+      get.setBody(registry.toPrometheusText());
+      get.complete();
+   }
+}
@@ -0,0 +1,31 @@
+package com.tcurt628.smartshop.common.metrics;
+
+/**
+ * The parts of a request that {@link ServiceMetrics} times separately. A request only goes through the stages that
+ * apply to it (ie: only review creation looks its product up).
+ */
+public enum OperationStage {
+   /** From the service receiving the request to its response being sent */
+   TOTAL("total"),
+   /** Deserializing the request body */
+   PARSE("parse"),
+   /** The service's own checks of the request body */
+   VALIDATION("validation"),
+   /** A query forwarded through a node selector to another node group */
+   NODE_SELECTOR_LOOKUP("node_selector_lookup"),
+   /** Resolving a service through DNS, and calling it */
+   DNS_LOOKUP("dns_lookup"),
+   /** From the handler completing to the new state being replicated and indexed */
+   PERSIST("persist");
+
+   private final String label;
+
+   OperationStage(String label) {
+      this.label = label;
+   }
+
+   /** How this stage is named on the metrics endpoint */
+   public String getLabel() {
+      return label;
+   }
+}
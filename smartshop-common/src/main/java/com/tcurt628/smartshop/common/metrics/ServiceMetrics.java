@@ -0,0 +1,147 @@
+package com.tcurt628.smartshop.common.metrics;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service.Action;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Latency histograms (per action and {@link OperationStage}) and failure counts of the requests handled by one kind of
+ * service, on one host, along with the counts of whatever events the service counts itself. Get it from the host's {@link MetricsRegistry}; every instance of the service shares it.
+ * <p>
+ * Recording doesn't allocate: a histogram is created the first time its action and stage are recorded, and only
+ * counted into after that.
+ */
+public final class ServiceMetrics {
+
+   private static final Action[] ACTIONS = Action.values();
+   private static final OperationStage[] STAGES = OperationStage.values();
+   private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+   private static final String[] QUANTILE_LABELS = {"0.5", "0.9", "0.99", "0.999"};
+
+   private final String service;
+   private final AtomicReferenceArray<LatencyHistogram> histograms =
+         new AtomicReferenceArray<>(ACTIONS.length * STAGES.length);
+   private final AtomicLongArray failures = new AtomicLongArray(ACTIONS.length);
+   private final ConcurrentMap<String, AtomicLong> events = new ConcurrentSkipListMap<>();
+
+   ServiceMetrics(String service) {
+      this.service = service;
+   }
+
+   public String getService() {
+      return service;
+   }
+
+   /** Records the time from {@code startNanos} (a {@link System#nanoTime()} reading) until now */
+   public void record(Action action, OperationStage stage, long startNanos) {
+      recordMicros(action, stage, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+   }
+
+   public void recordMicros(Action action, OperationStage stage, long micros) {
+      histogram(action, stage).record(micros);
+   }
+
+   public void recordFailure(Action action) {
+      failures.incrementAndGet(action.ordinal());
+   }
+
+   /**
+    * Records the {@link OperationStage#TOTAL} time of {@code op}, and whether it failed, once it completes. Call it
+    * before the request is handled, since the completion is nested under whatever completions are added after it.
+    */
+   public void timeRequest(Operation op) {
+      long startNanos = System.nanoTime();
+      op.nestCompletion((o, e) -> {
+         record(o.getAction(), OperationStage.TOTAL, startNanos);
+         if (e != null) {
+            recordFailure(o.getAction());
+            o.fail(e);
+            return;
+         }
+         o.complete();
+      });
+   }
+
+   /** Counts one more {@code event} (ie: {@code "product_lookup_coalesced"}) */
+   public void countEvent(String event) {
+      AtomicLong count = events.get(event);
+      if (count == null) {
+         events.putIfAbsent(event, new AtomicLong());
+         count = events.get(event);
+      }
+      count.incrementAndGet();
+   }
+
+   public long getEventCount(String event) {
+      AtomicLong count = events.get(event);
+      return count != null ? count.get() : 0;
+   }
+
+   /** The histogram of {@code action} in {@code stage}, or null if nothing was recorded for them yet */
+   public LatencyHistogram getHistogram(Action action, OperationStage stage) {
+      return histograms.get(indexOf(action, stage));
+   }
+
+   public long getFailureCount(Action action) {
+      return failures.get(action.ordinal());
+   }
+
+   private LatencyHistogram histogram(Action action, OperationStage stage) {
+      int index = indexOf(action, stage);
+      LatencyHistogram histogram = histograms.get(index);
+      if (histogram == null) {
+         histograms.compareAndSet(index, null, new LatencyHistogram());
+         histogram = histograms.get(index);
+      }
+      return histogram;
+   }
+
+   private static int indexOf(Action action, OperationStage stage) {
+      return action.ordinal() * STAGES.length + stage.ordinal();
+   }
+
+   /** Appends a summary (quantiles, sum and count) of every histogram, in the Prometheus text format */
+   void appendLatencies(StringBuilder out, String metricName) {
+      for (Action action : ACTIONS) {
+         for (OperationStage stage : STAGES) {
+            LatencyHistogram histogram = getHistogram(action, stage);
+            if (histogram == null) {
+               continue;
+            }
+            LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+            String labels = String.format("service=\"%s\",action=\"%s\",stage=\"%s\"", service, action, stage.getLabel());
+            for (int i = 0; i < PERCENTILES.length; i++) {
+               out.append(metricName).append('{').append(labels).append(",quantile=\"").append(QUANTILE_LABELS[i])
+                     .append("\"} ").append(snapshot.getValueAtPercentile(PERCENTILES[i])).append('\n');
+            }
+            out.append(metricName).append("_sum{").append(labels).append("} ").append(snapshot.getSum()).append('\n');
+            out.append(metricName).append("_count{").append(labels).append("} ").append(snapshot.getCount()).append('\n');
+         }
+      }
+   }
+
+   void appendFailures(StringBuilder out, String metricName) {
+      for (Action action : ACTIONS) {
+         long count = getFailureCount(action);
+         if (count == 0) {
+            continue;
+         }
+         out.append(metricName).append("{service=\"").append(service).append("\",action=\"").append(action)
+               .append("\"} ").append(count).append('\n');
+      }
+   }
+
+   void appendEvents(StringBuilder out, String metricName) {
+      for (Map.Entry<String, AtomicLong> event : events.entrySet()) {
+         out.append(metricName).append("{service=\"").append(service).append("\",event=\"").append(event.getKey())
+               .append("\"} ").append(event.getValue().get()).append('\n');
+      }
+   }
+}
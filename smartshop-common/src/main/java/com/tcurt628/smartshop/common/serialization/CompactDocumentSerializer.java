@@ -0,0 +1,182 @@
+package com.tcurt628.smartshop.common.serialization;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.VersionFieldSerializer;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.Utils;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A compact binary form of a {@link ServiceDocument} type, for the Kryo serialization Xenon persists documents with
+ * (the binary state of each document in the index) and clones them with. Put it on the type with
+ * {@code @DefaultSerializer}: Kryo then uses it instead of Xenon's {@link VersionFieldSerializer}. The JSON of the
+ * type, at the REST API, doesn't change.
+ * <p>
+ * Xenon's form has every field of the document, including its {@code documentKind} (which the class already says) and
+ * its whole {@code documentSelfLink}. The compact form writes the {@code ServiceDocument} fields in a fixed order,
+ * leaves the kind out, and writes the self link without the factory link of the type. Subclasses write their own
+ * fields in a fixed order too, with the helpers here for the nullable ones.
+ * <p>
+ * It's opt in, type by type, with {@link #setEnabled}; until then, documents are written in Xenon's form, byte for byte.
+ * Both forms are always read (they're told apart by their first byte), so a host can switch with documents persisted in
+ * either. The setting is the JVM's, not a host's (Kryo serializers are shared by every host): hosts of different
+ * types can run in one JVM with their own settings, but hosts of the same type there share one.
+ */
+public abstract class CompactDocumentSerializer<T extends ServiceDocument> extends Serializer<T> {
+
+   /**
+    * The first byte of the compact form. Xenon's form starts with the version of the type's fields, as a varint: 0,
+    * unless fields are added with {@code @Since}.
+    */
+   static final byte COMPACT_FORMAT = (byte) 0xC5;
+
+   /** The {@code documentKind} is the kind of the type, and isn't written */
+   private static final int FLAG_KIND = 1;
+   private static final int FLAG_EPOCH = 1 << 1;
+
+   private static final Set<Class<?>> enabledTypes = ConcurrentHashMap.newKeySet();
+
+   private final Class<T> type;
+   private final String kind;
+   private final String factoryLink;
+   private final VersionFieldSerializer<T> xenonSerializer;
+
+   /**
+    * @param factoryLink the factory the documents are created at (ie: {@code /products}); the self links under it are
+    *                    written without it
+    */
+   protected CompactDocumentSerializer(Kryo kryo, Class<T> type, String factoryLink) {
+      this.type = type;
+      this.kind = Utils.buildKind(type);
+      this.factoryLink = factoryLink;
+      this.xenonSerializer = new VersionFieldSerializer<>(kryo, type);
+   }
+
+   /** Whether documents of {@code type} are written in the compact form, rather than Xenon's, in this JVM */
+   public static void setEnabled(Class<? extends ServiceDocument> type, boolean compact) {
+      if (compact) {
+         enabledTypes.add(type);
+      } else {
+         enabledTypes.remove(type);
+      }
+   }
+
+   public static boolean isEnabled(Class<? extends ServiceDocument> type) {
+      return enabledTypes.contains(type);
+   }
+
+   @Override
+   public void write(Kryo kryo, Output output, T document) {
+      // The description is only ever on templates; and a document of another kind wouldn't read back as it was
+      if (!enabledTypes.contains(type) || document.documentDescription != null
+            || (document.documentKind != null && !document.documentKind.equals(kind))) {
+         xenonSerializer.write(kryo, output, document);
+         return;
+      }
+
+      int flags = (document.documentKind != null ? FLAG_KIND : 0) | (document.documentEpoch != null ? FLAG_EPOCH : 0);
+      output.writeByte(COMPACT_FORMAT);
+      output.writeByte(flags);
+      writeLink(output, factoryLink, document.documentSelfLink);
+      output.writeVarLong(document.documentVersion, true);
+      if (document.documentEpoch != null) {
+         output.writeVarLong(document.documentEpoch, true);
+      }
+      output.writeVarLong(document.documentUpdateTimeMicros, true);
+      output.writeString(document.documentUpdateAction);
+      output.writeVarLong(document.documentExpirationTimeMicros, true);
+      output.writeString(document.documentOwner);
+      output.writeString(document.documentSourceLink);
+      output.writeString(document.documentAuthPrincipalLink);
+      output.writeString(document.documentTransactionId);
+      writeFields(output, document);
+   }
+
+   @Override
+   public T read(Kryo kryo, Input input, Class<T> readType) {
+      if (input.readByte() != COMPACT_FORMAT) {
+         input.setPosition(input.position() - 1);
+         return xenonSerializer.read(kryo, input, readType);
+      }
+
+      T document = kryo.newInstance(type);
+      int flags = input.readByte();
+      document.documentKind = (flags & FLAG_KIND) != 0 ? kind : null;
+      document.documentSelfLink = readLink(input, factoryLink);
+      document.documentVersion = input.readVarLong(true);
+      document.documentEpoch = (flags & FLAG_EPOCH) != 0 ? input.readVarLong(true) : null;
+      document.documentUpdateTimeMicros = input.readVarLong(true);
+      document.documentUpdateAction = input.readString();
+      document.documentExpirationTimeMicros = input.readVarLong(true);
+      document.documentOwner = input.readString();
+      document.documentSourceLink = input.readString();
+      document.documentAuthPrincipalLink = input.readString();
+      document.documentTransactionId = input.readString();
+      readFields(input, document);
+      return document;
+   }
+
+   @Override
+   public T copy(Kryo kryo, T original) {
+      return xenonSerializer.copy(kryo, original);
+   }
+
+   /** Writes the fields of the type, after the {@code ServiceDocument} ones */
+   protected abstract void writeFields(Output output, T document);
+
+   /** Reads the fields {@link #writeFields} wrote, in the same order */
+   protected abstract void readFields(Input input, T document);
+
+   /** Writes {@code link}, without {@code prefix} (ie: a factory link) if it's under it */
+   protected static void writeLink(Output output, String prefix, String link) {
+      boolean underPrefix = link != null && link.startsWith(prefix + "/");
+      output.writeBoolean(underPrefix);
+      output.writeString(underPrefix ? link.substring(prefix.length() + 1) : link);
+   }
+
+   protected static String readLink(Input input, String prefix) {
+      boolean underPrefix = input.readBoolean();
+      String link = input.readString();
+      return underPrefix ? prefix + "/" + link : link;
+   }
+
+   protected static void writeNullable(Output output, Double value) {
+      output.writeBoolean(value != null);
+      if (value != null) {
+         output.writeDouble(value);
+      }
+   }
+
+   protected static Double readNullableDouble(Input input) {
+      return input.readBoolean() ? input.readDouble() : null;
+   }
+
+   /** Written as a zigzag varint, one above (0 for null), so small values take a byte */
+   protected static void writeNullable(Output output, Integer value) {
+      long zigzag = value != null ? ((value << 1) ^ (value >> 31)) & 0xFFFFFFFFL : -1;
+      output.writeVarLong(zigzag + 1, true);
+   }
+
+   protected static Integer readNullableInteger(Input input) {
+      long zigzag = input.readVarLong(true) - 1;
+      if (zigzag < 0) {
+         return null;
+      }
+      int value = (int) zigzag;
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   protected static void writeNullable(Output output, Boolean value) {
+      output.writeByte(value == null ? 0 : value ? 2 : 1);
+   }
+
+   protected static Boolean readNullableBoolean(Input input) {
+      byte value = input.readByte();
+      return value == 0 ? null : value == 2;
+   }
+}
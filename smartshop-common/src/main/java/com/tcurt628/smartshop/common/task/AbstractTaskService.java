@@ -0,0 +1,363 @@
+package com.tcurt628.smartshop.common.task;
+
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.StatefulService;
+import com.vmware.xenon.common.TaskState;
+import com.vmware.xenon.common.Utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * TODO: Should contribute this back to Xenon core!
+ * Contains boilerplate logic and state that most {@code TaskService} implementations would likely benefit from.
+ * <p>
+ * A task runs as a series of steps, one per substage, provided by {@link #handleStep}. A step hands the task on with
+ * {@link #advance}, which only saves the task (with a self {@code PATCH}: persisted and replicated, if the service is)
+ * when the next step is a checkpoint (see {@link #isCheckpoint}); other steps run straight away, in memory. A task that
+ * is restarted with its host resumes from its last checkpoint, so the steps after a checkpoint have to be safe to run
+ * again. Steps are timed out and retried as their {@link StepPolicy} says, and a task that has ended deletes itself
+ * {@link #minutesToKeepFinished} minutes later.
+ */
+public abstract class AbstractTaskService<T extends AbstractTaskService.BaseTaskServiceState> extends StatefulService {
+
+   /**
+    * Extending {@code TaskService} implementations likely want to also provide their own {@code State} PODO object that
+    * extends from this one. Minimally, they'll likely need to provide their own {@code SubStage}.
+    * @see com.vmware.xenon.services.common.ExampleTaskService
+    */
+   public abstract static class BaseTaskServiceState extends ServiceDocument {
+
+      /** Tracks progress of the task. Should not be manipulated by clients. */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public TaskState taskInfo;
+
+      /** If taskInfo.stage == FAILED, this message will say why */
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public String failureMessage;
+
+   }
+
+   /** Parsed once per task class, rather than on every update */
+   private static final ClassValue<ServiceDocumentDescription> DESCRIPTIONS = new ClassValue<ServiceDocumentDescription>() {
+      @Override
+      protected ServiceDocumentDescription computeValue(Class<?> stateType) {
+         return ServiceDocumentDescription.Builder.create().buildDescription(stateType.asSubclass(ServiceDocument.class));
+      }
+   };
+
+   /** Defaults to expire a task instance if not completed in 8 hours. Subclasses can override this. */
+   protected int minutesBeforeExpire = 60*8;
+
+   /** Defaults to delete a task instance an hour after it finished (or failed). Subclasses can override this. */
+   protected int minutesToKeepFinished = 60;
+
+   /** What the running step was given; retries start over from it */
+   private volatile T stepInput;
+   private volatile int stepRetries;
+
+   /**
+    * The copy of {@link #stepInput} the running step works on. Only the step holding it may hand the task on, and
+    * handing it on clears it: of a step that completes just as it times out, only one goes on.
+    */
+   private final AtomicReference<T> runningTask = new AtomicReference<>();
+
+   /** Simple passthrough to our parent's constructor. */
+   protected AbstractTaskService(Class<? extends ServiceDocument> stateType) {
+      super(stateType);
+   }
+
+   /**
+    * This handles the initial POST that creates the task service. Most subclasses won't need to override this method,
+    * although they likely want to override the {@link #validateStartPost(Operation)} and {@link
+    * #initializeState(BaseTaskServiceState, Operation)} methods
+    */
+   @Override
+   public void handleStart(Operation taskOperation) {
+      if (isRestart(taskOperation)) {
+         T task = getBody(taskOperation);
+         taskOperation.complete();
+         resumeTask(task);
+         return;
+      }
+
+      T task = validateStartPost(taskOperation);
+      if (task == null) {
+         return;
+      }
+
+      // Initialized first, so that the state saved on start (and resumed from, after a restart) is the initialized one
+      initializeState(task, taskOperation);
+      taskOperation.complete();
+      sendSelfPatch(task);
+   }
+
+   /**
+    * A persisted task is started again by its factory, from its last saved state, when its host restarts. Unlike a
+    * task a client creates, that start isn't marked as a creation, and its state already has a {@code taskInfo}.
+    */
+   private boolean isRestart(Operation taskOperation) {
+      if (!taskOperation.hasBody() || taskOperation.hasPragmaDirective(Operation.PRAGMA_DIRECTIVE_CREATED)) {
+         return false;
+      }
+      T task = getBody(taskOperation);
+      return task.taskInfo != null;
+   }
+
+   /**
+    * Picks up a task that was restarted from its last saved state. By default, a task that was still {@code STARTED}
+    * runs the step it was at again; subclasses whose steps aren't safe to run twice should override this.
+    */
+   protected void resumeTask(T task) {
+      if (task.taskInfo.stage == TaskState.TaskStage.STARTED) {
+         logInfo("Resuming task from its last saved state");
+         sendSelfPatch(task);
+         return;
+      }
+      scheduleDelete(task.documentUpdateTimeMicros);
+   }
+
+   /** Ensure that the input task is valid. */
+   protected T validateStartPost(Operation taskOperation) {
+      if (!taskOperation.hasBody()) {
+         taskOperation.fail(new IllegalArgumentException("POST body is required"));
+         return null;
+      }
+
+      T task = getBody(taskOperation);
+      if (task.taskInfo != null) {
+         taskOperation.fail(new IllegalArgumentException("Do not specify taskBody: internal use only"));
+         return null;
+      }
+
+      // Subclasses might also want to ensure that their "SubStage" is not specified also
+      return task;
+   }
+
+   /** Initialize the task. */
+   protected void initializeState(T task, Operation taskOperation) {
+      task.taskInfo = new TaskState();
+      task.taskInfo.stage = TaskState.TaskStage.STARTED;
+
+      // Put in some default expiration time.
+      task.documentExpirationTimeMicros = Utils.getNowMicrosUtc() + TimeUnit.MINUTES.toMicros(minutesBeforeExpire);
+
+      // Subclasses should initialize their "SubStage"...
+      taskOperation.setBody(task);
+   }
+
+   /**
+    * All work happens through a {@code PATCH}, which is handled here: the task is saved, and the step it is at is run.
+    * Subclasses provide their steps with {@link #handleStep(BaseTaskServiceState)}, rather than overriding this.
+    */
+   @Override
+   public void handlePatch(Operation patch) {
+      T currentTask = getState(patch);
+      T patchBody = getBody(patch);
+      logFine("handlePatch():\n[currentTask=%s]\n[patchBody=%s]", currentTask, patchBody);
+
+      if (!validateTransition(patch, currentTask, patchBody)) {
+         return;
+      }
+      updateState(currentTask, patchBody);
+      patch.complete();
+
+      // The node that owns the task runs it; peers only keep a copy of its state
+      if (patch.isFromReplication()) {
+         return;
+      }
+
+      switch (patchBody.taskInfo.stage) {
+      case STARTED:
+         startStep(patchBody, 0);
+         break;
+      case FINISHED:
+         logInfo("Task finished successfully: %s", currentTask);
+         scheduleDelete(Utils.getNowMicrosUtc());
+         break;
+      case FAILED:
+         logWarning("Task failed: %s", currentTask.failureMessage != null ? currentTask.failureMessage : "No reason given");
+         scheduleDelete(Utils.getNowMicrosUtc());
+         break;
+      default:
+         logWarning("Unexpected stage: %s", patchBody.taskInfo.stage);
+         break;
+      }
+   }
+
+   /**
+    * Runs the step (substage) {@code task} is at. The step owns {@code task}, and hands it on with {@link #advance},
+    * {@link #retryStep} or {@link #failTask} once it is done.
+    */
+   protected abstract void handleStep(T task);
+
+   /** Whether the task is saved before running the step {@code task} is at. By default, every step is a checkpoint. */
+   protected boolean isCheckpoint(T task) {
+      return true;
+   }
+
+   /** How long the step {@code task} is at may take, and how often it is retried. */
+   protected StepPolicy getStepPolicy(T task) {
+      return StepPolicy.DEFAULT;
+   }
+
+   private void startStep(T task, int retries) {
+      stepInput = task;
+      stepRetries = retries;
+      T running = Utils.clone(task);
+      runningTask.set(running);
+
+      StepPolicy policy = getStepPolicy(task);
+      if (policy.getTimeoutMillis() > 0) {
+         // Ignored by retryStep if the step handed the task on already
+         getHost().schedule(() -> retryStep(running, new TimeoutException(
+               String.format("%s timed out after %d ms", describeStep(running), policy.getTimeoutMillis()))),
+               policy.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+      }
+      handleStep(running);
+   }
+
+   /**
+    * Moves the task on to the step {@code task} now says: saved first if that's a checkpoint (or the task has ended),
+    * and run straight away otherwise. Ignored if the step that was given {@code task} isn't running anymore (ie: it timed
+    * out, and is being retried).
+    */
+   protected void advance(T task) {
+      if (!handOn(task)) {
+         return;
+      }
+      if (task.taskInfo.stage != TaskState.TaskStage.STARTED || isCheckpoint(task)) {
+         sendSelfPatch(task);
+         return;
+      }
+      getHost().run(() -> startStep(task, 0));
+   }
+
+   /**
+    * Runs the step that was given {@code task} again, from what it was given and after a backoff, if its
+    * {@link StepPolicy} allows one more retry. Fails the task otherwise.
+    */
+   protected void retryStep(T task, Throwable failure) {
+      if (!handOn(task)) {
+         return;
+      }
+      T input = stepInput;
+      StepPolicy policy = getStepPolicy(input);
+      int retry = stepRetries + 1;
+      if (retry > policy.getMaxRetries()) {
+         fail(task, String.format("%s failed after %d retries: %s", describeStep(input), stepRetries,
+               failure.getMessage()));
+         return;
+      }
+
+      long delayMillis = policy.retryDelayMillis(retry);
+      logWarning("%s failed (%s); retrying in %d ms (retry %d of %d)", describeStep(input), failure.getMessage(),
+            delayMillis, retry, policy.getMaxRetries());
+      if (getHost().isStopping()) {
+         return;
+      }
+      getHost().schedule(() -> startStep(input, retry), delayMillis, TimeUnit.MILLISECONDS);
+   }
+
+   /** Ends the task as {@code FAILED}, saying why */
+   protected void failTask(T task, String failureMessage) {
+      if (handOn(task)) {
+         fail(task, failureMessage);
+      }
+   }
+
+   private void fail(T task, String failureMessage) {
+      task.failureMessage = failureMessage;
+      task.taskInfo.stage = TaskState.TaskStage.FAILED;
+      sendSelfPatch(task);
+   }
+
+   /** Takes the task from the step that was given {@code task}; false if it isn't running anymore (or gave it up) */
+   private boolean handOn(T task) {
+      if (!runningTask.compareAndSet(task, null)) {
+         logFine("Ignoring a step that is no longer running: %s", task);
+         return false;
+      }
+      return true;
+   }
+
+   /** How the step {@code task} is at shows in logs and failure messages. Subclasses should name their substage. */
+   protected String describeStep(T task) {
+      return "Step";
+   }
+
+   /**
+    * Deletes the task {@link #minutesToKeepFinished} minutes after it ended (at {@code endedMicros}), rather than leaving
+    * it to the index until it expires. Scheduled again if the host restarts in the meantime.
+    */
+   private void scheduleDelete(long endedMicros) {
+      runningTask.set(null);
+      stepInput = null;
+      if (getHost().isStopping()) {
+         return;
+      }
+
+      long delayMicros = endedMicros + TimeUnit.MINUTES.toMicros(minutesToKeepFinished) - Utils.getNowMicrosUtc();
+      getHost().schedule(() -> sendRequest(Operation.createDelete(getUri())
+            .setCompletion((op, ex) -> {
+               if (ex != null) {
+                  logWarning("Failed to delete finished task: %s", ex.getMessage());
+               }
+            })), Math.max(delayMicros, 0), TimeUnit.MICROSECONDS);
+   }
+
+   /** Send ourselves a PATCH. The caller is responsible for creating the PATCH body */
+   protected void sendSelfPatch(T task) {
+      Operation patch = Operation.createPatch(getUri())
+            .setBody(task)
+            .setCompletion(
+                  (op, ex) -> {
+                     if (ex != null) {
+                        logWarning("Failed to send patch, task has failed: %s", ex.getMessage());
+                     }
+                  });
+      sendRequest(patch);
+   }
+
+   /** Validate that the PATCH we got requests reasonable changes to our state */
+   protected boolean validateTransition(Operation patch, T currentTask, T patchBody) {
+      if (patchBody.taskInfo == null) {
+         patch.fail(new IllegalArgumentException("Missing taskInfo"));
+         return false;
+      }
+      if (patchBody.taskInfo.stage == null) {
+         patch.fail(new IllegalArgumentException("Missing stage"));
+         return false;
+      }
+      if (patchBody.taskInfo.stage == TaskState.TaskStage.CREATED) {
+         patch.fail(new IllegalArgumentException("Did not expect to receive CREATED stage"));
+         return false;
+      }
+      if (currentTask.taskInfo != null && currentTask.taskInfo.stage != null) {
+         if (currentTask.taskInfo.stage.ordinal() > patchBody.taskInfo.stage.ordinal()) {
+            patch.fail(new IllegalArgumentException("Task stage cannot move backwards"));
+            return false;
+         }
+      }
+
+      // Subclasses should validate transitions to their "SubStage" as well...
+      return true;
+   }
+
+   /**
+    * This updates the state of the task. Note that we are merging information from the PATCH into the current task.
+    * Because we are merging into the current task (it's the same object), we do not need to explicitly save the state:
+    * that will happen when we call patch.complete()
+    */
+   protected void updateState(T currentTask, T patchBody) {
+      Utils.mergeWithState(DESCRIPTIONS.get(getStateType()), currentTask, patchBody);
+
+      // Take the new document expiration time
+      if (currentTask.documentExpirationTimeMicros == 0) {
+         currentTask.documentExpirationTimeMicros = patchBody.documentExpirationTimeMicros;
+      }
+   }
+}
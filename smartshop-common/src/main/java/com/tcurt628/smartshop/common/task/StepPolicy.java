@@ -0,0 +1,48 @@
+package com.tcurt628.smartshop.common.task;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How long a step of an {@link AbstractTaskService} may take, and how many times it is retried (after a failure or a
+ * timeout) before the task fails. Retries back off exponentially, from {@code initialRetryDelayMillis} up to
+ * {@link #MAX_RETRY_DELAY_MILLIS}.
+ */
+public final class StepPolicy {
+
+   public static final long MAX_RETRY_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+   /** Steps time out after 5 minutes, and are retried 3 times */
+   public static final StepPolicy DEFAULT = new StepPolicy(TimeUnit.MINUTES.toMillis(5), 3, 500);
+
+   /** Steps never time out, and a failure fails the task */
+   public static final StepPolicy NONE = new StepPolicy(0, 0, 0);
+
+   private final long timeoutMillis;
+   private final int maxRetries;
+   private final long initialRetryDelayMillis;
+
+   /** A {@code timeoutMillis} of 0 means no timeout */
+   public StepPolicy(long timeoutMillis, int maxRetries, long initialRetryDelayMillis) {
+      this.timeoutMillis = timeoutMillis;
+      this.maxRetries = maxRetries;
+      this.initialRetryDelayMillis = initialRetryDelayMillis;
+   }
+
+   public long getTimeoutMillis() {
+      return timeoutMillis;
+   }
+
+   public int getMaxRetries() {
+      return maxRetries;
+   }
+
+   public long getInitialRetryDelayMillis() {
+      return initialRetryDelayMillis;
+   }
+
+   /** The delay before retry number {@code retry} (1 for the first one) */
+   public long retryDelayMillis(int retry) {
+      long delayMillis = initialRetryDelayMillis << Math.min(retry - 1, 16);
+      return Math.min(delayMillis, MAX_RETRY_DELAY_MILLIS);
+   }
+}
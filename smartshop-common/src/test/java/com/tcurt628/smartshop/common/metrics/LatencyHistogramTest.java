@@ -0,0 +1,54 @@
+package com.tcurt628.smartshop.common.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+   @Test
+   public void testBucketsCoverEveryValueOnce() {
+      long previousHighest = -1;
+      for (int index = 0; index < LatencyHistogram.BUCKET_COUNT; index++) {
+         long highest = LatencyHistogram.highestValueIn(index);
+         assertEquals(index, LatencyHistogram.bucketIndex(previousHighest + 1));
+         assertEquals(index, LatencyHistogram.bucketIndex(highest));
+         previousHighest = highest;
+      }
+      assertEquals(LatencyHistogram.MAX_VALUE, previousHighest);
+   }
+
+   @Test
+   public void testPercentiles() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      for (int micros = 1; micros <= 10000; micros++) {
+         histogram.record(micros);
+      }
+
+      LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+      assertEquals(10000, snapshot.getCount());
+      assertEquals(10000L * 10001 / 2, snapshot.getSum());
+      assertWithinPrecision(5000, snapshot.getValueAtPercentile(50));
+      assertWithinPrecision(9900, snapshot.getValueAtPercentile(99));
+      assertWithinPrecision(9990, snapshot.getValueAtPercentile(99.9));
+      assertWithinPrecision(10000, snapshot.getValueAtPercentile(100));
+   }
+
+   @Test
+   public void testOutOfRangeValuesAreClamped() {
+      LatencyHistogram histogram = new LatencyHistogram();
+      histogram.record(-5);
+      histogram.record(Long.MAX_VALUE);
+
+      LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+      assertEquals(0, snapshot.getValueAtPercentile(50));
+      assertEquals(LatencyHistogram.MAX_VALUE, snapshot.getValueAtPercentile(100));
+      assertEquals(0, new LatencyHistogram().snapshot().getValueAtPercentile(99));
+   }
+
+   private static void assertWithinPrecision(long expected, long actual) {
+      assertTrue("expected about " + expected + " but was " + actual,
+            actual >= expected && actual <= expected + expected / 32);
+   }
+}
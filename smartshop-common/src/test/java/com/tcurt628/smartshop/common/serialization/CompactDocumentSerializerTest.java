@@ -0,0 +1,189 @@
+package com.tcurt628.smartshop.common.serialization;
+
+import com.esotericsoftware.kryo.DefaultSerializer;
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.esotericsoftware.kryo.serializers.VersionFieldSerializer;
+import com.vmware.xenon.common.ServiceDocument;
+import com.vmware.xenon.common.Utils;
+import com.vmware.xenon.common.serialization.KryoSerializers;
+import org.junit.After;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class CompactDocumentSerializerTest {
+
+   @DefaultSerializer(TestDocumentSerializer.class)
+   public static class TestDocument extends ServiceDocument {
+      public String name;
+      public String parentLink;
+      public Double price;
+      public Integer count;
+      public Boolean flag;
+   }
+
+   public static class OtherDocument extends ServiceDocument {
+   }
+
+   public static class TestDocumentSerializer extends CompactDocumentSerializer<TestDocument> {
+
+      public TestDocumentSerializer(Kryo kryo, Class<TestDocument> type) {
+         super(kryo, type, "/things");
+      }
+
+      @Override
+      protected void writeFields(Output output, TestDocument document) {
+         output.writeString(document.name);
+         writeLink(output, "/parents", document.parentLink);
+         writeNullable(output, document.price);
+         writeNullable(output, document.count);
+         writeNullable(output, document.flag);
+      }
+
+      @Override
+      protected void readFields(Input input, TestDocument document) {
+         document.name = input.readString();
+         document.parentLink = readLink(input, "/parents");
+         document.price = readNullableDouble(input);
+         document.count = readNullableInteger(input);
+         document.flag = readNullableBoolean(input);
+      }
+   }
+
+   @After
+   public void tearDown() {
+      CompactDocumentSerializer.setEnabled(TestDocument.class, false);
+   }
+
+   /** A {@code ServiceDocument} field the compact form doesn't write (ie: after a Xenon upgrade) would be lost */
+   @Test
+   public void testWritesEveryServiceDocumentField() {
+      Set<String> fields = Arrays.stream(ServiceDocument.class.getDeclaredFields())
+            .filter(field -> !Modifier.isStatic(field.getModifiers()))
+            .map(Field::getName)
+            .collect(Collectors.toCollection(TreeSet::new));
+      assertEquals("A field of ServiceDocument changed: write (and read) it in CompactDocumentSerializer",
+            new TreeSet<>(Arrays.asList("documentDescription", "documentVersion", "documentEpoch", "documentKind",
+                  "documentSelfLink", "documentUpdateTimeMicros", "documentUpdateAction",
+                  "documentExpirationTimeMicros", "documentOwner", "documentSourceLink", "documentAuthPrincipalLink",
+                  "documentTransactionId")),
+            fields);
+   }
+
+   @Test
+   public void testRoundTrip() {
+      for (boolean compact : new boolean[] { false, true }) {
+         CompactDocumentSerializer.setEnabled(TestDocument.class, compact);
+         assertSameDocument(newDocument(), roundTrip(newDocument()));
+      }
+   }
+
+   @Test
+   public void testRoundTripOfNullsAndEdgeValues() {
+      CompactDocumentSerializer.setEnabled(TestDocument.class, true);
+      TestDocument empty = new TestDocument();
+      assertSameDocument(empty, roundTrip(empty));
+
+      for (int count : new int[] { 0, -1, 1, Integer.MIN_VALUE, Integer.MAX_VALUE }) {
+         TestDocument document = newDocument();
+         document.count = count;
+         document.flag = false;
+         document.parentLink = "/elsewhere/1";
+         document.documentEpoch = 7L;
+         assertSameDocument(document, roundTrip(document));
+      }
+   }
+
+   @Test
+   public void testCompactFormIsSmaller() {
+      CompactDocumentSerializer.setEnabled(TestDocument.class, false);
+      int xenonSize = toBytes(newDocument()).length;
+      CompactDocumentSerializer.setEnabled(TestDocument.class, true);
+      int compactSize = toBytes(newDocument()).length;
+      assertTrue("compact: " + compactSize + " bytes, Xenon: " + xenonSize, compactSize < xenonSize);
+   }
+
+   @Test
+   public void testDisabledWritesXenonForm() {
+      Kryo kryo = KryoSerializers.create(false);
+      Output annotated = new Output(4096);
+      kryo.writeObject(annotated, newDocument());
+      Output xenon = new Output(4096);
+      new VersionFieldSerializer<>(kryo, TestDocument.class).write(kryo, xenon, newDocument());
+      assertArrayEquals(xenon.toBytes(), annotated.toBytes());
+   }
+
+   @Test
+   public void testEnabledPerType() {
+      CompactDocumentSerializer.setEnabled(TestDocument.class, false);
+      byte[] xenon = toBytes(newDocument());
+      CompactDocumentSerializer.setEnabled(OtherDocument.class, true);
+      assertArrayEquals(xenon, toBytes(newDocument()));
+      CompactDocumentSerializer.setEnabled(OtherDocument.class, false);
+   }
+
+   @Test
+   public void testReadsEitherForm() {
+      CompactDocumentSerializer.setEnabled(TestDocument.class, false);
+      byte[] xenon = toBytes(newDocument());
+      CompactDocumentSerializer.setEnabled(TestDocument.class, true);
+      byte[] compact = toBytes(newDocument());
+
+      assertSameDocument(newDocument(), fromBytes(xenon));
+      CompactDocumentSerializer.setEnabled(TestDocument.class, false);
+      assertSameDocument(newDocument(), fromBytes(compact));
+   }
+
+   @Test
+   public void testDocumentOfAnotherKindIsWrittenInXenonForm() {
+      CompactDocumentSerializer.setEnabled(TestDocument.class, true);
+      TestDocument document = newDocument();
+      document.documentKind = "other";
+      assertEquals("other", roundTrip(document).documentKind);
+   }
+
+   private static TestDocument newDocument() {
+      TestDocument document = new TestDocument();
+      document.documentKind = Utils.buildKind(TestDocument.class);
+      document.documentSelfLink = "/things/3f2a9c";
+      document.documentVersion = 12;
+      document.documentUpdateTimeMicros = 1476800000000000L;
+      document.documentUpdateAction = "PATCH";
+      document.documentOwner = "node-1";
+      document.name = "Widget";
+      document.parentLink = "/parents/abc";
+      document.price = 19.99;
+      document.count = 42;
+      document.flag = true;
+      return document;
+   }
+
+   private static TestDocument roundTrip(TestDocument document) {
+      return fromBytes(toBytes(document));
+   }
+
+   private static byte[] toBytes(TestDocument document) {
+      byte[] buffer = new byte[4096];
+      return Arrays.copyOf(buffer, Utils.toBytes(document, buffer, 0));
+   }
+
+   private static TestDocument fromBytes(byte[] bytes) {
+      return (TestDocument) Utils.fromDocumentBytes(bytes, 0, bytes.length);
+   }
+
+   private static void assertSameDocument(TestDocument expected, TestDocument actual) {
+      assertEquals(Utils.toJson(expected), Utils.toJson(actual));
+   }
+}
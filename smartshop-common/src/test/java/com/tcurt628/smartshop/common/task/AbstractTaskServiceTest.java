@@ -0,0 +1,289 @@
+package com.tcurt628.smartshop.common.task;
+
+import com.vmware.xenon.common.FactoryService;
+import com.vmware.xenon.common.Operation;
+import com.vmware.xenon.common.Service;
+import com.vmware.xenon.common.ServiceDocumentDescription;
+import com.vmware.xenon.common.ServiceHost;
+import com.vmware.xenon.common.TaskState;
+import com.vmware.xenon.common.UriUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+
+/** How {@link AbstractTaskService} saves, times out, retries and resumes the steps of a task */
+public class AbstractTaskServiceTest {
+
+   private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+   /** What a step does when it runs */
+   enum Behaviour {
+      /** Hands the task on to the next step */
+      ADVANCE,
+      /** Asks to be retried */
+      FAIL,
+      /** Never hands the task on */
+      HANG,
+      /** Hands the task on after it timed out the first time it runs, and straight away after that */
+      LATE_ONCE
+   }
+
+   /** The behaviour of each substage, and how many times each ran. Shared by every task, as there's one at a time. */
+   static final Map<SubStage, Behaviour> BEHAVIOURS = new ConcurrentHashMap<>();
+   static final Map<SubStage, AtomicInteger> RUNS = new ConcurrentHashMap<>();
+
+   /** The substage of each {@code PATCH} the task handled, ie: each time it was saved */
+   static final List<SubStage> SAVED = Collections.synchronizedList(new ArrayList<>());
+
+   public enum SubStage {
+      /** A checkpoint */
+      FIRST,
+      /** Not a checkpoint; times out after {@link TestTaskService#IN_MEMORY_POLICY}'s 300 ms, and is retried twice */
+      IN_MEMORY,
+      /** A checkpoint, the last step */
+      LAST
+   }
+
+   public static class TestTaskState extends AbstractTaskService.BaseTaskServiceState {
+
+      @UsageOption(option = ServiceDocumentDescription.PropertyUsageOption.AUTO_MERGE_IF_NOT_NULL)
+      public SubStage subStage;
+   }
+
+   public static class TestTaskService extends AbstractTaskService<TestTaskState> {
+
+      static final String FACTORY_LINK = "/test-tasks";
+
+      static final StepPolicy IN_MEMORY_POLICY = new StepPolicy(300, 2, 10);
+
+      static Service createFactory() {
+         return FactoryService.create(TestTaskService.class, TestTaskState.class);
+      }
+
+      public TestTaskService() {
+         super(TestTaskState.class);
+         toggleOption(ServiceOption.PERSISTENCE, true);
+      }
+
+      @Override
+      protected void initializeState(TestTaskState task, Operation taskOperation) {
+         task.subStage = SubStage.FIRST;
+         super.initializeState(task, taskOperation);
+      }
+
+      @Override
+      protected void handleStep(TestTaskState task) {
+         int run = RUNS.computeIfAbsent(task.subStage, s -> new AtomicInteger()).incrementAndGet();
+         switch (BEHAVIOURS.getOrDefault(task.subStage, Behaviour.ADVANCE)) {
+         case ADVANCE:
+            next(task);
+            break;
+         case FAIL:
+            retryStep(task, new IllegalStateException("Broken"));
+            break;
+         case HANG:
+            break;
+         case LATE_ONCE:
+            if (run > 1) {
+               next(task);
+               break;
+            }
+            getHost().schedule(() -> next(task), 2 * getStepPolicy(task).getTimeoutMillis(), TimeUnit.MILLISECONDS);
+            break;
+         default:
+            break;
+         }
+      }
+
+      private void next(TestTaskState task) {
+         if (task.subStage == SubStage.LAST) {
+            task.taskInfo.stage = TaskState.TaskStage.FINISHED;
+         } else {
+            task.subStage = SubStage.values()[task.subStage.ordinal() + 1];
+         }
+         advance(task);
+      }
+
+      @Override
+      protected boolean isCheckpoint(TestTaskState task) {
+         return task.subStage != SubStage.IN_MEMORY;
+      }
+
+      @Override
+      protected StepPolicy getStepPolicy(TestTaskState task) {
+         return task.subStage == SubStage.IN_MEMORY ? IN_MEMORY_POLICY : StepPolicy.NONE;
+      }
+
+      @Override
+      protected String describeStep(TestTaskState task) {
+         return task.subStage.name();
+      }
+
+      @Override
+      protected void updateState(TestTaskState currentTask, TestTaskState patchBody) {
+         SAVED.add(patchBody.subStage);
+         super.updateState(currentTask, patchBody);
+      }
+   }
+
+   /** Just the core services, and the tasks */
+   private static class TestHost extends ServiceHost {
+
+      @Override
+      public ServiceHost start() throws Throwable {
+         super.start();
+         startDefaultCoreServicesSynchronously();
+         super.startService(
+               Operation.createPost(UriUtils.buildUri(this, TestTaskService.FACTORY_LINK)),
+               TestTaskService.createFactory());
+         return this;
+      }
+   }
+
+   @Rule
+   public TemporaryFolder sandbox = new TemporaryFolder();
+
+   private TestHost host;
+
+   @Before
+   public void setUp() throws Throwable {
+      BEHAVIOURS.clear();
+      RUNS.clear();
+      SAVED.clear();
+      host = startHost();
+   }
+
+   @After
+   public void tearDown() {
+      if (host != null) {
+         host.stop();
+      }
+   }
+
+   @Test
+   public void testOnlyCheckpointsAreSaved() throws Throwable {
+      TestTaskState task = waitForEnd(createTask());
+
+      assertEquals(TaskState.TaskStage.FINISHED, task.taskInfo.stage);
+      assertEquals(1, runs(SubStage.IN_MEMORY));
+      // Started at FIRST, advanced to LAST (past IN_MEMORY), and finished at LAST
+      assertEquals(Arrays.asList(SubStage.FIRST, SubStage.LAST, SubStage.LAST), SAVED);
+   }
+
+   @Test
+   public void testStepThatTimesOutIsRetriedAndGoesOnOnce() throws Throwable {
+      BEHAVIOURS.put(SubStage.IN_MEMORY, Behaviour.LATE_ONCE);
+      String taskLink = createTask();
+      TestTaskState task = waitForEnd(taskLink);
+
+      assertEquals(TaskState.TaskStage.FINISHED, task.taskInfo.stage);
+      assertEquals(2, runs(SubStage.IN_MEMORY));
+
+      // Once the first run of IN_MEMORY has handed the task on too late, which is ignored
+      Thread.sleep(3 * TestTaskService.IN_MEMORY_POLICY.getTimeoutMillis());
+      assertEquals(1, runs(SubStage.LAST));
+      assertEquals(TaskState.TaskStage.FINISHED, get(taskLink).taskInfo.stage);
+   }
+
+   @Test
+   public void testStepThatRunsOutOfRetriesFailsTheTask() throws Throwable {
+      BEHAVIOURS.put(SubStage.IN_MEMORY, Behaviour.FAIL);
+      TestTaskState task = waitForEnd(createTask());
+
+      assertEquals(TaskState.TaskStage.FAILED, task.taskInfo.stage);
+      assertEquals("IN_MEMORY failed after 2 retries: Broken", task.failureMessage);
+      assertEquals(1 + TestTaskService.IN_MEMORY_POLICY.getMaxRetries(), runs(SubStage.IN_MEMORY));
+      assertEquals(0, runs(SubStage.LAST));
+   }
+
+   @Test
+   public void testRestartedTaskResumesFromItsLastCheckpoint() throws Throwable {
+      BEHAVIOURS.put(SubStage.LAST, Behaviour.HANG);
+      String taskLink = createTask();
+      waitFor(() -> runs(SubStage.LAST) == 1);
+
+      host.stop();
+      BEHAVIOURS.put(SubStage.LAST, Behaviour.ADVANCE);
+      host = startHost();
+      waitFor(() -> host.checkServiceAvailable(taskLink));
+      TestTaskState task = waitForEnd(taskLink);
+
+      assertEquals(TaskState.TaskStage.FINISHED, task.taskInfo.stage);
+      assertEquals(1, runs(SubStage.FIRST));
+      assertEquals(1, runs(SubStage.IN_MEMORY));
+      assertEquals(2, runs(SubStage.LAST));
+   }
+
+   private TestHost startHost() throws Throwable {
+      TestHost testHost = new TestHost();
+      testHost.initialize(new String[] {
+            "--port=0",
+            "--id=taskHost",
+            "--sandbox=" + sandbox.getRoot().getAbsolutePath()
+      });
+      testHost.start();
+      waitFor(() -> testHost.checkServiceAvailable(TestTaskService.FACTORY_LINK));
+      return testHost;
+   }
+
+   private static int runs(SubStage subStage) {
+      AtomicInteger runs = RUNS.get(subStage);
+      return runs != null ? runs.get() : 0;
+   }
+
+   private String createTask() throws Exception {
+      return send(Operation.createPost(UriUtils.buildUri(host, TestTaskService.FACTORY_LINK))
+            .setBody(new TestTaskState())).getBody(TestTaskState.class).documentSelfLink;
+   }
+
+   private TestTaskState waitForEnd(String taskLink) throws Throwable {
+      waitFor(() -> get(taskLink).taskInfo.stage.ordinal() > TaskState.TaskStage.STARTED.ordinal());
+      return get(taskLink);
+   }
+
+   private TestTaskState get(String taskLink) throws Exception {
+      return send(Operation.createGet(UriUtils.buildUri(host, taskLink))).getBody(TestTaskState.class);
+   }
+
+   private Operation send(Operation op) throws Exception {
+      CompletableFuture<Operation> done = new CompletableFuture<>();
+      host.sendRequest(op
+            .setReferer(host.getUri())
+            .setCompletion((o, e) -> {
+               if (e != null) {
+                  done.completeExceptionally(e);
+                  return;
+               }
+               done.complete(o);
+            }));
+      return done.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private interface Condition {
+      boolean isMet() throws Throwable;
+   }
+
+   private static void waitFor(Condition condition) throws Throwable {
+      long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+      while (!condition.isMet()) {
+         if (System.currentTimeMillis() > deadline) {
+            throw new IllegalStateException("Timed out");
+         }
+         Thread.sleep(100);
+      }
+   }
+}